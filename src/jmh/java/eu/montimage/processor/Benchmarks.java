@@ -0,0 +1,23 @@
+package eu.montimage.processor;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the allocation profiler (-prof gc) enabled.
+ * The arguments are the usual JMH ones, i.e. a regular expression selecting
+ * the benchmarks, or -p flows=1000 to select a parameter value.
+ */
+public class Benchmarks{
+
+    public static void main(String[] args) throws Exception{
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
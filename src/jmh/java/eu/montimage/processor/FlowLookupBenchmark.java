@@ -0,0 +1,77 @@
+package eu.montimage.processor;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the {@link FlowID} hash and equals, per lookup, in tables of
+ * increasing size. Half of the probes are in the opposite sense of the
+ * stored flow, as the downlink packets are.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FlowLookupBenchmark{
+
+    static final int PROBES = 1 << 16;
+
+    @Param({"1000", "1000000", "10000000"})
+    public int flows;
+
+    private Set<FlowID> table;
+    private FlowID[] probes;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(1);
+        FlowID[] ids = new FlowID[this.flows];
+        this.table = new HashSet<>(2 * this.flows);
+        for (int i = 0; i < this.flows; i++){
+            ids[i] = new FlowID(0, 0x0000FFFF0A000000L | random.nextInt(1 << 24), 1024 + random.nextInt(64000),
+                                0, 0x0000FFFFC0A80000L | random.nextInt(1 << 16), 443);
+            this.table.add(ids[i]);
+        }
+        this.probes = new FlowID[PROBES];
+        for (int i = 0; i < PROBES; i++){
+            FlowID id = ids[random.nextInt(this.flows)];
+            this.probes[i] = i % 2 == 0 ? id
+                : new FlowID(id.getDstHi(), id.getDstLo(), id.getDstPort(), id.getSrcHi(), id.getSrcLo(), id.getSrcPort());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public int lookup(){
+        int found = 0;
+        for (FlowID probe : this.probes){
+            if (this.table.contains(probe)) found++;
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public int hash(){
+        int hash = 0;
+        for (FlowID probe : this.probes) hash ^= probe.hashCode();
+        return hash;
+    }
+}
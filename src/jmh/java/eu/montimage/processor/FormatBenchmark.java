@@ -0,0 +1,121 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of turning a flow into an output row, per flow: building the columns
+ * as Strings ({@link Flow#getConversation()}), writing them
+ * ({@link Test#writeARFFEntries(PrintWriter, List)}), and the whole path of
+ * the {@link FlowWriter}, in text and binary format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FormatBenchmark{
+
+    static final int FLOWS = 10000;
+    static final int PACKETS = 20 * FLOWS;
+
+    private final List<Flow> flows = new ArrayList<>();
+    private final List<String[]> rows = new ArrayList<>();
+    private PrintWriter discard;
+    private Path output;
+
+    @Setup
+    public void setup() throws IOException{
+        // Keep the flows alive until the end, to get one row per flow
+        FlowTable table = new FlowTable(0, 0, flow -> { });
+        ReportGenerator generator = new ReportGenerator(FLOWS, 1);
+        List<FlowID> ids = new ArrayList<>();
+        for (int i = 0; i < PACKETS; i++){
+            PacketRecord pkt = generator.next();
+            pkt.fin = 0;
+            FlowID id = new FlowID(pkt);
+            if (table.get(id) == null) ids.add(id);
+            table.logPkg(pkt);
+        }
+        // Copy every flow in its own store
+        for (FlowID id : ids){
+            Flow source = table.get(id);
+            FlowStore store = new FlowStore(1);
+            ByteBuffer buf = ByteBuffer.allocate(store.bytesPerSlot());
+            source.write(buf);
+            ((Buffer) buf).flip();
+            store.read(0, buf);
+            Flow flow = new Flow(store);
+            flow.bind(source.getFlowID(), 0);
+            this.flows.add(flow);
+            this.rows.add(flow.getConversation());
+        }
+        this.discard = new PrintWriter(new Writer(){
+            @Override
+            public void write(char[] cbuf, int off, int len){ }
+
+            @Override
+            public void flush(){ }
+
+            @Override
+            public void close(){ }
+        });
+        this.output = Files.createTempFile("flows", ".out");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        Files.deleteIfExists(this.output);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FLOWS)
+    public void getConversation(Blackhole bh){
+        for (Flow flow : this.flows) bh.consume(flow.getConversation());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FLOWS)
+    public void writeARFFEntries(){
+        Test.writeARFFEntries(this.discard, this.rows);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FLOWS)
+    public void flowWriterText() throws IOException{
+        try(FlowWriter writer = new FlowWriter(this.output, false, null)){
+            this.flows.forEach(writer);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FLOWS)
+    public void flowWriterBinary() throws IOException{
+        try(FlowWriter writer = new FlowWriter(this.output, true, Flow.getARFFHeaders())){
+            this.flows.forEach(writer);
+        }
+    }
+}
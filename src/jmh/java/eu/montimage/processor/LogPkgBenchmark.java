@@ -0,0 +1,87 @@
+package eu.montimage.processor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of logging a decoded packet: in a single flow (statistics only), and
+ * in a flow table (lookup, creation, eviction of the closed flows and
+ * statistics) with a given number of active flows, for the base and the
+ * extended columns and for the 8 features of a small model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LogPkgBenchmark{
+
+    static final int PACKETS = 1 << 18;
+    static final String MODEL_FEATURES = "duration,pkgpersecup,pkgpersecdwn,bytespersecup,bytespersecdwn,pkgsizeup-avg,pkgsizedwn-avg,percup-syn";
+
+    @Param({"1000", "100000"})
+    public int flows;
+
+    @Param({"base", "extended", "model"})
+    public String features;
+
+    private final PacketBatch packets = new PacketBatch(PACKETS);
+    private final PacketRecord pkt = new PacketRecord();
+    private FlowTable table;
+    private Flow flow;
+    private long evicted;
+
+    @Setup
+    public void setup(){
+        ReportGenerator generator = new ReportGenerator(this.flows, 1);
+        for (int i = 0; i < PACKETS; i++) this.packets.add(generator.next());
+    }
+
+    @Setup(Level.Iteration)
+    public void reset(){
+        Features features = this.features.equals("model") ? Features.parse(MODEL_FEATURES) : this.features.equals("extended") ? Features.EXTENDED : Features.BASE;
+        this.table = new FlowTable(0, 0, 0, 0, features, flow -> this.evicted++);
+        this.packets.get(0, this.pkt);
+        FlowStore store = new FlowStore(1, features);
+        store.init(0, this.pkt.tstamp);
+        this.flow = new Flow(store);
+        this.flow.bind(new FlowID(this.pkt), 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int flowTable(){
+        for (int i = 0; i < PACKETS; i++){
+            this.packets.get(i, this.pkt);
+            this.table.logPkg(this.pkt);
+        }
+        return this.table.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public boolean flow(){
+        boolean logged = false;
+        for (int i = 0; i < PACKETS; i++){
+            this.packets.get(i, this.pkt);
+            // Keep the flow open, so every packet is logged
+            this.pkt.fin = 0;
+            logged |= this.flow.logPkg(this.pkt, (i & 1) == 0);
+        }
+        return logged;
+    }
+}
@@ -0,0 +1,74 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading a report file, per line: the String-based reader
+ * ({@link Test#readCSVfile(String)}) against the byte parser, memory-mapped
+ * or through direct buffers ({@link Test#streamReport(String, java.util.function.Consumer)}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark{
+
+    static final int PACKETS = 1000000;
+    static final int FLOWS = 10000;
+
+    private Path report;
+    private long packets;
+
+    @Setup
+    public void setup() throws IOException{
+        this.report = Files.createTempFile("report", ".csv");
+        ReportGenerator.generate(this.report, PACKETS, FLOWS, 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        Files.deleteIfExists(this.report);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int readCSVfile(){
+        return Test.readCSVfile(this.report.toString()).size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public long streamReportMapped(){
+        Test.MMAP = true;
+        this.packets = 0;
+        Test.streamReport(this.report.toString(), pkt -> this.packets++);
+        return this.packets;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public long streamReportDirect(){
+        Test.MMAP = false;
+        this.packets = 0;
+        Test.streamReport(this.report.toString(), pkt -> this.packets++);
+        return this.packets;
+    }
+}
@@ -0,0 +1,164 @@
+package eu.montimage.processor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Generator of synthetic MMT reports for the benchmarks.
+ * A fixed number of flows are active at the same time. Every packet belongs
+ * to one of them, chosen at random, and goes uplink or downlink. A flow lasts
+ * a heavy-tailed (Pareto) number of packets, from the SYN to the closing FIN,
+ * FIN-ACK, ACK sequence, and it is then replaced by a new flow. Ports, sizes,
+ * TTLs and TLS content types follow a simple web-like mix, and a share of the
+ * flows use IPv6.
+ */
+public class ReportGenerator{
+
+    static final String USAGE = "java -cp pkg-processor-0.1-jar-with-dependencies.jar eu.montimage.processor.ReportGenerator <filename> <packets> <active flows> [<seed>]";
+
+    private static final int[] SERVER_PORTS = {443, 443, 443, 80, 80, 22, 53, 8080};
+    // TLS content types, application data being the most frequent one
+    private static final int[] CONTENT_TYPES = {23, 23, 23, 23, 23, 22, 22, 20, 21, 24, -1, -1, -1};
+    private static final double IPV6_SHARE = 0.1;
+    // Shape and minimum of the Pareto distribution of the flow lengths (in packets)
+    private static final double LENGTH_SHAPE = 1.2;
+    private static final int LENGTH_MIN = 4;
+
+    private final Random random;
+    private final long[] srcHi, srcLo, dstHi, dstLo;
+    private final int[] srcPort, dstPort;
+    // Packets left before the flow closes, and step of the closing sequence
+    private final int[] left;
+    private final int[] closing;
+    private final PacketRecord pkt = new PacketRecord();
+    private long tstamp = 1530000000L * 1000000L;
+    private long count = 0;
+
+    /**
+     * @param flows Number of flows active at the same time.
+     */
+    public ReportGenerator(int flows, long seed){
+        this.random = new Random(seed);
+        this.srcHi = new long[flows];
+        this.srcLo = new long[flows];
+        this.dstHi = new long[flows];
+        this.dstLo = new long[flows];
+        this.srcPort = new int[flows];
+        this.dstPort = new int[flows];
+        this.left = new int[flows];
+        this.closing = new int[flows];
+        for (int i = 0; i < flows; i++) this.open(i);
+    }
+
+    /**
+     * Generates the next packet. The record is reused by the next call.
+     */
+    public PacketRecord next(){
+        int f = this.random.nextInt(this.left.length);
+        PacketRecord p = this.pkt;
+        boolean up = this.random.nextBoolean();
+        p.seq = this.count++;
+        this.tstamp += 1 + this.random.nextInt(200);
+        p.tstamp = this.tstamp;
+        if (up){
+            p.srcHi = this.srcHi[f]; p.srcLo = this.srcLo[f]; p.srcPort = this.srcPort[f];
+            p.dstHi = this.dstHi[f]; p.dstLo = this.dstLo[f]; p.dstPort = this.dstPort[f];
+        } else {
+            p.srcHi = this.dstHi[f]; p.srcLo = this.dstLo[f]; p.srcPort = this.dstPort[f];
+            p.dstHi = this.srcHi[f]; p.dstLo = this.srcLo[f]; p.dstPort = this.srcPort[f];
+        }
+        p.size = up ? 40 + this.random.nextInt(600) : 40 + this.random.nextInt(1460);
+        p.tcpwin = 1024 + this.random.nextInt(64512);
+        p.ttl = up ? 64 - this.random.nextInt(8) : 128 - this.random.nextInt(20);
+        p.fin = 0;
+        p.syn = 0;
+        p.rst = 0;
+        p.psh = this.random.nextInt(4) == 0 ? 1 : 0;
+        p.ack = 1;
+        p.urg = 0;
+        p.contType = CONTENT_TYPES[this.random.nextInt(CONTENT_TYPES.length)];
+        if (this.closing[f] > 0){
+            // FIN, FIN-ACK, ACK
+            p.fin = this.closing[f] < 3 ? 1 : 0;
+            p.ack = this.closing[f] == 1 ? 0 : 1;
+            p.contType = -1;
+            if (++this.closing[f] > 3) this.open(f);
+        } else if (this.left[f]-- == 0){
+            this.closing[f] = 1;
+        } else if (this.random.nextInt(100) == 0){
+            p.syn = 1;
+            p.ack = 0;
+        }
+        return p;
+    }
+
+    /**
+     * Writes the given number of packets as report lines.
+     */
+    public void write(Writer out, long packets) throws IOException{
+        StringBuilder line = new StringBuilder(160);
+        for (long i = 0; i < packets; i++){
+            PacketRecord p = this.next();
+            line.setLength(0);
+            line.append("100,3,").append(1 + (p.seq & 1)).append(',')
+                .append(p.tstamp / 1000000).append('.');
+            String micros = Long.toString(p.tstamp % 1000000);
+            for (int k = micros.length(); k < 6; k++) line.append('0');
+            line.append(micros).append(',').append(p.seq).append(",tcp,")
+                .append(p.getSrcIP()).append(',').append(p.getDstIP()).append(',')
+                .append(p.srcPort).append(',').append(p.dstPort).append(',')
+                .append(p.size).append(',').append(p.tcpwin).append(',').append(p.ttl).append(',')
+                .append(p.fin).append(',').append(p.syn).append(',').append(p.rst).append(',')
+                .append(p.psh).append(',').append(p.ack).append(',').append(p.urg).append(',');
+            if (p.contType >= 0) line.append(p.contType);
+            line.append('\n');
+            out.write(line.toString());
+        }
+    }
+
+    /**
+     * Writes a report file with the given number of packets.
+     */
+    public static void generate(Path path, long packets, int flows, long seed) throws IOException{
+        try(BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)){
+            new ReportGenerator(flows, seed).write(out, packets);
+        }
+    }
+
+    /**
+     * Starts a new flow in the given position.
+     */
+    private void open(int f){
+        if (this.random.nextDouble() < IPV6_SHARE){
+            this.srcHi[f] = 0xFE80000000000000L;
+            this.srcLo[f] = this.random.nextLong();
+            this.dstHi[f] = 0x20010DB800000000L | this.random.nextInt(1 << 16);
+            this.dstLo[f] = this.random.nextInt(1 << 20);
+        } else {
+            this.srcHi[f] = 0;
+            this.srcLo[f] = 0x0000FFFF0A000000L | this.random.nextInt(1 << 20);
+            this.dstHi[f] = 0;
+            this.dstLo[f] = 0x0000FFFFC0A80000L | this.random.nextInt(1 << 12);
+        }
+        this.srcPort[f] = 1024 + this.random.nextInt(64000);
+        this.dstPort[f] = SERVER_PORTS[this.random.nextInt(SERVER_PORTS.length)];
+        double u = 1.0 - this.random.nextDouble();
+        this.left[f] = (int) Math.min(1000000, LENGTH_MIN / Math.pow(u, 1.0 / LENGTH_SHAPE));
+        this.closing[f] = 0;
+    }
+
+    public static void main(String[] args) throws IOException{
+        if (args.length < 3){
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+        generate(Paths.get(args[0]), Long.parseLong(args[1]), Integer.parseInt(args[2]), seed);
+    }
+}
@@ -0,0 +1,167 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Input source consuming MMT reports from an AMQP (RabbitMQ) queue, also a
+ * feed of a {@link FeedEngine}.
+ * A message holds one or several report lines. Messages are acknowledged in
+ * batches, only once their packets have been handed to the consumer, so a
+ * crash never loses a report. The broker never sends more than the prefetch
+ * count of unacknowledged messages: when the flows fall behind, the local
+ * buffer fills up, no more acks are sent, and the broker stops delivering.
+ * If the processing fails, the messages not acknowledged yet are given back
+ * to the broker at once.
+ */
+public class AmqpSource implements ReportFeed{
+
+    // Message queued to stop the consumption
+    private static final Delivery END = new Delivery(0, new byte[0]);
+    // Time waited for a message before acknowledging the pending ones, in milliseconds
+    private static final long IDLE_WAIT = 100;
+
+    private final Channel channel;
+    private final String queue;
+    private final int prefetch;
+    private final int ackBatch;
+    private final BlockingQueue<Delivery> deliveries;
+    private final ReportReader reader;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param channel Channel used to consume the queue. It is only used by this source.
+     * @param prefetch Maximal number of unacknowledged messages (AMQP basic.qos).
+     * @param separator Separator of the columns of the reports.
+     */
+    public AmqpSource(Channel channel, String queue, int prefetch, String separator){
+        if (prefetch <= 0) throw new IllegalArgumentException("The prefetch count must be positive");
+        this.channel = channel;
+        this.queue = queue;
+        this.prefetch = prefetch;
+        // Ack at half the window, so the broker can keep sending while the rest is processed
+        this.ackBatch = Math.max(1, prefetch / 2);
+        this.deliveries = new ArrayBlockingQueue<>(prefetch + 1);
+        this.reader = new ReportReader(new ReportParser(separator));
+    }
+
+    /**
+     * Consumes the queue and hands every well-formatted line, already decoded,
+     * to the given consumer, until {@link #stop()} is called or the channel is
+     * closed. The record is reused for the next line, so the consumer must not keep it.
+     * If the consumer fails, every message not acknowledged is requeued.
+     */
+    @Override
+    public void consume(Consumer<PacketRecord> consumer) throws IOException, InterruptedException{
+        this.channel.basicQos(this.prefetch);
+        String tag = this.channel.basicConsume(this.queue, false, new DefaultConsumer(this.channel){
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body){
+                // Never blocks: the broker does not send more than the prefetch count
+                deliveries.offer(new Delivery(envelope.getDeliveryTag(), body));
+            }
+
+            @Override
+            public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig){
+                stop();
+            }
+
+            @Override
+            public void handleCancel(String consumerTag){
+                stop();
+            }
+        });
+        // Tags of the last message taken from the buffer and of the last one acknowledged
+        long lastTag = 0;
+        long ackedTag = 0;
+        int pending = 0;
+        long messageSeq = 0;
+        boolean failed = true;
+        try{
+            while (true){
+                Delivery delivery = this.deliveries.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+                if (delivery == null || delivery == END){
+                    // Nothing to process right now: do not keep the folded messages unacknowledged
+                    if (pending > 0) this.ack(lastTag);
+                    ackedTag = lastTag;
+                    pending = 0;
+                    if (delivery == END || this.stopped) break;
+                    continue;
+                }
+                lastTag = delivery.tag;
+                this.reader.readChunk(ByteBuffer.wrap(delivery.body), messageSeq++, consumer);
+                if (++pending >= this.ackBatch){
+                    this.ack(lastTag);
+                    ackedTag = lastTag;
+                    pending = 0;
+                }
+            }
+            failed = false;
+        } finally {
+            if (this.channel.isOpen()){
+                this.channel.basicCancel(tag);
+                if (failed) this.requeue(lastTag, ackedTag);
+            }
+        }
+    }
+
+    /**
+     * Gives back to the broker every message received after the last
+     * acknowledged one, processed or not: the flows they went to are lost with the failure.
+     * @param lastTag Tag of the last message taken from the buffer.
+     * @param ackedTag Tag of the last acknowledged message.
+     */
+    private void requeue(long lastTag, long ackedTag) throws IOException{
+        long newest = lastTag;
+        for (Delivery delivery = this.deliveries.poll(); delivery != null; delivery = this.deliveries.poll()){
+            if (delivery != END) newest = Math.max(newest, delivery.tag);
+        }
+        if (newest > ackedTag) this.channel.basicNack(newest, true, true);
+    }
+
+    /**
+     * Stops the consumption. The messages already received are acknowledged
+     * once processed; the others are given back to the broker.
+     */
+    @Override
+    public void stop(){
+        this.stopped = true;
+        this.deliveries.offer(END);
+    }
+
+    /**
+     * Acknowledges all the messages up to the given one. If the channel is
+     * already closed, the broker delivers them again to the next consumer.
+     */
+    private void ack(long tag) throws IOException{
+        if (this.channel.isOpen()) this.channel.basicAck(tag, true);
+    }
+
+    /**
+     * @return The number of lines that were not well formatted.
+     */
+    @Override
+    public long getMalformed(){
+        return this.reader.getMalformed();
+    }
+
+    private static final class Delivery{
+        final long tag;
+        final byte[] body;
+
+        Delivery(long tag, byte[] body){
+            this.tag = tag;
+            this.body = body;
+        }
+    }
+}
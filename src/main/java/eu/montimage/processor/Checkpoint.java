@@ -0,0 +1,308 @@
+package eu.montimage.processor;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Periodic checkpoints of the live flows, so an interrupted run can resume
+ * where it stopped instead of processing the whole report again.
+ * <p>
+ * The checkpoint file is a log: a header with the input and the settings the
+ * flows depend on, followed by epochs. An epoch holds the offset of the input and the size
+ * of the output file at the checkpoint, then the changes of every shard
+ * since the previous epoch (see {@link FlowTable#takeChanges(boolean)}), and a
+ * CRC: a torn epoch at the end of the file is ignored. When the log grows
+ * beyond twice the size of the live flows, the next epoch holds every flow and
+ * replaces the whole file (written aside, then atomically moved).
+ * <p>
+ * Taking a checkpoint is split between the processing threads, which only
+ * copy the changes of their own table (see {@link #collect(int, FlowTable)}),
+ * and the writer thread, which appends the epoch once the flows written
+ * before it are on disk (see {@link #commit(long)}).
+ */
+public class Checkpoint implements Closeable{
+
+    static final byte[] MAGIC = "MMTCKPNT".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 4;
+    // The log is rewritten when it is this many times larger than the live flows
+    private static final int COMPACTION_RATIO = 2;
+    private static final long MIN_COMPACTION = 1 << 20;
+
+    private final Path path;
+    // Milliseconds between two checkpoints
+    private final long interval;
+    private final ByteBuffer header;
+    private final int shards;
+    private FileChannel channel;
+    private FlowWriter writer;
+    // State of the resumed run: end of the last valid epoch (0: nothing to resume),
+    // input offset and output size
+    private long validEnd = 0;
+    private long inputOffset = 0;
+    private long outputSize = -1;
+    // Epoch being collected, and sizes used to decide when to rewrite the log
+    private final byte[][] changes;
+    private final long[] live;
+    private volatile boolean full = false;
+    private long logSize;
+    private long lastTime = System.currentTimeMillis();
+
+    /**
+     * Opens the checkpoint file, finding the last checkpoint if there is one.
+     * The flows are only read by {@link #restore(FlowTable[])}.
+     * @param interval Milliseconds between two checkpoints.
+     * @param features Features of the flows, which decide the statistics saved.
+     * @param shards Number of flow tables of the run.
+     * @param input Files of the input, in the order they are read.
+     * @param settings The other settings the flows depend on, as text.
+     * @throws IOException If the file holds a checkpoint of a run on another input or with other settings.
+     */
+    public Checkpoint(Path path, long interval, Features features, long window, long slide, int shards, List<Path> input, String settings) throws IOException{
+        this.path = path;
+        this.interval = interval;
+        this.shards = shards;
+        this.changes = new byte[shards][];
+        this.live = new long[shards];
+        this.header = ByteBuffer.allocate(MAGIC.length + 3 * Integer.BYTES + 2 * Long.BYTES + 3 * Integer.BYTES);
+        this.header.put(MAGIC).putInt(VERSION).putInt(features.fingerprint()).putLong(window).putLong(slide).putInt(shards);
+        CRC32 crc = new CRC32();
+        crc.update(settings.getBytes(StandardCharsets.UTF_8));
+        this.header.putInt((int) crc.getValue()).putInt(fingerprint(input));
+        ((Buffer) this.header).flip();
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (this.channel.size() > 0) this.scan();
+        if (this.validEnd == 0){
+            // Nothing to resume: start a new log
+            this.channel.truncate(0);
+            this.channel.write(this.header.duplicate(), 0);
+            this.logSize = this.header.limit();
+        } else {
+            // Drop a torn epoch
+            this.channel.truncate(this.validEnd);
+            this.logSize = this.validEnd;
+        }
+        this.channel.position(this.logSize);
+    }
+
+    /**
+     * @return True if a previous run can be resumed.
+     */
+    public boolean isResumed(){
+        return this.validEnd > 0;
+    }
+
+    /**
+     * @return Offset of the input to resume from (0 if there is nothing to resume).
+     */
+    public long getInputOffset(){
+        return this.inputOffset;
+    }
+
+    /**
+     * @return Size of the output file at the last checkpoint, or -1 if there is nothing to resume.
+     */
+    public long getOutputSize(){
+        return this.outputSize;
+    }
+
+    /**
+     * Sets the writer of the flows: the epochs are appended by its thread.
+     */
+    public void setWriter(FlowWriter writer){
+        this.writer = writer;
+    }
+
+    /**
+     * Loads the flows of the last checkpoint into the tables (one per shard,
+     * in the same order as in the checkpointed run) and starts tracking their changes.
+     */
+    public void restore(FlowTable[] tables) throws IOException{
+        for (FlowTable table : tables) table.trackChanges();
+        long position = this.header.limit();
+        while (position < this.validEnd){
+            ByteBuffer epoch = this.readEpoch(position);
+            position += Integer.BYTES + epoch.limit() + Long.BYTES;
+            epoch.position(2 * Long.BYTES);
+            for (FlowTable table : tables){
+                int length = epoch.getInt();
+                ByteBuffer records = epoch.slice();
+                ((Buffer) records).limit(length);
+                table.applyChanges(records);
+                ((Buffer) epoch).position(epoch.position() + length);
+            }
+        }
+    }
+
+    /**
+     * @return True if the interval since the last checkpoint has elapsed. The
+     * caller must then take a checkpoint.
+     */
+    public boolean due(){
+        long now = System.currentTimeMillis();
+        if (now - this.lastTime < this.interval) return false;
+        this.lastTime = now;
+        return true;
+    }
+
+    /**
+     * Copies the changes of the table of a shard. Called by the thread owning
+     * the table, once it has processed the input up to the checkpoint.
+     */
+    public void collect(int shard, FlowTable table){
+        long start = System.nanoTime();
+        this.changes[shard] = table.takeChanges(this.full);
+        this.live[shard] = table.checkpointSize();
+        Metrics.get().checkpointLatency.recordSince(start);
+    }
+
+    /**
+     * Queues the epoch made of the changes collected from every shard. It is
+     * appended to the log by the writer thread once the flows written before
+     * it are on disk. Every shard must have been collected.
+     * @param inputOffset Offset of the input processed by the shards.
+     */
+    public void commit(long inputOffset){
+        int length = 2 * Long.BYTES;
+        for (byte[] shard : this.changes) length += Integer.BYTES + shard.length;
+        ByteBuffer epoch = ByteBuffer.allocate(Integer.BYTES + length + Long.BYTES);
+        epoch.putInt(length).putLong(inputOffset).putLong(0);
+        long live = 0;
+        for (int i = 0; i < this.shards; i++){
+            epoch.putInt(this.changes[i].length).put(this.changes[i]);
+            this.changes[i] = null;
+            live += this.live[i];
+        }
+        final boolean rewrite = this.full;
+        this.logSize = (rewrite ? this.header.limit() : this.logSize) + epoch.capacity();
+        this.full = this.logSize > Math.max(MIN_COMPACTION, COMPACTION_RATIO * live);
+        this.writer.mark(size -> this.append(epoch, rewrite, size));
+    }
+
+    /**
+     * Deletes the checkpoint file, once the run is over.
+     */
+    public void delete() throws IOException{
+        this.close();
+        Files.deleteIfExists(this.path);
+    }
+
+    @Override
+    public void close() throws IOException{
+        this.channel.close();
+    }
+
+    /**
+     * Writes an epoch, with the size of the output, at the end of the log or in a new log.
+     */
+    private void append(ByteBuffer epoch, boolean rewrite, long outputSize) throws IOException{
+        epoch.putLong(Integer.BYTES + Long.BYTES, outputSize);
+        CRC32 crc = new CRC32();
+        crc.update(epoch.array(), Integer.BYTES, epoch.capacity() - Integer.BYTES - Long.BYTES);
+        epoch.putLong(epoch.capacity() - Long.BYTES, crc.getValue());
+        ((Buffer) epoch).clear();
+        if (!rewrite){
+            while (epoch.hasRemaining()) this.channel.write(epoch);
+            this.channel.force(false);
+            return;
+        }
+        Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer header = this.header.duplicate();
+            while (header.hasRemaining()) out.write(header);
+            while (epoch.hasRemaining()) out.write(epoch);
+            out.force(false);
+        }
+        this.channel.close();
+        Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.channel.position(this.channel.size());
+    }
+
+    /**
+     * Checks the header and finds the last valid epoch of the log.
+     */
+    private void scan() throws IOException{
+        ByteBuffer found = ByteBuffer.allocate(this.header.limit());
+        this.readFully(found, 0);
+        if (!Arrays.equals(Arrays.copyOf(found.array(), MAGIC.length), MAGIC))
+            throw new IOException("Not a checkpoint file: " + this.path);
+        // The input comes last in the header
+        ByteBuffer settings = found.duplicate();
+        ((Buffer) settings).limit(found.limit() - Integer.BYTES);
+        ByteBuffer expected = this.header.duplicate();
+        ((Buffer) expected).limit(expected.limit() - Integer.BYTES);
+        if (!settings.equals(expected))
+            throw new IOException("The checkpoint was taken with other settings (statistics, windows, threads, -t, -m, -d, -L or -s): " + this.path);
+        if (!found.equals(this.header))
+            throw new IOException("The checkpoint was taken on another input (files, sizes or modification times): " + this.path);
+        long position = this.header.limit();
+        long size = this.channel.size();
+        while (position + Integer.BYTES <= size){
+            ByteBuffer epoch;
+            try{
+                epoch = this.readEpoch(position);
+            } catch (IOException e){
+                break; // Torn or corrupted epoch: resume from the previous one
+            }
+            position += Integer.BYTES + epoch.limit() + Long.BYTES;
+            this.validEnd = position;
+            this.inputOffset = epoch.getLong(0);
+            this.outputSize = epoch.getLong(Long.BYTES);
+        }
+    }
+
+    /**
+     * @return A checksum of the paths, sizes and modification times of the
+     * files of an input, to tell the inputs apart.
+     */
+    static int fingerprint(List<Path> input) throws IOException{
+        CRC32 crc = new CRC32();
+        ByteBuffer file = ByteBuffer.allocate(2 * Long.BYTES);
+        for (Path path : input){
+            crc.update(path.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+            file.putLong(0, Files.size(path)).putLong(Long.BYTES, Files.getLastModifiedTime(path).toMillis());
+            crc.update(file.array(), 0, file.capacity());
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads and checks the epoch starting at the given position of the log.
+     * @return The content of the epoch, without its length and CRC.
+     */
+    private ByteBuffer readEpoch(long position) throws IOException{
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        this.readFully(length, position);
+        int n = length.getInt(0);
+        if (n < 2 * Long.BYTES || position + Integer.BYTES + n + Long.BYTES > this.channel.size())
+            throw new EOFException("Torn checkpoint epoch at " + position);
+        ByteBuffer epoch = ByteBuffer.allocate(n + Long.BYTES);
+        this.readFully(epoch, position + Integer.BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(epoch.array(), 0, n);
+        if (crc.getValue() != epoch.getLong(n)) throw new IOException("Corrupted checkpoint epoch at " + position);
+        ((Buffer) epoch).limit(n);
+        ((Buffer) epoch).position(0);
+        return epoch;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException{
+        while (buf.hasRemaining()){
+            int n = this.channel.read(buf, position + buf.position());
+            if (n < 0) throw new EOFException("Truncated checkpoint file: " + this.path);
+        }
+        ((Buffer) buf).flip();
+    }
+}
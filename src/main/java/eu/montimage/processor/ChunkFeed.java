@@ -0,0 +1,39 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Feed reading a report file (or a directory or glob of report files, see
+ * {@link ReportFiles}) through a {@link ReportChunker}. The chunker is closed
+ * at the end of the file.
+ */
+public class ChunkFeed implements ReportFeed{
+
+    private final ReportChunker chunker;
+    private final ReportReader reader;
+
+    /**
+     * @param separator Separator of the columns of the reports.
+     */
+    public ChunkFeed(ReportChunker chunker, String separator){
+        this.chunker = chunker;
+        this.reader = new ReportReader(new ReportParser(separator));
+    }
+
+    @Override
+    public void consume(Consumer<PacketRecord> consumer) throws IOException{
+        try(ReportChunker chunker = this.chunker){
+            this.reader.read(chunker, consumer);
+        }
+    }
+
+    @Override
+    public void stop(){
+    }
+
+    @Override
+    public long getMalformed(){
+        return this.reader.getMalformed();
+    }
+}
@@ -0,0 +1,176 @@
+package eu.montimage.processor;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * Channel over a compressed report (gzip or zstd), decompressed by its own
+ * thread. The decompressed bytes are handed to the reader in blocks through a
+ * small queue, so the decompression of the next blocks overlaps the parsing
+ * of the current ones, and the reader never waits for the disk. Concatenated
+ * gzip members and zstd frames are read one after the other.
+ */
+public class Decompressor implements ReadableByteChannel{
+
+    /**
+     * Compression formats, recognized by their magic number.
+     */
+    public enum Format{
+        GZIP,
+        ZSTD
+    }
+
+    // Size of the decompressed blocks, and blocks decompressed ahead of the reader
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int QUEUED_BLOCKS = 4;
+    // Size of the reads of the compressed file
+    private static final int INPUT_BUFFER_SIZE = 256 << 10;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final InputStream in;
+    private final BlockingQueue<ByteBuffer> blocks = new ArrayBlockingQueue<>(QUEUED_BLOCKS);
+    private final BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(QUEUED_BLOCKS + 2);
+    private final Thread thread;
+    private volatile IOException failure = null;
+    // Block being read, and whether the end of the input has been reached
+    private ByteBuffer current = null;
+    private boolean eof = false;
+    private volatile boolean open = true;
+
+    /**
+     * Starts decompressing the file from its current position.
+     */
+    public Decompressor(FileChannel channel, Format format) throws IOException{
+        this.in = open(channel, format);
+        this.thread = new Thread(this::run, "decompressor");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return The compression format of the file, or null if it is not compressed.
+     */
+    public static Format detect(FileChannel channel) throws IOException{
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) >= 0);
+        if (magic.position() >= 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b) return Format.GZIP;
+        if (magic.position() == 4 && magic.getInt(0) == 0x28b52ffd) return Format.ZSTD;
+        return null;
+    }
+
+    /**
+     * @return A stream decompressing the file from its current position, on the calling thread.
+     */
+    static InputStream open(FileChannel channel, Format format) throws IOException{
+        InputStream file = new BufferedInputStream(Channels.newInputStream(channel), INPUT_BUFFER_SIZE);
+        switch (format){
+            case GZIP:
+                return new GZIPInputStream(file, INPUT_BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdInputStream(file);
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+    }
+
+    /**
+     * Copies decompressed bytes, waiting for the decompressor thread if needed.
+     * @throws IOException If the input is corrupted or cannot be read.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException{
+        if (!this.open) throw new ClosedChannelException();
+        if (this.eof) return -1;
+        while (this.current == null || !this.current.hasRemaining()){
+            if (this.current != null) this.pool.offer(this.current);
+            try{
+                this.current = this.blocks.take();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while decompressing the input", e);
+            }
+            if (this.current == END){
+                this.current = null;
+                this.eof = true;
+                if (this.failure != null) throw this.failure;
+                return -1;
+            }
+        }
+        int n = Math.min(dst.remaining(), this.current.remaining());
+        int limit = this.current.limit();
+        ((Buffer) this.current).limit(this.current.position() + n);
+        dst.put(this.current);
+        ((Buffer) this.current).limit(limit);
+        return n;
+    }
+
+    @Override
+    public boolean isOpen(){
+        return this.open;
+    }
+
+    /**
+     * Stops the decompressor thread and closes the file. The stream is only
+     * closed once the thread is done with it: the decoders free their native
+     * or inflater state on close.
+     */
+    @Override
+    public void close() throws IOException{
+        this.open = false;
+        this.thread.interrupt();
+        // The thread stops at its next block, at worst
+        boolean interrupted = false;
+        while (this.thread.isAlive()){
+            try{
+                this.thread.join();
+            } catch (InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        this.in.close();
+    }
+
+    /**
+     * Decompresses the whole input into blocks, then queues the end of the input.
+     */
+    private void run(){
+        try{
+            while (this.open){
+                ByteBuffer block = this.pool.poll();
+                if (block == null) block = ByteBuffer.allocate(BLOCK_SIZE);
+                ((Buffer) block).clear();
+                byte[] bytes = block.array();
+                int filled = 0;
+                int n = 0;
+                while (filled < bytes.length && (n = this.in.read(bytes, filled, bytes.length - filled)) >= 0) filled += n;
+                ((Buffer) block).limit(filled);
+                if (filled > 0) this.blocks.put(block);
+                if (n < 0) break;
+            }
+        } catch (IOException e){
+            this.failure = e;
+        } catch (InterruptedException e){
+            // Closed by the reader
+            return;
+        }
+        if (!this.open) return;
+        try{
+            this.blocks.put(END);
+        } catch (InterruptedException e){
+            // Closed by the reader
+        }
+    }
+}
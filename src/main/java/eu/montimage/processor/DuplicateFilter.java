@@ -0,0 +1,132 @@
+package eu.montimage.processor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Duplicate filter of the flows of a {@link FlowTable}.
+ * Reports merged from several probes or interfaces see the same packet once
+ * per capture point. Every flow keeps the signatures of its last packets
+ * (sense, size, TCP window, TTL, flags and content type), with the capture
+ * point and the timestamp of each: a packet is a duplicate if a packet with
+ * the same signature was seen by another capture point within the window, or
+ * by the same capture point at the same timestamp (the same line twice).
+ * <p>
+ * The signatures are kept in a ring of {@value #DEPTH} entries per slot, in
+ * primitive arrays: a packet costs a scan of a few ints and no allocation.
+ */
+class DuplicateFilter{
+
+    // Recent packets remembered per flow
+    static final int DEPTH = 8;
+
+    // Window in microseconds
+    private final long window;
+    // Per entry: signature, capture point and timestamp; per slot: next entry of the ring
+    private int[] signatures;
+    private int[] sources;
+    private long[] times;
+    private byte[] next;
+
+    /**
+     * @param window Microseconds of report time within which a packet seen by
+     * another capture point is a duplicate.
+     */
+    DuplicateFilter(long window){
+        this.window = window;
+    }
+
+    /**
+     * Grows the filter to the given number of slots.
+     */
+    void grow(int capacity){
+        if (this.next == null){
+            this.signatures = new int[DEPTH * capacity];
+            this.sources = new int[DEPTH * capacity];
+            this.times = new long[DEPTH * capacity];
+            this.next = new byte[capacity];
+        } else {
+            this.signatures = Arrays.copyOf(this.signatures, DEPTH * capacity);
+            this.sources = Arrays.copyOf(this.sources, DEPTH * capacity);
+            this.times = Arrays.copyOf(this.times, DEPTH * capacity);
+            this.next = Arrays.copyOf(this.next, capacity);
+        }
+    }
+
+    /**
+     * Forgets the packets of a slot, for a new flow.
+     */
+    void clear(int slot){
+        Arrays.fill(this.times, DEPTH * slot, DEPTH * (slot + 1), Long.MIN_VALUE);
+        this.next[slot] = 0;
+    }
+
+    /**
+     * Checks a packet of the flow of a slot, and remembers it if it is not a duplicate.
+     * @param sense Sense of the packet, independent of the first packet of the flow.
+     * @return True if the packet is a duplicate.
+     */
+    boolean isDuplicate(int slot, int sense, PacketRecord pkt){
+        int signature = signatureOf(sense, pkt);
+        int source = pkt.probe * 0x9e3779b1 + pkt.iface;
+        int first = DEPTH * slot;
+        for (int i = first; i < first + DEPTH; i++){
+            if (this.signatures[i] != signature || this.times[i] == Long.MIN_VALUE) continue;
+            long dt = Math.abs(pkt.tstamp - this.times[i]);
+            if (this.sources[i] != source ? dt <= this.window : dt == 0) return true;
+        }
+        int entry = first + this.next[slot];
+        this.signatures[entry] = signature;
+        this.sources[entry] = source;
+        this.times[entry] = pkt.tstamp;
+        this.next[slot] = (byte) ((this.next[slot] + 1) % DEPTH);
+        return false;
+    }
+
+    /**
+     * @return Bytes of the packets of a slot in a checkpoint.
+     */
+    int bytesPerSlot(){
+        return 1 + DEPTH * (2 * Integer.BYTES + Long.BYTES);
+    }
+
+    /**
+     * Writes the packets of a slot into the buffer, using {@link #bytesPerSlot()} bytes.
+     */
+    void write(int slot, ByteBuffer buf){
+        buf.put(this.next[slot]);
+        for (int i = DEPTH * slot; i < DEPTH * (slot + 1); i++){
+            buf.putInt(this.signatures[i]).putInt(this.sources[i]).putLong(this.times[i]);
+        }
+    }
+
+    /**
+     * Reads the packets of a slot written by {@link #write(int, ByteBuffer)}.
+     */
+    void read(int slot, ByteBuffer buf){
+        this.next[slot] = buf.get();
+        for (int i = DEPTH * slot; i < DEPTH * (slot + 1); i++){
+            this.signatures[i] = buf.getInt();
+            this.sources[i] = buf.getInt();
+            this.times[i] = buf.getLong();
+        }
+    }
+
+    /**
+     * @return A hash of the fields of a packet that do not depend on where it was captured.
+     */
+    private static int signatureOf(int sense, PacketRecord pkt){
+        int h = sense;
+        h = 31 * h + (int) pkt.size;
+        h = 31 * h + (int) pkt.tcpwin;
+        h = 31 * h + (int) pkt.ttl;
+        h = 31 * h + (pkt.fin | pkt.syn << 1 | pkt.rst << 2 | pkt.psh << 3 | pkt.ack << 4 | pkt.urg << 5);
+        h = 31 * h + pkt.contType;
+        // Mix the bits (murmur3 finalizer)
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+}
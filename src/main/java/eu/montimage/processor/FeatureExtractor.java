@@ -0,0 +1,56 @@
+package eu.montimage.processor;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A column of the flow rows.
+ * A feature is computed in two steps: its accumulators (columns of a
+ * {@link FlowStore}, possibly shared with other features) are updated for
+ * every packet of the flow, and its finalizer computes the value of the column
+ * from them when the flow is written. A store only allocates and updates the
+ * accumulators needed by its features (see {@link Features}).
+ * <p>
+ * Features of one's own are added to the catalogue with
+ * {@link Features#register(FeatureExtractor)}, or listed in
+ * META-INF/services/eu.montimage.processor.FeatureExtractor to be found on
+ * the classpath, and then selected by name as the other ones. They are
+ * computed from accumulators of their own (see {@link FlowAccumulator}) and
+ * from the packet counts of the flows. An implementation is called by several
+ * threads at once.
+ */
+public interface FeatureExtractor{
+
+    /**
+     * @return The name of the ARFF attribute, also used to select the feature.
+     */
+    String getName();
+
+    /**
+     * @return The ARFF type of the attribute: 'string' for the IPs, 'NUMERIC' otherwise.
+     */
+    String getType();
+
+    /**
+     * @return The accumulators of the catalogue the feature is computed from.
+     * The packet counts and the timestamps of the flows are always kept.
+     */
+    default Set<FlowStore.Accumulator> getAccumulators(){
+        return Collections.emptySet();
+    }
+
+    /**
+     * @return The accumulators of its own the feature is computed from (read
+     * with {@link FlowStore#get(FlowAccumulator, int, int, int)}).
+     */
+    default Set<FlowAccumulator> getOwnAccumulators(){
+        return Collections.emptySet();
+    }
+
+    /**
+     * Finalizer: computes the feature of the flow stored in a slot and gives
+     * it to the encoder, as a single column.
+     * @param id ID of the flow, in the sense of its first packet.
+     */
+    void extract(FlowID id, FlowStore store, int slot, RowEncoder out);
+}
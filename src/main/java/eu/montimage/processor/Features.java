@@ -0,0 +1,358 @@
+package eu.montimage.processor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import eu.montimage.processor.FlowStore.Accumulator;
+
+/**
+ * The features (columns) computed for the flows, in the order of the rows.
+ * The catalogue holds the 49 base columns and the 32 extended ones (see the
+ * README), and the features registered by the applications (see
+ * {@link #register(FeatureExtractor)}) or found on the classpath; a run may
+ * select any subset of them by name. The flow stores of a run only allocate
+ * and update the accumulators its features need, so a model using a few
+ * features pays for those only, per packet and per flow.
+ */
+public final class Features{
+
+    private static final Map<String, FeatureExtractor> CATALOGUE = new LinkedHashMap<>();
+    private static final String[] SENSES = {"up", "dwn"};
+
+    static{
+        // ID, duration and rates
+        add(feature("ipup", "string", none(), (id, s, slot, out) -> out.ip(id.getSrcHi(), id.getSrcLo())));
+        add(feature("ipdwn", "string", none(), (id, s, slot, out) -> out.ip(id.getDstHi(), id.getDstLo())));
+        add(feature("portup", none(), (id, s, slot, out) -> out.integer(id.getSrcPort())));
+        add(feature("portdwn", none(), (id, s, slot, out) -> out.integer(id.getDstPort())));
+        add(feature("duration", none(), (id, s, slot, out) -> out.integer(s.lastpkgtsamp[slot] - s.starttsamp[slot])));
+        add(feature("pkgpersecup", none(), (id, s, slot, out) -> rate(s, slot, s.pkg[2 * slot], out)));
+        add(feature("pkgpersecdwn", none(), (id, s, slot, out) -> rate(s, slot, s.pkg[2 * slot + 1], out)));
+        add(feature("bytespersecup", EnumSet.of(Accumulator.BYTES), (id, s, slot, out) -> rate(s, slot, s.bytes[2 * slot], out)));
+        add(feature("bytespersecdwn", EnumSet.of(Accumulator.BYTES), (id, s, slot, out) -> rate(s, slot, s.bytes[2 * slot + 1], out)));
+        // Max, min and average packet size, TCP window and TTL in up and downlink (averages truncated to integers)
+        for (int sense = 0; sense < 2; sense++){
+            final int d = sense;
+            String name = "pkgsize" + SENSES[sense];
+            add(feature(name + "-max", EnumSet.of(Accumulator.SIZE), (id, s, slot, out) -> out.integer(s.pkgMaxSize[2 * slot + d])));
+            add(feature(name + "-min", EnumSet.of(Accumulator.SIZE), (id, s, slot, out) -> out.integer(s.pkgMinSize[2 * slot + d])));
+            add(feature(name + "-avg", EnumSet.of(Accumulator.SIZE), (id, s, slot, out) -> out.integer((long) s.pkgAvgSize[2 * slot + d])));
+        }
+        for (int sense = 0; sense < 2; sense++){
+            final int d = sense;
+            String name = "tcpwin" + SENSES[sense];
+            add(feature(name + "-max", EnumSet.of(Accumulator.WINDOW), (id, s, slot, out) -> out.integer(s.windowMax[2 * slot + d])));
+            add(feature(name + "-min", EnumSet.of(Accumulator.WINDOW), (id, s, slot, out) -> out.integer(s.windowMin[2 * slot + d])));
+            add(feature(name + "-avg", EnumSet.of(Accumulator.WINDOW), (id, s, slot, out) -> out.integer((long) s.windowAvg[2 * slot + d])));
+        }
+        for (int sense = 0; sense < 2; sense++){
+            final int d = sense;
+            String name = "ttl" + SENSES[sense];
+            add(feature(name + "-max", EnumSet.of(Accumulator.TTL), (id, s, slot, out) -> out.integer(s.ttlMax[2 * slot + d])));
+            add(feature(name + "-min", EnumSet.of(Accumulator.TTL), (id, s, slot, out) -> out.integer(s.ttlMin[2 * slot + d])));
+            add(feature(name + "-avg", EnumSet.of(Accumulator.TTL), (id, s, slot, out) -> out.integer((long) s.ttlAvg[2 * slot + d])));
+        }
+        // Percentage of packets for each flag in up and downlink
+        for (int sense = 0; sense < 2; sense++){
+            final int d = sense;
+            String name = "perc" + SENSES[sense];
+            Set<Accumulator> flags = EnumSet.of(Accumulator.FLAGS);
+            add(feature(name + "-fin", flags, (id, s, slot, out) -> out.ratio(s.fin[2 * slot + d], s.pkg[2 * slot + d])));
+            add(feature(name + "-syn", flags, (id, s, slot, out) -> out.ratio(s.syn[2 * slot + d], s.pkg[2 * slot + d])));
+            add(feature(name + "-rst", flags, (id, s, slot, out) -> out.ratio(s.rst[2 * slot + d], s.pkg[2 * slot + d])));
+            add(feature(name + "-psh", flags, (id, s, slot, out) -> out.ratio(s.psh[2 * slot + d], s.pkg[2 * slot + d])));
+            add(feature(name + "-sck", flags, (id, s, slot, out) -> out.ratio(s.ack[2 * slot + d], s.pkg[2 * slot + d])));
+            add(feature(name + "-urg", flags, (id, s, slot, out) -> out.ratio(s.urg[2 * slot + d], s.pkg[2 * slot + d])));
+        }
+        // Percentage of packets with different properties
+        for (int sense = 0; sense < 2; sense++){
+            final int d = sense;
+            String name = "perc" + SENSES[sense];
+            Set<Accumulator> tls = EnumSet.of(Accumulator.TLS);
+            add(feature(name + "-chgCiph", tls, (id, s, slot, out) -> out.ratio(s.chgCipher[2 * slot + d], s.sslPkg[2 * slot + d])));
+            add(feature(name + "-alert", tls, (id, s, slot, out) -> out.ratio(s.alert[2 * slot + d], s.sslPkg[2 * slot + d])));
+            add(feature(name + "-hand", tls, (id, s, slot, out) -> out.ratio(s.handshake[2 * slot + d], s.sslPkg[2 * slot + d])));
+            add(feature(name + "-app", tls, (id, s, slot, out) -> out.ratio(s.appData[2 * slot + d], s.sslPkg[2 * slot + d])));
+            add(feature(name + "-heart", tls, (id, s, slot, out) -> out.ratio(s.heartbeat[2 * slot + d], s.sslPkg[2 * slot + d])));
+        }
+        // Extended: dispersion and percentiles of the packet sizes, and inter-arrival times (NaN if undefined)
+        for (int sense = 0; sense < 2; sense++){
+            final int d = sense;
+            String up = SENSES[sense];
+            Set<Accumulator> sizes = EnumSet.of(Accumulator.SIZE, Accumulator.SIZE_SKETCH);
+            Set<Accumulator> iats = EnumSet.of(Accumulator.INTER_ARRIVAL);
+            Set<Accumulator> iatSketch = EnumSet.of(Accumulator.INTER_ARRIVAL, Accumulator.INTER_ARRIVAL_SKETCH);
+            add(feature("pkgsize" + up + "-std", EnumSet.of(Accumulator.SIZE), (id, s, slot, out) -> out.real(RunningStats.std(s.pkgSizeM2[2 * slot + d], s.pkg[2 * slot + d]))));
+            add(feature("pkgsize" + up + "-p50", sizes, (id, s, slot, out) -> sizeQuantile(s, 2 * slot + d, 0.5, out)));
+            add(feature("pkgsize" + up + "-p90", sizes, (id, s, slot, out) -> sizeQuantile(s, 2 * slot + d, 0.9, out)));
+            add(feature("pkgsize" + up + "-p99", sizes, (id, s, slot, out) -> sizeQuantile(s, 2 * slot + d, 0.99, out)));
+            add(feature("tcpwin" + up + "-std", EnumSet.of(Accumulator.WINDOW), (id, s, slot, out) -> out.real(RunningStats.std(s.windowM2[2 * slot + d], s.pkg[2 * slot + d]))));
+            add(feature("ttl" + up + "-std", EnumSet.of(Accumulator.TTL), (id, s, slot, out) -> out.real(RunningStats.std(s.ttlM2[2 * slot + d], s.pkg[2 * slot + d]))));
+            add(feature("iat" + up + "-avg", iats, (id, s, slot, out) -> out.real(gaps(s, 2 * slot + d) > 0 ? s.iatAvg[2 * slot + d] : Double.NaN)));
+            add(feature("iat" + up + "-std", iats, (id, s, slot, out) -> out.real(RunningStats.std(s.iatM2[2 * slot + d], gaps(s, 2 * slot + d)))));
+            add(feature("iat" + up + "-min", iats, (id, s, slot, out) -> out.real(gaps(s, 2 * slot + d) > 0 ? s.iatMin[2 * slot + d] : Double.NaN)));
+            add(feature("iat" + up + "-max", iats, (id, s, slot, out) -> out.real(gaps(s, 2 * slot + d) > 0 ? s.iatMax[2 * slot + d] : Double.NaN)));
+            add(feature("iat" + up + "-p50", iatSketch, (id, s, slot, out) -> iatQuantile(s, 2 * slot + d, 0.5, out)));
+            add(feature("iat" + up + "-p90", iatSketch, (id, s, slot, out) -> iatQuantile(s, 2 * slot + d, 0.9, out)));
+            add(feature("iat" + up + "-p99", iatSketch, (id, s, slot, out) -> iatQuantile(s, 2 * slot + d, 0.99, out)));
+            // Averages of the base columns, not truncated
+            add(feature("pkgsize" + up + "-mean", EnumSet.of(Accumulator.SIZE), (id, s, slot, out) -> out.real(s.pkgAvgSize[2 * slot + d])));
+            add(feature("tcpwin" + up + "-mean", EnumSet.of(Accumulator.WINDOW), (id, s, slot, out) -> out.real(s.windowAvg[2 * slot + d])));
+            add(feature("ttl" + up + "-mean", EnumSet.of(Accumulator.TTL), (id, s, slot, out) -> out.real(s.ttlAvg[2 * slot + d])));
+        }
+    }
+
+    /**
+     * The 49 base columns.
+     */
+    public static final Features BASE = new Features(new ArrayList<>(CATALOGUE.values()).subList(0, Flow.COLUMNS));
+    /**
+     * The base columns and the 32 extended ones.
+     */
+    public static final Features EXTENDED = new Features(new ArrayList<>(CATALOGUE.values()));
+    // Share of the flows like this one that are written (see OverloadGuard), out of the catalogue
+    private static final FeatureExtractor SAMPLING_RATE = feature("samplingrate", EnumSet.of(Accumulator.SAMPLING),
+            (id, s, slot, out) -> out.real(1.0 / s.sampling[slot]));
+
+    static{
+        // Features of their own on the classpath
+        for (FeatureExtractor extractor : ServiceLoader.load(FeatureExtractor.class)) register(extractor);
+    }
+
+    private final FeatureExtractor[] extractors;
+    private final Set<Accumulator> accumulators = EnumSet.noneOf(Accumulator.class);
+    private final Set<FlowAccumulator> own = new LinkedHashSet<>();
+
+    private Features(List<FeatureExtractor> extractors){
+        this.extractors = extractors.toArray(new FeatureExtractor[0]);
+        for (FeatureExtractor extractor : extractors){
+            this.accumulators.addAll(extractor.getAccumulators());
+            this.own.addAll(extractor.getOwnAccumulators());
+        }
+    }
+
+    /**
+     * Adds a feature of one's own to the catalogue, so it can be selected by
+     * its name (see {@link #parse(String)}). The base and extended features
+     * are left as they are.
+     * @throws IllegalArgumentException If the catalogue already has a feature of this name.
+     */
+    public static void register(FeatureExtractor extractor){
+        synchronized (CATALOGUE){
+            if (CATALOGUE.containsKey(extractor.getName()) || extractor.getName().equals(SAMPLING_RATE.getName()))
+                throw new IllegalArgumentException("Feature already in the catalogue: " + extractor.getName());
+            add(extractor);
+        }
+    }
+
+    /**
+     * @param names Names of the ARFF attributes of the features (see {@link #getNames()}),
+     * separated by commas, in the order of the columns.
+     * @throws IllegalArgumentException If a feature is unknown or given twice.
+     */
+    public static Features parse(String names){
+        List<FeatureExtractor> extractors = new ArrayList<>();
+        for (String name : names.split(",")){
+            FeatureExtractor extractor;
+            synchronized (CATALOGUE){
+                extractor = CATALOGUE.get(name.trim());
+            }
+            if (extractor == null) throw new IllegalArgumentException("Unknown feature: " + name.trim());
+            if (extractors.contains(extractor)) throw new IllegalArgumentException("Feature given twice: " + name.trim());
+            extractors.add(extractor);
+        }
+        return new Features(extractors);
+    }
+
+    /**
+     * @return These features and a last column with the sampling rate of the
+     * flow: 1 if it is written in full, 1/n if only 1 in n flows like it is.
+     */
+    public Features withSamplingRate(){
+        List<FeatureExtractor> extractors = new ArrayList<>(Arrays.asList(this.extractors));
+        if (!extractors.contains(SAMPLING_RATE)) extractors.add(SAMPLING_RATE);
+        return new Features(extractors);
+    }
+
+    /**
+     * @return The names of every feature of the catalogue, in the order of the
+     * extended rows, then the registered ones.
+     */
+    public static String[] getCatalogue(){
+        synchronized (CATALOGUE){
+            return CATALOGUE.keySet().toArray(new String[0]);
+        }
+    }
+
+    /**
+     * @return The number of columns.
+     */
+    public int size(){
+        return this.extractors.length;
+    }
+
+    public String[] getNames(){
+        String[] names = new String[this.extractors.length];
+        for (int i = 0; i < names.length; i++) names[i] = this.extractors[i].getName();
+        return names;
+    }
+
+    /**
+     * @return The ARFF types of the columns: 'string' for the IPs, 'NUMERIC' otherwise.
+     */
+    public String[] getTypes(){
+        String[] types = new String[this.extractors.length];
+        for (int i = 0; i < types.length; i++) types[i] = this.extractors[i].getType();
+        return types;
+    }
+
+    /**
+     * @return The ARFF attributes of the columns ('@ATTRIBUTE name type').
+     */
+    public String[] getAttributes(){
+        String[] attributes = new String[this.extractors.length];
+        for (int i = 0; i < attributes.length; i++){
+            attributes[i] = "@ATTRIBUTE " + this.extractors[i].getName() + " " + this.extractors[i].getType();
+        }
+        return attributes;
+    }
+
+    /**
+     * @return The accumulators the flow stores must keep.
+     */
+    Set<Accumulator> getAccumulators(){
+        return Collections.unmodifiableSet(this.accumulators);
+    }
+
+    /**
+     * @return The accumulators of the features of their own the flow stores must keep.
+     */
+    Set<FlowAccumulator> getOwnAccumulators(){
+        return Collections.unmodifiableSet(this.own);
+    }
+
+    /**
+     * @return Size of a row in the binary format: two longs per IP and a double per other column.
+     */
+    int binaryRowSize(){
+        int size = 0;
+        for (FeatureExtractor extractor : this.extractors) size += extractor.getType().equals("string") ? 2 * Long.BYTES : Double.BYTES;
+        return size;
+    }
+
+    /**
+     * @return A checksum of the names of the features, to tell the feature lists apart.
+     */
+    int fingerprint(){
+        CRC32 crc = new CRC32();
+        crc.update(String.join(",", this.getNames()).getBytes(StandardCharsets.US_ASCII));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Encodes the row of the flow stored in a slot: every feature, then the end of the row.
+     */
+    void encode(FlowID id, FlowStore store, int slot, RowEncoder out){
+        for (FeatureExtractor extractor : this.extractors) extractor.extract(id, store, slot, out);
+        out.end();
+    }
+
+    @Override
+    public boolean equals(Object other){
+        return other instanceof Features && Arrays.equals(this.extractors, ((Features) other).extractors);
+    }
+
+    @Override
+    public int hashCode(){
+        return Arrays.hashCode(this.extractors);
+    }
+
+    private static void add(FeatureExtractor extractor){
+        CATALOGUE.put(extractor.getName(), extractor);
+    }
+
+    private static Set<Accumulator> none(){
+        return EnumSet.noneOf(Accumulator.class);
+    }
+
+    private static FeatureExtractor feature(String name, Set<Accumulator> accumulators, Finalizer finalizer){
+        return feature(name, "NUMERIC", accumulators, finalizer);
+    }
+
+    private static FeatureExtractor feature(String name, String type, Set<Accumulator> accumulators, Finalizer finalizer){
+        Set<Accumulator> needed = Collections.unmodifiableSet(accumulators);
+        return new FeatureExtractor(){
+            @Override
+            public String getName(){
+                return name;
+            }
+
+            @Override
+            public String getType(){
+                return type;
+            }
+
+            @Override
+            public Set<Accumulator> getAccumulators(){
+                return needed;
+            }
+
+            @Override
+            public void extract(FlowID id, FlowStore store, int slot, RowEncoder out){
+                finalizer.extract(id, store, slot, out);
+            }
+        };
+    }
+
+    /**
+     * Rate of a count over the time window of the flow, or over its duration in
+     * whole seconds (0 if it lasted less than a second).
+     */
+    private static void rate(FlowStore s, int slot, long count, RowEncoder out){
+        long duration = (s.lastpkgtsamp[slot] - s.starttsamp[slot]) / 1000000; // microsec to sec
+        if (s.period[slot] > 0) out.rate(count, s.period[slot] / 1e6);
+        else if (duration > 0) out.rate(count, duration);
+        else out.integer(0);
+    }
+
+    /**
+     * @return The number of inter-arrival times of a sense.
+     */
+    private static long gaps(FlowStore s, int i){
+        return Math.max(0, s.pkg[i] - 1);
+    }
+
+    private static void sizeQuantile(FlowStore s, int i, double q, RowEncoder out){
+        out.real(clamp(s.sizeSketch.quantile(i, q), s.pkgMinSize[i], s.pkgMaxSize[i]));
+    }
+
+    private static void iatQuantile(FlowStore s, int i, double q, RowEncoder out){
+        out.real(clamp(s.iatSketch.quantile(i, q), s.iatMin[i], s.iatMax[i]));
+    }
+
+    /**
+     * Bounds an estimated percentile by the exact minimum and maximum (NaN stays NaN).
+     */
+    private static double clamp(double value, long min, long max){
+        if (value < min) return min;
+        if (value > max) return max;
+        return value;
+    }
+
+    /**
+     * Computes the value of a feature (see {@link FeatureExtractor#extract(FlowID, FlowStore, int, RowEncoder)}).
+     */
+    private interface Finalizer{
+        void extract(FlowID id, FlowStore store, int slot, RowEncoder out);
+    }
+}
@@ -0,0 +1,43 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runtime consuming many report feeds at once (see {@link ReportFeed}), e.g.
+ * the reports of hundreds of probes. Every feed and every shard of the flows
+ * runs as its own task, linked by bounded queues: a packet is routed to the
+ * shard of its flow (see {@link ParallelEngine#shardOf(PacketRecord, int)}),
+ * so the packets of a flow seen by several feeds are merged in the same table.
+ * <p>
+ * The implementation runs the tasks on virtual threads under structured
+ * concurrency: it needs Java 21. It is only compiled by the java21 build
+ * profile (src/main/java21) and is loaded by name (see {@link #load()}), so
+ * the Java 8 build keeps working without it. The output writer stays on a
+ * platform thread: a virtual thread blocked in the synchronized
+ * {@link FlowWriter#accept(Flow)} pins its carrier, which must not be the one
+ * the writer needs to drain its queue.
+ */
+public interface FeedEngine{
+
+    String IMPLEMENTATION = "eu.montimage.processor.VirtualEngine";
+
+    /**
+     * Consumes the feeds until they all end, or until they are stopped. When it
+     * returns, every flow has been handed to the sink of the tables.
+     * @param shards Tables of the flows, one per shard. Each one is only used by its own task.
+     */
+    void process(List<ReportFeed> feeds, FlowTable[] shards) throws IOException, InterruptedException;
+
+    /**
+     * @return The Java 21 implementation.
+     * @throws UnsupportedOperationException If it is not in the build or cannot run on this JVM.
+     */
+    static FeedEngine load(){
+        try{
+            return Class.forName(IMPLEMENTATION).asSubclass(FeedEngine.class).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e){
+            throw new UnsupportedOperationException("The feed engine needs the java21 build, run by Java 21 with --enable-preview", e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package eu.montimage.processor;
+
+/**
+ * Statistics of the flows declared by a feature of its own (see
+ * {@link FeatureExtractor#getOwnAccumulators()}), updated for every packet.
+ * The stores keep them as their other columns: a fixed number of longs per
+ * flow slot and sense, side by side in a single array (doubles are kept as
+ * their raw bits), allocated only if a feature of the run needs them. They
+ * are saved and restored with the flows (checkpoints, off-heap flows, writer
+ * queue), so they must hold the whole state of the statistics.
+ * <p>
+ * An accumulator is shared by the stores of every thread: it must not keep
+ * any state of its own. Two features share an accumulator if they give
+ * equal ones.
+ */
+public interface FlowAccumulator{
+
+    /**
+     * @return Number of longs kept per flow and sense.
+     */
+    int getColumns();
+
+    /**
+     * Resets the statistics of a new flow in a sense.
+     * @param offset Index of the first column of the flow and sense in the state.
+     */
+    void init(long[] state, int offset);
+
+    /**
+     * Accumulates a packet of a flow in a sense.
+     * @param packets Number of packets of the flow in this sense, this one included.
+     */
+    void add(long[] state, int offset, PacketRecord pkt, long packets);
+
+    /**
+     * Accumulates the statistics of the same flow over later packets (e.g. the
+     * panes of a sliding window), as if they had been added after the ones of
+     * this state.
+     * @param packets Number of packets of the flow in this state.
+     * @param srcPackets Number of packets of the flow in the other state, not 0.
+     */
+    void merge(long[] state, int offset, long packets, long[] src, int srcOffset, long srcPackets);
+}
@@ -1,20 +1,46 @@
 package eu.montimage.processor;
 
 public class FlowID{
-    private String srcIP;
-    private String dstIP;
+    // IPs packed as two longs (see IPAddress)
+    private long srcHi;
+    private long srcLo;
+    private long dstHi;
+    private long dstLo;
     private int srcPort;
     private int dstPort;
 
- 
-
 	public FlowID(String sourceIP, String destIP, int sourcePort, int destPort){
-        this.srcIP = sourceIP;
-        this.dstIP = destIP;
+        long[] src = IPAddress.parse(sourceIP);
+        long[] dst = IPAddress.parse(destIP);
+        this.srcHi = src[0];
+        this.srcLo = src[1];
+        this.dstHi = dst[0];
+        this.dstLo = dst[1];
         this.srcPort = sourcePort;
         this.dstPort = destPort;
     }
 
+    FlowID(long srcHi, long srcLo, int srcPort, long dstHi, long dstLo, int dstPort){
+        this.srcHi = srcHi;
+        this.srcLo = srcLo;
+        this.dstHi = dstHi;
+        this.dstLo = dstLo;
+        this.srcPort = srcPort;
+        this.dstPort = dstPort;
+    }
+
+    /**
+     * Creates the ID of the flow of a decoded packet, in the sense of the packet.
+     */
+    public FlowID(PacketRecord pkt){
+        this.srcHi = pkt.srcHi;
+        this.srcLo = pkt.srcLo;
+        this.dstHi = pkt.dstHi;
+        this.dstLo = pkt.dstLo;
+        this.srcPort = pkt.srcPort;
+        this.dstPort = pkt.dstPort;
+    }
+
     /**
      * Helper method to determine the sense of a given flow with respect
      * to the current one. This method assumes both flows are the same. Use the
@@ -22,14 +48,17 @@ public class FlowID{
      * @return True if both flows are on the same sense. False otherwise
      */
     public boolean flowSenseOf(FlowID cmp){
-        if ((this.srcIP.equals(cmp.srcIP) && this.dstIP.equals(cmp.dstIP)) &&
-            ((this.srcPort == cmp.srcPort && this.dstPort == cmp.dstPort))){
-            return true;
-        }
-        return false;
+        return this.srcHi == cmp.srcHi && this.srcLo == cmp.srcLo && this.srcPort == cmp.srcPort
+            && this.dstHi == cmp.dstHi && this.dstLo == cmp.dstLo && this.dstPort == cmp.dstPort;
     }
 
-
+    /**
+     * Same as {@link #flowSenseOf(FlowID)} for a decoded packet of this flow.
+     */
+    public boolean flowSenseOf(PacketRecord pkt){
+        return this.srcHi == pkt.srcHi && this.srcLo == pkt.srcLo && this.srcPort == pkt.srcPort
+            && this.dstHi == pkt.dstHi && this.dstLo == pkt.dstLo && this.dstPort == pkt.dstPort;
+    }
 
 	/**
      * Determines if the current flow is the same as a given one.
@@ -42,40 +71,59 @@ public class FlowID{
      */
     @Override
     public boolean equals(Object o){
-        try{
-            FlowID cmp = (FlowID) o;
-            
-            if ((this.srcIP.equals(cmp.dstIP) && this.dstIP.equals(cmp.srcIP)) &&
-                    ((this.srcPort == cmp.dstPort && this.dstPort == cmp.srcPort)))
-                    return true;
-                
-            
-            if ((this.srcIP.equals(cmp.srcIP) && this.dstIP.equals(cmp.dstIP)) &&
-                    ((this.srcPort == cmp.srcPort && this.dstPort == cmp.dstPort)))
-                    return true;
-                
-            
-          
-        
-        } catch (ClassCastException e){/*Given object is not comparable*/}
-        
-        
-        return false;
+        if (!(o instanceof FlowID)) return false;
+        FlowID cmp = (FlowID) o;
+        if (this.flowSenseOf(cmp)) return true;
+        return this.srcHi == cmp.dstHi && this.srcLo == cmp.dstLo && this.srcPort == cmp.dstPort
+            && this.dstHi == cmp.srcHi && this.dstLo == cmp.srcLo && this.dstPort == cmp.srcPort;
     }
 
-    
     @Override
 	public int hashCode() {
-		return dstIP.hashCode() * srcIP.hashCode() * dstPort * srcPort;
+        long h = hash(this.srcHi, this.srcLo, this.srcPort, this.dstHi, this.dstLo, this.dstPort);
+		return (int) (h ^ (h >>> 32));
 	}
-    
-    
+
+    /**
+     * Direction-independent 64 bits hash of a flow: the endpoints are put in
+     * canonical order (lower endpoint first) before being mixed, so both senses
+     * of a flow get the same hash.
+     */
+    public static long hash(long srcHi, long srcLo, int srcPort, long dstHi, long dstLo, int dstPort){
+        if (compare(srcHi, srcLo, srcPort, dstHi, dstLo, dstPort) <= 0)
+            return mix(srcHi, srcLo, srcPort, dstHi, dstLo, dstPort);
+        return mix(dstHi, dstLo, dstPort, srcHi, srcLo, srcPort);
+    }
+
+    /**
+     * Total order of the endpoints, used to put them in canonical order.
+     */
+    static int compare(long aHi, long aLo, int aPort, long bHi, long bLo, int bPort){
+        if (aHi != bHi) return aHi < bHi ? -1 : 1;
+        if (aLo != bLo) return aLo < bLo ? -1 : 1;
+        return Integer.compare(aPort, bPort);
+    }
+
+    private static long mix(long aHi, long aLo, int aPort, long bHi, long bLo, int bPort){
+        long h = 0x9E3779B97F4A7C15L;
+        h = (h ^ aHi) * 0xBF58476D1CE4E5B9L;
+        h = (Long.rotateLeft(h, 27) ^ aLo) * 0x94D049BB133111EBL;
+        h = (Long.rotateLeft(h, 27) ^ bHi) * 0xBF58476D1CE4E5B9L;
+        h = (Long.rotateLeft(h, 27) ^ bLo) * 0x94D049BB133111EBL;
+        h = (Long.rotateLeft(h, 27) ^ (((long) aPort << 32) | (bPort & 0xFFFFFFFFL))) * 0xBF58476D1CE4E5B9L;
+        // Final avalanche (splitmix64)
+        h ^= h >>> 31;
+        h *= 0x94D049BB133111EBL;
+        h ^= h >>> 29;
+        return h;
+    }
+
     public String getSrcIP() {
- 		return srcIP;
+ 		return IPAddress.format(this.srcHi, this.srcLo);
  	}
 
  	public String getDstIP() {
- 		return dstIP;
+ 		return IPAddress.format(this.dstHi, this.dstLo);
  	}
 
  	public int getSrcPort() {
@@ -85,10 +133,20 @@ public class FlowID{
  	public int getDstPort() {
  		return dstPort;
  	}
-    
-    
-    
-}
 
+    long getSrcHi(){
+        return this.srcHi;
+    }
 
+    long getSrcLo(){
+        return this.srcLo;
+    }
 
+    long getDstHi(){
+        return this.dstHi;
+    }
+
+    long getDstLo(){
+        return this.dstLo;
+    }
+}
@@ -0,0 +1,280 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Off-heap storage of the least recently seen flows of a {@link FlowTable}.
+ * A spilled flow is a fixed-size record holding its key and statistics,
+ * serialized as in a checkpoint (see {@link FlowTable#takeChanges(boolean)}).
+ * The records live in segments of direct memory up to a budget, then in
+ * segments of a memory-mapped file: the number of live flows is bounded by
+ * the disk, and neither the records nor their keys are seen by the GC.
+ * <p>
+ * The records are chained in spill order, which is also their last-seen
+ * order (the table always spills its least recently seen flow), and found by
+ * their key through an open-addressing index. The records of the flows taken
+ * back by the table are reused explicitly through a free list.
+ */
+class FlowSpill{
+
+    static final int NONE = -1;
+    private static final int SEGMENT_SIZE = 64 << 20;
+    // Record header: hash of the key, last-seen time, checkpoint epochs of the
+    // creation and of the spill of the flow, whether it changed since the last
+    // checkpoint, and previous and next records in spill order
+    private static final int HASH = 0;
+    private static final int LAST_SEEN = 8;
+    private static final int BORN = 16;
+    private static final int SPILLED = 20;
+    private static final int PREV = 24;
+    private static final int NEXT = 28;
+    private static final int CHANGED = 32;
+    private static final int HEADER_SIZE = 33;
+    // The payload starts with a record type, then the canonical key
+    private static final int KEY = HEADER_SIZE + 1;
+
+    private final int recordSize;
+    private final int recordsPerSegment;
+    // Bytes of direct memory to use before mapping the file, and directory of the file
+    private final long budget;
+    private final Path directory;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private long direct = 0;
+    private FileChannel file;
+    private long mapped = 0;
+    // Records that have never been used start at 'used'; freed records are stacked
+    private int used = 0;
+    private int[] free = new int[1024];
+    private int freeCount = 0;
+    // Open-addressing index: record + 1 of the flow stored in each bucket (0: empty)
+    private int[] index = new int[1024];
+    private int mask = this.index.length - 1;
+    private int head = NONE;
+    private int tail = NONE;
+    private int size = 0;
+
+    /**
+     * @param payloadSize Bytes of the serialized flows.
+     * @param budget Bytes of direct memory used before spilling to a file.
+     * @param directory Directory of the file.
+     */
+    FlowSpill(int payloadSize, long budget, Path directory){
+        this.recordSize = HEADER_SIZE + payloadSize;
+        this.recordsPerSegment = Math.max(1, SEGMENT_SIZE / this.recordSize);
+        this.budget = budget;
+        this.directory = directory;
+    }
+
+    /**
+     * Adds a record for a flow: the caller writes the payload into the returned
+     * buffer, which is only valid until the next call.
+     * @param hash Hash of the key of the flow.
+     * @param lastSeen Report time of the last packet of the flow.
+     * @param born Checkpoint epoch of the creation of the flow.
+     * @param spilled Current checkpoint epoch.
+     * @param changed True if the flow changed since the last checkpoint.
+     */
+    ByteBuffer add(long hash, long lastSeen, int born, int spilled, boolean changed){
+        int record;
+        if (this.freeCount > 0){
+            record = this.free[--this.freeCount];
+        } else {
+            if (this.used == this.segments.size() * this.recordsPerSegment) this.segments.add(this.allocate());
+            record = this.used++;
+        }
+        // Grow the index before linking the record: the rehash indexes every linked record
+        if (2 * (this.size + 1) > this.index.length) this.rehash(2 * this.index.length);
+        ByteBuffer segment = this.segment(record);
+        int base = this.offset(record);
+        segment.putLong(base + HASH, hash);
+        segment.putLong(base + LAST_SEEN, lastSeen);
+        segment.putInt(base + BORN, born);
+        segment.putInt(base + SPILLED, spilled);
+        segment.putInt(base + PREV, this.tail);
+        segment.putInt(base + NEXT, NONE);
+        segment.put(base + CHANGED, (byte) (changed ? 1 : 0));
+        if (this.tail != NONE) this.segment(this.tail).putInt(this.offset(this.tail) + NEXT, record);
+        else this.head = record;
+        this.tail = record;
+        this.size++;
+        int bucket = (int) hash & this.mask;
+        while (this.index[bucket] != 0) bucket = (bucket + 1) & this.mask;
+        this.index[bucket] = record + 1;
+        return this.payload(record);
+    }
+
+    /**
+     * @return The record of the flow with the given canonical key, or NONE.
+     */
+    int find(long hash, long lowHi, long lowLo, int lowPort, long highHi, long highLo, int highPort){
+        if (this.size == 0) return NONE;
+        int bucket = (int) hash & this.mask;
+        while (true){
+            int record = this.index[bucket] - 1;
+            if (record == NONE) return NONE;
+            ByteBuffer segment = this.segment(record);
+            int key = this.offset(record) + KEY;
+            if (segment.getLong(key - KEY + HASH) == hash
+                    && segment.getLong(key) == lowHi && segment.getLong(key + 8) == lowLo && segment.getInt(key + 16) == lowPort
+                    && segment.getLong(key + 20) == highHi && segment.getLong(key + 28) == highLo && segment.getInt(key + 36) == highPort)
+                return record;
+            bucket = (bucket + 1) & this.mask;
+        }
+    }
+
+    /**
+     * @return The payload of a record, to be read.
+     */
+    ByteBuffer payload(int record){
+        ByteBuffer payload = this.segment(record).duplicate();
+        int base = this.offset(record);
+        ((Buffer) payload).limit(base + this.recordSize).position(base + HEADER_SIZE);
+        return payload;
+    }
+
+    long hash(int record){
+        return this.segment(record).getLong(this.offset(record) + HASH);
+    }
+
+    long lastSeen(int record){
+        return this.segment(record).getLong(this.offset(record) + LAST_SEEN);
+    }
+
+    int born(int record){
+        return this.segment(record).getInt(this.offset(record) + BORN);
+    }
+
+    int spilled(int record){
+        return this.segment(record).getInt(this.offset(record) + SPILLED);
+    }
+
+    boolean changed(int record){
+        return this.segment(record).get(this.offset(record) + CHANGED) != 0;
+    }
+
+    /**
+     * Removes a record (the flow went back to the table): it will be reused.
+     */
+    void remove(int record){
+        ByteBuffer segment = this.segment(record);
+        int base = this.offset(record);
+        // Remove it from the index, shifting back the following entries of its probe sequence
+        int hole = (int) segment.getLong(base + HASH) & this.mask;
+        while (this.index[hole] != record + 1) hole = (hole + 1) & this.mask;
+        int i = hole;
+        while (true){
+            i = (i + 1) & this.mask;
+            int other = this.index[i] - 1;
+            if (other == NONE) break;
+            int ideal = (int) this.hash(other) & this.mask;
+            boolean stays = hole <= i ? (hole < ideal && ideal <= i) : (hole < ideal || ideal <= i);
+            if (!stays){
+                this.index[hole] = this.index[i];
+                hole = i;
+            }
+        }
+        this.index[hole] = 0;
+        // Unlink it
+        int prev = segment.getInt(base + PREV);
+        int next = segment.getInt(base + NEXT);
+        if (prev != NONE) this.segment(prev).putInt(this.offset(prev) + NEXT, next);
+        else this.head = next;
+        if (next != NONE) this.segment(next).putInt(this.offset(next) + PREV, prev);
+        else this.tail = prev;
+        if (this.freeCount == this.free.length) this.free = Arrays.copyOf(this.free, 2 * this.freeCount);
+        this.free[this.freeCount++] = record;
+        this.size--;
+    }
+
+    /**
+     * @return The least recently seen record, or NONE.
+     */
+    int oldest(){
+        return this.head;
+    }
+
+    /**
+     * @return The most recently seen record, or NONE.
+     */
+    int newest(){
+        return this.tail;
+    }
+
+    /**
+     * @return The record spilled after the given one, or NONE.
+     */
+    int next(int record){
+        return this.segment(record).getInt(this.offset(record) + NEXT);
+    }
+
+    /**
+     * @return The record spilled before the given one, or NONE.
+     */
+    int prev(int record){
+        return this.segment(record).getInt(this.offset(record) + PREV);
+    }
+
+    /**
+     * @return The number of spilled flows.
+     */
+    int size(){
+        return this.size;
+    }
+
+    /**
+     * @return A new segment: direct memory within the budget (and the limit of
+     * the JVM), a region of the spill file otherwise.
+     */
+    private ByteBuffer allocate(){
+        if (this.direct + SEGMENT_SIZE <= this.budget){
+            try{
+                ByteBuffer segment = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+                this.direct += SEGMENT_SIZE;
+                return segment;
+            } catch (OutOfMemoryError e){
+                // No more direct memory: use the file
+            }
+        }
+        try{
+            if (this.file == null){
+                // The file is deleted at once: its space is freed when the process exits
+                Path path = Files.createTempFile(this.directory, "flows", ".spill");
+                this.file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                Files.delete(path);
+            }
+            ByteBuffer segment = this.file.map(FileChannel.MapMode.READ_WRITE, this.mapped, SEGMENT_SIZE);
+            this.mapped += SEGMENT_SIZE;
+            return segment;
+        } catch (IOException e){
+            throw new UncheckedIOException("Cannot spill the flows to " + this.directory, e);
+        }
+    }
+
+    private void rehash(int buckets){
+        this.index = new int[buckets];
+        this.mask = buckets - 1;
+        for (int record = this.head; record != NONE; record = this.next(record)){
+            int bucket = (int) this.hash(record) & this.mask;
+            while (this.index[bucket] != 0) bucket = (bucket + 1) & this.mask;
+            this.index[bucket] = record + 1;
+        }
+    }
+
+    private ByteBuffer segment(int record){
+        return this.segments.get(record / this.recordsPerSegment);
+    }
+
+    private int offset(int record){
+        return (record % this.recordsPerSegment) * this.recordSize;
+    }
+}
@@ -0,0 +1,547 @@
+package eu.montimage.processor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Columnar storage of the flow statistics.
+ * Every statistic is a primitive column indexed by flow slot, instead of a
+ * set of small arrays per flow. Per-direction statistics keep the uplink and
+ * downlink values side by side: the value of a slot in a sense is stored at
+ * index 2 * slot + sense (0: Up, 1: Down). The footprint is fixed per slot,
+ * so millions of flows cost a predictable amount of memory and only a few
+ * large arrays are seen by the GC.
+ * <p>
+ * The averages are kept in double precision with their variance (see
+ * {@link RunningStats}). An extended store also keeps the inter-arrival times
+ * of the packets in each sense and quantile sketches (see {@link QuantileSketch})
+ * of the packet sizes and inter-arrival times, all with a fixed footprint per slot.
+ * <p>
+ * The columns are grouped in accumulators, and a store only allocates and
+ * updates the accumulators needed by its features (see {@link Features}):
+ * the other columns stay null. The accumulators declared by features of
+ * their own (see {@link FlowAccumulator}) are kept the same way, each in a
+ * single array of fixed-size states per slot and sense.
+ */
+public class FlowStore{
+
+    /**
+     * Groups of columns updated for every packet. The packet counts, the
+     * timestamps and the state of the flows are always kept.
+     */
+    public enum Accumulator{
+        BYTES,
+        SIZE,
+        WINDOW,
+        TTL,
+        FLAGS,
+        TLS,
+        INTER_ARRIVAL,
+        SIZE_SKETCH,
+        INTER_ARRIVAL_SKETCH,
+        SAMPLING
+    }
+
+    // Number of per-flow columns (see below)
+    static final int FLOW_COLUMNS = 4;
+
+    // Features computed from the store, and the accumulators they need
+    final Features features;
+    private final boolean keepBytes;
+    private final boolean keepSize;
+    private final boolean keepWindow;
+    private final boolean keepTtl;
+    private final boolean keepFlags;
+    private final boolean keepTls;
+    private final boolean keepInterArrival;
+    private final boolean keepSampling;
+    // Accumulators of the features of their own, and their states
+    private final FlowAccumulator[] own;
+    private final long[][] ownState;
+    int capacity;
+    // Start packet and last analyzed packet
+    long[] starttsamp;
+    long[] lastpkgtsamp;
+    // Position in the input of the first packet
+    long[] firstSeq;
+    // Period over which the rates are computed, in microseconds (0: the duration of the flow)
+    long[] period;
+    // State of the flow (ordinal of Flow.State)
+    byte[] state;
+    // Sampling of the flow: 1 in so many flows like it is kept (see OverloadGuard)
+    long[] sampling;
+    // Packets count
+    long[] pkg;
+    // Bytes count
+    long[] bytes;
+    // Packets statistics
+    double[] pkgAvgSize;
+    double[] pkgSizeM2;
+    long[] pkgMaxSize;
+    long[] pkgMinSize;
+    // TCP Window statistic
+    double[] windowAvg;
+    double[] windowM2;
+    long[] windowMax;
+    long[] windowMin;
+    // TTL statistics
+    double[] ttlAvg;
+    double[] ttlM2;
+    long[] ttlMax;
+    long[] ttlMin;
+    // TCP flags statistic
+    long[] fin;
+    long[] syn;
+    long[] rst;
+    long[] psh;
+    long[] ack;
+    long[] urg;
+    // SSL Packets
+    long[] sslPkg;
+    // SSL Content Type
+    long[] chgCipher;
+    long[] alert;
+    long[] handshake;
+    long[] appData;
+    long[] heartbeat;
+    // Inter-arrival statistics: arrival of the first and last packets, inter-arrival
+    // times (microseconds, one less than the packets), and sketches of the packet
+    // sizes and inter-arrival times
+    long[] firstArrival;
+    long[] lastArrival;
+    long[] iatMax;
+    long[] iatMin;
+    double[] iatAvg;
+    double[] iatM2;
+    QuantileSketch sizeSketch;
+    QuantileSketch iatSketch;
+    // Per-direction columns, in serialization order
+    private long[][] directional;
+    private double[][] directionalReal;
+
+    /**
+     * @param capacity Initial number of slots.
+     */
+    public FlowStore(int capacity){
+        this(capacity, Features.BASE);
+    }
+
+    /**
+     * @param features Features computed from the store: only their accumulators are kept.
+     */
+    public FlowStore(int capacity, Features features){
+        this.features = features;
+        Set<Accumulator> kept = features.getAccumulators();
+        this.keepBytes = kept.contains(Accumulator.BYTES);
+        // The percentiles are bounded by the minimum and maximum
+        this.keepSize = kept.contains(Accumulator.SIZE) || kept.contains(Accumulator.SIZE_SKETCH);
+        this.keepWindow = kept.contains(Accumulator.WINDOW);
+        this.keepTtl = kept.contains(Accumulator.TTL);
+        this.keepFlags = kept.contains(Accumulator.FLAGS);
+        this.keepTls = kept.contains(Accumulator.TLS);
+        this.keepInterArrival = kept.contains(Accumulator.INTER_ARRIVAL) || kept.contains(Accumulator.INTER_ARRIVAL_SKETCH);
+        this.keepSampling = kept.contains(Accumulator.SAMPLING);
+        if (kept.contains(Accumulator.SIZE_SKETCH)) this.sizeSketch = new QuantileSketch(0);
+        if (kept.contains(Accumulator.INTER_ARRIVAL_SKETCH)) this.iatSketch = new QuantileSketch(0);
+        this.own = features.getOwnAccumulators().toArray(new FlowAccumulator[0]);
+        this.ownState = new long[this.own.length][];
+        this.capacity = 0;
+        this.grow(capacity);
+    }
+
+    /**
+     * Resets the statistics of a slot for a new flow.
+     */
+    void init(int slot, long starttsamp){
+        this.starttsamp[slot] = starttsamp;
+        this.lastpkgtsamp[slot] = 0;
+        this.firstSeq[slot] = 0;
+        this.period[slot] = 0;
+        this.state[slot] = 0;
+        if (this.keepSampling) this.sampling[slot] = 1;
+        for (int i = 2 * slot; i < 2 * slot + 2; i++){
+            this.pkg[i] = 0;
+            if (this.keepBytes) this.bytes[i] = 0;
+            if (this.keepSize){
+                this.pkgAvgSize[i] = 0;
+                this.pkgSizeM2[i] = 0;
+                this.pkgMaxSize[i] = 0;
+                this.pkgMinSize[i] = Long.MAX_VALUE;
+            }
+            if (this.keepWindow){
+                this.windowAvg[i] = 0;
+                this.windowM2[i] = 0;
+                this.windowMax[i] = 0;
+                this.windowMin[i] = Long.MAX_VALUE;
+            }
+            if (this.keepTtl){
+                this.ttlAvg[i] = 0;
+                this.ttlM2[i] = 0;
+                this.ttlMax[i] = 0;
+                this.ttlMin[i] = Long.MAX_VALUE;
+            }
+            if (this.keepFlags){
+                this.fin[i] = 0;
+                this.syn[i] = 0;
+                this.rst[i] = 0;
+                this.psh[i] = 0;
+                this.ack[i] = 0;
+                this.urg[i] = 0;
+            }
+            if (this.keepTls){
+                this.sslPkg[i] = 0;
+                this.chgCipher[i] = 0;
+                this.alert[i] = 0;
+                this.handshake[i] = 0;
+                this.appData[i] = 0;
+                this.heartbeat[i] = 0;
+            }
+            if (this.keepInterArrival){
+                this.firstArrival[i] = 0;
+                this.lastArrival[i] = 0;
+                this.iatMax[i] = 0;
+                this.iatMin[i] = Long.MAX_VALUE;
+                this.iatAvg[i] = 0;
+                this.iatM2[i] = 0;
+            }
+            if (this.sizeSketch != null) this.sizeSketch.clear(i);
+            if (this.iatSketch != null) this.iatSketch.clear(i);
+            for (int k = 0; k < this.own.length; k++) this.own[k].init(this.ownState[k], i * this.own[k].getColumns());
+        }
+    }
+
+    /**
+     * @return The number of packets of the flow of a slot in a sense.
+     * @param sense 0 in the sense of the first packet of the flow, 1 otherwise.
+     */
+    public long getPackets(int slot, int sense){
+        return this.pkg[2 * slot + sense];
+    }
+
+    /**
+     * @return A column of the state of an accumulator of a feature of its own,
+     * for the flow of a slot in a sense.
+     * @throws IllegalArgumentException If no feature of the store declares the accumulator.
+     */
+    public long get(FlowAccumulator accumulator, int slot, int sense, int column){
+        for (int k = 0; k < this.own.length; k++){
+            if (this.own[k].equals(accumulator)) return this.ownState[k][(2 * slot + sense) * accumulator.getColumns() + column];
+        }
+        throw new IllegalArgumentException("Accumulator not kept by the store: " + accumulator);
+    }
+
+    /**
+     * Sets the sampling of the flow of a slot, if the store keeps it.
+     */
+    void sample(int slot, long sampling){
+        if (this.keepSampling) this.sampling[slot] = sampling;
+    }
+
+    /**
+     * Accumulates a packet in the statistics of a slot in a sense. The
+     * timestamps and the state of the flow are left to the caller.
+     * @param sense 0 if the packet goes in the sense of the first packet of the flow, 1 otherwise.
+     */
+    void add(int slot, int sense, PacketRecord pkt){
+        final int i = 2 * slot + sense;
+        final long n = ++this.pkg[i];
+        final long size = pkt.size;
+        final long tcpwin = pkt.tcpwin;
+        final long ttl = pkt.ttl;
+        // Bytes counting
+        if (this.keepBytes) this.bytes[i] += size;
+        // Packets statistics
+        if (this.keepSize){
+            RunningStats.add(this.pkgAvgSize, this.pkgSizeM2, i, n, size);
+            if (this.pkgMaxSize[i] < size) this.pkgMaxSize[i] = size;
+            if (this.pkgMinSize[i] > size) this.pkgMinSize[i] = size;
+            if (this.sizeSketch != null) this.sizeSketch.add(i, size);
+        }
+        // TCP Window statistics
+        if (this.keepWindow){
+            RunningStats.add(this.windowAvg, this.windowM2, i, n, tcpwin);
+            if (this.windowMax[i] < tcpwin) this.windowMax[i] = tcpwin;
+            if (this.windowMin[i] > tcpwin) this.windowMin[i] = tcpwin;
+        }
+        // TTL
+        if (this.keepTtl){
+            RunningStats.add(this.ttlAvg, this.ttlM2, i, n, ttl);
+            if (this.ttlMax[i] < ttl) this.ttlMax[i] = ttl;
+            if (this.ttlMin[i] > ttl) this.ttlMin[i] = ttl;
+        }
+        // TCP flags statistics
+        if (this.keepFlags){
+            this.fin[i] += pkt.fin;
+            this.syn[i] += pkt.syn;
+            this.rst[i] += pkt.rst;
+            this.psh[i] += pkt.psh;
+            this.ack[i] += pkt.ack;
+            this.urg[i] += pkt.urg;
+        }
+        if (this.keepTls){
+            // Number of SSL packets
+            this.sslPkg[i]++;
+            // Type of SSL content
+            switch (pkt.contType){
+                case 20:
+                    this.chgCipher[i]++;
+                    break;
+                case 21:
+                    this.alert[i]++;
+                    break;
+                case 22:
+                    this.handshake[i]++;
+                    break;
+                case 23:
+                    this.appData[i]++;
+                    break;
+                case 24:
+                    this.heartbeat[i]++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (this.keepInterArrival){
+            if (n == 1){
+                this.firstArrival[i] = pkt.tstamp;
+            } else {
+                this.addInterArrival(i, n - 1, pkt.tstamp - this.lastArrival[i]);
+            }
+            this.lastArrival[i] = pkt.tstamp;
+        }
+        for (int k = 0; k < this.own.length; k++) this.own[k].add(this.ownState[k], i * this.own[k].getColumns(), pkt, n);
+    }
+
+    /**
+     * Accumulates the statistics of a slot of another store into a slot of
+     * this one, as if the packets of the other slot had been added after the
+     * ones of this slot. Both stores must have the same features.
+     */
+    void merge(int slot, FlowStore src, int srcSlot){
+        if (this.pkg[2 * slot] + this.pkg[2 * slot + 1] == 0){
+            this.starttsamp[slot] = src.starttsamp[srcSlot];
+            this.firstSeq[slot] = src.firstSeq[srcSlot];
+        }
+        this.lastpkgtsamp[slot] = Math.max(this.lastpkgtsamp[slot], src.lastpkgtsamp[srcSlot]);
+        if (this.keepSampling) this.sampling[slot] = Math.max(this.sampling[slot], src.sampling[srcSlot]);
+        for (int sense = 0; sense < 2; sense++){
+            final int i = 2 * slot + sense;
+            final int j = 2 * srcSlot + sense;
+            final long n1 = this.pkg[i];
+            final long n2 = src.pkg[j];
+            if (n2 == 0) continue;
+            this.pkg[i] += n2;
+            if (this.keepBytes) this.bytes[i] += src.bytes[j];
+            if (this.keepSize){
+                RunningStats.merge(this.pkgAvgSize, this.pkgSizeM2, i, n1, src.pkgAvgSize[j], src.pkgSizeM2[j], n2);
+                this.pkgMaxSize[i] = Math.max(this.pkgMaxSize[i], src.pkgMaxSize[j]);
+                this.pkgMinSize[i] = Math.min(this.pkgMinSize[i], src.pkgMinSize[j]);
+                if (this.sizeSketch != null) this.sizeSketch.merge(i, src.sizeSketch, j);
+            }
+            if (this.keepWindow){
+                RunningStats.merge(this.windowAvg, this.windowM2, i, n1, src.windowAvg[j], src.windowM2[j], n2);
+                this.windowMax[i] = Math.max(this.windowMax[i], src.windowMax[j]);
+                this.windowMin[i] = Math.min(this.windowMin[i], src.windowMin[j]);
+            }
+            if (this.keepTtl){
+                RunningStats.merge(this.ttlAvg, this.ttlM2, i, n1, src.ttlAvg[j], src.ttlM2[j], n2);
+                this.ttlMax[i] = Math.max(this.ttlMax[i], src.ttlMax[j]);
+                this.ttlMin[i] = Math.min(this.ttlMin[i], src.ttlMin[j]);
+            }
+            if (this.keepFlags){
+                this.fin[i] += src.fin[j];
+                this.syn[i] += src.syn[j];
+                this.rst[i] += src.rst[j];
+                this.psh[i] += src.psh[j];
+                this.ack[i] += src.ack[j];
+                this.urg[i] += src.urg[j];
+            }
+            if (this.keepTls){
+                this.sslPkg[i] += src.sslPkg[j];
+                this.chgCipher[i] += src.chgCipher[j];
+                this.alert[i] += src.alert[j];
+                this.handshake[i] += src.handshake[j];
+                this.appData[i] += src.appData[j];
+                this.heartbeat[i] += src.heartbeat[j];
+            }
+            if (this.keepInterArrival){
+                if (n1 == 0){
+                    this.firstArrival[i] = src.firstArrival[j];
+                }
+                if (n2 > 1){
+                    long gaps = Math.max(0, n1 - 1);
+                    RunningStats.merge(this.iatAvg, this.iatM2, i, gaps, src.iatAvg[j], src.iatM2[j], n2 - 1);
+                    this.iatMax[i] = Math.max(this.iatMax[i], src.iatMax[j]);
+                    this.iatMin[i] = Math.min(this.iatMin[i], src.iatMin[j]);
+                    if (this.iatSketch != null) this.iatSketch.merge(i, src.iatSketch, j);
+                }
+                // The gap between the last packet of this slot and the first one of the other
+                if (n1 > 0) this.addInterArrival(i, n1 + n2 - 1, src.firstArrival[j] - this.lastArrival[i]);
+                this.lastArrival[i] = src.lastArrival[j];
+            }
+            for (int k = 0; k < this.own.length; k++){
+                int columns = this.own[k].getColumns();
+                this.own[k].merge(this.ownState[k], i * columns, n1, src.ownState[k], j * columns, n2);
+            }
+        }
+    }
+
+    /**
+     * @param n Number of inter-arrival times, including the new one.
+     */
+    private void addInterArrival(int i, long n, long iat){
+        RunningStats.add(this.iatAvg, this.iatM2, i, n, iat);
+        if (this.iatMax[i] < iat) this.iatMax[i] = iat;
+        if (this.iatMin[i] > iat) this.iatMin[i] = iat;
+        if (this.iatSketch != null) this.iatSketch.add(i, iat);
+    }
+
+    /**
+     * Grows the columns to the given number of slots. The content of the
+     * existing slots is kept.
+     */
+    void grow(int capacity){
+        if (capacity <= this.capacity && this.directional != null) return;
+        int n = 2 * capacity;
+        this.starttsamp = Arrays.copyOf(this.starttsamp == null ? new long[0] : this.starttsamp, capacity);
+        this.lastpkgtsamp = Arrays.copyOf(this.lastpkgtsamp == null ? new long[0] : this.lastpkgtsamp, capacity);
+        this.firstSeq = Arrays.copyOf(this.firstSeq == null ? new long[0] : this.firstSeq, capacity);
+        this.period = Arrays.copyOf(this.period == null ? new long[0] : this.period, capacity);
+        this.state = Arrays.copyOf(this.state == null ? new byte[0] : this.state, capacity);
+        if (this.keepSampling) this.sampling = Arrays.copyOf(this.sampling == null ? new long[0] : this.sampling, capacity);
+        this.pkg = column(this.pkg, n);
+        List<long[]> directional = new ArrayList<>();
+        List<double[]> directionalReal = new ArrayList<>();
+        directional.add(this.pkg);
+        if (this.keepBytes) directional.add(this.bytes = column(this.bytes, n));
+        if (this.keepSize){
+            directional.add(this.pkgMaxSize = column(this.pkgMaxSize, n));
+            directional.add(this.pkgMinSize = column(this.pkgMinSize, n));
+            directionalReal.add(this.pkgAvgSize = column(this.pkgAvgSize, n));
+            directionalReal.add(this.pkgSizeM2 = column(this.pkgSizeM2, n));
+        }
+        if (this.keepWindow){
+            directional.add(this.windowMax = column(this.windowMax, n));
+            directional.add(this.windowMin = column(this.windowMin, n));
+            directionalReal.add(this.windowAvg = column(this.windowAvg, n));
+            directionalReal.add(this.windowM2 = column(this.windowM2, n));
+        }
+        if (this.keepTtl){
+            directional.add(this.ttlMax = column(this.ttlMax, n));
+            directional.add(this.ttlMin = column(this.ttlMin, n));
+            directionalReal.add(this.ttlAvg = column(this.ttlAvg, n));
+            directionalReal.add(this.ttlM2 = column(this.ttlM2, n));
+        }
+        if (this.keepFlags){
+            directional.add(this.fin = column(this.fin, n));
+            directional.add(this.syn = column(this.syn, n));
+            directional.add(this.rst = column(this.rst, n));
+            directional.add(this.psh = column(this.psh, n));
+            directional.add(this.ack = column(this.ack, n));
+            directional.add(this.urg = column(this.urg, n));
+        }
+        if (this.keepTls){
+            directional.add(this.sslPkg = column(this.sslPkg, n));
+            directional.add(this.chgCipher = column(this.chgCipher, n));
+            directional.add(this.alert = column(this.alert, n));
+            directional.add(this.handshake = column(this.handshake, n));
+            directional.add(this.appData = column(this.appData, n));
+            directional.add(this.heartbeat = column(this.heartbeat, n));
+        }
+        if (this.keepInterArrival){
+            directional.add(this.firstArrival = column(this.firstArrival, n));
+            directional.add(this.lastArrival = column(this.lastArrival, n));
+            directional.add(this.iatMax = column(this.iatMax, n));
+            directional.add(this.iatMin = column(this.iatMin, n));
+            directionalReal.add(this.iatAvg = column(this.iatAvg, n));
+            directionalReal.add(this.iatM2 = column(this.iatM2, n));
+        }
+        if (this.sizeSketch != null) this.sizeSketch.grow(n);
+        if (this.iatSketch != null) this.iatSketch.grow(n);
+        for (int k = 0; k < this.own.length; k++) this.ownState[k] = column(this.ownState[k], n * this.own[k].getColumns());
+        this.directional = directional.toArray(new long[0][]);
+        this.directionalReal = directionalReal.toArray(new double[0][]);
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return Bytes used by the statistics of one slot.
+     */
+    int bytesPerSlot(){
+        int bytes = FLOW_COLUMNS * Long.BYTES + 1;
+        if (this.keepSampling) bytes += Long.BYTES;
+        bytes += 2 * (this.directional.length * Long.BYTES + this.directionalReal.length * Double.BYTES);
+        if (this.sizeSketch != null) bytes += 2 * QuantileSketch.bytesPerSketch();
+        if (this.iatSketch != null) bytes += 2 * QuantileSketch.bytesPerSketch();
+        for (FlowAccumulator accumulator : this.own) bytes += 2 * accumulator.getColumns() * Long.BYTES;
+        return bytes;
+    }
+
+    /**
+     * Writes the statistics of a slot into the buffer, using {@link #bytesPerSlot()} bytes.
+     */
+    void write(int slot, ByteBuffer buf){
+        buf.putLong(this.starttsamp[slot]);
+        buf.putLong(this.lastpkgtsamp[slot]);
+        buf.putLong(this.firstSeq[slot]);
+        buf.putLong(this.period[slot]);
+        buf.put(this.state[slot]);
+        if (this.keepSampling) buf.putLong(this.sampling[slot]);
+        for (long[] column : this.directional){
+            buf.putLong(column[2 * slot]);
+            buf.putLong(column[2 * slot + 1]);
+        }
+        for (double[] column : this.directionalReal){
+            buf.putDouble(column[2 * slot]);
+            buf.putDouble(column[2 * slot + 1]);
+        }
+        for (int i = 2 * slot; i < 2 * slot + 2; i++){
+            if (this.sizeSketch != null) this.sizeSketch.write(i, buf);
+            if (this.iatSketch != null) this.iatSketch.write(i, buf);
+        }
+        for (int k = 0; k < this.own.length; k++){
+            int columns = this.own[k].getColumns();
+            for (int c = 2 * slot * columns; c < (2 * slot + 2) * columns; c++) buf.putLong(this.ownState[k][c]);
+        }
+    }
+
+    /**
+     * Reads the statistics of a slot written by {@link #write(int, ByteBuffer)}.
+     */
+    void read(int slot, ByteBuffer buf){
+        this.starttsamp[slot] = buf.getLong();
+        this.lastpkgtsamp[slot] = buf.getLong();
+        this.firstSeq[slot] = buf.getLong();
+        this.period[slot] = buf.getLong();
+        this.state[slot] = buf.get();
+        if (this.keepSampling) this.sampling[slot] = buf.getLong();
+        for (long[] column : this.directional){
+            column[2 * slot] = buf.getLong();
+            column[2 * slot + 1] = buf.getLong();
+        }
+        for (double[] column : this.directionalReal){
+            column[2 * slot] = buf.getDouble();
+            column[2 * slot + 1] = buf.getDouble();
+        }
+        for (int i = 2 * slot; i < 2 * slot + 2; i++){
+            if (this.sizeSketch != null) this.sizeSketch.read(i, buf);
+            if (this.iatSketch != null) this.iatSketch.read(i, buf);
+        }
+        for (int k = 0; k < this.own.length; k++){
+            int columns = this.own[k].getColumns();
+            for (int c = 2 * slot * columns; c < (2 * slot + 2) * columns; c++) this.ownState[k][c] = buf.getLong();
+        }
+    }
+
+    private static long[] column(long[] column, int length){
+        return column == null ? new long[length] : Arrays.copyOf(column, length);
+    }
+
+    private static double[] column(double[] column, int length){
+        return column == null ? new double[length] : Arrays.copyOf(column, length);
+    }
+}
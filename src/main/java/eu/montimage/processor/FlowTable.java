@@ -0,0 +1,1143 @@
+package eu.montimage.processor;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Table of the live flows.
+ * The flows are stored in slots: the statistics in the columns of a
+ * {@link FlowStore} and the keys in the table itself. The key of every slot (both endpoints in
+ * canonical order, lower endpoint first) is kept in primitive arrays and an
+ * open-addressing index (linear probing) maps the key hash to the slot, so a
+ * packet costs a single lookup and no object is created to find its flow.
+ * Slots are also linked in last-seen order (the least recently seen flow first),
+ * so the idle ones can be found from the head of the list without scanning.
+ * Every flow that leaves the table (closed, idle or evicted because the table
+ * is full) is handed to the sink, so results are written as soon as possible.
+ * The Flow given to the sink is a view of the slot: it is only valid during the
+ * call, as the slot is reused afterwards.
+ * With time windows (see {@link FlowWindows}), the sink receives a row per
+ * window of each flow instead of a single row per flow. The windows end with
+ * the report clock: the flows are queued by the end of their newest pane, so
+ * the windows of a flow getting no more packets are still emitted on time.
+ * <p>
+ * The table can track its changes for incremental checkpoints (see
+ * {@link Checkpoint}). The flows that got packets since the last checkpoint
+ * are the tail of the last-seen list, so they are found without any scan.
+ * <p>
+ * Reports merged from several probes or interfaces come with duplicate and
+ * reordered packets: the table can drop the duplicates (see
+ * {@link DuplicateFilter}), put the packets back in time order (see
+ * {@link ReorderBuffer}) and keep the closed flows for a while, so their late
+ * packets are still logged (see {@link #setDisorderTolerance(long, long, long)}).
+ * Once written, a closed flow leaves the live flows but keeps its key for a
+ * short while (see {@link #WRITTEN_TIME}), so its later packets are dropped
+ * instead of opening a new flow, unless they open a new connection (SYN).
+ * <p>
+ * Past a number of flows on the heap, the least recently seen flows are moved
+ * off-heap (see {@link FlowSpill}), and taken back when they get a packet or
+ * leave the table (see {@link #setSpill(int, long, Path)}).
+ * <p>
+ * When the queues in front of the table grow too deep, only a sample of the
+ * new flows and the largest ones are kept (see {@link OverloadGuard}).
+ */
+public class FlowTable{
+
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int NONE = -1;
+    // State of the slots
+    private static final byte FREE = 0;
+    private static final byte IN_ORDER = 1; // The first packet went from the lower to the higher endpoint
+    private static final byte REVERSED = 2; // The first packet went from the higher to the lower endpoint
+    private static final byte WRITTEN = 3; // The flow is closed and written: the slot drops its late packets
+    // Types of the checkpoint records, and size of a canonical key
+    private static final byte UPDATED = 1;
+    private static final byte REMOVED = 2;
+    private static final byte CLOSED = 3;
+    private static final byte ROLLED = 4;
+    private static final int KEY_SIZE = 4 * Long.BYTES + 2 * Integer.BYTES;
+    private static final int CLOSED_SIZE = 1 + KEY_SIZE + Long.BYTES;
+    /**
+     * Microseconds of report time a written flow drops its late packets, from
+     * its last packet (the TIME-WAIT of TCP), or the idle timeout if shorter.
+     */
+    static final long WRITTEN_TIME = 60000000L;
+
+    // Idle timeout in microseconds (0: flows never time out), and lifetime of the written flows
+    private final long idleTimeout;
+    private final long writtenTime;
+    // Maximal number of live flows (0: unbounded)
+    private final int maxFlows;
+    // Receives every flow that leaves the table
+    private final Consumer<Flow> sink;
+    // Time windows of the flows (null: a single row per flow), and a view of the merged windows
+    private final FlowWindows windows;
+    private final FlowStore windowStore;
+    private final Flow windowView;
+    // Flows whose windows hold packets, by the end of their newest pane, and the end each slot is queued with
+    private final TimedSlots rolls;
+    private long[] rollAt;
+
+    // Open-addressing index: slot + 1 of the flow stored in each bucket (0: empty)
+    private int[] index;
+    private int mask;
+    // Canonical key of each slot: lower endpoint (IP hi, IP lo) and higher endpoint
+    private long[] keys;
+    // Ports of each slot: lower endpoint and higher endpoint
+    private int[] ports;
+    private long[] hashes;
+    private byte[] slotState;
+    // Statistics of the flows, and a view used to access them
+    private final FlowStore store;
+    private final Flow view;
+    // Last-seen list
+    private int[] prev;
+    private int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    // Slots that have never been used start at 'used'; freed slots are chained through 'next'
+    private int used = 0;
+    private int free = NONE;
+    private int size = 0;
+    // Written flows, out of the last-seen list, in closing order, and their number
+    private final TimedSlots written = new TimedSlots();
+    private int writtenFlows = 0;
+    // Change tracking (null: disabled): checkpoint epoch of the last packet and
+    // of the creation of each slot, and records of the flows removed since the last checkpoint
+    private int[] touched;
+    private int[] born;
+    private ByteBuffer pending;
+    private int epoch = 1;
+    // Epoch of the last windows rolled by the clock of each slot, and the slots
+    // rolled since the last checkpoint without getting any packet
+    private int[] rolled;
+    private int[] rolledSlots;
+    private int rolledCount = 0;
+    // Disorder tolerance: reorder buffer and duplicate filter (null: none), and
+    // microseconds a closed flow stays in the table (0: it leaves at once)
+    private ReorderBuffer reorder;
+    private DuplicateFilter duplicates;
+    private long linger = 0;
+    // The flows only time out in expire(), not at the time of each packet
+    private boolean externalClock = false;
+    // Closed flows waiting for the end of their linger, in closing order, and closing time of each slot
+    private TimedSlots lingering;
+    private long[] closedAt;
+    // Flows kept on the heap (0: all of them), and off-heap storage of the others
+    private int heapFlows = 0;
+    private long spillBudget;
+    private Path spillDirectory;
+    private FlowSpill spill;
+    // Overload protection (null: none)
+    private OverloadGuard overload;
+    private final Metrics metrics = Metrics.get();
+
+    /**
+     * @param idleTimeout Microseconds of report time after which a flow that has
+     * not seen any packet is emitted and evicted. 0 disables the timeout.
+     * @param maxFlows Hard cap of live flows. When it is exceeded the least recently
+     * seen flow is emitted and evicted. 0 means unbounded.
+     * @param sink Consumer of the flows leaving the table.
+     */
+    public FlowTable(long idleTimeout, int maxFlows, Consumer<Flow> sink){
+        this(idleTimeout, maxFlows, 0, 0, sink);
+    }
+
+    /**
+     * Creates a table emitting a row per time window of each flow, instead of
+     * a single row per flow. The last window of a flow is emitted when the flow
+     * leaves the table.
+     * @param window Length of the windows in microseconds of report time. 0 disables the windows.
+     * @param slide Time between the start of two windows in microseconds: the
+     * window length for tumbling windows, or a divisor of it for sliding windows.
+     */
+    public FlowTable(long idleTimeout, int maxFlows, long window, long slide, Consumer<Flow> sink){
+        this(idleTimeout, maxFlows, window, slide, Features.BASE, sink);
+    }
+
+    /**
+     * @param features Features of the flows: only the statistics they need are
+     * kept and updated (see {@link FlowStore}).
+     */
+    public FlowTable(long idleTimeout, int maxFlows, long window, long slide, Features features, Consumer<Flow> sink){
+        this.idleTimeout = idleTimeout;
+        this.writtenTime = idleTimeout > 0 ? Math.min(idleTimeout, WRITTEN_TIME) : WRITTEN_TIME;
+        this.maxFlows = maxFlows;
+        this.sink = sink;
+        this.store = new FlowStore(0, features);
+        this.view = new Flow(this.store);
+        this.windows = window > 0 ? new FlowWindows(window, slide, features) : null;
+        this.rolls = window > 0 ? new TimedSlots() : null;
+        this.windowStore = new FlowStore(1, features);
+        this.windowView = new Flow(this.windowStore);
+        this.allocate(INITIAL_SLOTS);
+    }
+
+    /**
+     * Makes the table tolerant to the duplicate and reordered packets of merged
+     * reports. It must be called before any packet is logged. Every feature is
+     * disabled by a 0.
+     * @param reorderDelay Microseconds of report time the packets are held to be
+     * put back in time order (see {@link ReorderBuffer}).
+     * @param duplicateWindow Microseconds of report time within which a packet
+     * seen by another probe or interface is dropped (see {@link DuplicateFilter}).
+     * @param linger Microseconds of report time a closed flow stays in the table
+     * and logs its late packets, before it is emitted.
+     */
+    public void setDisorderTolerance(long reorderDelay, long duplicateWindow, long linger){
+        this.reorder = reorderDelay > 0 ? new ReorderBuffer(reorderDelay, this::apply) : null;
+        this.duplicates = duplicateWindow > 0 ? new DuplicateFilter(duplicateWindow) : null;
+        if (this.duplicates != null) this.duplicates.grow(this.slotState.length);
+        this.linger = linger;
+        if (linger > 0){
+            this.lingering = new TimedSlots();
+            this.closedAt = new long[this.slotState.length];
+            Arrays.fill(this.closedAt, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Only expires the flows in {@link #expire(long)}, no longer at the time of
+     * each packet: the packets of several feeds merged in a table are not in
+     * time order, and the time of a feed ahead of the others would time out the
+     * flows of the others. A flow idle for longer than the timeout when its next
+     * packet comes is still emitted before that packet starts a new one.
+     */
+    public void setExternalClock(boolean externalClock){
+        this.externalClock = externalClock;
+    }
+
+    /**
+     * Keeps at most the given number of flows on the heap: the least recently
+     * seen ones are moved off-heap, to direct memory within the budget, then to
+     * a memory-mapped file (see {@link FlowSpill}). It must be called before
+     * any packet is logged.
+     * @param heapFlows Flows kept on the heap. 0 keeps all of them.
+     * @param budget Bytes of direct memory for the other flows.
+     * @param directory Directory of the file, deleted as soon as it is created.
+     */
+    public void setSpill(int heapFlows, long budget, Path directory){
+        this.heapFlows = heapFlows;
+        this.spillBudget = budget;
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * Protects the table from an overload: while the queues are deeper than
+     * the threshold, only 1 in so many new flows is kept, chosen by the hash of
+     * the flow, and the largest flows are kept in full (see {@link OverloadGuard}).
+     * The sampling of every flow is kept by the store, if its features have a
+     * sampling rate (see {@link Features#withSamplingRate()}).
+     * @param depth Current depth of the queues in front of the table.
+     * @param threshold Depth from which the table is overloaded.
+     * @param sampling 1 in so many new flows is kept while overloaded.
+     */
+    public void setOverload(LongSupplier depth, long threshold, int sampling){
+        this.overload = new OverloadGuard(depth, threshold, sampling);
+    }
+
+    /**
+     * Logs a decoded packet in the flow it belongs to, creating the flow if needed.
+     * Flows closed by this packet or idle at its timestamp leave the table.
+     * With a reorder buffer, the packet is only logged once it is released.
+     */
+    public void logPkg(PacketRecord pkt){
+        if (this.reorder != null) this.reorder.add(pkt);
+        else this.apply(pkt);
+    }
+
+    /**
+     * Logs a packet released in time order.
+     */
+    private void apply(PacketRecord pkt){
+        // Get rid of the flows that timed out before this packet
+        if (!this.externalClock) this.expireAt(pkt.tstamp);
+        long hash = FlowID.hash(pkt.srcHi, pkt.srcLo, pkt.srcPort, pkt.dstHi, pkt.dstLo, pkt.dstPort);
+        boolean inOrder = FlowID.compare(pkt.srcHi, pkt.srcLo, pkt.srcPort, pkt.dstHi, pkt.dstLo, pkt.dstPort) <= 0;
+        if (this.overload != null) this.overload.count(hash);
+        // Check if this packet belongs to an already-registered flow
+        int bucket = this.find(hash, pkt.srcHi, pkt.srcLo, pkt.srcPort, pkt.dstHi, pkt.dstLo, pkt.dstPort);
+        int slot = this.index[bucket] - 1;
+        if (slot == NONE){
+            // The flow may have been spilled: take it back
+            int record = this.findSpilled(hash, pkt.srcHi, pkt.srcLo, pkt.srcPort, pkt.dstHi, pkt.dstLo, pkt.dstPort);
+            if (record != NONE) slot = this.reload(record);
+        }
+        if (slot != NONE && this.slotState[slot] == WRITTEN){
+            if (pkt.syn == 0 && pkt.tstamp - this.lastSeen(slot) <= this.writtenTime){
+                // A late packet of a closed flow (e.g. the last ACK) does not open a new flow
+                this.metrics.packetsAfterClose.increment();
+                return;
+            }
+            // A new connection between the same endpoints
+            this.removeWritten(slot);
+            bucket = this.find(hash, pkt.srcHi, pkt.srcLo, pkt.srcPort, pkt.dstHi, pkt.dstLo, pkt.dstPort);
+            slot = NONE;
+        }
+        if (slot != NONE && this.idleTimeout > 0 && pkt.tstamp - this.lastSeen(slot) > this.idleTimeout){
+            // Feeds merged out of time order leave idle flows behind the sweep
+            this.evictSlot(slot, this.metrics.flowsIdle);
+            bucket = this.find(hash, pkt.srcHi, pkt.srcLo, pkt.srcPort, pkt.dstHi, pkt.dstLo, pkt.dstPort);
+            slot = NONE;
+        }
+        if(slot != NONE){
+            // There is a flow with this ID
+            if (this.duplicates != null && this.duplicates.isDuplicate(slot, inOrder ? 0 : 1, pkt)){
+                this.metrics.packetsDuplicated.increment();
+                return;
+            }
+            this.touch(slot);
+        } else {
+            // A new flow should be created, unless it is left out by the sampling
+            int sampling = this.overload != null ? this.overload.admit(hash) : 1;
+            if (sampling == 0){
+                this.metrics.packetsSampledOut.increment();
+                return;
+            }
+            this.metrics.flowsOpened.increment();
+            this.metrics.liveFlows.increment();
+            slot = this.insert(bucket, hash, pkt, inOrder);
+            this.store.init(slot, pkt.tstamp);
+            this.store.sample(slot, sampling);
+            if (this.windows != null) this.windows.open(slot, pkt.tstamp);
+            if (this.born != null) this.born[slot] = this.epoch;
+            if (this.duplicates != null){
+                this.duplicates.clear(slot);
+                this.duplicates.isDuplicate(slot, inOrder ? 0 : 1, pkt);
+            }
+        }
+        if (this.touched != null) this.touched[slot] = this.epoch;
+        boolean sameSense = inOrder == (this.slotState[slot] == IN_ORDER);
+        this.view.bind(null, slot);
+        // A lingering flow is already closed: its late packets do not close it again
+        boolean wasClosed = this.view.isClosed();
+        this.view.log(pkt, sameSense);
+        if (this.windows != null){
+            // Emit the windows ending before this packet
+            while (this.windows.roll(slot, pkt.tstamp, this.windowStore)) this.emitWindow(slot);
+            this.windows.add(slot, pkt, sameSense ? 0 : 1);
+            this.scheduleRoll(slot);
+        }
+        boolean closed = !wasClosed && this.view.isClosed();
+        if(this.maxFlows > 0 && this.size() > this.maxFlows){
+            this.evictSlot(this.takeOldest(), this.metrics.flowsEvicted);
+        }
+        // A closed flow does not accept more packets: write it out, unless it lingers
+        if(closed && this.linger > 0){
+            this.startLinger(slot, pkt.tstamp);
+        } else if(closed){
+            this.closeSlot(slot);
+        }
+        this.spillExcess();
+    }
+
+    /**
+     * @return A view of the live flow with the given ID, or null if there is none.
+     * The view is only valid while the flow stays in the table.
+     */
+    public Flow get(FlowID id){
+        long hash = FlowID.hash(id.getSrcHi(), id.getSrcLo(), id.getSrcPort(), id.getDstHi(), id.getDstLo(), id.getDstPort());
+        int bucket = this.find(hash, id.getSrcHi(), id.getSrcLo(), id.getSrcPort(), id.getDstHi(), id.getDstLo(), id.getDstPort());
+        int slot = this.index[bucket] - 1;
+        if (slot != NONE){
+            if (this.slotState[slot] == WRITTEN) return null;
+            Flow flow = new Flow(this.store);
+            flow.bind(this.idOf(slot), slot);
+            return flow;
+        }
+        // A spilled flow is read into a store of its own
+        int record = this.findSpilled(hash, id.getSrcHi(), id.getSrcLo(), id.getSrcPort(), id.getDstHi(), id.getDstLo(), id.getDstPort());
+        if (record == NONE) return null;
+        // Skip the type, the key and the sense of the record
+        ByteBuffer in = this.spill.payload(record);
+        ((Buffer) in).position(in.position() + 2 + KEY_SIZE);
+        FlowStore copy = new FlowStore(1, this.store.features);
+        copy.read(0, in);
+        Flow flow = new Flow(copy);
+        flow.bind(id, 0);
+        return flow;
+    }
+
+    /**
+     * Emits and evicts all the flows that have been idle for longer than the
+     * timeout at the given report time, and the closed flows whose linger is over.
+     * With a reorder buffer, the packets older than its delay are logged first,
+     * and the flows are only expired up to them.
+     * @param now Current report timestamp in microseconds.
+     */
+    public void expire(long now){
+        if (this.reorder != null){
+            this.reorder.advance(now);
+            now = this.reorder.watermark();
+        }
+        this.expireAt(now);
+    }
+
+    private void expireAt(long now){
+        // The windows end with the clock, whether their flows get packets or not
+        while (this.rolls != null && !this.rolls.isEmpty() && this.rolls.time() <= now){
+            int slot = this.rolls.slot();
+            long time = this.rolls.time();
+            this.rolls.poll();
+            // The flow may have left the table, or have been queued again with a later pane
+            if (this.rollAt[slot] == time && this.slotState[slot] != FREE && this.slotState[slot] != WRITTEN) this.rollWindows(slot, now);
+        }
+        if (this.idleTimeout > 0){
+            // The spilled flows were seen before the flows of the table
+            while (this.spill != null && this.spill.size() > 0
+                    && now - this.spill.lastSeen(this.spill.oldest()) > this.idleTimeout){
+                this.evictSlot(this.takeOldest(), this.metrics.flowsIdle);
+            }
+            // The list is in last-seen order: the first active flow ends the sweep
+            while (this.head != NONE && now - this.lastSeen(this.head) > this.idleTimeout){
+                this.evictSlot(this.head, this.metrics.flowsIdle);
+            }
+        }
+        while (this.lingering != null && !this.lingering.isEmpty()){
+            int slot = this.lingering.slot();
+            long time = this.lingering.time();
+            // The flow may have left the table already, and its slot been reused
+            if (this.slotState[slot] != FREE && this.slotState[slot] != WRITTEN && this.closedAt[slot] == time){
+                if (now - time <= this.linger) break;
+                this.closeSlot(slot);
+            }
+            this.lingering.poll();
+        }
+        // The written flows are forgotten after a while, whatever the idle timeout
+        while (!this.written.isEmpty()){
+            int slot = this.written.slot();
+            long time = this.written.time();
+            if (this.slotState[slot] == WRITTEN && this.lastSeen(slot) == time){
+                if (now - time <= this.writtenTime) break;
+                this.removeWritten(slot);
+            }
+            this.written.poll();
+        }
+    }
+
+    /**
+     * Emits and removes the given flow (e.g. because it has been closed).
+     */
+    public void evict(FlowID id){
+        long hash = FlowID.hash(id.getSrcHi(), id.getSrcLo(), id.getSrcPort(), id.getDstHi(), id.getDstLo(), id.getDstPort());
+        int bucket = this.find(hash, id.getSrcHi(), id.getSrcLo(), id.getSrcPort(), id.getDstHi(), id.getDstLo(), id.getDstPort());
+        int slot = this.index[bucket] - 1;
+        if (slot == NONE){
+            int record = this.findSpilled(hash, id.getSrcHi(), id.getSrcLo(), id.getSrcPort(), id.getDstHi(), id.getDstLo(), id.getDstPort());
+            if (record != NONE) slot = this.reload(record);
+        }
+        if (slot != NONE && this.slotState[slot] == WRITTEN) this.removeWritten(slot);
+        else if (slot != NONE) this.evictSlot(slot, this.metrics.flowsEvicted);
+    }
+
+    /**
+     * Emits and removes every live flow, least recently seen first. Used at the end of the input.
+     */
+    public void flush(){
+        if (this.reorder != null) this.reorder.flush();
+        while (this.spill != null && this.spill.size() > 0) this.evictSlot(this.takeOldest(), this.metrics.flowsFlushed);
+        while (this.head != NONE) this.evictSlot(this.head, this.metrics.flowsFlushed);
+        for (; !this.written.isEmpty(); this.written.poll()){
+            int slot = this.written.slot();
+            if (this.slotState[slot] == WRITTEN && this.lastSeen(slot) == this.written.time()) this.removeWritten(slot);
+        }
+    }
+
+    /**
+     * @return The number of live flows, spilled ones included, and not the written ones.
+     */
+    public int size(){
+        int live = this.size - this.writtenFlows;
+        return this.spill != null ? live + this.spill.size() : live;
+    }
+
+    /**
+     * Starts tracking the changes of the table, for {@link #takeChanges(boolean)}.
+     * Every flow already in the table is taken as checkpointed.
+     */
+    void trackChanges(){
+        if (this.touched != null) return;
+        this.touched = new int[this.slotState.length];
+        this.born = new int[this.slotState.length];
+        this.pending = ByteBuffer.allocate(64 * KEY_SIZE);
+        if (this.windows != null){
+            this.rolled = new int[this.slotState.length];
+            this.rolledSlots = new int[64];
+        }
+    }
+
+    /**
+     * Serializes the changes of the table since the last call: the removed and
+     * written flows, the windows rolled by the clock alone, and the flows that
+     * got packets, in last-seen order. A changed flow spilled since then is
+     * serialized once, from the spill.
+     * @param full True to serialize every live flow instead, to rebuild the table from scratch.
+     * @return The records, to be given to {@link #applyChanges(ByteBuffer)}.
+     */
+    byte[] takeChanges(boolean full){
+        int count = 0;
+        int rolls = 0;
+        int first = NONE;
+        int firstSpilled = NONE;
+        if (full){
+            count = this.size();
+            first = this.head;
+        } else {
+            for (int slot = this.tail; slot != NONE && this.touched[slot] == this.epoch; slot = this.prev[slot]){
+                count++;
+                first = slot;
+            }
+            // The flows spilled since the last call are the newest records of the spill
+            if (this.spill != null){
+                for (int record = this.spill.newest(); record != NONE && this.spill.spilled(record) == this.epoch; record = this.spill.prev(record)){
+                    if (this.spill.changed(record)) count++;
+                    firstSpilled = record;
+                }
+            }
+            for (int i = 0; i < this.rolledCount; i++){
+                if (this.rolledOnly(this.rolledSlots[i])) rolls++;
+            }
+        }
+        ((Buffer) this.pending).flip();
+        int removals = full ? this.writtenFlows * CLOSED_SIZE : this.pending.remaining();
+        ByteBuffer out = ByteBuffer.allocate(removals + rolls * (1 + KEY_SIZE + (this.windows != null ? this.windows.bytesPerSlot() : 0))
+            + count * this.recordSize());
+        if (!full) out.put(this.pending);
+        ((Buffer) this.pending).clear();
+        for (int i = 0; rolls > 0 && i < this.rolledCount; i++){
+            int slot = this.rolledSlots[i];
+            if (!this.rolledOnly(slot)) continue;
+            out.put(ROLLED);
+            this.putKey(slot, out);
+            this.windows.write(slot, out);
+        }
+        this.rolledCount = 0;
+        for (int slot = 0; full && slot < this.used; slot++){
+            if (this.slotState[slot] == WRITTEN) this.putClosed(slot, out);
+        }
+        if (full && this.spill != null){
+            // The spilled flows are already serialized, and seen before the others
+            for (int record = this.spill.oldest(); record != NONE; record = this.spill.next(record)) out.put(this.spill.payload(record));
+        }
+        for (int record = firstSpilled; record != NONE; record = this.spill.next(record)){
+            if (this.spill.changed(record)) out.put(this.spill.payload(record));
+        }
+        for (int slot = first; slot != NONE; slot = this.next[slot]) this.writeRecord(slot, out);
+        this.epoch++;
+        return out.array();
+    }
+
+    /**
+     * Applies records written by {@link #takeChanges(boolean)}. The updated flows
+     * are moved to the tail of the last-seen list, and the removed ones are
+     * dropped without going to the sink.
+     */
+    void applyChanges(ByteBuffer in){
+        while (in.hasRemaining()){
+            byte type = in.get();
+            long lowHi = in.getLong(), lowLo = in.getLong();
+            int lowPort = in.getInt();
+            long highHi = in.getLong(), highLo = in.getLong();
+            int highPort = in.getInt();
+            long hash = FlowID.hash(lowHi, lowLo, lowPort, highHi, highLo, highPort);
+            int bucket = this.find(hash, lowHi, lowLo, lowPort, highHi, highLo, highPort);
+            int slot = this.index[bucket] - 1;
+            int record = slot == NONE ? this.findSpilled(hash, lowHi, lowLo, lowPort, highHi, highLo, highPort) : NONE;
+            if (type == REMOVED){
+                this.discard(slot, record);
+                continue;
+            }
+            if (type == ROLLED){
+                this.applyRoll(slot, record, in);
+                continue;
+            }
+            if (type == CLOSED){
+                long time = in.getLong();
+                this.discard(slot, record);
+                bucket = this.find(hash, lowHi, lowLo, lowPort, highHi, highLo, highPort);
+                slot = this.insertKey(bucket, hash, lowHi, lowLo, lowPort, highHi, highLo, highPort, WRITTEN);
+                this.unlink(slot);
+                this.store.init(slot, time);
+                this.writtenFlows++;
+                this.written.add(slot, time);
+                continue;
+            }
+            byte state = in.get();
+            if (record != NONE){
+                slot = this.reload(record);
+                this.slotState[slot] = state;
+            } else if (slot == NONE){
+                slot = this.insertKey(bucket, hash, lowHi, lowLo, lowPort, highHi, highLo, highPort, state);
+                this.metrics.liveFlows.increment();
+            } else if (this.slotState[slot] == WRITTEN){
+                // A new flow between the endpoints of a written one
+                this.slotState[slot] = state;
+                this.writtenFlows--;
+                this.append(slot);
+                this.metrics.liveFlows.increment();
+            } else {
+                this.slotState[slot] = state;
+                this.touch(slot);
+            }
+            this.store.read(slot, in);
+            if (this.windows != null){
+                this.windows.read(slot, in);
+                this.scheduleRoll(slot);
+            }
+            if (this.duplicates != null) this.duplicates.read(slot, in);
+            if (this.linger > 0){
+                this.view.bind(null, slot);
+                if (this.view.isClosed()) this.startLinger(slot, this.lastSeen(slot));
+            }
+            if (this.touched != null){
+                this.touched[slot] = 0;
+                this.born[slot] = 0;
+            }
+            this.spillExcess();
+        }
+    }
+
+    /**
+     * Applies the windows of a flow rolled by the clock alone, to the flow in
+     * its slot or spilled, without moving it in the last-seen list.
+     */
+    private void applyRoll(int slot, int record, ByteBuffer in){
+        int bytes = this.windows.bytesPerSlot();
+        if (slot != NONE && this.slotState[slot] != WRITTEN){
+            this.windows.read(slot, in);
+            this.scheduleRoll(slot);
+        } else if (record != NONE){
+            // Skip the type, the key, the sense and the statistics of the record
+            ByteBuffer payload = this.spill.payload(record);
+            ((Buffer) payload).position(payload.position() + 2 + KEY_SIZE + this.store.bytesPerSlot());
+            ByteBuffer windows = in.slice();
+            ((Buffer) windows).limit(bytes);
+            payload.put(windows);
+            ((Buffer) in).position(in.position() + bytes);
+        } else {
+            ((Buffer) in).position(in.position() + bytes);
+        }
+    }
+
+    /**
+     * @return Bytes of the records of a full checkpoint of the table.
+     */
+    long checkpointSize(){
+        return (long) this.size() * this.recordSize() + (long) this.writtenFlows * CLOSED_SIZE;
+    }
+
+    /**
+     * @return Bytes of the record of an updated flow: type, key, sense, statistics,
+     * windows and recent packets.
+     */
+    private int recordSize(){
+        return 1 + KEY_SIZE + 1 + this.store.bytesPerSlot() + (this.windows != null ? this.windows.bytesPerSlot() : 0)
+            + (this.duplicates != null ? this.duplicates.bytesPerSlot() : 0);
+    }
+
+    /**
+     * Writes the record of the flow of a slot, using {@link #recordSize()} bytes.
+     */
+    private void writeRecord(int slot, ByteBuffer out){
+        out.put(UPDATED);
+        this.putKey(slot, out);
+        out.put(this.slotState[slot]);
+        this.store.write(slot, out);
+        if (this.windows != null) this.windows.write(slot, out);
+        if (this.duplicates != null) this.duplicates.write(slot, out);
+    }
+
+    /**
+     * Writes the record of a written flow: type, key and time of its last packet.
+     */
+    private void putClosed(int slot, ByteBuffer out){
+        out.put(CLOSED);
+        this.putKey(slot, out);
+        out.putLong(this.lastSeen(slot));
+    }
+
+    /**
+     * Writes the canonical key of a slot.
+     */
+    private void putKey(int slot, ByteBuffer out){
+        out.putLong(this.keys[4 * slot]).putLong(this.keys[4 * slot + 1]).putInt(this.ports[2 * slot]);
+        out.putLong(this.keys[4 * slot + 2]).putLong(this.keys[4 * slot + 3]).putInt(this.ports[2 * slot + 1]);
+    }
+
+    /**
+     * @return The bucket holding the flow with the given key, or the empty bucket
+     * where it should be inserted.
+     */
+    private int find(long hash, long srcHi, long srcLo, int srcPort, long dstHi, long dstLo, int dstPort){
+        // Put the endpoints in canonical order
+        if (FlowID.compare(srcHi, srcLo, srcPort, dstHi, dstLo, dstPort) > 0){
+            long hi = srcHi, lo = srcLo;
+            int port = srcPort;
+            srcHi = dstHi; srcLo = dstLo; srcPort = dstPort;
+            dstHi = hi; dstLo = lo; dstPort = port;
+        }
+        int bucket = (int) hash & this.mask;
+        while (true){
+            int slot = this.index[bucket] - 1;
+            if (slot == NONE) return bucket;
+            if (this.hashes[slot] == hash
+                    && this.keys[4 * slot] == srcHi && this.keys[4 * slot + 1] == srcLo
+                    && this.keys[4 * slot + 2] == dstHi && this.keys[4 * slot + 3] == dstLo
+                    && this.ports[2 * slot] == srcPort && this.ports[2 * slot + 1] == dstPort)
+                return bucket;
+            bucket = (bucket + 1) & this.mask;
+        }
+    }
+
+    /**
+     * Stores the key of the packet in a free slot referenced by the given (empty) bucket.
+     * @return The slot.
+     */
+    private int insert(int bucket, long hash, PacketRecord pkt, boolean inOrder){
+        if (inOrder) return this.insertKey(bucket, hash, pkt.srcHi, pkt.srcLo, pkt.srcPort, pkt.dstHi, pkt.dstLo, pkt.dstPort, IN_ORDER);
+        return this.insertKey(bucket, hash, pkt.dstHi, pkt.dstLo, pkt.dstPort, pkt.srcHi, pkt.srcLo, pkt.srcPort, REVERSED);
+    }
+
+    /**
+     * Stores a canonical key (lower endpoint first) in a free slot referenced by the given (empty) bucket.
+     * @param state Sense of the first packet of the flow.
+     * @return The slot.
+     */
+    private int insertKey(int bucket, long hash, long lowHi, long lowLo, int lowPort, long highHi, long highLo, int highPort, byte state){
+        int slot;
+        if (this.free != NONE){
+            slot = this.free;
+            this.free = this.next[slot];
+        } else {
+            if (this.used == this.slotState.length){
+                this.allocate(2 * this.slotState.length);
+                // The index has been rebuilt: find the bucket again
+                bucket = this.find(hash, lowHi, lowLo, lowPort, highHi, highLo, highPort);
+            }
+            slot = this.used++;
+        }
+        this.keys[4 * slot] = lowHi;
+        this.keys[4 * slot + 1] = lowLo;
+        this.keys[4 * slot + 2] = highHi;
+        this.keys[4 * slot + 3] = highLo;
+        this.ports[2 * slot] = lowPort;
+        this.ports[2 * slot + 1] = highPort;
+        this.hashes[slot] = hash;
+        this.slotState[slot] = state;
+        this.index[bucket] = slot + 1;
+        this.size++;
+        this.append(slot);
+        return slot;
+    }
+
+    /**
+     * Writes out a closed flow. It leaves the live flows but keeps its slot for
+     * a while (see {@link #WRITTEN_TIME}), to drop its late packets.
+     */
+    private void closeSlot(int slot){
+        this.metrics.flowsClosed.increment();
+        this.emit(slot);
+        this.unlink(slot);
+        this.slotState[slot] = WRITTEN;
+        this.writtenFlows++;
+        this.written.add(slot, this.lastSeen(slot));
+        this.metrics.liveFlows.decrement();
+        if (this.touched != null){
+            this.reservePending(CLOSED_SIZE);
+            this.putClosed(slot, this.pending);
+        }
+    }
+
+    /**
+     * Forgets a written flow: its endpoints may open a new flow.
+     */
+    private void removeWritten(int slot){
+        this.removeIndex(slot);
+        if (this.touched != null){
+            this.reservePending(1 + KEY_SIZE);
+            this.pending.put(REMOVED);
+            this.putKey(slot, this.pending);
+        }
+        this.writtenFlows--;
+        this.release(slot);
+    }
+
+    /**
+     * Removes a flow, live or written, without handing it to the sink (it was
+     * removed from the table that took the checkpoint).
+     * @param slot Slot of the flow, or NONE.
+     * @param record Spilled record of the flow, or NONE.
+     */
+    private void discard(int slot, int record){
+        if (slot != NONE){
+            this.removeIndex(slot);
+            if (this.slotState[slot] == WRITTEN){
+                this.writtenFlows--;
+            } else {
+                this.unlink(slot);
+                this.metrics.liveFlows.decrement();
+            }
+            this.release(slot);
+        } else if (record != NONE){
+            this.spill.remove(record);
+            this.metrics.spilledFlows.decrement();
+            this.metrics.liveFlows.decrement();
+        }
+    }
+
+    /**
+     * Removes the live flow of the slot from the table and hands it to the sink.
+     * @param reason Counter of the flows written for the same reason.
+     */
+    private void evictSlot(int slot, LongAdder reason){
+        this.removeIndex(slot);
+        this.unlink(slot);
+        reason.increment();
+        this.emit(slot);
+        // A flow saved by a checkpoint must be removed from it
+        if (this.born != null && this.born[slot] < this.epoch){
+            this.reservePending(1 + KEY_SIZE);
+            this.pending.put(REMOVED);
+            this.putKey(slot, this.pending);
+        }
+        this.release(slot);
+        this.metrics.liveFlows.decrement();
+    }
+
+    /**
+     * Hands the flow of the slot, or its last window, to the sink.
+     */
+    private void emit(int slot){
+        if (this.windows == null){
+            this.view.bind(this.idOf(slot), slot);
+            this.sink.accept(this.view);
+        } else if (this.windows.last(slot, this.windowStore)){
+            this.emitWindow(slot);
+        }
+    }
+
+    /**
+     * Puts a slot removed from the index and the last-seen list in the free list.
+     */
+    private void release(int slot){
+        this.slotState[slot] = FREE;
+        if (this.closedAt != null) this.closedAt[slot] = Long.MIN_VALUE;
+        if (this.rollAt != null) this.rollAt[slot] = Long.MIN_VALUE;
+        if (this.rolled != null) this.rolled[slot] = 0;
+        this.next[slot] = this.free;
+        this.free = slot;
+        this.size--;
+    }
+
+    /**
+     * Makes room for the given number of bytes in the pending checkpoint records.
+     */
+    private void reservePending(int bytes){
+        if (this.pending.remaining() >= bytes) return;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * this.pending.capacity(), this.pending.position() + bytes));
+        ((Buffer) this.pending).flip();
+        this.pending = bigger.put(this.pending);
+    }
+
+    /**
+     * Spills the least recently seen flows while there are too many on the heap.
+     */
+    private void spillExcess(){
+        if (this.heapFlows == 0) return;
+        while (this.size - this.writtenFlows > this.heapFlows) this.spillSlot(this.head);
+    }
+
+    /**
+     * Moves the flow of a slot off-heap, and frees the slot.
+     */
+    private void spillSlot(int slot){
+        if (this.spill == null) this.spill = new FlowSpill(this.recordSize(), this.spillBudget, this.spillDirectory);
+        int born = this.born != null ? this.born[slot] : 0;
+        // Its change goes to the next checkpoint from the spill, however many times it is spilled until then
+        boolean changed = this.touched != null && (this.touched[slot] == this.epoch || this.rolledOnly(slot));
+        this.writeRecord(slot, this.spill.add(this.hashes[slot], this.lastSeen(slot), born, this.epoch, changed));
+        this.removeIndex(slot);
+        this.unlink(slot);
+        this.release(slot);
+        this.metrics.spilledFlows.increment();
+    }
+
+    /**
+     * Takes a spilled flow back into a slot, at the tail of the last-seen list
+     * (taken as changed, for the checkpoints).
+     * @return The slot.
+     */
+    private int reload(int record){
+        ByteBuffer in = this.spill.payload(record);
+        in.get();
+        long lowHi = in.getLong(), lowLo = in.getLong();
+        int lowPort = in.getInt();
+        long highHi = in.getLong(), highLo = in.getLong();
+        int highPort = in.getInt();
+        long hash = this.spill.hash(record);
+        int bucket = this.find(hash, lowHi, lowLo, lowPort, highHi, highLo, highPort);
+        int slot = this.insertKey(bucket, hash, lowHi, lowLo, lowPort, highHi, highLo, highPort, in.get());
+        this.store.read(slot, in);
+        if (this.windows != null){
+            this.windows.read(slot, in);
+            this.scheduleRoll(slot);
+        }
+        if (this.duplicates != null) this.duplicates.read(slot, in);
+        if (this.linger > 0){
+            this.view.bind(null, slot);
+            if (this.view.isClosed()) this.startLinger(slot, this.lastSeen(slot));
+        }
+        if (this.touched != null){
+            // The tail of the last-seen list must be the changed flows
+            this.touched[slot] = this.epoch;
+            this.born[slot] = this.spill.born(record);
+        }
+        this.spill.remove(record);
+        this.metrics.spilledFlows.decrement();
+        return slot;
+    }
+
+    /**
+     * Takes back the least recently seen spilled flow, if any.
+     * @return The slot of the least recently seen flow.
+     */
+    private int takeOldest(){
+        if (this.spill != null && this.spill.size() > 0) return this.reload(this.spill.oldest());
+        return this.head;
+    }
+
+    /**
+     * @return The spilled record of the flow with the given key, or NONE.
+     */
+    private int findSpilled(long hash, long srcHi, long srcLo, int srcPort, long dstHi, long dstLo, int dstPort){
+        if (this.spill == null) return NONE;
+        if (FlowID.compare(srcHi, srcLo, srcPort, dstHi, dstLo, dstPort) > 0)
+            return this.spill.find(hash, dstHi, dstLo, dstPort, srcHi, srcLo, srcPort);
+        return this.spill.find(hash, srcHi, srcLo, srcPort, dstHi, dstLo, dstPort);
+    }
+
+    /**
+     * Keeps a flow closed at the given report time in the table until its linger is over.
+     */
+    private void startLinger(int slot, long time){
+        this.closedAt[slot] = time;
+        this.lingering.add(slot, time);
+    }
+
+    /**
+     * Queues a flow whose windows hold packets by the end of its newest pane,
+     * unless it is queued with it already.
+     */
+    private void scheduleRoll(int slot){
+        if (!this.windows.hasPackets(slot)) return;
+        long end = this.windows.paneEnd(slot);
+        if (this.rollAt[slot] == end) return;
+        this.rollAt[slot] = end;
+        this.rolls.add(slot, end);
+    }
+
+    /**
+     * Emits the windows of a flow ended at the given report time, as its next
+     * packet would, and queues it for the next ones.
+     */
+    private void rollWindows(int slot, long now){
+        while (this.windows.roll(slot, now, this.windowStore)) this.emitWindow(slot);
+        this.scheduleRoll(slot);
+        // The flow keeps its place in the last-seen list: its windows go to the next checkpoint apart
+        if (this.rolled != null && this.touched[slot] != this.epoch && this.rolled[slot] != this.epoch){
+            this.rolled[slot] = this.epoch;
+            if (this.rolledCount == this.rolledSlots.length) this.rolledSlots = Arrays.copyOf(this.rolledSlots, 2 * this.rolledCount);
+            this.rolledSlots[this.rolledCount++] = slot;
+        }
+    }
+
+    /**
+     * @return True if the windows of the flow of a slot were rolled by the
+     * clock since the last checkpoint, and it got no packet since.
+     */
+    private boolean rolledOnly(int slot){
+        return this.rolled != null && this.rolled[slot] == this.epoch && this.touched[slot] != this.epoch
+            && this.slotState[slot] != FREE && this.slotState[slot] != WRITTEN;
+    }
+
+    /**
+     * Hands the window of the flow merged in the window store to the sink.
+     */
+    private void emitWindow(int slot){
+        if (this.store.sampling != null) this.windowStore.sample(0, this.store.sampling[slot]);
+        this.windowView.bind(this.idOf(slot), 0);
+        this.sink.accept(this.windowView);
+    }
+
+    /**
+     * @return The ID of the flow of the slot, in the sense of its first packet.
+     */
+    private FlowID idOf(int slot){
+        int low = 4 * slot;
+        if (this.slotState[slot] == IN_ORDER)
+            return new FlowID(this.keys[low], this.keys[low + 1], this.ports[2 * slot],
+                    this.keys[low + 2], this.keys[low + 3], this.ports[2 * slot + 1]);
+        return new FlowID(this.keys[low + 2], this.keys[low + 3], this.ports[2 * slot + 1],
+                this.keys[low], this.keys[low + 1], this.ports[2 * slot]);
+    }
+
+    private long lastSeen(int slot){
+        return Math.max(this.store.starttsamp[slot], this.store.lastpkgtsamp[slot]);
+    }
+
+    /**
+     * Removes the slot from the index, shifting back the following entries of
+     * its probe sequence so no tombstone is needed.
+     */
+    private void removeIndex(int slot){
+        int bucket = (int) this.hashes[slot] & this.mask;
+        while (this.index[bucket] != slot + 1) bucket = (bucket + 1) & this.mask;
+        int hole = bucket;
+        int i = hole;
+        while (true){
+            i = (i + 1) & this.mask;
+            int other = this.index[i] - 1;
+            if (other == NONE) break;
+            int ideal = (int) this.hashes[other] & this.mask;
+            // The entry can fill the hole if its ideal bucket is not between the hole and itself
+            boolean stays = hole <= i ? (hole < ideal && ideal <= i) : (hole < ideal || ideal <= i);
+            if (!stays){
+                this.index[hole] = this.index[i];
+                hole = i;
+            }
+        }
+        this.index[hole] = 0;
+    }
+
+    /**
+     * Moves the slot to the tail of the last-seen list.
+     */
+    private void touch(int slot){
+        if (slot == this.tail) return;
+        this.unlink(slot);
+        this.append(slot);
+    }
+
+    private void append(int slot){
+        this.prev[slot] = this.tail;
+        this.next[slot] = NONE;
+        if (this.tail != NONE) this.next[this.tail] = slot;
+        else this.head = slot;
+        this.tail = slot;
+    }
+
+    private void unlink(int slot){
+        int p = this.prev[slot];
+        int n = this.next[slot];
+        if (p != NONE) this.next[p] = n;
+        else this.head = n;
+        if (n != NONE) this.prev[n] = p;
+        else this.tail = p;
+    }
+
+    /**
+     * Grows the slots to the given number and rebuilds the index
+     * (load factor kept under 0.5).
+     */
+    private void allocate(int slots){
+        if (this.slotState == null){
+            this.keys = new long[4 * slots];
+            this.ports = new int[2 * slots];
+            this.hashes = new long[slots];
+            this.slotState = new byte[slots];
+            this.prev = new int[slots];
+            this.next = new int[slots];
+        } else {
+            this.keys = Arrays.copyOf(this.keys, 4 * slots);
+            this.ports = Arrays.copyOf(this.ports, 2 * slots);
+            this.hashes = Arrays.copyOf(this.hashes, slots);
+            this.slotState = Arrays.copyOf(this.slotState, slots);
+            this.prev = Arrays.copyOf(this.prev, slots);
+            this.next = Arrays.copyOf(this.next, slots);
+        }
+        this.store.grow(slots);
+        if (this.windows != null){
+            this.windows.grow(slots);
+            int old = this.rollAt == null ? 0 : this.rollAt.length;
+            this.rollAt = this.rollAt == null ? new long[slots] : Arrays.copyOf(this.rollAt, slots);
+            Arrays.fill(this.rollAt, old, slots, Long.MIN_VALUE);
+        }
+        if (this.duplicates != null) this.duplicates.grow(slots);
+        if (this.closedAt != null){
+            int old = this.closedAt.length;
+            this.closedAt = Arrays.copyOf(this.closedAt, slots);
+            Arrays.fill(this.closedAt, old, slots, Long.MIN_VALUE);
+        }
+        if (this.touched != null){
+            this.touched = Arrays.copyOf(this.touched, slots);
+            this.born = Arrays.copyOf(this.born, slots);
+            if (this.rolled != null) this.rolled = Arrays.copyOf(this.rolled, slots);
+        }
+        this.index = new int[2 * slots];
+        this.mask = this.index.length - 1;
+        for (int slot = 0; slot < this.used; slot++){
+            if (this.slotState[slot] == FREE) continue;
+            int bucket = (int) this.hashes[slot] & this.mask;
+            while (this.index[bucket] != 0) bucket = (bucket + 1) & this.mask;
+            this.index[bucket] = slot + 1;
+        }
+    }
+
+    /**
+     * Slots with a time each, in the order they were added (a ring, grown as
+     * needed). A slot may have been freed or reused since: the reader checks it.
+     */
+    private static final class TimedSlots{
+        private int[] slots = new int[64];
+        private long[] times = new long[64];
+        private int head = 0;
+        private int count = 0;
+
+        void add(int slot, long time){
+            if (this.count == this.slots.length){
+                // Unroll the ring into bigger arrays
+                int[] slots = new int[2 * this.count];
+                long[] times = new long[2 * this.count];
+                for (int i = 0; i < this.count; i++){
+                    int j = (this.head + i) & (this.slots.length - 1);
+                    slots[i] = this.slots[j];
+                    times[i] = this.times[j];
+                }
+                this.slots = slots;
+                this.times = times;
+                this.head = 0;
+            }
+            int tail = (this.head + this.count++) & (this.slots.length - 1);
+            this.slots[tail] = slot;
+            this.times[tail] = time;
+        }
+
+        boolean isEmpty(){
+            return this.count == 0;
+        }
+
+        /**
+         * @return The oldest slot.
+         */
+        int slot(){
+            return this.slots[this.head];
+        }
+
+        /**
+         * @return The time of the oldest slot.
+         */
+        long time(){
+            return this.times[this.head];
+        }
+
+        void poll(){
+            this.head = (this.head + 1) & (this.slots.length - 1);
+            this.count--;
+        }
+    }
+}
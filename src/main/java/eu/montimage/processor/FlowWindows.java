@@ -0,0 +1,192 @@
+package eu.montimage.processor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Time windows of the flows of a {@link FlowTable}.
+ * A window lasts W microseconds of report time and a new one starts every
+ * S microseconds (tumbling windows when S = W, sliding windows when S &lt; W;
+ * W must be a multiple of S). Windows are aligned on the report clock, so the
+ * windows of all the flows start at the same time.
+ * <p>
+ * The packets are not kept: every flow has a ring of W / S panes, one per slide,
+ * each one holding the accumulated statistics of its packets. When a packet
+ * falls after the newest pane, the window ending there is merged from the
+ * panes (see {@link FlowStore#merge(int, FlowStore, int)}), and the oldest pane
+ * is cleared to become the newest one. A window costs the merge of W / S panes,
+ * whatever the number of packets.
+ * <p>
+ * The panes are the slots of a {@link FlowStore}: the pane of a slot is stored
+ * in the pane slot slot * panes + pane.
+ */
+public class FlowWindows{
+
+    // Length of the windows and of the slide, in microseconds
+    private final long window;
+    private final long slide;
+    // Panes per window
+    private final int panes;
+
+    private int capacity = 0;
+    // Per slot: start of the newest pane, position of the newest pane in the ring,
+    // and number of packets in the window
+    private long[] paneStart;
+    private int[] newest;
+    private long[] packets;
+    // Statistics of the panes
+    private final FlowStore store;
+
+    /**
+     * @param window Length of the windows in microseconds.
+     * @param slide Time between the start of two windows in microseconds. It
+     * must divide the window length.
+     */
+    public FlowWindows(long window, long slide){
+        this(window, slide, Features.BASE);
+    }
+
+    /**
+     * @param features Features of the flows (see {@link FlowStore}).
+     */
+    public FlowWindows(long window, long slide, Features features){
+        if (slide <= 0 || window < slide || window % slide != 0)
+            throw new IllegalArgumentException("The window length must be a multiple of the slide");
+        if (window / slide > 1024) throw new IllegalArgumentException("Too many slides per window");
+        this.window = window;
+        this.slide = slide;
+        this.panes = (int) (window / slide);
+        this.store = new FlowStore(0, features);
+    }
+
+    /**
+     * Starts the windows of a new flow in the given slot.
+     */
+    void open(int slot, long tstamp){
+        this.paneStart[slot] = tstamp - Math.floorMod(tstamp, this.slide);
+        this.newest[slot] = 0;
+        this.packets[slot] = 0;
+        for (int pane = 0; pane < this.panes; pane++) this.store.init(slot * this.panes + pane, 0);
+    }
+
+    /**
+     * Moves the windows of a flow up to the given report time. If a window
+     * holding packets ends before it, the window is merged into the slot 0 of
+     * the given store and true is returned: the caller must then handle the
+     * window and call this method again, until it returns false.
+     */
+    boolean roll(int slot, long tstamp, FlowStore out){
+        while (tstamp >= this.paneStart[slot] + this.slide){
+            boolean full = this.packets[slot] > 0;
+            if (full) this.merge(slot, out);
+            // The oldest pane becomes the newest one
+            int oldest = (this.newest[slot] + 1) % this.panes;
+            int p = slot * this.panes + oldest;
+            this.packets[slot] -= this.store.pkg[2 * p] + this.store.pkg[2 * p + 1];
+            this.store.init(p, 0);
+            this.newest[slot] = oldest;
+            this.paneStart[slot] += this.slide;
+            // Skip the windows without any packet
+            if (this.packets[slot] == 0)
+                this.paneStart[slot] = Math.max(this.paneStart[slot], tstamp - Math.floorMod(tstamp, this.slide));
+            if (full) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Accumulates a packet in the newest pane of a flow. The windows must have
+     * been moved up to the packet with {@link #roll(int, long, FlowStore)}.
+     * @param sense 0 if the packet goes in the sense of the first packet of the flow, 1 otherwise.
+     */
+    void add(int slot, PacketRecord pkt, int sense){
+        final FlowStore s = this.store;
+        final int p = slot * this.panes + this.newest[slot];
+        if (s.pkg[2 * p] + s.pkg[2 * p + 1] == 0){
+            s.starttsamp[p] = pkt.tstamp;
+            s.firstSeq[p] = pkt.seq;
+        }
+        s.lastpkgtsamp[p] = pkt.tstamp;
+        s.add(p, sense, pkt);
+        this.packets[slot]++;
+    }
+
+    /**
+     * @return The report time at which the newest pane of a flow ends: from
+     * then on, {@link #roll(int, long, FlowStore)} has windows to move.
+     */
+    long paneEnd(int slot){
+        return this.paneStart[slot] + this.slide;
+    }
+
+    /**
+     * @return True if the windows of a flow hold packets.
+     */
+    boolean hasPackets(int slot){
+        return this.packets[slot] > 0;
+    }
+
+    /**
+     * Merges the current window of a flow (the one holding its last packets)
+     * into the slot 0 of the given store.
+     * @return False if the window holds no packet.
+     */
+    boolean last(int slot, FlowStore out){
+        if (this.packets[slot] == 0) return false;
+        this.merge(slot, out);
+        return true;
+    }
+
+    /**
+     * Grows the columns to the given number of slots. The content of the
+     * existing slots is kept.
+     */
+    void grow(int capacity){
+        if (capacity <= this.capacity) return;
+        this.paneStart = this.paneStart == null ? new long[capacity] : Arrays.copyOf(this.paneStart, capacity);
+        this.newest = this.newest == null ? new int[capacity] : Arrays.copyOf(this.newest, capacity);
+        this.packets = this.packets == null ? new long[capacity] : Arrays.copyOf(this.packets, capacity);
+        this.store.grow(capacity * this.panes);
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return Bytes used by the windows of one slot.
+     */
+    int bytesPerSlot(){
+        return 2 * Long.BYTES + Integer.BYTES + this.panes * this.store.bytesPerSlot();
+    }
+
+    /**
+     * Writes the windows of a slot into the buffer, using {@link #bytesPerSlot()} bytes.
+     */
+    void write(int slot, ByteBuffer buf){
+        buf.putLong(this.paneStart[slot]);
+        buf.putInt(this.newest[slot]);
+        buf.putLong(this.packets[slot]);
+        for (int pane = 0; pane < this.panes; pane++) this.store.write(slot * this.panes + pane, buf);
+    }
+
+    /**
+     * Reads the windows of a slot written by {@link #write(int, ByteBuffer)}.
+     */
+    void read(int slot, ByteBuffer buf){
+        this.paneStart[slot] = buf.getLong();
+        this.newest[slot] = buf.getInt();
+        this.packets[slot] = buf.getLong();
+        for (int pane = 0; pane < this.panes; pane++) this.store.read(slot * this.panes + pane, buf);
+    }
+
+    /**
+     * Merges the panes of the current window of a flow into the slot 0 of the
+     * store, from the oldest to the newest. The rates are computed over the whole window.
+     */
+    private void merge(int slot, FlowStore out){
+        out.init(0, 0);
+        for (int k = 1; k <= this.panes; k++){
+            int p = slot * this.panes + (this.newest[slot] + k) % this.panes;
+            if (this.store.pkg[2 * p] + this.store.pkg[2 * p + 1] > 0) out.merge(0, this.store, p);
+        }
+        out.period[0] = this.window;
+    }
+}
@@ -0,0 +1,466 @@
+package eu.montimage.processor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Writes the flows to the output file on a dedicated thread.
+ * The flows handed to the writer are copied (ID and raw statistics) into
+ * batches, which go to the writer thread through a bounded queue: when the
+ * disk falls behind, the threads producing flows wait. The writer thread
+ * computes the columns and formats them straight into a reusable byte buffer.
+ * <p>
+ * Two formats are available. The text format is the usual CSV output (one
+ * row per flow, the same as {@link Flow#getConversation()}). The binary format
+ * starts with a header holding the schema (the ARFF attributes) followed by
+ * fixed-width little-endian rows: each IP as two longs (see {@link IPAddress})
+ * and every other column as a double. The header is padded to 8 bytes, so the
+ * rows can be read from a mapped file.
+ * <p>
+ * The writer can be used by several threads. Marks (see {@link #mark(Mark)})
+ * tell when everything queued before them is on disk.
+ */
+public class FlowWriter implements Consumer<Flow>, Closeable{
+
+    // Magic number and version of the binary format
+    static final byte[] MAGIC = "MMTFLOWS".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+
+    // Size of the ID in the copy of a flow, followed by the statistics
+    private static final int ID_SIZE = 4 * Long.BYTES + 2 * Integer.BYTES;
+    private static final int FLOWS_PER_BATCH = 512;
+    private static final int QUEUED_BATCHES = 8;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+    // Room always left in the output buffer for a row
+    private static final int MAX_ROW_SIZE = 4096;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final ByteBuffer MARK = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+    private final BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(QUEUED_BATCHES + 2);
+    private final Queue<Mark> marks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final ByteBuffer out = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+    private final RowEncoder encoder;
+    // Columns of the rows, and size of the copy of a flow
+    private final Features features;
+    private final int snapshotSize;
+    private ByteBuffer batch;
+    private volatile IOException failure;
+
+    /**
+     * Creates the output file and writes its header.
+     * @param binary True for the binary format, false for the text one.
+     * @param headers Lines written at the beginning of a text file (i.e. the
+     * ARFF headers). Null for no header. In binary format, they are stored in
+     * the header as the schema.
+     */
+    public FlowWriter(Path path, boolean binary, String[] headers) throws IOException{
+        this(path, binary, Features.BASE, headers, -1);
+    }
+
+    /**
+     * Opens the output file of an interrupted run, to write its remaining flows.
+     * @param features Features of the flows (see {@link FlowStore}): the columns of the rows.
+     * @param resumeAt Size of the file when the run was checkpointed (see
+     * {@link #mark(Mark)}): what follows is dropped and the headers are not
+     * written again. -1 creates a new file.
+     */
+    public FlowWriter(Path path, boolean binary, Features features, String[] headers, long resumeAt) throws IOException{
+        this.features = features;
+        this.snapshotSize = ID_SIZE + new FlowStore(0, features).bytesPerSlot();
+        if (resumeAt >= 0){
+            this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            if (this.channel.size() < resumeAt) throw new IOException("The output file is shorter than at the checkpoint: " + path);
+            this.channel.truncate(resumeAt);
+            this.channel.position(resumeAt);
+        } else {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        if (binary){
+            this.out.order(ByteOrder.LITTLE_ENDIAN);
+            this.encoder = new BinaryEncoder(this.out);
+            if (resumeAt < 0) this.writeSchema(headers);
+        } else {
+            this.encoder = new TextEncoder(this.out);
+            if (headers != null && resumeAt < 0){
+                for (String header : headers) TextEncoder.append(this.out, header + System.lineSeparator());
+            }
+        }
+        for (int i = 0; i < QUEUED_BATCHES + 2; i++) this.pool.add(ByteBuffer.allocate(FLOWS_PER_BATCH * this.snapshotSize));
+        this.batch = this.pool.poll();
+        this.thread = new Thread(this::run, "flow-writer");
+        this.thread.start();
+        Metrics.get().setWriterQueue(this::getQueued);
+    }
+
+    /**
+     * Queues a flow to be written. Only a copy of the flow is kept, so the
+     * flow can be evicted or reused as soon as this method returns.
+     * @throws UncheckedIOException If the writer thread failed.
+     */
+    @Override
+    public synchronized void accept(Flow flow){
+        this.reserve();
+        snapshot(flow, this.batch);
+    }
+
+    /**
+     * Queues flows copied with {@link #snapshot(Flow)}. Several copies may be
+     * given one after the other in the same array.
+     * @throws UncheckedIOException If the writer thread failed.
+     */
+    public synchronized void write(byte[] snapshots){
+        for (int i = 0; i < snapshots.length; i += this.snapshotSize){
+            this.reserve();
+            this.batch.put(snapshots, i, this.snapshotSize);
+        }
+    }
+
+    /**
+     * Copies a flow, to be written later with {@link #write(byte[])}.
+     */
+    public static byte[] snapshot(Flow flow){
+        ByteBuffer buf = ByteBuffer.allocate(ID_SIZE + flow.statisticsSize());
+        snapshot(flow, buf);
+        return buf.array();
+    }
+
+    /**
+     * Queues a mark after the flows queued so far. Once they are all written
+     * and synced to the disk, the writer thread calls the mark with the size
+     * of the file.
+     * @throws UncheckedIOException If the writer thread failed.
+     */
+    public synchronized void mark(Mark mark){
+        if (this.failure != null) throw new UncheckedIOException(this.failure);
+        try{
+            if (this.batch.position() > 0){
+                this.queue.put(this.batch);
+                this.batch = this.pool.take();
+            }
+            this.marks.add(mark);
+            this.queue.put(MARK);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing the flows", e);
+        }
+    }
+
+    /**
+     * @return The number of batches of flows waiting for the writer thread.
+     */
+    public int getQueued(){
+        return this.queue.size();
+    }
+
+    /**
+     * Writes the flows still queued and closes the file.
+     */
+    @Override
+    public void close() throws IOException{
+        try{
+            synchronized (this){
+                if (this.batch.position() > 0) this.queue.put(this.batch);
+                this.queue.put(END);
+            }
+            this.thread.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the flows", e);
+        } finally {
+            this.channel.close();
+        }
+        if (this.failure != null) throw this.failure;
+    }
+
+    /**
+     * Makes room for a flow in the current batch, handing it to the writer thread if it is full.
+     */
+    private void reserve(){
+        if (this.failure != null) throw new UncheckedIOException(this.failure);
+        if (this.batch.remaining() >= this.snapshotSize) return;
+        try{
+            this.queue.put(this.batch);
+            this.batch = this.pool.take();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing the flows", e);
+        }
+    }
+
+    private static void snapshot(Flow flow, ByteBuffer buf){
+        FlowID id = flow.getFlowID();
+        buf.putLong(id.getSrcHi()).putLong(id.getSrcLo()).putInt(id.getSrcPort());
+        buf.putLong(id.getDstHi()).putLong(id.getDstLo()).putInt(id.getDstPort());
+        flow.write(buf);
+    }
+
+    private void run(){
+        FlowStore store = new FlowStore(1, this.features);
+        Flow view = new Flow(store);
+        Metrics metrics = Metrics.get();
+        try{
+            ByteBuffer batch;
+            while ((batch = this.queue.take()) != END){
+                if (batch == MARK){
+                    this.flush();
+                    this.channel.force(false);
+                    this.marks.poll().written(this.channel.position());
+                    continue;
+                }
+                long start = System.nanoTime();
+                ((Buffer) batch).flip();
+                int rows = batch.remaining() / this.snapshotSize;
+                while (batch.hasRemaining()){
+                    FlowID id = new FlowID(batch.getLong(), batch.getLong(), batch.getInt(), batch.getLong(), batch.getLong(), batch.getInt());
+                    store.read(0, batch);
+                    view.bind(id, 0);
+                    view.encode(this.encoder);
+                    if (this.out.remaining() < MAX_ROW_SIZE) this.flush();
+                }
+                ((Buffer) batch).clear();
+                this.pool.put(batch);
+                metrics.rowsWritten.add(rows);
+                metrics.writeLatency.recordSince(start);
+            }
+            this.flush();
+        } catch (IOException e){
+            this.fail(e);
+        } catch (InterruptedException e){
+            this.fail(new IOException("Writer thread interrupted", e));
+        } catch (RuntimeException e){
+            this.fail(new IOException("Writer thread failed", e));
+        }
+    }
+
+    /**
+     * Records the failure of the writer thread, then keeps draining the queue
+     * so the producers never block: they get the failure on their next flow.
+     */
+    private void fail(IOException failure){
+        this.failure = failure;
+        this.drain();
+    }
+
+    private void drain(){
+        try{
+            ByteBuffer batch;
+            while ((batch = this.queue.take()) != END){
+                if (batch == MARK){
+                    // Never written
+                    this.marks.poll();
+                    continue;
+                }
+                ((Buffer) batch).clear();
+                this.pool.put(batch);
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush() throws IOException{
+        ((Buffer) this.out).flip();
+        while (this.out.hasRemaining()) this.channel.write(this.out);
+        ((Buffer) this.out).clear();
+    }
+
+    /**
+     * Writes the header of the binary format: magic number, version, number of
+     * columns, size of a row, and the schema as length-prefixed UTF-8 text.
+     */
+    private void writeSchema(String[] headers) throws IOException{
+        StringBuilder schema = new StringBuilder();
+        if (headers != null){
+            for (String header : headers) schema.append(header).append('\n');
+        }
+        byte[] text = schema.toString().getBytes(StandardCharsets.UTF_8);
+        this.out.put(MAGIC);
+        this.out.putInt(VERSION);
+        this.out.putInt(this.features.size());
+        this.out.putInt(this.features.binaryRowSize());
+        this.out.putInt(text.length);
+        if (this.out.remaining() < text.length + Long.BYTES){
+            this.flush();
+            ByteBuffer buf = ByteBuffer.wrap(text);
+            while (buf.hasRemaining()) this.channel.write(buf);
+        } else {
+            this.out.put(text);
+        }
+        long written = this.channel.position() + this.out.position();
+        while (written++ % Long.BYTES != 0) this.out.put((byte) 0);
+    }
+
+    /**
+     * Called by the writer thread once the flows queued before a mark are on disk.
+     */
+    public interface Mark{
+
+        /**
+         * @param size Size of the output file.
+         */
+        void written(long size) throws IOException;
+    }
+
+    /**
+     * Formats the rows as CSV text. Small ratios are formatted once and cached.
+     */
+    private static final class TextEncoder implements RowEncoder{
+
+        // Ratios cached for totals up to this value
+        private static final int RATIO_CACHE = 64;
+        private static final byte[] EOL = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+        private final ByteBuffer out;
+        private final byte[][][] ratios = new byte[RATIO_CACHE + 1][][];
+        private final byte[] digits = new byte[20];
+        private boolean first = true;
+
+        TextEncoder(ByteBuffer out){
+            this.out = out;
+        }
+
+        @Override
+        public void ip(long hi, long lo){
+            this.separate();
+            if (hi == 0 && (lo >>> 32) == 0xFFFFL){
+                // IPv4: dotted notation
+                for (int shift = 24; shift >= 0; shift -= 8){
+                    this.putLong((lo >>> shift) & 0xFF);
+                    if (shift > 0) this.out.put((byte) '.');
+                }
+            } else {
+                append(this.out, IPAddress.format(hi, lo));
+            }
+        }
+
+        @Override
+        public void integer(long value){
+            this.separate();
+            this.putLong(value);
+        }
+
+        @Override
+        public void rate(long count, double seconds){
+            this.separate();
+            ShortestDecimal.put(this.out, (float) count / (float) seconds);
+        }
+
+        @Override
+        public void ratio(long part, long total){
+            this.separate();
+            if (total > 0 && total <= RATIO_CACHE && part >= 0 && part <= total){
+                byte[][] row = this.ratios[(int) total];
+                if (row == null) row = this.ratios[(int) total] = new byte[(int) total + 1][];
+                byte[] text = row[(int) part];
+                if (text == null){
+                    text = row[(int) part] = ShortestDecimal.toString(((double) part) / ((double) total)).getBytes(StandardCharsets.US_ASCII);
+                }
+                this.out.put(text);
+            } else {
+                ShortestDecimal.put(this.out, ((double) part) / ((double) total));
+            }
+        }
+
+        @Override
+        public void real(double value){
+            this.separate();
+            ShortestDecimal.put(this.out, value);
+        }
+
+        @Override
+        public void end(){
+            this.out.put(EOL);
+            this.first = true;
+        }
+
+        private void separate(){
+            if (!this.first) this.out.put((byte) ',');
+            this.first = false;
+        }
+
+        /**
+         * Writes the decimal digits of a number, as Long.toString does.
+         */
+        private void putLong(long value){
+            if (value == Long.MIN_VALUE){
+                append(this.out, Long.toString(value));
+                return;
+            }
+            if (value < 0){
+                this.out.put((byte) '-');
+                value = -value;
+            }
+            int pos = this.digits.length;
+            do {
+                this.digits[--pos] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            this.out.put(this.digits, pos, this.digits.length - pos);
+        }
+
+        /**
+         * Writes ASCII text.
+         */
+        static void append(ByteBuffer out, String text){
+            for (int i = 0; i < text.length(); i++) out.put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Formats the rows as fixed-width little-endian values.
+     */
+    private static final class BinaryEncoder implements RowEncoder{
+
+        private final ByteBuffer out;
+
+        BinaryEncoder(ByteBuffer out){
+            this.out = out;
+        }
+
+        @Override
+        public void ip(long hi, long lo){
+            this.out.putLong(hi);
+            this.out.putLong(lo);
+        }
+
+        @Override
+        public void integer(long value){
+            this.out.putDouble(value);
+        }
+
+        @Override
+        public void rate(long count, double seconds){
+            this.out.putDouble((float) count / (float) seconds);
+        }
+
+        @Override
+        public void ratio(long part, long total){
+            this.out.putDouble(((double) part) / ((double) total));
+        }
+
+        @Override
+        public void real(double value){
+            this.out.putDouble(value);
+        }
+
+        @Override
+        public void end(){
+        }
+    }
+}
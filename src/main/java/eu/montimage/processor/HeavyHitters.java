@@ -0,0 +1,191 @@
+package eu.montimage.processor;
+
+/**
+ * Fixed-memory estimate of the largest flows of a {@link FlowTable}.
+ * The packets of every flow are counted in a Count-Min sketch (with
+ * conservative update, so the estimates only exceed the true counts by the
+ * collisions of the smallest cell), and the flows with the largest estimates
+ * are kept in a min-heap of a fixed size: a flow enters it when its estimate
+ * is larger than the smallest one of the heap. The flows are known by the
+ * hash of their key only.
+ * <p>
+ * The counts are halved every {@value #DECAY_PACKETS} packets, so the flows
+ * that were large a long time ago leave the heap.
+ */
+class HeavyHitters{
+
+    static final int DECAY_PACKETS = 1 << 20;
+    // Rows of the sketch, each with its own multiplier
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+    // Cells of the sketch, row after row
+    private final int[] cells;
+    private final int widthBits;
+    // Min-heap of the largest flows: hash and estimate of each entry
+    private final long[] heapHashes;
+    private final int[] heapCounts;
+    private int heapSize = 0;
+    // Open-addressing index of the heap: position + 1 of the flow stored in each bucket (0: empty)
+    private final long[] indexHashes;
+    private final int[] indexPositions;
+    private final int indexMask;
+    private long packets = 0;
+
+    /**
+     * @param widthBits Cells per row of the sketch, as a power of 2.
+     * @param flows Largest flows kept.
+     */
+    HeavyHitters(int widthBits, int flows){
+        this.widthBits = widthBits;
+        this.cells = new int[SEEDS.length << widthBits];
+        this.heapHashes = new long[flows];
+        this.heapCounts = new int[flows];
+        int buckets = Integer.highestOneBit(Math.max(2, 2 * flows - 1)) << 1;
+        this.indexHashes = new long[buckets];
+        this.indexPositions = new int[buckets];
+        this.indexMask = buckets - 1;
+    }
+
+    /**
+     * Counts a packet of a flow.
+     * @return The new estimate of the packets of the flow.
+     */
+    int add(long hash){
+        if (++this.packets % DECAY_PACKETS == 0) this.decay();
+        int estimate = this.estimate(hash) + 1;
+        // Conservative update: no cell needs to go beyond the new estimate
+        for (int row = 0; row < SEEDS.length; row++){
+            int cell = this.cell(row, hash);
+            if (this.cells[cell] < estimate) this.cells[cell] = estimate;
+        }
+        int bucket = this.find(hash);
+        if (this.indexPositions[bucket] != 0){
+            int position = this.indexPositions[bucket] - 1;
+            this.heapCounts[position] = estimate;
+            this.siftDown(position);
+        } else if (this.heapSize < this.heapHashes.length){
+            int position = this.heapSize++;
+            this.heapHashes[position] = hash;
+            this.heapCounts[position] = estimate;
+            this.indexHashes[bucket] = hash;
+            this.indexPositions[bucket] = position + 1;
+            this.siftUp(position);
+        } else if (estimate > this.heapCounts[0]){
+            // Replaces the smallest of the largest flows
+            this.unindex(this.find(this.heapHashes[0]));
+            bucket = this.find(hash);
+            this.heapHashes[0] = hash;
+            this.heapCounts[0] = estimate;
+            this.indexHashes[bucket] = hash;
+            this.indexPositions[bucket] = 1;
+            this.siftDown(0);
+        }
+        return estimate;
+    }
+
+    /**
+     * @return The estimate of the packets of a flow: never below the true
+     * count since the last decays.
+     */
+    int estimate(long hash){
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < SEEDS.length; row++) estimate = Math.min(estimate, this.cells[this.cell(row, hash)]);
+        return estimate;
+    }
+
+    /**
+     * @return True if the flow is one of the largest ones, with an estimate of
+     * at least the given number of packets: the heap also holds small flows
+     * while there are few flows.
+     */
+    boolean isHeavy(long hash, int minimum){
+        int position = this.indexPositions[this.find(hash)];
+        return position != 0 && this.heapCounts[position - 1] >= minimum;
+    }
+
+    /**
+     * @return The number of flows in the heap.
+     */
+    int size(){
+        return this.heapSize;
+    }
+
+    /**
+     * Halves every count. The heap stays ordered, as halving keeps the order.
+     */
+    private void decay(){
+        for (int i = 0; i < this.cells.length; i++) this.cells[i] >>>= 1;
+        for (int i = 0; i < this.heapSize; i++) this.heapCounts[i] >>>= 1;
+    }
+
+    private int cell(int row, long hash){
+        return (row << this.widthBits) | (int) ((hash * SEEDS[row]) >>> (64 - this.widthBits));
+    }
+
+    /**
+     * @return The bucket of the flow in the index, or the empty bucket where it would go.
+     */
+    private int find(long hash){
+        int bucket = this.home(hash);
+        while (this.indexPositions[bucket] != 0 && this.indexHashes[bucket] != hash) bucket = (bucket + 1) & this.indexMask;
+        return bucket;
+    }
+
+    private int home(long hash){
+        return (int) (hash ^ (hash >>> 32)) & this.indexMask;
+    }
+
+    /**
+     * Empties a bucket, shifting back the following entries of its probe
+     * sequence so no tombstone is needed.
+     */
+    private void unindex(int bucket){
+        int hole = bucket;
+        int next = bucket;
+        while (true){
+            next = (next + 1) & this.indexMask;
+            if (this.indexPositions[next] == 0) break;
+            int home = this.home(this.indexHashes[next]);
+            // The entry may fill the hole if its home is not between the hole and itself
+            if (((next - home) & this.indexMask) >= ((next - hole) & this.indexMask)){
+                this.indexHashes[hole] = this.indexHashes[next];
+                this.indexPositions[hole] = this.indexPositions[next];
+                hole = next;
+            }
+        }
+        this.indexPositions[hole] = 0;
+    }
+
+    private void siftUp(int position){
+        while (position > 0){
+            int parent = (position - 1) >>> 1;
+            if (this.heapCounts[parent] <= this.heapCounts[position]) break;
+            this.swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position){
+        while (true){
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < this.heapSize && this.heapCounts[left] < this.heapCounts[smallest]) smallest = left;
+            if (right < this.heapSize && this.heapCounts[right] < this.heapCounts[smallest]) smallest = right;
+            if (smallest == position) return;
+            this.swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int a, int b){
+        long hash = this.heapHashes[a];
+        int count = this.heapCounts[a];
+        this.heapHashes[a] = this.heapHashes[b];
+        this.heapCounts[a] = this.heapCounts[b];
+        this.heapHashes[b] = hash;
+        this.heapCounts[b] = count;
+        this.indexPositions[this.find(this.heapHashes[a])] = a + 1;
+        this.indexPositions[this.find(this.heapHashes[b])] = b + 1;
+    }
+}
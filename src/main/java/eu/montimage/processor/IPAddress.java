@@ -0,0 +1,199 @@
+package eu.montimage.processor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers to pack IP addresses into two primitive longs.
+ * IPv6 addresses are stored as their upper and lower 64 bits. IPv4 addresses
+ * are stored as IPv4-mapped IPv6 addresses (::ffff:a.b.c.d), so both families
+ * share the same representation.
+ */
+public final class IPAddress{
+
+    private static final long IPV4_PREFIX = 0x0000FFFF00000000L;
+
+    private IPAddress(){ }
+
+    /**
+     * Parses the textual IP stored between start and end of the buffer.
+     * @param ip Array where the upper (index 0) and lower (index 1) 64 bits are written.
+     * @return True if the text is a valid IPv4 or IPv6 address.
+     */
+    public static boolean parse(ByteBuffer buf, int start, int end, long[] ip){
+        for (int i = start; i < end; i++){
+            if (buf.get(i) == ':') return parseIPv6(buf, start, end, ip);
+        }
+        long v4 = parseIPv4(buf, start, end);
+        if (v4 < 0) return false;
+        ip[0] = 0;
+        ip[1] = IPV4_PREFIX | v4;
+        return true;
+    }
+
+    /**
+     * Parses a textual IP.
+     * @return The upper (index 0) and lower (index 1) 64 bits of the address.
+     * @throws IllegalArgumentException If the text is not a valid IP address.
+     */
+    public static long[] parse(String text){
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++){
+            char c = text.charAt(i);
+            bytes[i] = c < 128 ? (byte) c : (byte) '?';
+        }
+        long[] ip = new long[2];
+        if (!parse(ByteBuffer.wrap(bytes), 0, bytes.length, ip)) throw new IllegalArgumentException("Not an IP address: " + text);
+        return ip;
+    }
+
+    /**
+     * Formats a packed IP. IPv4 addresses are written in dotted notation and
+     * IPv6 addresses in their canonical form (RFC 5952).
+     */
+    public static String format(long hi, long lo){
+        StringBuilder sb = new StringBuilder(39);
+        if (hi == 0 && (lo & 0xFFFFFFFF00000000L) == IPV4_PREFIX){
+            sb.append((lo >>> 24) & 0xFF).append('.').append((lo >>> 16) & 0xFF).append('.')
+              .append((lo >>> 8) & 0xFF).append('.').append(lo & 0xFF);
+            return sb.toString();
+        }
+        int[] groups = new int[8];
+        for (int i = 0; i < 4; i++){
+            groups[i] = (int) (hi >>> (48 - 16 * i)) & 0xFFFF;
+            groups[i + 4] = (int) (lo >>> (48 - 16 * i)) & 0xFFFF;
+        }
+        // Find the longest run of zero groups (at least two) to compress
+        int bestStart = -1;
+        int bestLen = 1;
+        for (int i = 0; i < 8; ){
+            if (groups[i] != 0){
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j < 8 && groups[j] == 0) j++;
+            if (j - i > bestLen){
+                bestStart = i;
+                bestLen = j - i;
+            }
+            i = j;
+        }
+        for (int i = 0; i < 8; i++){
+            if (i == bestStart){
+                sb.append("::");
+                i += bestLen - 1;
+                continue;
+            }
+            if (i > 0 && i != bestStart + bestLen) sb.append(':');
+            sb.append(Integer.toHexString(groups[i]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The IPv4 address as an unsigned 32 bits value, or -1 if it is not valid.
+     */
+    private static long parseIPv4(ByteBuffer buf, int start, int end){
+        long value = 0;
+        int parts = 0;
+        int pos = start;
+        while (parts < 4){
+            int part = 0;
+            int digits = 0;
+            while (pos < end && digits < 4){
+                int digit = buf.get(pos) - '0';
+                if (digit < 0 || digit > 9) break;
+                part = part * 10 + digit;
+                digits++;
+                pos++;
+            }
+            if (digits == 0 || digits > 3 || part > 255) return -1;
+            value = (value << 8) | part;
+            parts++;
+            if (parts < 4){
+                if (pos >= end || buf.get(pos) != '.') return -1;
+                pos++;
+            }
+        }
+        return pos == end ? value : -1;
+    }
+
+    private static boolean parseIPv6(ByteBuffer buf, int start, int end, long[] ip){
+        // Groups before '::' are accumulated in head, the ones after it in tail.
+        // Without '::' all the groups go to head.
+        long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+        int count = 0;
+        int headGroups = 0;
+        boolean gap = false;
+        int pos = start;
+        if (end - start >= 2 && buf.get(start) == ':' && buf.get(start + 1) == ':'){
+            gap = true;
+            pos += 2;
+        } else if (pos < end && buf.get(pos) == ':'){
+            return false;
+        }
+        while (pos < end){
+            if (count == 8) return false;
+            // Find the end of the group
+            int groupEnd = pos;
+            boolean dotted = false;
+            while (groupEnd < end && buf.get(groupEnd) != ':'){
+                if (buf.get(groupEnd) == '.') dotted = true;
+                groupEnd++;
+            }
+            int groups = 1;
+            long value = 0;
+            if (dotted){
+                // Embedded IPv4 address: it must be the last part
+                if (groupEnd != end || count > 6) return false;
+                value = parseIPv4(buf, pos, end);
+                if (value < 0) return false;
+                groups = 2;
+            } else {
+                int len = groupEnd - pos;
+                if (len == 0 || len > 4) return false;
+                for (int i = pos; i < groupEnd; i++){
+                    int digit = Character.digit(buf.get(i), 16);
+                    if (digit < 0) return false;
+                    value = (value << 4) | digit;
+                }
+            }
+            int bits = 16 * groups;
+            if (gap){
+                tailHi = (tailHi << bits) | (tailLo >>> (64 - bits));
+                tailLo = (tailLo << bits) | value;
+            } else {
+                headHi = (headHi << bits) | (headLo >>> (64 - bits));
+                headLo = (headLo << bits) | value;
+                headGroups += groups;
+            }
+            count += groups;
+            pos = groupEnd;
+            if (pos < end){
+                // Skip the ':' and detect '::'
+                pos++;
+                if (pos < end && buf.get(pos) == ':'){
+                    if (gap) return false;
+                    gap = true;
+                    pos++;
+                } else if (pos == end){
+                    return false;
+                }
+            }
+        }
+        if (!gap && count != 8) return false;
+        if (gap && count == 8) return false;
+        if (gap){
+            // Move the head groups to the top of the address
+            for (int i = headGroups; i < 8; i++){
+                headHi = (headHi << 16) | (headLo >>> 48);
+                headLo = headLo << 16;
+            }
+            headHi |= tailHi;
+            headLo |= tailLo;
+        }
+        ip[0] = headHi;
+        ip[1] = headLo;
+        return true;
+    }
+}
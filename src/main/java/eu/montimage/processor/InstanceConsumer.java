@@ -0,0 +1,33 @@
+package eu.montimage.processor;
+
+/**
+ * Receives the flows as dense numeric instances, in the JVM (see
+ * {@link InstanceSink}), e.g. to train a MOA or Weka learner online without
+ * writing and parsing text. It is the push counterpart of a MOA
+ * InstanceStream: the header first, then the instances as the flows leave
+ * the table, then the end of the stream.
+ * <p>
+ * An implementation given with -I needs a public no-argument constructor.
+ * It is called by one thread at a time.
+ */
+public interface InstanceConsumer{
+
+    /**
+     * Called once, before the first instance.
+     */
+    void start(InstanceHeader header);
+
+    /**
+     * An instance: one value per attribute of the header. The IP attributes
+     * are missing (NaN): the endpoints are given by the ID of the flow. Other
+     * values are NaN where the CSV output has NaN.
+     * @param id ID of the flow, in the sense of its first packet.
+     * @param values Values of the attributes. The array is not reused: it can be kept.
+     */
+    void accept(FlowID id, double[] values);
+
+    /**
+     * Called once, after the last instance.
+     */
+    void end();
+}
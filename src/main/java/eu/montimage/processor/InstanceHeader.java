@@ -0,0 +1,50 @@
+package eu.montimage.processor;
+
+/**
+ * Schema of the instances streamed by an {@link InstanceSink}: the relation
+ * and one attribute per column of the flow rows, as in the ARFF headers. It
+ * is built once from the {@link Features} of the run, so a consumer can build
+ * the header of its learner (e.g. a MOA InstancesHeader) before the first
+ * instance.
+ */
+public final class InstanceHeader{
+
+    private final String relation;
+    private final String[] names;
+    private final boolean[] numeric;
+
+    /**
+     * @param relation Name of the relation.
+     * @param features Columns of the rows, one attribute each.
+     */
+    public InstanceHeader(String relation, Features features){
+        this.relation = relation;
+        this.names = features.getNames();
+        this.numeric = new boolean[this.names.length];
+        String[] types = features.getTypes();
+        for (int i = 0; i < types.length; i++) this.numeric[i] = types[i].equals("NUMERIC");
+    }
+
+    public String getRelationName(){
+        return this.relation;
+    }
+
+    /**
+     * @return The number of attributes, i.e. the length of the instances.
+     */
+    public int numAttributes(){
+        return this.names.length;
+    }
+
+    public String attributeName(int i){
+        return this.names[i];
+    }
+
+    /**
+     * @return False for the IP attributes ('string' in the ARFF headers):
+     * their values are missing (NaN) in the instances, see {@link InstanceConsumer}.
+     */
+    public boolean isNumeric(int i){
+        return this.numeric[i];
+    }
+}
@@ -0,0 +1,83 @@
+package eu.montimage.processor;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+/**
+ * Streams the flows to an {@link InstanceConsumer} as dense numeric instances,
+ * instead of writing them to a file. The columns are computed straight into
+ * an array of doubles, with the same values as the binary output (see
+ * {@link FlowWriter}): no text is formatted or parsed, and the schema is built
+ * once (see {@link InstanceHeader}).
+ * <p>
+ * The flows are encoded on the threads producing them, one at a time, as
+ * the consumer is not expected to be thread safe.
+ */
+public class InstanceSink implements Consumer<Flow>, Closeable{
+
+    private final InstanceConsumer consumer;
+    private final int attributes;
+    private final DenseEncoder encoder = new DenseEncoder();
+    private final Metrics metrics = Metrics.get();
+
+    /**
+     * Gives the header to the consumer.
+     */
+    public InstanceSink(InstanceConsumer consumer, InstanceHeader header){
+        this.consumer = consumer;
+        this.attributes = header.numAttributes();
+        consumer.start(header);
+    }
+
+    @Override
+    public synchronized void accept(Flow flow){
+        this.encoder.values = new double[this.attributes];
+        this.encoder.column = 0;
+        flow.encode(this.encoder);
+        this.consumer.accept(flow.getFlowID(), this.encoder.values);
+        this.metrics.rowsWritten.increment();
+    }
+
+    /**
+     * Ends the stream. Every flow must have been given before.
+     */
+    @Override
+    public synchronized void close(){
+        this.consumer.end();
+    }
+
+    private static final class DenseEncoder implements RowEncoder{
+
+        double[] values;
+        int column;
+
+        @Override
+        public void ip(long hi, long lo){
+            this.values[this.column++] = Double.NaN;
+        }
+
+        @Override
+        public void integer(long value){
+            this.values[this.column++] = value;
+        }
+
+        @Override
+        public void rate(long count, double seconds){
+            this.values[this.column++] = (float) count / (float) seconds;
+        }
+
+        @Override
+        public void ratio(long part, long total){
+            this.values[this.column++] = ((double) part) / ((double) total);
+        }
+
+        @Override
+        public void real(double value){
+            this.values[this.column++] = value;
+        }
+
+        @Override
+        public void end(){
+        }
+    }
+}
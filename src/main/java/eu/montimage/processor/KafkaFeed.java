@@ -0,0 +1,94 @@
+package eu.montimage.processor;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+
+/**
+ * Feed consuming the report lines of a single partition of a Kafka topic, so
+ * that every partition of the topic is consumed on its own (see
+ * {@link #partitions(String, String, String)}). A record holds one or several
+ * report lines, as in {@link KafkaFlows}; its key is not used. The offsets are
+ * committed by the consumer group {@value #GROUP_ID}.
+ */
+public class KafkaFeed implements ReportFeed{
+
+    static final String GROUP_ID = KafkaFlows.APPLICATION_ID + "-feeds";
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(100);
+
+    private final KafkaConsumer<byte[], byte[]> consumer;
+    private final TopicPartition partition;
+    private final ReportReader reader;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param servers Kafka bootstrap servers.
+     * @param separator Separator of the columns of the reports.
+     */
+    public KafkaFeed(String servers, TopicPartition partition, String separator){
+        this.consumer = new KafkaConsumer<>(properties(servers), new ByteArrayDeserializer(), new ByteArrayDeserializer());
+        this.partition = partition;
+        this.reader = new ReportReader(new ReportParser(separator));
+    }
+
+    /**
+     * @return A feed per partition of the topic.
+     */
+    public static List<ReportFeed> partitions(String servers, String topic, String separator){
+        List<ReportFeed> feeds = new ArrayList<>();
+        try(KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(properties(servers), new ByteArrayDeserializer(), new ByteArrayDeserializer())){
+            for (PartitionInfo info : consumer.partitionsFor(topic)){
+                feeds.add(new KafkaFeed(servers, new TopicPartition(topic, info.partition()), separator));
+            }
+        }
+        return feeds;
+    }
+
+    @Override
+    public void consume(Consumer<PacketRecord> consumer){
+        this.consumer.assign(Collections.singletonList(this.partition));
+        long recordSeq = 0;
+        try{
+            while (!this.stopped){
+                for (ConsumerRecord<byte[], byte[]> record : this.consumer.poll(POLL_TIMEOUT)){
+                    this.reader.readChunk(ByteBuffer.wrap(record.value()), recordSeq++, consumer);
+                }
+            }
+        } catch (WakeupException e){
+            // Stopped while polling
+        } finally {
+            this.consumer.close();
+        }
+    }
+
+    @Override
+    public void stop(){
+        this.stopped = true;
+        this.consumer.wakeup();
+    }
+
+    @Override
+    public long getMalformed(){
+        return this.reader.getMalformed();
+    }
+
+    private static Properties properties(String servers){
+        Properties props = new Properties();
+        props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, servers);
+        props.put(ConsumerConfig.GROUP_ID_CONFIG, GROUP_ID);
+        props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        return props;
+    }
+}
@@ -0,0 +1,364 @@
+package eu.montimage.processor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.admin.TopicDescription;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Bytes;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.processor.AbstractProcessor;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+
+/**
+ * Live mode: the report lines are consumed from a Kafka topic and folded into
+ * flows kept in a persistent (RocksDB) state store keyed by flow. As in the
+ * file mode, a flow is written as soon as it is closed or idle for longer than
+ * the timeout (report time): its conversation (the same columns as the output
+ * file) is sent to the output topic. A closed flow leaves a small value in the
+ * store for a while (see {@link FlowTable#WRITTEN_TIME}), so its late packets
+ * do not open a new flow. A second store indexes the written flows, and with a
+ * timeout the live ones, by last-seen time, so the flows to remove are found
+ * by a range scan instead of reading every flow.
+ * <p>
+ * The input topic is repartitioned by flow first: every line is sent to an
+ * internal topic keyed by the canonical key of its flow, so all the packets of
+ * a flow reach the same stream task and state store, whatever the partitions
+ * of the input topic they came from.
+ */
+public class KafkaFlows{
+
+    static final String APPLICATION_ID = "pkg-processor";
+    static final String STORE_NAME = "flows";
+    static final String TIMES_STORE_NAME = "flow-times";
+    // Period of the search of idle flows, in milliseconds (wall-clock)
+    static final long SCAN_INTERVAL = 1000;
+
+    // Size of a key: both endpoints (IP and port) in canonical order
+    private static final int KEY_SIZE = 2 * (2 * Long.BYTES + Integer.BYTES);
+    // First byte of a value: sense of the first packet of the flow, or the flow is closed and written
+    private static final byte REVERSED = 0;
+    private static final byte IN_ORDER = 1;
+    private static final byte WRITTEN = 2;
+    // First byte of a key of the index of the last-seen times: the live flows, then the written ones
+    private static final byte LIVE_TIMES = 0;
+    private static final byte WRITTEN_TIMES = 1;
+
+    private KafkaFlows(){ }
+
+    /**
+     * Builds the topology reading the report lines of the input topic and
+     * writing the conversations of the flows to the output topic.
+     * A record of the input topic holds one or several report lines; its key is not used.
+     * @param idleTimeout Idle timeout in microseconds (report time). 0: no timeout.
+     */
+    public static Topology topology(String inputTopic, String outputTopic, String separator, long idleTimeout){
+        Topology topology = new Topology();
+        topology.addSource("reports", Serdes.ByteArray().deserializer(), Serdes.ByteArray().deserializer(), inputTopic);
+        topology.addProcessor("lines", () -> new LineProcessor(separator), "reports");
+        topology.addSink("by-flow", repartitionTopic(inputTopic), Serdes.ByteArray().serializer(), Serdes.ByteArray().serializer(), "lines");
+        topology.addSource("flow-lines", Serdes.ByteArray().deserializer(), Serdes.ByteArray().deserializer(), repartitionTopic(inputTopic));
+        topology.addProcessor("flows", () -> new FlowProcessor(separator, idleTimeout), "flow-lines");
+        topology.addStateStore(Stores.keyValueStoreBuilder(Stores.persistentKeyValueStore(STORE_NAME),
+                                                           Serdes.Bytes(), Serdes.ByteArray()), "flows");
+        topology.addStateStore(Stores.keyValueStoreBuilder(Stores.persistentKeyValueStore(TIMES_STORE_NAME),
+                                                           Serdes.Bytes(), Serdes.ByteArray()), "flows");
+        topology.addSink("conversations", outputTopic, Serdes.String().serializer(), Serdes.String().serializer(), "flows");
+        return topology;
+    }
+
+    /**
+     * @return The internal topic of the lines of the input topic keyed by flow.
+     */
+    static String repartitionTopic(String inputTopic){
+        return APPLICATION_ID + "-" + inputTopic + "-by-flow";
+    }
+
+    /**
+     * Runs the live mode until the JVM is stopped.
+     * @param servers Kafka bootstrap servers.
+     */
+    public static void run(String servers, String inputTopic, String outputTopic, String separator, long idleTimeout){
+        Properties props = new Properties();
+        props.put(StreamsConfig.APPLICATION_ID_CONFIG, APPLICATION_ID);
+        props.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, servers);
+        try{
+            createRepartitionTopic(props, inputTopic);
+        } catch (ExecutionException e){
+            System.err.println("Exception creating the topic " + repartitionTopic(inputTopic) + ": " + e.getCause());
+            System.exit(2);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return;
+        }
+        final KafkaStreams streams = new KafkaStreams(topology(inputTopic, outputTopic, separator, idleTimeout), props);
+        final CountDownLatch latch = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            streams.close();
+            latch.countDown();
+        }));
+        streams.start();
+        try{
+            latch.await();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates the repartition topic if needed, with the partitions and the
+     * replication of the input topic.
+     */
+    private static void createRepartitionTopic(Properties props, String inputTopic) throws ExecutionException, InterruptedException{
+        String topic = repartitionTopic(inputTopic);
+        try(AdminClient admin = AdminClient.create(props)){
+            if (admin.listTopics().names().get().contains(topic)) return;
+            TopicDescription input = admin.describeTopics(Collections.singleton(inputTopic)).values().get(inputTopic).get();
+            short replicas = (short) input.partitions().get(0).replicas().size();
+            admin.createTopics(Collections.singleton(new NewTopic(topic, input.partitions().size(), replicas))).all().get();
+        }
+    }
+
+    /**
+     * @return The canonical key of the flow of a packet: both endpoints, the lower one first.
+     */
+    private static byte[] canonicalKey(PacketRecord pkt, boolean inOrder){
+        ByteBuffer key = ByteBuffer.allocate(KEY_SIZE);
+        if (inOrder){
+            key.putLong(pkt.srcHi).putLong(pkt.srcLo).putInt(pkt.srcPort).putLong(pkt.dstHi).putLong(pkt.dstLo).putInt(pkt.dstPort);
+        } else {
+            key.putLong(pkt.dstHi).putLong(pkt.dstLo).putInt(pkt.dstPort).putLong(pkt.srcHi).putLong(pkt.srcLo).putInt(pkt.srcPort);
+        }
+        return key.array();
+    }
+
+    /**
+     * Splits the records of the input topic into lines, sent to the
+     * repartition topic keyed by the canonical key of their flow.
+     */
+    static class LineProcessor extends AbstractProcessor<byte[], byte[]>{
+
+        private final ReportParser parser;
+        private final PacketRecord pkt = new PacketRecord();
+        private long malformed;
+
+        LineProcessor(String separator){
+            this.parser = new ReportParser(separator);
+        }
+
+        @Override
+        public void process(byte[] key, byte[] value){
+            if (value == null) return;
+            ByteBuffer buf = ByteBuffer.wrap(value);
+            int start = 0;
+            while (start < value.length){
+                int end = start;
+                while (end < value.length && value[end] != '\n') end++;
+                int next = end + 1;
+                if (end > start && value[end - 1] == '\r') end--;
+                if (end > start){
+                    if (this.parser.parse(buf, start, end, this.pkt)){
+                        boolean inOrder = FlowID.compare(this.pkt.srcHi, this.pkt.srcLo, this.pkt.srcPort, this.pkt.dstHi, this.pkt.dstLo, this.pkt.dstPort) <= 0;
+                        this.context().forward(canonicalKey(this.pkt, inOrder), Arrays.copyOfRange(value, start, end));
+                    } else {
+                        this.malformed++;
+                    }
+                }
+                start = next;
+            }
+        }
+
+        /**
+         * @return Number of lines that could not be decoded.
+         */
+        long getMalformed(){
+            return this.malformed;
+        }
+    }
+
+    /**
+     * Folds the packets into the flows of the state store. A record holds a
+     * single line, keyed by its flow. The value of a flow
+     * holds the sense of its first packet followed by its statistics (see
+     * {@link FlowStore#write(int, ByteBuffer)}). The value of a written flow
+     * only holds its last-seen time. The keys of the index of the last-seen
+     * times are the kind of flow (live or written), the time (big-endian, so
+     * the keys are in time order) and the key of the flow, with empty values.
+     */
+    static class FlowProcessor extends AbstractProcessor<byte[], byte[]>{
+
+        private final ReportParser parser;
+        private final long idleTimeout;
+        private final long writtenTime;
+        private final PacketRecord pkt = new PacketRecord();
+        // Single-slot store holding the flow being updated
+        private final FlowStore store = new FlowStore(1);
+        private final Flow view = new Flow(store);
+        private KeyValueStore<Bytes, byte[]> flows;
+        private KeyValueStore<Bytes, byte[]> times;
+        // Latest report timestamp seen, and the one of the last search of idle flows
+        private long now;
+        private long lastScan;
+
+        FlowProcessor(String separator, long idleTimeout){
+            this.parser = new ReportParser(separator);
+            this.idleTimeout = idleTimeout;
+            this.writtenTime = idleTimeout > 0 ? Math.min(idleTimeout, FlowTable.WRITTEN_TIME) : FlowTable.WRITTEN_TIME;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void init(ProcessorContext context){
+            super.init(context);
+            this.flows = (KeyValueStore<Bytes, byte[]>) context.getStateStore(STORE_NAME);
+            this.times = (KeyValueStore<Bytes, byte[]>) context.getStateStore(TIMES_STORE_NAME);
+            context.schedule(SCAN_INTERVAL, PunctuationType.WALL_CLOCK_TIME, timestamp -> this.expire());
+        }
+
+        @Override
+        public void process(byte[] key, byte[] value){
+            // The line was decoded once already, by the LineProcessor
+            if (value == null || !this.parser.parse(ByteBuffer.wrap(value), 0, value.length, this.pkt)) return;
+            this.pkt.seq = this.context().offset();
+            this.logPkg(this.pkt);
+        }
+
+        private void logPkg(PacketRecord pkt){
+            if (pkt.tstamp > this.now) this.now = pkt.tstamp;
+            boolean inOrder = FlowID.compare(pkt.srcHi, pkt.srcLo, pkt.srcPort, pkt.dstHi, pkt.dstLo, pkt.dstPort) <= 0;
+            byte[] key = canonicalKey(pkt, inOrder);
+            Bytes flowKey = Bytes.wrap(key);
+            byte[] value = this.flows.get(flowKey);
+            // Last-seen time of the flow in the index (none for a new flow)
+            long indexed = Long.MIN_VALUE;
+            if (value != null && value[0] == WRITTEN){
+                long closed = ByteBuffer.wrap(value, 1, Long.BYTES).getLong();
+                // A late packet of a closed flow (e.g. the last ACK) does not open a new flow, unless it is a new connection
+                if (pkt.syn == 0 && pkt.tstamp - closed <= this.writtenTime) return;
+                this.times.delete(timeKey(WRITTEN_TIMES, closed, key));
+                value = null;
+            }
+            // Sense of the first packet of the flow with respect to the key
+            boolean flowInOrder = inOrder;
+            if (value == null){
+                this.store.init(0, pkt.tstamp);
+            } else {
+                ByteBuffer in = ByteBuffer.wrap(value);
+                flowInOrder = in.get() == IN_ORDER;
+                this.store.read(0, in);
+            }
+            this.view.bind(null, 0);
+            if (value != null) indexed = this.view.getLastSeen();
+            this.view.logPkg(pkt, inOrder == flowInOrder);
+            this.index(key, indexed, this.view.getLastSeen());
+            if (this.view.isClosed()){
+                // A closed flow does not accept more packets: write it out
+                this.forward(flowKey.get(), flowInOrder);
+                long lastSeen = this.view.getLastSeen();
+                if (this.idleTimeout > 0) this.times.delete(timeKey(LIVE_TIMES, lastSeen, key));
+                this.times.put(timeKey(WRITTEN_TIMES, lastSeen, key), new byte[0]);
+                this.flows.put(flowKey, ByteBuffer.allocate(1 + Long.BYTES).put(WRITTEN).putLong(lastSeen).array());
+                return;
+            }
+            ByteBuffer out = ByteBuffer.allocate(1 + this.store.bytesPerSlot());
+            out.put(flowInOrder ? IN_ORDER : REVERSED);
+            this.store.write(0, out);
+            this.flows.put(flowKey, out.array());
+        }
+
+        /**
+         * Moves a live flow in the index of the last-seen times, if there is a timeout.
+         * @param previous Last-seen time of the flow in the index, or Long.MIN_VALUE if it is not in it.
+         */
+        private void index(byte[] key, long previous, long lastSeen){
+            if (this.idleTimeout == 0 || previous == lastSeen) return;
+            if (previous != Long.MIN_VALUE) this.times.delete(timeKey(LIVE_TIMES, previous, key));
+            this.times.put(timeKey(LIVE_TIMES, lastSeen, key), new byte[0]);
+        }
+
+        /**
+         * Writes out and removes the flows idle at the latest report timestamp,
+         * and forgets the flows written for long enough: the first ones of each
+         * kind in the index of the last-seen times.
+         */
+        private void expire(){
+            if (this.now == this.lastScan) return; // Report time did not move
+            this.lastScan = this.now;
+            // Idle: seen at now - idleTimeout - 1 at the latest
+            if (this.idleTimeout > 0){
+                for (Bytes timeKey : this.seenUntil(LIVE_TIMES, this.now - this.idleTimeout - 1)){
+                    Bytes flowKey = flowKey(timeKey);
+                    ByteBuffer in = ByteBuffer.wrap(this.flows.get(flowKey));
+                    byte sense = in.get();
+                    this.store.read(0, in);
+                    this.forward(flowKey.get(), sense == IN_ORDER);
+                    this.flows.delete(flowKey);
+                    this.times.delete(timeKey);
+                }
+            }
+            for (Bytes timeKey : this.seenUntil(WRITTEN_TIMES, this.now - this.writtenTime - 1)){
+                this.flows.delete(flowKey(timeKey));
+                this.times.delete(timeKey);
+            }
+        }
+
+        /**
+         * @return The keys of the index of the flows of a kind seen at the given time at the latest.
+         */
+        private List<Bytes> seenUntil(byte kind, long last){
+            List<Bytes> keys = new ArrayList<>();
+            if (last < 0) return keys;
+            byte[] highest = new byte[KEY_SIZE];
+            Arrays.fill(highest, (byte) 0xFF);
+            try(KeyValueIterator<Bytes, byte[]> it = this.times.range(timeKey(kind, 0, new byte[KEY_SIZE]), timeKey(kind, last, highest))){
+                while (it.hasNext()) keys.add(it.next().key);
+            }
+            return keys;
+        }
+
+        /**
+         * @return The key of a flow in the index of the last-seen times.
+         */
+        private static Bytes timeKey(byte kind, long lastSeen, byte[] key){
+            return Bytes.wrap(ByteBuffer.allocate(1 + Long.BYTES + KEY_SIZE).put(kind).putLong(lastSeen).put(key).array());
+        }
+
+        /**
+         * @return The key of the flow of a key of the index of the last-seen times.
+         */
+        private static Bytes flowKey(Bytes timeKey){
+            return Bytes.wrap(Arrays.copyOfRange(timeKey.get(), 1 + Long.BYTES, 1 + Long.BYTES + KEY_SIZE));
+        }
+
+        /**
+         * Sends the conversation of the flow loaded in the store to the output topic.
+         */
+        private void forward(byte[] key, boolean flowInOrder){
+            ByteBuffer in = ByteBuffer.wrap(key);
+            long aHi = in.getLong(), aLo = in.getLong();
+            int aPort = in.getInt();
+            long bHi = in.getLong(), bLo = in.getLong();
+            int bPort = in.getInt();
+            FlowID id = flowInOrder ? new FlowID(aHi, aLo, aPort, bHi, bLo, bPort)
+                                    : new FlowID(bHi, bLo, bPort, aHi, aLo, aPort);
+            this.view.bind(id, 0);
+            String[] conversation = this.view.getConversation();
+            String flowName = String.join(",", conversation[0], conversation[1], conversation[2], conversation[3]);
+            this.context().forward(flowName, String.join(",", conversation));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package eu.montimage.processor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, safe to record from any thread.
+ * A duration falls in one of 8 linear buckets inside its power of two, so the
+ * quantiles are estimated within 1/16 of their value, with a fixed memory of
+ * a few KB whatever the number of durations.
+ */
+final class LatencyHistogram{
+
+    // Linear buckets per power of two
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a duration.
+     */
+    void record(long nanos){
+        if (nanos < 0) nanos = 0;
+        this.buckets.incrementAndGet(bucketOf(nanos));
+        this.count.increment();
+        this.sum.add(nanos);
+        this.max.accumulate(nanos);
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()}.
+     */
+    void recordSince(long start){
+        this.record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return The number of durations, their mean, the estimated 50th, 90th and
+     * 99th percentiles and the maximum, in microseconds. Durations recorded
+     * meanwhile may be partly taken into account.
+     */
+    Metrics.Latency snapshot(){
+        long count = this.count.sum();
+        if (count == 0) return new Metrics.Latency(0, 0, 0, 0, 0, 0);
+        long[] ranks = {(long) (0.5 * (count - 1)), (long) (0.9 * (count - 1)), (long) (0.99 * (count - 1))};
+        long[] values = new long[ranks.length];
+        int found = 0;
+        long seen = 0;
+        for (int b = 0; b < BUCKETS && found < ranks.length; b++){
+            seen += this.buckets.get(b);
+            while (found < ranks.length && seen > ranks[found]) values[found++] = valueOf(b);
+        }
+        long max = this.max.get();
+        for (int i = found; i < ranks.length; i++) values[i] = max;
+        return new Metrics.Latency(count, this.sum.sum() / count / 1000, Math.min(values[0], max) / 1000,
+            Math.min(values[1], max) / 1000, Math.min(values[2], max) / 1000, max / 1000);
+    }
+
+    private static int bucketOf(long value){
+        if (value < SUB) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /**
+     * @return The middle of a bucket.
+     */
+    private static long valueOf(int bucket){
+        if (bucket < SUB) return bucket;
+        int shift = bucket / SUB - 1;
+        long lower = (long) (SUB + bucket % SUB) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+}
@@ -0,0 +1,365 @@
+package eu.montimage.processor;
+
+import java.beans.ConstructorProperties;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the processing, shared by the whole process.
+ * The counters are {@link LongAdder}s, so the threads updating them do not
+ * contend. The hot paths update them once per chunk or batch, or once per flow:
+ * only the duplicate, reordered, sampled out and late packets of closed flows
+ * are counted one by one. They are exposed through JMX (see
+ * {@link MetricsMXBean}) and, if asked for, as a JSON line printed periodically.
+ */
+public final class Metrics implements MetricsMXBean{
+
+    static final String OBJECT_NAME = "eu.montimage.processor:type=Metrics";
+    // Interval of the rates when no statistics line is printed
+    private static final long DEFAULT_INTERVAL = 1000;
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    final LongAdder linesRead = new LongAdder();
+    final LongAdder[] parseFailures = new LongAdder[ReportParser.Failure.values().length];
+    final LongAdder packets = new LongAdder();
+    final LongAdder packetsDuplicated = new LongAdder();
+    final LongAdder packetsReordered = new LongAdder();
+    final LongAdder packetsLate = new LongAdder();
+    final LongAdder packetsSampledOut = new LongAdder();
+    final LongAdder packetsAfterClose = new LongAdder();
+    final LongAdder liveFlows = new LongAdder();
+    final LongAdder spilledFlows = new LongAdder();
+    final LongAdder flowsOpened = new LongAdder();
+    final LongAdder overloadedTables = new LongAdder();
+    final LongAdder flowsClosed = new LongAdder();
+    final LongAdder flowsIdle = new LongAdder();
+    final LongAdder flowsEvicted = new LongAdder();
+    final LongAdder flowsFlushed = new LongAdder();
+    final LongAdder rowsWritten = new LongAdder();
+    final LatencyHistogram chunkLatency = new LatencyHistogram();
+    final LatencyHistogram batchLatency = new LatencyHistogram();
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+    final LatencyHistogram checkpointLatency = new LatencyHistogram();
+    // Queue depths, given by their owners
+    private volatile LongSupplier writerQueue = () -> 0;
+    private volatile LongSupplier shardQueues = () -> 0;
+
+    // Rates over the last interval, updated by the reporting thread
+    private ScheduledExecutorService reporter;
+    private PrintStream out;
+    private volatile double packetRate = 0;
+    private volatile double rowRate = 0;
+    private long lastTime;
+    private long lastPackets;
+    private long lastRows;
+
+    private Metrics(){
+        for (int i = 0; i < this.parseFailures.length; i++) this.parseFailures[i] = new LongAdder();
+    }
+
+    /**
+     * @return The metrics of the process.
+     */
+    public static Metrics get(){
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server (once), and starts
+     * updating the rates every interval.
+     * @param interval Milliseconds between two statistics lines (0: none).
+     * @param out Stream where the statistics lines are printed.
+     * @throws JMException If the metrics cannot be registered.
+     */
+    public synchronized void start(long interval, PrintStream out) throws JMException{
+        if (this.reporter != null) return;
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        this.out = interval > 0 ? out : null;
+        this.lastTime = System.nanoTime();
+        this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = interval > 0 ? interval : DEFAULT_INTERVAL;
+        this.reporter.scheduleAtFixedRate(this::tick, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the reporting thread, printing a last statistics line if they are printed.
+     */
+    public synchronized void stop(){
+        if (this.reporter == null) return;
+        this.reporter.shutdownNow();
+        this.tick();
+    }
+
+    void setWriterQueue(LongSupplier depth){
+        this.writerQueue = depth;
+    }
+
+    void setShardQueues(LongSupplier depth){
+        this.shardQueues = depth;
+    }
+
+    /**
+     * Counts a line that could not be decoded.
+     */
+    void parseFailed(ReportParser.Failure reason){
+        this.parseFailures[reason.ordinal()].increment();
+    }
+
+    @Override
+    public long getLinesRead(){
+        return this.linesRead.sum();
+    }
+
+    @Override
+    public Map<String, Long> getParseFailures(){
+        Map<String, Long> failures = new LinkedHashMap<>();
+        for (ReportParser.Failure reason : ReportParser.Failure.values()){
+            failures.put(reason.name().toLowerCase(), this.parseFailures[reason.ordinal()].sum());
+        }
+        return failures;
+    }
+
+    @Override
+    public long getPackets(){
+        return this.packets.sum();
+    }
+
+    @Override
+    public long getPacketsDuplicated(){
+        return this.packetsDuplicated.sum();
+    }
+
+    @Override
+    public long getPacketsReordered(){
+        return this.packetsReordered.sum();
+    }
+
+    @Override
+    public long getPacketsLate(){
+        return this.packetsLate.sum();
+    }
+
+    @Override
+    public long getPacketsSampledOut(){
+        return this.packetsSampledOut.sum();
+    }
+
+    @Override
+    public long getPacketsAfterClose(){
+        return this.packetsAfterClose.sum();
+    }
+
+    @Override
+    public double getPacketsPerSecond(){
+        return this.packetRate;
+    }
+
+    @Override
+    public long getLiveFlows(){
+        return this.liveFlows.sum();
+    }
+
+    @Override
+    public long getSpilledFlows(){
+        return this.spilledFlows.sum();
+    }
+
+    @Override
+    public long getFlowsOpened(){
+        return this.flowsOpened.sum();
+    }
+
+    @Override
+    public long getOverloadedTables(){
+        return this.overloadedTables.sum();
+    }
+
+    @Override
+    public long getFlowsClosed(){
+        return this.flowsClosed.sum();
+    }
+
+    @Override
+    public long getFlowsIdle(){
+        return this.flowsIdle.sum();
+    }
+
+    @Override
+    public long getFlowsEvicted(){
+        return this.flowsEvicted.sum();
+    }
+
+    @Override
+    public long getFlowsFlushed(){
+        return this.flowsFlushed.sum();
+    }
+
+    @Override
+    public long getRowsWritten(){
+        return this.rowsWritten.sum();
+    }
+
+    @Override
+    public double getRowsPerSecond(){
+        return this.rowRate;
+    }
+
+    @Override
+    public long getWriterQueue(){
+        return this.writerQueue.getAsLong();
+    }
+
+    @Override
+    public long getShardQueues(){
+        return this.shardQueues.getAsLong();
+    }
+
+    @Override
+    public Latency getChunkLatency(){
+        return this.chunkLatency.snapshot();
+    }
+
+    @Override
+    public Latency getBatchLatency(){
+        return this.batchLatency.snapshot();
+    }
+
+    @Override
+    public Latency getWriteLatency(){
+        return this.writeLatency.snapshot();
+    }
+
+    @Override
+    public Latency getCheckpointLatency(){
+        return this.checkpointLatency.snapshot();
+    }
+
+    /**
+     * @return The metrics as a single line of JSON.
+     */
+    public String toJson(){
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"time\":").append(System.currentTimeMillis());
+        json.append(",\"linesRead\":").append(this.getLinesRead());
+        json.append(",\"parseFailures\":{");
+        String separator = "";
+        for (Map.Entry<String, Long> failure : this.getParseFailures().entrySet()){
+            json.append(separator).append('"').append(failure.getKey()).append("\":").append(failure.getValue());
+            separator = ",";
+        }
+        json.append('}');
+        json.append(",\"packets\":").append(this.getPackets());
+        json.append(",\"packetsDuplicated\":").append(this.getPacketsDuplicated());
+        json.append(",\"packetsReordered\":").append(this.getPacketsReordered());
+        json.append(",\"packetsLate\":").append(this.getPacketsLate());
+        json.append(",\"packetsSampledOut\":").append(this.getPacketsSampledOut());
+        json.append(",\"packetsAfterClose\":").append(this.getPacketsAfterClose());
+        json.append(",\"packetsPerSecond\":").append(Math.round(this.packetRate));
+        json.append(",\"liveFlows\":").append(this.getLiveFlows());
+        json.append(",\"spilledFlows\":").append(this.getSpilledFlows());
+        json.append(",\"flowsOpened\":").append(this.getFlowsOpened());
+        json.append(",\"overloadedTables\":").append(this.getOverloadedTables());
+        json.append(",\"flowsClosed\":").append(this.getFlowsClosed());
+        json.append(",\"flowsIdle\":").append(this.getFlowsIdle());
+        json.append(",\"flowsEvicted\":").append(this.getFlowsEvicted());
+        json.append(",\"flowsFlushed\":").append(this.getFlowsFlushed());
+        json.append(",\"rowsWritten\":").append(this.getRowsWritten());
+        json.append(",\"rowsPerSecond\":").append(Math.round(this.rowRate));
+        json.append(",\"writerQueue\":").append(this.getWriterQueue());
+        json.append(",\"shardQueues\":").append(this.getShardQueues());
+        json.append(",\"chunkLatency\":");
+        this.getChunkLatency().appendJson(json);
+        json.append(",\"batchLatency\":");
+        this.getBatchLatency().appendJson(json);
+        json.append(",\"writeLatency\":");
+        this.getWriteLatency().appendJson(json);
+        json.append(",\"checkpointLatency\":");
+        this.getCheckpointLatency().appendJson(json);
+        return json.append('}').toString();
+    }
+
+    /**
+     * Updates the rates, and prints the statistics line if asked for.
+     */
+    private synchronized void tick(){
+        long now = System.nanoTime();
+        long packets = this.getPackets();
+        long rows = this.getRowsWritten();
+        double seconds = (now - this.lastTime) / 1e9;
+        if (seconds > 0){
+            this.packetRate = (packets - this.lastPackets) / seconds;
+            this.rowRate = (rows - this.lastRows) / seconds;
+        }
+        this.lastTime = now;
+        this.lastPackets = packets;
+        this.lastRows = rows;
+        if (this.out != null) this.out.println(this.toJson());
+    }
+
+    /**
+     * Summary of a {@link LatencyHistogram}, in microseconds.
+     */
+    public static final class Latency{
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        @ConstructorProperties({"count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros"})
+        public Latency(long count, long mean, long p50, long p90, long p99, long max){
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount(){
+            return this.count;
+        }
+
+        public long getMeanMicros(){
+            return this.mean;
+        }
+
+        public long getP50Micros(){
+            return this.p50;
+        }
+
+        public long getP90Micros(){
+            return this.p90;
+        }
+
+        public long getP99Micros(){
+            return this.p99;
+        }
+
+        public long getMaxMicros(){
+            return this.max;
+        }
+
+        void appendJson(StringBuilder json){
+            json.append("{\"count\":").append(this.count).append(",\"meanMicros\":").append(this.mean)
+                .append(",\"p50Micros\":").append(this.p50).append(",\"p90Micros\":").append(this.p90)
+                .append(",\"p99Micros\":").append(this.p99).append(",\"maxMicros\":").append(this.max).append('}');
+        }
+    }
+}
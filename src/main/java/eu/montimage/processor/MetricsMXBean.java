@@ -0,0 +1,127 @@
+package eu.montimage.processor;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link Metrics}, registered in the platform
+ * MBean server as {@value Metrics#OBJECT_NAME}.
+ */
+public interface MetricsMXBean{
+
+    /**
+     * @return Report lines read (empty lines excluded).
+     */
+    long getLinesRead();
+
+    /**
+     * @return Lines that could not be decoded, by reason.
+     */
+    Map<String, Long> getParseFailures();
+
+    /**
+     * @return Packets decoded from the report lines.
+     */
+    long getPackets();
+
+    /**
+     * @return Packets dropped as duplicates of a packet seen by another probe or interface.
+     */
+    long getPacketsDuplicated();
+
+    /**
+     * @return Packets older than a packet read before them, put back in order by the reorder buffer.
+     */
+    long getPacketsReordered();
+
+    /**
+     * @return Reordered packets that came later than the reorder delay, logged out of order.
+     */
+    long getPacketsLate();
+
+    /**
+     * @return Packets of the new flows left out by the sampling of an overloaded table.
+     */
+    long getPacketsSampledOut();
+
+    /**
+     * @return Late packets of the closed flows, dropped instead of opening new flows.
+     */
+    long getPacketsAfterClose();
+
+    /**
+     * @return Packets per second over the last reporting interval.
+     */
+    double getPacketsPerSecond();
+
+    long getLiveFlows();
+
+    /**
+     * @return Live flows moved off-heap (see {@link FlowTable#setSpill(int, long, java.nio.file.Path)}).
+     */
+    long getSpilledFlows();
+
+    long getFlowsOpened();
+
+    /**
+     * @return Tables (or shards) sampling their new flows because of an overload.
+     */
+    long getOverloadedTables();
+
+    /**
+     * @return Flows written because they were closed by their packets.
+     */
+    long getFlowsClosed();
+
+    /**
+     * @return Flows written because they were idle for longer than the timeout.
+     */
+    long getFlowsIdle();
+
+    /**
+     * @return Flows written because the table of live flows was full.
+     */
+    long getFlowsEvicted();
+
+    /**
+     * @return Flows written because the input ended.
+     */
+    long getFlowsFlushed();
+
+    long getRowsWritten();
+
+    /**
+     * @return Rows written per second over the last reporting interval.
+     */
+    double getRowsPerSecond();
+
+    /**
+     * @return Batches of flows waiting for the writer thread.
+     */
+    long getWriterQueue();
+
+    /**
+     * @return Batches of packets waiting for the shard threads.
+     */
+    long getShardQueues();
+
+    /**
+     * @return Time to read a chunk of the input (with a single thread, this
+     * includes folding its packets into the flows).
+     */
+    Metrics.Latency getChunkLatency();
+
+    /**
+     * @return Time for a shard to fold a batch of packets into its flows.
+     */
+    Metrics.Latency getBatchLatency();
+
+    /**
+     * @return Time for the writer thread to format and write a batch of flows.
+     */
+    Metrics.Latency getWriteLatency();
+
+    /**
+     * @return Time a processing thread spends copying its flows for a checkpoint.
+     */
+    Metrics.Latency getCheckpointLatency();
+}
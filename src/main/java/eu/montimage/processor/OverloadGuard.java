@@ -0,0 +1,86 @@
+package eu.montimage.processor;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Overload protection of a {@link FlowTable}.
+ * The guard looks at the depth of the queues in front of the slowest stage
+ * every {@value #CHECK_PACKETS} packets: past a threshold the table is
+ * overloaded, until the depth falls back to half of it. While overloaded,
+ * only 1 in so many new flows is kept, chosen by the hash of its key, so a
+ * flow is either kept whole or not at all, in every shard and every run. The
+ * largest flows (see {@link HeavyHitters}), counted all the time, are always
+ * kept, and the flows already in the table keep all their packets. A large
+ * flow left out is kept from the packet that makes it one of the largest.
+ */
+class OverloadGuard{
+
+    // Packets between two looks at the queues
+    static final int CHECK_PACKETS = 1024;
+    // Cells per row of the sketch (as a power of 2), largest flows kept in full, and their minimal size in packets
+    private static final int SKETCH_BITS = 16;
+    static final int HEAVY_FLOWS = 256;
+    static final int HEAVY_PACKETS = 32;
+
+    private final LongSupplier depth;
+    private final long threshold;
+    private final int sampling;
+    private final HeavyHitters heavyHitters = new HeavyHitters(SKETCH_BITS, HEAVY_FLOWS);
+    private final Metrics metrics = Metrics.get();
+    private boolean overloaded = false;
+    private int packets = 0;
+
+    /**
+     * @param depth Current depth of the queues.
+     * @param threshold Depth from which the table is overloaded.
+     * @param sampling 1 in so many new flows is kept while overloaded.
+     */
+    OverloadGuard(LongSupplier depth, long threshold, int sampling){
+        if (threshold <= 0) throw new IllegalArgumentException("The overload threshold must be positive");
+        if (sampling <= 0) throw new IllegalArgumentException("The sampling must be positive");
+        this.depth = depth;
+        this.threshold = threshold;
+        this.sampling = sampling;
+    }
+
+    /**
+     * Counts a packet of a flow, and checks the queues from time to time.
+     */
+    void count(long hash){
+        this.heavyHitters.add(hash);
+        if (++this.packets == CHECK_PACKETS){
+            this.packets = 0;
+            long depth = this.depth.getAsLong();
+            if (!this.overloaded && depth >= this.threshold){
+                this.overloaded = true;
+                this.metrics.overloadedTables.increment();
+            } else if (this.overloaded && 2 * depth < this.threshold){
+                this.overloaded = false;
+                this.metrics.overloadedTables.decrement();
+            }
+        }
+    }
+
+    /**
+     * @return The sampling a new flow is kept with: 1 if it is kept whatever its hash,
+     * the sampling if it is one of the sampled flows, or 0 if it is dropped.
+     */
+    int admit(long hash){
+        if (!this.overloaded || this.heavyHitters.isHeavy(hash, HEAVY_PACKETS)) return 1;
+        return isSampled(hash, this.sampling) ? this.sampling : 0;
+    }
+
+    boolean isOverloaded(){
+        return this.overloaded;
+    }
+
+    /**
+     * @return True for 1 in so many flow hashes. The hash is mixed again, so
+     * the choice does not depend on the shard or the bucket of the flow.
+     */
+    static boolean isSampled(long hash, int sampling){
+        long h = hash * 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return Long.remainderUnsigned(h, sampling) == 0;
+    }
+}
@@ -0,0 +1,124 @@
+package eu.montimage.processor;
+
+import java.util.Arrays;
+
+/**
+ * Packets of one chunk routed to one shard.
+ * The decoded fields are copied into primitive arrays, so the batch does not
+ * depend on the chunk it was read from and can be reused once consumed.
+ */
+class PacketBatch{
+
+    // Greatest timestamp of the chunk the packets come from
+    long maxTstamp;
+    int size = 0;
+    // Source and destination IPs: 4 longs per packet
+    private long[] ips;
+    private long[] seq;
+    private long[] tstamp;
+    private long[] pkgSize;
+    private long[] tcpwin;
+    private long[] ttl;
+    private int[] ports;
+    // Probe and interface: 2 ints per packet
+    private int[] sources;
+    // TCP flags packed as FIN, SYN, RST, PSH, ACK, URG bits
+    private byte[] flags;
+    private int[] contType;
+
+    PacketBatch(int capacity){
+        this.ips = new long[4 * capacity];
+        this.seq = new long[capacity];
+        this.tstamp = new long[capacity];
+        this.pkgSize = new long[capacity];
+        this.tcpwin = new long[capacity];
+        this.ttl = new long[capacity];
+        this.ports = new int[2 * capacity];
+        this.sources = new int[2 * capacity];
+        this.flags = new byte[capacity];
+        this.contType = new int[capacity];
+    }
+
+    void add(PacketRecord pkt){
+        if (this.size == this.seq.length) this.grow();
+        this.set(this.size++, pkt);
+    }
+
+    /**
+     * Replaces the i-th packet.
+     */
+    void set(int i, PacketRecord pkt){
+        this.ips[4 * i] = pkt.srcHi;
+        this.ips[4 * i + 1] = pkt.srcLo;
+        this.ips[4 * i + 2] = pkt.dstHi;
+        this.ips[4 * i + 3] = pkt.dstLo;
+        this.seq[i] = pkt.seq;
+        this.tstamp[i] = pkt.tstamp;
+        this.pkgSize[i] = pkt.size;
+        this.tcpwin[i] = pkt.tcpwin;
+        this.ttl[i] = pkt.ttl;
+        this.ports[2 * i] = pkt.srcPort;
+        this.ports[2 * i + 1] = pkt.dstPort;
+        this.sources[2 * i] = pkt.probe;
+        this.sources[2 * i + 1] = pkt.iface;
+        this.flags[i] = (byte) ((pkt.fin & 1) | (pkt.syn & 1) << 1 | (pkt.rst & 1) << 2
+                | (pkt.psh & 1) << 3 | (pkt.ack & 1) << 4 | (pkt.urg & 1) << 5);
+        this.contType[i] = pkt.contType;
+    }
+
+    /**
+     * Copies the i-th packet into the given record.
+     */
+    void get(int i, PacketRecord pkt){
+        pkt.srcHi = this.ips[4 * i];
+        pkt.srcLo = this.ips[4 * i + 1];
+        pkt.dstHi = this.ips[4 * i + 2];
+        pkt.dstLo = this.ips[4 * i + 3];
+        pkt.seq = this.seq[i];
+        pkt.tstamp = this.tstamp[i];
+        pkt.size = this.pkgSize[i];
+        pkt.tcpwin = this.tcpwin[i];
+        pkt.ttl = this.ttl[i];
+        pkt.srcPort = this.ports[2 * i];
+        pkt.dstPort = this.ports[2 * i + 1];
+        pkt.probe = this.sources[2 * i];
+        pkt.iface = this.sources[2 * i + 1];
+        int f = this.flags[i];
+        pkt.fin = f & 1;
+        pkt.syn = (f >> 1) & 1;
+        pkt.rst = (f >> 2) & 1;
+        pkt.psh = (f >> 3) & 1;
+        pkt.ack = (f >> 4) & 1;
+        pkt.urg = (f >> 5) & 1;
+        pkt.contType = this.contType[i];
+    }
+
+    long tstamp(int i){
+        return this.tstamp[i];
+    }
+
+    long seq(int i){
+        return this.seq[i];
+    }
+
+    /**
+     * Empties the batch so it can be reused.
+     */
+    void clear(){
+        this.size = 0;
+    }
+
+    private void grow(){
+        int capacity = this.seq.length * 2;
+        this.ips = Arrays.copyOf(this.ips, 4 * capacity);
+        this.seq = Arrays.copyOf(this.seq, capacity);
+        this.tstamp = Arrays.copyOf(this.tstamp, capacity);
+        this.pkgSize = Arrays.copyOf(this.pkgSize, capacity);
+        this.tcpwin = Arrays.copyOf(this.tcpwin, capacity);
+        this.ttl = Arrays.copyOf(this.ttl, capacity);
+        this.ports = Arrays.copyOf(this.ports, 2 * capacity);
+        this.sources = Arrays.copyOf(this.sources, 2 * capacity);
+        this.flags = Arrays.copyOf(this.flags, capacity);
+        this.contType = Arrays.copyOf(this.contType, capacity);
+    }
+}
@@ -0,0 +1,95 @@
+package eu.montimage.processor;
+
+/**
+ * Decoded MMT report line.
+ * The record is reused from one line to the next by the parser, so it must
+ * not be retained by the consumers: copy whatever is needed after the packet
+ * has been handled.
+ */
+public class PacketRecord{
+    // Position of the line in the input: sequence number of the chunk in the
+    // upper 32 bits and index of the line in the chunk in the lower ones
+    long seq;
+    // Probe ID and capture interface (columns 2 and 3), as hashes of their text (see ReportParser#hash)
+    int probe;
+    int iface;
+    // Timestamp of the packet in microseconds (column 4)
+    long tstamp;
+    // Source and destination IPs (columns 7 and 8), packed as two longs (see IPAddress)
+    long srcHi;
+    long srcLo;
+    long dstHi;
+    long dstLo;
+    // TCP ports (columns 9 and 10)
+    int srcPort;
+    int dstPort;
+    // IP total length, TCP window and IP TTL (columns 11 to 13)
+    long size;
+    long tcpwin;
+    long ttl;
+    // TCP flags (columns 14 to 19)
+    int fin;
+    int syn;
+    int rst;
+    int psh;
+    int ack;
+    int urg;
+    // TLS content type (column 20). -1 if it is not reported
+    int contType;
+
+    /**
+     * @return The source IP. A new String is created on every call.
+     */
+    public String getSrcIP(){
+        return IPAddress.format(this.srcHi, this.srcLo);
+    }
+
+    /**
+     * @return The destination IP. A new String is created on every call.
+     */
+    public String getDstIP(){
+        return IPAddress.format(this.dstHi, this.dstLo);
+    }
+
+    public long getSeq(){
+        return this.seq;
+    }
+
+    public long getTstamp(){
+        return this.tstamp;
+    }
+
+    public int getSrcPort(){
+        return this.srcPort;
+    }
+
+    public int getDstPort(){
+        return this.dstPort;
+    }
+
+    public long getSize(){
+        return this.size;
+    }
+
+    public long getTcpwin(){
+        return this.tcpwin;
+    }
+
+    public long getTtl(){
+        return this.ttl;
+    }
+
+    /**
+     * @return The TCP flags, one bit each: FIN (1), SYN (2), RST (4), PSH (8), ACK (16) and URG (32).
+     */
+    public int getFlags(){
+        return (this.fin != 0 ? 1 : 0) | (this.syn != 0 ? 2 : 0) | (this.rst != 0 ? 4 : 0) | (this.psh != 0 ? 8 : 0) | (this.ack != 0 ? 16 : 0) | (this.urg != 0 ? 32 : 0);
+    }
+
+    /**
+     * @return The TLS content type, or -1 if it is not reported.
+     */
+    public int getContType(){
+        return this.contType;
+    }
+}
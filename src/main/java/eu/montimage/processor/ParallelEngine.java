@@ -0,0 +1,285 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Multi-threaded flow aggregation.
+ * Chunks of the input are decoded by a pool of parser threads. Every packet is
+ * routed, by a direction-independent hash of its FlowID, to one of the shards.
+ * Every shard runs on its own thread and owns its own {@link FlowTable}, so the
+ * flows are never shared and need no locks. The batches of a chunk reach the
+ * shards in input order, so every flow sees its packets in the same order as
+ * in a single-threaded run.
+ * <p>
+ * With checkpoints, the dispatcher sends a checkpoint mark to every shard
+ * after a chunk: each shard copies its own changes when it reaches the mark,
+ * and the last one commits the checkpoint. The shards wait for each other at
+ * the mark, so no flow of a later chunk is written before the checkpoint.
+ */
+public class ParallelEngine{
+
+    // Batches queued per shard before the dispatcher blocks
+    private static final int SHARD_QUEUE = 4;
+    // Batch marking the end of the input
+    private static final PacketBatch END = new PacketBatch(1);
+    // Batch marking a checkpoint
+    private static final PacketBatch CHECKPOINT = new PacketBatch(1);
+
+    private final int threads;
+    private final String separator;
+    private final FlowTable[] shards;
+    private final List<ReportReader> readers = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<ReportReader> reader;
+    private final ConcurrentLinkedQueue<PacketBatch> batchPool = new ConcurrentLinkedQueue<>();
+    private volatile Throwable failure = null;
+    // Checkpoints (null: none), input offsets of the checkpoints not committed yet
+    private Checkpoint checkpoint;
+    private final Queue<Long> cuts = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param threads Number of parser threads and of shards.
+     * @param separator Separator of the report columns.
+     * @param idleTimeout Idle timeout of the flows in microseconds (0: none).
+     * @param maxFlows Cap of live flows (0: unbounded). It needs a single shard: split
+     * between shards, it would not evict the least recently seen flows of the whole input.
+     * @param window Length of the time windows of the flows in microseconds (0: a single row per flow).
+     * @param slide Time between the start of two windows in microseconds (see {@link FlowTable}).
+     * @param features Features of the flows (see {@link FlowTable}).
+     * @param sink Consumer of the flows leaving the tables. It is called from the
+     * shard threads, so it must be thread safe.
+     */
+    public ParallelEngine(int threads, String separator, long idleTimeout, int maxFlows, long window, long slide, Features features, Consumer<Flow> sink){
+        if (maxFlows > 0 && threads > 1) throw new IllegalArgumentException("A cap of live flows needs a single shard");
+        this.threads = threads;
+        this.separator = separator;
+        this.shards = new FlowTable[threads];
+        for (int i = 0; i < threads; i++) this.shards[i] = new FlowTable(idleTimeout, maxFlows, window, slide, features, sink);
+        this.reader = ThreadLocal.withInitial(() -> {
+            ReportReader r = new ReportReader(new ReportParser(this.separator));
+            this.readers.add(r);
+            return r;
+        });
+    }
+
+    /**
+     * Makes the shards tolerant to the duplicate and reordered packets of merged
+     * reports (see {@link FlowTable#setDisorderTolerance(long, long, long)}).
+     * Every packet of a flow goes to the same shard, so each shard handles its own.
+     */
+    public void setDisorderTolerance(long reorderDelay, long duplicateWindow, long linger){
+        for (FlowTable shard : this.shards) shard.setDisorderTolerance(reorderDelay, duplicateWindow, linger);
+    }
+
+    /**
+     * Keeps at most the given number of flows on the heap, split evenly between
+     * the shards, and moves the others off-heap (see {@link FlowTable#setSpill(int, long, Path)}).
+     */
+    public void setSpill(int heapFlows, long budget, Path directory){
+        int shardFlows = heapFlows > 0 ? (heapFlows + this.shards.length - 1) / this.shards.length : 0;
+        for (FlowTable shard : this.shards) shard.setSpill(shardFlows, budget / this.shards.length, directory);
+    }
+
+    /**
+     * Protects every shard from an overload (see {@link FlowTable#setOverload(LongSupplier, long, int)}).
+     * The flows are sampled by hash, so the shards keep the same flows as a single table would.
+     */
+    public void setOverload(LongSupplier depth, long threshold, int sampling){
+        for (FlowTable shard : this.shards) shard.setOverload(depth, threshold, sampling);
+    }
+
+    /**
+     * Takes checkpoints of the shards while processing the input, starting
+     * from the flows of the last checkpoint if there is one.
+     */
+    public void setCheckpoint(Checkpoint checkpoint) throws IOException{
+        this.checkpoint = checkpoint;
+        checkpoint.restore(this.shards);
+    }
+
+    /**
+     * Processes the whole input. When it returns, every flow has been handed to the sink.
+     */
+    public void process(ReportChunker chunker) throws IOException, InterruptedException{
+        ExecutorService parsers = Executors.newFixedThreadPool(this.threads);
+        ExecutorService workers = Executors.newFixedThreadPool(this.threads + 1);
+        CompletionService<Void> done = new ExecutorCompletionService<>(workers);
+        // Parsed chunks, in input order
+        BlockingQueue<Future<PacketBatch[]>> parsed = new ArrayBlockingQueue<>(2 * this.threads);
+        // Input offset at the end of each parsed chunk
+        Queue<Long> ends = new ConcurrentLinkedQueue<>();
+        List<BlockingQueue<PacketBatch>> queues = new ArrayList<>(this.threads);
+        CyclicBarrier barrier = this.checkpoint == null ? null : new CyclicBarrier(this.threads, () -> this.checkpoint.commit(this.cuts.poll()));
+        try{
+            for (int i = 0; i < this.threads; i++){
+                BlockingQueue<PacketBatch> queue = new ArrayBlockingQueue<>(SHARD_QUEUE);
+                queues.add(queue);
+                final int shard = i;
+                done.submit(() -> this.runShard(shard, queue, barrier));
+            }
+            done.submit(() -> this.dispatch(parsed, ends, queues));
+            Metrics.get().setShardQueues(() -> queues.stream().mapToLong(BlockingQueue::size).sum());
+            // Read the chunks and hand them to the parsers
+            ByteBuffer chunk;
+            long chunkSeq = 0;
+            while (this.failure == null && (chunk = chunker.next()) != null){
+                final ByteBuffer toParse = chunk;
+                final long seq = chunkSeq++;
+                ends.add(chunker.getOffset());
+                this.offer(parsed, parsers.submit(() -> this.parse(chunker, toParse, seq)));
+            }
+            this.offer(parsed, CompletableFuture.completedFuture(null));
+            // Wait for the dispatcher and the shards. The first failure stops everything
+            for (int i = 0; i <= this.threads; i++) done.take().get();
+        } catch (ExecutionException e){
+            this.failure = e.getCause();
+        } finally {
+            Metrics.get().setShardQueues(() -> 0);
+            parsers.shutdownNow();
+            workers.shutdownNow();
+        }
+        if (this.failure instanceof IOException) throw (IOException) this.failure;
+        if (this.failure != null) throw new IllegalStateException("Parallel processing failed", this.failure);
+    }
+
+    /**
+     * @return The number of lines that were not well formatted.
+     */
+    public long getMalformed(){
+        synchronized (this.readers){
+            return this.readers.stream().mapToLong(ReportReader::getMalformed).sum();
+        }
+    }
+
+    /**
+     * @return The number of flows still alive.
+     */
+    public int size(){
+        int size = 0;
+        for (FlowTable shard : this.shards) size += shard.size();
+        return size;
+    }
+
+    /**
+     * Decodes a chunk and splits its packets by shard.
+     */
+    private PacketBatch[] parse(ReportChunker chunker, ByteBuffer chunk, long chunkSeq){
+        PacketBatch[] batches = new PacketBatch[this.threads];
+        long[] maxTstamp = {Long.MIN_VALUE};
+        this.reader.get().readChunk(chunk, chunkSeq, pkt -> {
+            int shard = shardOf(pkt, this.threads);
+            PacketBatch batch = batches[shard];
+            if (batch == null){
+                batch = this.takeBatch();
+                batches[shard] = batch;
+            }
+            batch.add(pkt);
+            if (pkt.tstamp > maxTstamp[0]) maxTstamp[0] = pkt.tstamp;
+        });
+        chunker.release(chunk);
+        for (PacketBatch batch : batches){
+            if (batch != null) batch.maxTstamp = maxTstamp[0];
+        }
+        return batches;
+    }
+
+    /**
+     * Forwards the parsed chunks, in input order, to the shards.
+     */
+    private Void dispatch(BlockingQueue<Future<PacketBatch[]>> parsed, Queue<Long> ends, List<BlockingQueue<PacketBatch>> queues) throws Exception{
+        try{
+            while (true){
+                PacketBatch[] batches = parsed.take().get();
+                if (batches == null) break;
+                for (int i = 0; i < batches.length; i++){
+                    if (batches[i] != null) queues.get(i).put(batches[i]);
+                }
+                long end = ends.poll();
+                if (this.checkpoint != null && this.checkpoint.due()){
+                    this.cuts.add(end);
+                    for (BlockingQueue<PacketBatch> queue : queues) queue.put(CHECKPOINT);
+                }
+            }
+            for (BlockingQueue<PacketBatch> queue : queues) queue.put(END);
+        } catch (ExecutionException e){
+            this.failure = e.getCause();
+            throw e;
+        }
+        return null;
+    }
+
+    /**
+     * Logs the packets routed to a shard until the end of the input.
+     */
+    private Void runShard(int index, BlockingQueue<PacketBatch> queue, CyclicBarrier barrier) throws InterruptedException, BrokenBarrierException{
+        FlowTable shard = this.shards[index];
+        PacketRecord pkt = new PacketRecord();
+        try{
+            while (true){
+                PacketBatch batch = queue.take();
+                if (batch == END) break;
+                if (batch == CHECKPOINT){
+                    this.checkpoint.collect(index, shard);
+                    barrier.await();
+                    continue;
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < batch.size; i++){
+                    batch.get(i, pkt);
+                    shard.logPkg(pkt);
+                }
+                // The shard may have seen none of the last packets of the chunk
+                shard.expire(batch.maxTstamp);
+                batch.clear();
+                this.batchPool.offer(batch);
+                Metrics.get().batchLatency.recordSince(start);
+            }
+            shard.flush();
+        } catch (RuntimeException e){
+            this.failure = e;
+            throw e;
+        }
+        return null;
+    }
+
+    /**
+     * Queues a parsed chunk, giving up if a worker has failed (nobody would take it).
+     */
+    private void offer(BlockingQueue<Future<PacketBatch[]>> parsed, Future<PacketBatch[]> chunk) throws InterruptedException{
+        while (this.failure == null && !parsed.offer(chunk, 100, TimeUnit.MILLISECONDS));
+    }
+
+    private PacketBatch takeBatch(){
+        PacketBatch batch = this.batchPool.poll();
+        return batch != null ? batch : new PacketBatch(1024);
+    }
+
+    /**
+     * Direction-independent routing of the flows: both senses of a flow go to the same shard.
+     */
+    static int shardOf(PacketRecord pkt, int shards){
+        long h = FlowID.hash(pkt.srcHi, pkt.srcLo, pkt.srcPort, pkt.dstHi, pkt.dstLo, pkt.dstPort);
+        // The upper bits are used: the lower ones select the bucket in the shard table
+        return (int) ((h >>> 32) & Integer.MAX_VALUE) % shards;
+    }
+}
@@ -0,0 +1,179 @@
+package eu.montimage.processor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fixed-memory quantile sketches of non-negative integer values (DDSketch
+ * style), one per index, kept in primitive columns.
+ * A positive value x falls in the bucket ceil(log(x) / log(gamma)), with
+ * gamma = (1 + a) / (1 - a): any quantile is estimated with a relative error
+ * of at most a (5%) as long as its bucket has not been collapsed. Every sketch
+ * holds a fixed window of buckets: when a value falls above the window, the
+ * window moves up and the lowest buckets are collapsed into the first one,
+ * so the accuracy of the high quantiles is kept. A value below the window
+ * moves it down if the highest buckets are empty, and is counted in the
+ * lowest bucket otherwise. Zeros are counted apart.
+ * Adding a value costs O(1) (a logarithm), and so does merging two sketches
+ * (a number of steps bounded by the buckets).
+ */
+final class QuantileSketch{
+
+    // Relative accuracy
+    static final double ACCURACY = 0.05;
+    // Buckets per sketch
+    static final int BUCKETS = 128;
+
+    private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    private int capacity = 0;
+    // Per sketch: index of the first bucket of the window, number of zeros,
+    // and number of values
+    private int[] offset;
+    private long[] zeros;
+    private long[] count;
+    // BUCKETS counters per sketch
+    private int[] buckets;
+
+    QuantileSketch(int capacity){
+        this.grow(capacity);
+    }
+
+    /**
+     * Empties the sketch at index i.
+     */
+    void clear(int i){
+        this.offset[i] = 0;
+        this.zeros[i] = 0;
+        this.count[i] = 0;
+        Arrays.fill(this.buckets, i * BUCKETS, (i + 1) * BUCKETS, 0);
+    }
+
+    /**
+     * Adds a value to the sketch at index i. Negative values are taken as zeros.
+     */
+    void add(int i, long value){
+        if (value <= 0){
+            this.zeros[i]++;
+            this.count[i]++;
+            return;
+        }
+        this.addToBucket(i, bucketOf(value), 1);
+    }
+
+    /**
+     * Adds all the values of the sketch j of another column set to the sketch i.
+     */
+    void merge(int i, QuantileSketch other, int j){
+        if (other.count[j] == 0) return;
+        this.zeros[i] += other.zeros[j];
+        this.count[i] += other.zeros[j];
+        // Highest bucket first, so the window is moved only once
+        for (int k = BUCKETS - 1; k >= 0; k--){
+            int n = other.buckets[j * BUCKETS + k];
+            if (n > 0) this.addToBucket(i, other.offset[j] + k, n);
+        }
+    }
+
+    /**
+     * @param q Quantile, between 0 and 1.
+     * @return The estimated value of the quantile of the sketch at index i, or NaN if it is empty.
+     */
+    double quantile(int i, double q){
+        long n = this.count[i];
+        if (n == 0) return Double.NaN;
+        long rank = (long) (q * (n - 1));
+        if (rank < this.zeros[i]) return 0;
+        long seen = this.zeros[i];
+        int last = 0;
+        for (int k = 0; k < BUCKETS; k++){
+            int c = this.buckets[i * BUCKETS + k];
+            if (c == 0) continue;
+            last = k;
+            seen += c;
+            if (seen > rank) break;
+        }
+        // Middle of the bucket, in relative terms
+        return 2 * Math.pow(GAMMA, this.offset[i] + last) / (GAMMA + 1);
+    }
+
+    /**
+     * Grows the columns to the given number of sketches.
+     */
+    void grow(int capacity){
+        if (capacity <= this.capacity) return;
+        this.offset = this.offset == null ? new int[capacity] : Arrays.copyOf(this.offset, capacity);
+        this.zeros = this.zeros == null ? new long[capacity] : Arrays.copyOf(this.zeros, capacity);
+        this.count = this.count == null ? new long[capacity] : Arrays.copyOf(this.count, capacity);
+        this.buckets = this.buckets == null ? new int[capacity * BUCKETS] : Arrays.copyOf(this.buckets, capacity * BUCKETS);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Writes the sketch at index i, using {@link #bytesPerSketch()} bytes.
+     */
+    void write(int i, ByteBuffer buf){
+        buf.putInt(this.offset[i]);
+        buf.putLong(this.zeros[i]);
+        buf.putLong(this.count[i]);
+        for (int k = 0; k < BUCKETS; k++) buf.putInt(this.buckets[i * BUCKETS + k]);
+    }
+
+    /**
+     * Reads a sketch written by {@link #write(int, ByteBuffer)} into the index i.
+     */
+    void read(int i, ByteBuffer buf){
+        this.offset[i] = buf.getInt();
+        this.zeros[i] = buf.getLong();
+        this.count[i] = buf.getLong();
+        for (int k = 0; k < BUCKETS; k++) this.buckets[i * BUCKETS + k] = buf.getInt();
+    }
+
+    static int bytesPerSketch(){
+        return Integer.BYTES + 2 * Long.BYTES + BUCKETS * Integer.BYTES;
+    }
+
+    private static int bucketOf(long value){
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    private void addToBucket(int i, int bucket, int n){
+        final int base = i * BUCKETS;
+        if (this.count[i] == this.zeros[i]){
+            // First positive value: center the window on it
+            this.offset[i] = Math.max(0, bucket - BUCKETS / 2);
+        }
+        int k = bucket - this.offset[i];
+        if (k >= BUCKETS){
+            // Move the window up, collapsing the lowest buckets into the first one
+            int shift = k - BUCKETS + 1;
+            int collapsed = 0;
+            for (int b = 0; b <= Math.min(shift, BUCKETS - 1); b++) collapsed += this.buckets[base + b];
+            if (shift < BUCKETS){
+                System.arraycopy(this.buckets, base + shift + 1, this.buckets, base + 1, BUCKETS - shift - 1);
+                Arrays.fill(this.buckets, base + BUCKETS - shift, base + BUCKETS, 0);
+            } else {
+                Arrays.fill(this.buckets, base + 1, base + BUCKETS, 0);
+            }
+            this.buckets[base] = collapsed;
+            this.offset[i] += shift;
+            k = BUCKETS - 1;
+        } else if (k < 0){
+            // Move the window down as far as the highest bucket allows
+            int highest = BUCKETS - 1;
+            while (highest > 0 && this.buckets[base + highest] == 0) highest--;
+            int shift = Math.min(-k, BUCKETS - 1 - highest);
+            if (shift > 0){
+                System.arraycopy(this.buckets, base, this.buckets, base + shift, highest + 1);
+                Arrays.fill(this.buckets, base, base + shift, 0);
+                this.offset[i] -= shift;
+                k += shift;
+            }
+            // Still below the window: counted in the lowest bucket
+            if (k < 0) k = 0;
+        }
+        this.buckets[base + k] += n;
+        this.count[i] += n;
+    }
+}
@@ -0,0 +1,134 @@
+package eu.montimage.processor;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Reorder buffer of the packets of a {@link FlowTable}.
+ * Reports merged from several probes or interfaces are only roughly in time
+ * order. The packets are held for a delay of report time and released in
+ * timestamp order (then input order): a packet is released once a packet
+ * newer by more than the delay has been seen. A packet arriving after newer
+ * packets have been released (later than the delay) is released at once.
+ * <p>
+ * The packets are kept in the columns of a {@link PacketBatch}, ordered by a
+ * binary heap of their positions: a packet costs O(log n) and no allocation.
+ */
+class ReorderBuffer{
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Delay in microseconds
+    private final long delay;
+    private final Consumer<PacketRecord> out;
+    // Packets held, heap of their positions in the batch, and free positions
+    private final PacketBatch packets = new PacketBatch(INITIAL_CAPACITY);
+    private int[] heap = new int[INITIAL_CAPACITY];
+    private int size = 0;
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount = 0;
+    // Input order of the packets held
+    private long[] order = new long[INITIAL_CAPACITY];
+    private long received = 0;
+    // Newest timestamp seen, and timestamp of the last packet released
+    private long newest = Long.MIN_VALUE;
+    private long released = Long.MIN_VALUE;
+    private final PacketRecord scratch = new PacketRecord();
+    private final Metrics metrics = Metrics.get();
+
+    /**
+     * @param delay Microseconds of report time a packet is held.
+     * @param out Receives the packets released. The packet is only valid during the call.
+     */
+    ReorderBuffer(long delay, Consumer<PacketRecord> out){
+        this.delay = delay;
+        this.out = out;
+    }
+
+    /**
+     * Holds a packet, and releases the packets older than the delay.
+     */
+    void add(PacketRecord pkt){
+        if (pkt.tstamp < this.newest){
+            this.metrics.packetsReordered.increment();
+            if (pkt.tstamp < this.released) this.metrics.packetsLate.increment();
+        }
+        int position;
+        if (this.freeCount > 0){
+            position = this.free[--this.freeCount];
+            this.packets.set(position, pkt);
+        } else {
+            position = this.packets.size;
+            this.packets.add(pkt);
+            if (position == this.order.length) this.order = Arrays.copyOf(this.order, 2 * position);
+        }
+        this.order[position] = this.received++;
+        if (this.size == this.heap.length) this.heap = Arrays.copyOf(this.heap, 2 * this.size);
+        this.heap[this.size] = position;
+        this.up(this.size++);
+        this.advance(pkt.tstamp);
+    }
+
+    /**
+     * Releases the packets older than the delay at the given report time.
+     */
+    void advance(long now){
+        if (now > this.newest) this.newest = now;
+        long watermark = this.newest - this.delay;
+        while (this.size > 0 && this.packets.tstamp(this.heap[0]) < watermark) this.release();
+    }
+
+    /**
+     * Releases every packet held. Used at the end of the input.
+     */
+    void flush(){
+        while (this.size > 0) this.release();
+    }
+
+    /**
+     * @return The report time up to which every packet has been released.
+     */
+    long watermark(){
+        return this.newest - this.delay;
+    }
+
+    private void release(){
+        int position = this.heap[0];
+        this.heap[0] = this.heap[--this.size];
+        if (this.size > 0) this.down(0);
+        if (this.freeCount == this.free.length) this.free = Arrays.copyOf(this.free, 2 * this.freeCount);
+        this.free[this.freeCount++] = position;
+        this.packets.get(position, this.scratch);
+        if (this.scratch.tstamp > this.released) this.released = this.scratch.tstamp;
+        this.out.accept(this.scratch);
+    }
+
+    private boolean before(int a, int b){
+        long ta = this.packets.tstamp(a), tb = this.packets.tstamp(b);
+        return ta < tb || (ta == tb && this.order[a] < this.order[b]);
+    }
+
+    private void up(int i){
+        int position = this.heap[i];
+        while (i > 0){
+            int parent = (i - 1) >>> 1;
+            if (!this.before(position, this.heap[parent])) break;
+            this.heap[i] = this.heap[parent];
+            i = parent;
+        }
+        this.heap[i] = position;
+    }
+
+    private void down(int i){
+        int position = this.heap[i];
+        while (true){
+            int child = 2 * i + 1;
+            if (child >= this.size) break;
+            if (child + 1 < this.size && this.before(this.heap[child + 1], this.heap[child])) child++;
+            if (!this.before(this.heap[child], position)) break;
+            this.heap[i] = this.heap[child];
+            i = child;
+        }
+        this.heap[i] = position;
+    }
+}
@@ -0,0 +1,331 @@
+package eu.montimage.processor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Splits a report into chunks made of whole lines.
+ * The bytes between the position and the limit of every chunk are complete
+ * lines (the last one may lack its terminator at the end of the input), so
+ * chunks can be decoded independently from each other.
+ */
+public abstract class ReportChunker implements Closeable{
+
+    // Default size of the chunks
+    static final int MAPPED_CHUNK_SIZE = 64 << 20;
+    static final int DIRECT_CHUNK_SIZE = 4 << 20;
+
+    /**
+     * @return The next chunk, or null at the end of the input.
+     */
+    public abstract ByteBuffer next() throws IOException;
+
+    /**
+     * Gives back a chunk returned by {@link #next()} that will not be read anymore,
+     * so its memory can be reused by the following chunks. It may be called from
+     * any thread.
+     */
+    public void release(ByteBuffer chunk){ }
+
+    /**
+     * @return Number of bytes of the input consumed so far (including the
+     * starting offset, if any).
+     */
+    public abstract long getOffset();
+
+    /**
+     * Creates a chunker that memory-maps the file region by region.
+     */
+    public static ReportChunker map(FileChannel channel) throws IOException{
+        return new Mapped(channel, 0, MAPPED_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a chunker that memory-maps the file region by region, starting at the given offset.
+     * The offset must be at the start of a line.
+     */
+    public static ReportChunker map(FileChannel channel, long offset, int chunkSize) throws IOException{
+        return new Mapped(channel, offset, chunkSize);
+    }
+
+    /**
+     * Creates a chunker that reads the channel into large direct buffers.
+     */
+    public static ReportChunker read(ReadableByteChannel channel){
+        return new Direct(channel, DIRECT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a chunker that reads the channel into direct buffers of the given size.
+     */
+    public static ReportChunker read(ReadableByteChannel channel, int chunkSize){
+        return new Direct(channel, chunkSize);
+    }
+
+    /**
+     * Creates a chunker that reads the channel into direct buffers of the given size,
+     * starting at the given offset. The offset must be at the start of a line.
+     * A file is positioned at the offset, while the bytes before it are read and
+     * dropped from any other channel (e.g. a {@link Decompressor}).
+     */
+    public static ReportChunker read(ReadableByteChannel channel, long offset, int chunkSize) throws IOException{
+        if (channel instanceof FileChannel){
+            FileChannel file = (FileChannel) channel;
+            offset = Math.min(offset, file.size());
+            file.position(offset);
+        } else {
+            offset = skip(channel, offset);
+        }
+        Direct chunker = new Direct(channel, chunkSize);
+        chunker.offset = offset;
+        return chunker;
+    }
+
+    /**
+     * Creates a chunker that reads several files one after the other, as if
+     * they were a single input, starting at the given offset of the whole input.
+     * A chunk never spans two files, so a file need not end with a line terminator.
+     * @param opener Creates the chunker of each file, from the given offset of the
+     * file. The offset may be beyond the end of the (possibly decompressed) input
+     * of the file, in which case the chunker must give no chunk, and the size of
+     * the input as its offset.
+     */
+    public static ReportChunker concat(List<Path> files, long offset, Opener opener){
+        return new Concat(files, offset, opener);
+    }
+
+    /**
+     * Creates the chunker of a file of a {@link #concat(List, long, Opener) concatenation}.
+     */
+    public interface Opener{
+
+        /**
+         * @param offset Offset of the file to start from (the start of a line).
+         */
+        ReportChunker open(FileChannel channel, long offset) throws IOException;
+    }
+
+    /**
+     * Reads and drops bytes of the channel.
+     * @return The number of bytes dropped: n, or less at the end of the input.
+     */
+    private static long skip(ReadableByteChannel channel, long n) throws IOException{
+        ByteBuffer buf = ByteBuffer.allocate(64 << 10);
+        long skipped = 0;
+        while (skipped < n){
+            ((Buffer) buf).clear();
+            ((Buffer) buf).limit((int) Math.min(buf.capacity(), n - skipped));
+            int read = channel.read(buf);
+            if (read < 0) break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return The index after the last line terminator between start and end, or -1 if there is none.
+     */
+    static int lastLineEnd(ByteBuffer buf, int start, int end){
+        for (int i = end - 1; i >= start; i--){
+            if (buf.get(i) == '\n') return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Chunker over a sequence of files, each read by its own chunker.
+     */
+    private static class Concat extends ReportChunker{
+        private final List<Path> files;
+        private final Opener opener;
+        private int next = 0;
+        // Chunks may be released from other threads
+        private volatile ReportChunker current;
+        // Offset of the whole input where the current file starts
+        private long base = 0;
+        // Bytes of the input still to skip before the first chunk
+        private long skip;
+
+        Concat(List<Path> files, long offset, Opener opener){
+            this.files = files;
+            this.opener = opener;
+            this.skip = offset;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException{
+            while (true){
+                if (this.current != null){
+                    ByteBuffer chunk = this.current.next();
+                    if (chunk != null) return chunk;
+                    ReportChunker done = this.current;
+                    this.current = null;
+                    // A file before the starting offset is skipped as a whole
+                    long size = done.getOffset();
+                    this.base += size;
+                    this.skip = Math.max(0, this.skip - size);
+                    done.close();
+                }
+                if (this.next == this.files.size()) return null;
+                FileChannel channel = FileChannel.open(this.files.get(this.next++), StandardOpenOption.READ);
+                this.current = this.opener.open(channel, this.skip);
+            }
+        }
+
+        @Override
+        public void release(ByteBuffer chunk){
+            ReportChunker current = this.current;
+            if (current != null) current.release(chunk);
+        }
+
+        @Override
+        public long getOffset(){
+            ReportChunker current = this.current;
+            return current != null ? this.base + current.getOffset() : this.base;
+        }
+
+        @Override
+        public void close() throws IOException{
+            if (this.current != null) this.current.close();
+        }
+    }
+
+    /**
+     * Chunker over a memory-mapped file. Every chunk is its own mapping.
+     */
+    private static class Mapped extends ReportChunker{
+        private final FileChannel channel;
+        private final long size;
+        private final int chunkSize;
+        private long offset;
+
+        Mapped(FileChannel channel, long offset, int chunkSize) throws IOException{
+            this.channel = channel;
+            this.size = channel.size();
+            this.chunkSize = chunkSize;
+            this.offset = Math.min(offset, this.size);
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException{
+            if (this.offset >= this.size) return null;
+            long length = Math.min(this.chunkSize, this.size - this.offset);
+            while (true){
+                MappedByteBuffer region = this.channel.map(FileChannel.MapMode.READ_ONLY, this.offset, length);
+                int end = (int) length;
+                if (this.offset + length < this.size){
+                    // Cut the region at the last complete line
+                    end = lastLineEnd(region, 0, end);
+                    if (end < 0){
+                        // A single line is longer than the region: map a larger one
+                        if (length >= Integer.MAX_VALUE) throw new IOException("Line too long at offset " + this.offset);
+                        length = Math.min(Math.min(length * 2, Integer.MAX_VALUE), this.size - this.offset);
+                        continue;
+                    }
+                }
+                ((Buffer) region).limit(end);
+                this.offset += end;
+                return region;
+            }
+        }
+
+        @Override
+        public long getOffset(){
+            return this.offset;
+        }
+
+        @Override
+        public void close() throws IOException{
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Chunker over any channel. Chunks are read into direct buffers that are
+     * reused once released; the incomplete line at the end of a chunk is carried
+     * over to the start of the next one.
+     */
+    private static class Direct extends ReportChunker{
+        private final ReadableByteChannel channel;
+        // Chunks may be released from other threads
+        private final ConcurrentLinkedDeque<ByteBuffer> pool = new ConcurrentLinkedDeque<>();
+        private volatile int chunkSize;
+        private byte[] carry = new byte[0];
+        private int carried = 0;
+        private long offset = 0;
+        private boolean eof = false;
+
+        Direct(ReadableByteChannel channel, int chunkSize){
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException{
+            if (this.eof && this.carried == 0) return null;
+            ByteBuffer buf = this.take();
+            buf.put(this.carry, 0, this.carried);
+            int start = 0;
+            while (true){
+                while (!this.eof && buf.hasRemaining()){
+                    if (this.channel.read(buf) < 0) this.eof = true;
+                }
+                int filled = buf.position();
+                int end = this.eof ? filled : lastLineEnd(buf, start, filled);
+                if (end >= 0){
+                    // Keep the incomplete line for the next chunk
+                    this.carried = filled - end;
+                    if (this.carry.length < this.carried) this.carry = new byte[Math.max(this.carried, 1024)];
+                    for (int i = 0; i < this.carried; i++) this.carry[i] = buf.get(end + i);
+                    ((Buffer) buf).position(0);
+                    ((Buffer) buf).limit(end);
+                    this.offset += end;
+                    if (end == 0){
+                        this.release(buf);
+                        return null;
+                    }
+                    return buf;
+                }
+                // A single line does not fit in the buffer: use larger ones
+                start = filled;
+                this.chunkSize *= 2;
+                this.pool.clear();
+                ByteBuffer bigger = ByteBuffer.allocateDirect(this.chunkSize);
+                ((Buffer) buf).flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+        }
+
+        @Override
+        public void release(ByteBuffer chunk){
+            if (chunk.capacity() == this.chunkSize) this.pool.push(chunk);
+        }
+
+        @Override
+        public long getOffset(){
+            return this.offset;
+        }
+
+        @Override
+        public void close() throws IOException{
+            this.channel.close();
+        }
+
+        private ByteBuffer take(){
+            ByteBuffer buf = this.pool.poll();
+            if (buf == null) buf = ByteBuffer.allocateDirect(this.chunkSize);
+            ((Buffer) buf).clear();
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * An input of reports consumed on its own: a report file, an AMQP queue or a
+ * Kafka partition. A {@link FeedEngine} consumes many feeds at once, each on
+ * its own thread, and merges their packets into the same flows.
+ */
+public interface ReportFeed{
+
+    /**
+     * Hands every well-formatted line of the feed, already decoded, to the
+     * given consumer until the end of the feed or {@link #stop()}. The record
+     * is reused for the next line, so the consumer must not keep it.
+     */
+    void consume(Consumer<PacketRecord> consumer) throws IOException, InterruptedException;
+
+    /**
+     * Stops the consumption of an endless feed (queues and topics). A report
+     * file ends by itself and may ignore it.
+     */
+    void stop();
+
+    /**
+     * @return The number of lines that were not well formatted.
+     */
+    long getMalformed();
+}
@@ -0,0 +1,107 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the report files of an input given as a file, a directory or a glob.
+ * MMT probes rotate their reports into many files: they are processed one
+ * after the other in the order of their first report timestamp, so the
+ * packets of a flow spanning several files reach its flow in time order.
+ */
+public final class ReportFiles{
+
+    // Bytes read to find the first timestamp of a file
+    private static final int HEAD_SIZE = 64 << 10;
+
+    private ReportFiles(){ }
+
+    /**
+     * @param input A report file, a directory (all its '.csv', '.gz' and '.zst' files), or a glob
+     * in the file name (e.g. 'reports/*_dataoutput.csv').
+     * @param separator Separator of the report columns.
+     * @return The report files, in the order of their first timestamp (then of their name).
+     * @throws NoSuchFileException If no file matches the input.
+     */
+    public static List<Path> list(String input, String separator) throws IOException{
+        Path path = Paths.get(input);
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(path)){
+            try(DirectoryStream<Path> dir = Files.newDirectoryStream(path, "*.{csv,gz,zst}")){
+                for (Path file : dir) files.add(file);
+            }
+        } else if (isGlob(path.getFileName().toString())){
+            Path parent = path.getParent() != null ? path.getParent() : Paths.get(".");
+            try(DirectoryStream<Path> dir = Files.newDirectoryStream(parent, path.getFileName().toString())){
+                for (Path file : dir) files.add(file);
+            }
+        } else {
+            return Collections.singletonList(path);
+        }
+        files.removeIf(file -> !Files.isRegularFile(file));
+        if (files.isEmpty()) throw new NoSuchFileException(input, null, "No report file");
+        // Sort by the first timestamp of each file
+        ReportParser parser = new ReportParser(separator);
+        Map<Path, Long> first = new HashMap<>();
+        for (Path file : files) first.put(file, firstTimestamp(file, parser));
+        files.sort(Comparator.<Path>comparingLong(first::get).thenComparing(file -> file.getFileName().toString()));
+        return files;
+    }
+
+    /**
+     * @return The timestamp of the first well-formatted line in the head of
+     * the file (decompressed if needed), or Long.MAX_VALUE if there is none.
+     */
+    static long firstTimestamp(Path file, ReportParser parser) throws IOException{
+        ByteBuffer head = ByteBuffer.allocate(HEAD_SIZE);
+        boolean whole = false;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            Decompressor.Format format = Decompressor.detect(channel);
+            if (format == null){
+                while (head.hasRemaining() && !whole) whole = channel.read(head) < 0;
+            } else {
+                try(InputStream in = Decompressor.open(channel, format)){
+                    int n = 0;
+                    while (head.hasRemaining() && (n = in.read(head.array(), head.position(), head.remaining())) >= 0){
+                        ((Buffer) head).position(head.position() + n);
+                    }
+                    whole = n < 0;
+                }
+            }
+        }
+        ((Buffer) head).flip();
+        PacketRecord pkt = new PacketRecord();
+        int start = 0;
+        // The last line may be cut, unless it ends the file
+        int last = whole ? head.limit() : head.limit() - 1;
+        for (int i = 0; i <= last; i++){
+            if (i < head.limit() && head.get(i) != '\n') continue;
+            int lineEnd = i > start && head.get(i - 1) == '\r' ? i - 1 : i;
+            if (lineEnd > start && parser.parse(head, start, lineEnd, pkt)) return pkt.tstamp;
+            start = i + 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static boolean isGlob(String name){
+        for (char c : "*?[{".toCharArray()){
+            if (name.indexOf(c) >= 0) return true;
+        }
+        return false;
+    }
+}
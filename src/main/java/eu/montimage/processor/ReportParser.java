@@ -0,0 +1,290 @@
+package eu.montimage.processor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoder of the MMT report lines.
+ * A line is scanned once, byte by byte, and its columns are decoded straight
+ * into the primitive fields of a reusable {@link PacketRecord}: no String or
+ * array is created per line. Reports are ASCII, so no charset decoding is needed.
+ */
+public class ReportParser{
+
+    private static final int FNV_BASIS = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    // Number of columns of a complete report line
+    static final int COLUMNS = 20;
+    // The TLS content type (last column) is not always reported
+    static final int MIN_COLUMNS = COLUMNS - 1;
+
+    /**
+     * Reasons why a line cannot be decoded.
+     */
+    public enum Failure{
+        // Fewer columns than a report line
+        COLUMNS,
+        TIMESTAMP,
+        ADDRESS,
+        PORT,
+        // Size, TCP window, TTL or TCP flag
+        NUMBER
+    }
+
+    // Reason of the failure of each column
+    private static final Failure[] FAILURES = {
+        null, null, null, Failure.TIMESTAMP, null, null, Failure.ADDRESS, Failure.ADDRESS, Failure.PORT, Failure.PORT,
+        Failure.NUMBER, Failure.NUMBER, Failure.NUMBER, Failure.NUMBER, Failure.NUMBER, Failure.NUMBER,
+        Failure.NUMBER, Failure.NUMBER, Failure.NUMBER, null
+    };
+
+    private final byte[] separator;
+    // Decoded IP (upper and lower 64 bits)
+    private final long[] ip = new long[2];
+    // Reason of the last failure
+    private Failure failure = null;
+
+    /**
+     * @param separator Separator of the columns. It is matched literally.
+     */
+    public ReportParser(String separator){
+        this.separator = separator.getBytes(StandardCharsets.US_ASCII);
+        if (this.separator.length == 0) throw new IllegalArgumentException("Empty separator");
+    }
+
+    /**
+     * Decodes the line stored in the given range of the buffer.
+     * @param buf Buffer containing the line. It is only read with absolute gets.
+     * @param start Index of the first byte of the line.
+     * @param end Index after the last byte of the line (without the line terminator).
+     * @param rec Record where the columns are decoded.
+     * @return True if the line is well formatted. False otherwise, in which case
+     * the content of the record is undefined (see {@link #getFailure()}).
+     */
+    public boolean parse(ByteBuffer buf, int start, int end, PacketRecord rec){
+        rec.contType = -1;
+        int col = 0;
+        int pos = start;
+        while (col < COLUMNS){
+            int fieldEnd = this.nextSeparator(buf, pos, end);
+            if (!this.decode(col, buf, pos, fieldEnd, rec)){
+                this.failure = FAILURES[col];
+                return false;
+            }
+            col++;
+            if (fieldEnd == end) break;
+            pos = fieldEnd + this.separator.length;
+        }
+        if (col >= MIN_COLUMNS) return true;
+        this.failure = Failure.COLUMNS;
+        return false;
+    }
+
+    /**
+     * @return Why the last line that was not well formatted could not be decoded.
+     */
+    public Failure getFailure(){
+        return this.failure;
+    }
+
+    /**
+     * Decodes an already split line. This is the slow path used by the
+     * String-based API; it follows the same rules as the byte parser.
+     * @throws IllegalArgumentException If an IP or a numeric column is not well formatted.
+     */
+    public static void parse(String[] cols, PacketRecord rec){
+        rec.probe = hash(cols[1]);
+        rec.iface = hash(cols[2]);
+        rec.tstamp = parseTimestamp(cols[3]);
+        long[] src = IPAddress.parse(cols[6]);
+        long[] dst = IPAddress.parse(cols[7]);
+        rec.srcHi = src[0];
+        rec.srcLo = src[1];
+        rec.dstHi = dst[0];
+        rec.dstLo = dst[1];
+        rec.srcPort = Integer.parseInt(cols[8]);
+        rec.dstPort = Integer.parseInt(cols[9]);
+        final int displacement = 10;
+        rec.size = Long.parseLong(cols[displacement+0]);
+        rec.tcpwin = Long.parseLong(cols[displacement+1]);
+        rec.ttl = Long.parseLong(cols[displacement+2]);
+        rec.fin = flag(cols[displacement+3]);
+        rec.syn = flag(cols[displacement+4]);
+        rec.rst = flag(cols[displacement+5]);
+        rec.psh = flag(cols[displacement+6]);
+        rec.ack = flag(cols[displacement+7]);
+        rec.urg = flag(cols[displacement+8]);
+        rec.contType = -1;
+        try{
+            if (cols.length >= COLUMNS)
+                rec.contType = Integer.parseInt(cols[displacement+9]);
+        } catch (NumberFormatException e){ } // Nothing to do; the field has no value.
+    }
+
+    /**
+     * Parses a TCP flag: any positive count is taken as a set flag, so that
+     * every path of the packets (see {@link PacketBatch}) counts it once.
+     * @return 1 if the flag is set, 0 otherwise.
+     */
+    private static int flag(String col){
+        int value = Integer.parseInt(col);
+        if (value < 0) throw new NumberFormatException("Bad TCP flag: " + col);
+        return value > 0 ? 1 : 0;
+    }
+
+    /**
+     * Parses a 'seconds.microseconds' timestamp.
+     * @return The timestamp in microseconds.
+     */
+    public static long parseTimestamp(String stamp){
+        int dot = stamp.indexOf('.');
+        if (dot < 0) return Long.parseLong(stamp) * 1000000L;
+        long micros = 0;
+        int scale = 1000000;
+        for (int i = dot + 1; i < stamp.length() && scale > 1; i++){
+            int digit = stamp.charAt(i) - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Bad timestamp: " + stamp);
+            scale /= 10;
+            micros += digit * scale;
+        }
+        return Long.parseLong(stamp.substring(0, dot)) * 1000000L + micros;
+    }
+
+    /**
+     * @return The 32-bit FNV-1a hash of an ASCII text, used to tell the probes
+     * and the interfaces apart whatever their names.
+     */
+    static int hash(String text){
+        int h = FNV_BASIS;
+        for (int i = 0; i < text.length(); i++) h = (h ^ (text.charAt(i) & 0xff)) * FNV_PRIME;
+        return h;
+    }
+
+    private static int hash(ByteBuffer buf, int start, int end){
+        int h = FNV_BASIS;
+        for (int i = start; i < end; i++) h = (h ^ (buf.get(i) & 0xff)) * FNV_PRIME;
+        return h;
+    }
+
+    private boolean decode(int col, ByteBuffer buf, int start, int end, PacketRecord rec){
+        switch (col){
+            case 1:
+                rec.probe = hash(buf, start, end);
+                return true;
+            case 2:
+                rec.iface = hash(buf, start, end);
+                return true;
+            case 3:
+                rec.tstamp = parseTimestamp(buf, start, end);
+                return rec.tstamp >= 0;
+            case 6:
+                if (!IPAddress.parse(buf, start, end, this.ip)) return false;
+                rec.srcHi = this.ip[0];
+                rec.srcLo = this.ip[1];
+                return true;
+            case 7:
+                if (!IPAddress.parse(buf, start, end, this.ip)) return false;
+                rec.dstHi = this.ip[0];
+                rec.dstLo = this.ip[1];
+                return true;
+            case 8:
+                rec.srcPort = (int) parseNumber(buf, start, end);
+                return rec.srcPort >= 0;
+            case 9:
+                rec.dstPort = (int) parseNumber(buf, start, end);
+                return rec.dstPort >= 0;
+            case 10:
+                rec.size = parseNumber(buf, start, end);
+                return rec.size >= 0;
+            case 11:
+                rec.tcpwin = parseNumber(buf, start, end);
+                return rec.tcpwin >= 0;
+            case 12:
+                rec.ttl = parseNumber(buf, start, end);
+                return rec.ttl >= 0;
+            case 13:
+                rec.fin = flag(parseNumber(buf, start, end));
+                return rec.fin >= 0;
+            case 14:
+                rec.syn = flag(parseNumber(buf, start, end));
+                return rec.syn >= 0;
+            case 15:
+                rec.rst = flag(parseNumber(buf, start, end));
+                return rec.rst >= 0;
+            case 16:
+                rec.psh = flag(parseNumber(buf, start, end));
+                return rec.psh >= 0;
+            case 17:
+                rec.ack = flag(parseNumber(buf, start, end));
+                return rec.ack >= 0;
+            case 18:
+                rec.urg = flag(parseNumber(buf, start, end));
+                return rec.urg >= 0;
+            case 19:
+                // The field may have no value: the line is still valid
+                rec.contType = (int) parseNumber(buf, start, end);
+                return true;
+            default:
+                // Columns not used by the flows
+                return true;
+        }
+    }
+
+    private int nextSeparator(ByteBuffer buf, int pos, int end){
+        final byte first = this.separator[0];
+        final int last = end - this.separator.length;
+        for (int i = pos; i <= last; i++){
+            if (buf.get(i) != first) continue;
+            int j = 1;
+            while (j < this.separator.length && buf.get(i + j) == this.separator[j]) j++;
+            if (j == this.separator.length) return i;
+        }
+        return end;
+    }
+
+    /**
+     * Parses a non-negative decimal number.
+     * @return The number, or -1 if the field is empty or not a number.
+     */
+    private static long parseNumber(ByteBuffer buf, int start, int end){
+        if (start >= end || end - start > 18) return -1;
+        long value = 0;
+        for (int i = start; i < end; i++){
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return 1 if the flag is set, 0 if not, or -1 if the field is not a number.
+     */
+    private static int flag(long value){
+        return value > 0 ? 1 : (int) value;
+    }
+
+    /**
+     * Parses a 'seconds.microseconds' timestamp.
+     * @return The timestamp in microseconds, or -1 if it is not well formatted.
+     */
+    private static long parseTimestamp(ByteBuffer buf, int start, int end){
+        int dot = start;
+        while (dot < end && buf.get(dot) != '.') dot++;
+        long seconds = parseNumber(buf, start, dot);
+        if (seconds < 0) return -1;
+        long micros = 0;
+        int scale = 1000000;
+        for (int i = dot + 1; i < end; i++){
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) return -1;
+            // Digits beyond the microsecond are ignored
+            if (scale > 1){
+                scale /= 10;
+                micros += digit * scale;
+            }
+        }
+        return seconds * 1000000L + micros;
+    }
+}
@@ -0,0 +1,108 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Reads MMT report lines as raw bytes and decodes them with a {@link ReportParser}.
+ * The same {@link PacketRecord} is used for every line. A reader is not thread
+ * safe: use one reader per thread.
+ */
+public class ReportReader{
+
+    private final ReportParser parser;
+    private final PacketRecord record = new PacketRecord();
+    // Lines that could not be decoded, in total and by reason
+    private long malformed = 0;
+    private final long[] failures = new long[ReportParser.Failure.values().length];
+    private final Metrics metrics = Metrics.get();
+    // Lines decoded in the current chunk
+    private long lines;
+    private long packets;
+
+    public ReportReader(ReportParser parser){
+        this.parser = parser;
+    }
+
+    /**
+     * Reads the whole input and hands every well-formatted line to the consumer.
+     * The record given to the consumer is reused for the next line.
+     */
+    public void read(ReportChunker chunker, Consumer<PacketRecord> consumer) throws IOException{
+        this.read(chunker, consumer, offset -> { });
+    }
+
+    /**
+     * Reads the whole input and hands every well-formatted line to the consumer.
+     * @param afterChunk Called after the lines of every chunk, with the offset
+     * of the input consumed so far (see {@link ReportChunker#getOffset()}).
+     */
+    public void read(ReportChunker chunker, Consumer<PacketRecord> consumer, LongConsumer afterChunk) throws IOException{
+        ByteBuffer chunk;
+        long chunkSeq = 0;
+        while ((chunk = chunker.next()) != null){
+            this.readChunk(chunk, chunkSeq++, consumer);
+            chunker.release(chunk);
+            afterChunk.accept(chunker.getOffset());
+        }
+    }
+
+    /**
+     * Decodes all the lines between the position and the limit of the chunk.
+     * The chunk itself is not modified.
+     * @param chunkSeq Sequence number of the chunk in the input. It is used to
+     * give every record its position in the input.
+     */
+    public void readChunk(ByteBuffer chunk, long chunkSeq, Consumer<PacketRecord> consumer){
+        final long start = System.nanoTime();
+        this.lines = 0;
+        this.packets = 0;
+        final int limit = chunk.limit();
+        long seq = chunkSeq << 32;
+        int lineStart = chunk.position();
+        for (int i = lineStart; i < limit; i++){
+            if (chunk.get(i) != '\n') continue;
+            this.record.seq = seq++;
+            this.decodeLine(chunk, lineStart, i, consumer);
+            lineStart = i + 1;
+        }
+        // The last line may have no line terminator
+        if (lineStart < limit){
+            this.record.seq = seq;
+            this.decodeLine(chunk, lineStart, limit, consumer);
+        }
+        this.metrics.linesRead.add(this.lines);
+        this.metrics.packets.add(this.packets);
+        this.metrics.chunkLatency.recordSince(start);
+    }
+
+    /**
+     * @return The number of lines that were not well formatted.
+     */
+    public long getMalformed(){
+        return this.malformed;
+    }
+
+    /**
+     * @return The number of lines that could not be decoded for the given reason.
+     */
+    public long getMalformed(ReportParser.Failure reason){
+        return this.failures[reason.ordinal()];
+    }
+
+    private void decodeLine(ByteBuffer chunk, int start, int end, Consumer<PacketRecord> consumer){
+        if (end > start && chunk.get(end - 1) == '\r') end--;
+        if (end == start) return;
+        this.lines++;
+        if (this.parser.parse(chunk, start, end, this.record)){
+            this.packets++;
+            consumer.accept(this.record);
+        } else {
+            this.malformed++;
+            this.failures[this.parser.getFailure().ordinal()]++;
+            this.metrics.parseFailed(this.parser.getFailure());
+        }
+    }
+}
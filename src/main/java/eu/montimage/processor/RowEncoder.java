@@ -0,0 +1,42 @@
+package eu.montimage.processor;
+
+/**
+ * Receives the columns of a flow row, one by one and in order (see
+ * {@link Flow#encode(RowEncoder)}). The values are given as the primitives
+ * they are computed from, so an encoder can format them without creating
+ * any String.
+ */
+public interface RowEncoder{
+
+    /**
+     * A packed IP address (see {@link IPAddress}).
+     */
+    void ip(long hi, long lo);
+
+    /**
+     * An integer value.
+     */
+    void integer(long value);
+
+    /**
+     * A rate computed in single precision: (float) count / (float) seconds.
+     */
+    void rate(long count, double seconds);
+
+    /**
+     * A ratio computed in double precision: (double) part / (double) total.
+     * It is NaN when the total is 0.
+     */
+    void ratio(long part, long total);
+
+    /**
+     * A value computed in double precision (averages, deviations, percentiles).
+     * It may be NaN.
+     */
+    void real(double value);
+
+    /**
+     * The end of the row.
+     */
+    void end();
+}
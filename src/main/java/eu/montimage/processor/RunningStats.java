@@ -0,0 +1,48 @@
+package eu.montimage.processor;
+
+/**
+ * Single-pass mean and variance (Welford's algorithm) kept in primitive
+ * columns: the accumulator at index i is made of mean[i] and m2[i] (sum of
+ * the squared differences to the mean), the number of values being kept by
+ * the caller. Updates cost O(1) and are numerically stable, unlike running
+ * integer averages.
+ */
+final class RunningStats{
+
+    private RunningStats(){ }
+
+    /**
+     * Adds a value to the accumulator at index i.
+     * @param n Number of values, including the new one.
+     */
+    static void add(double[] mean, double[] m2, int i, long n, double x){
+        double delta = x - mean[i];
+        mean[i] += delta / n;
+        m2[i] += delta * (x - mean[i]);
+    }
+
+    /**
+     * Merges the accumulator (mean2, m22) of n2 values into the one at index i,
+     * which holds n1 values (Chan et al.).
+     */
+    static void merge(double[] mean, double[] m2, int i, long n1, double mean2, double m22, long n2){
+        if (n2 == 0) return;
+        if (n1 == 0){
+            mean[i] = mean2;
+            m2[i] = m22;
+            return;
+        }
+        double n = n1 + n2;
+        double delta = mean2 - mean[i];
+        mean[i] += delta * n2 / n;
+        m2[i] += m22 + delta * delta * ((double) n1 * n2 / n);
+    }
+
+    /**
+     * @return The population standard deviation of n values, NaN if there is none.
+     */
+    static double std(double m2, long n){
+        if (n == 0) return Double.NaN;
+        return Math.sqrt(m2 / n);
+    }
+}
@@ -0,0 +1,349 @@
+package eu.montimage.processor;
+
+import java.math.BigInteger;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formats doubles and floats as Double.toString and Float.toString do since
+ * Java 19: the shortest decimal that rounds to the value (the Schubfach
+ * algorithm of R. Giulietti), in plain notation from 10^-3 to 10^7 and in
+ * computerized scientific notation otherwise. The text is written straight
+ * into a buffer, without creating any object. The JDKs before Java 19
+ * sometimes give more digits than needed: the text is then shorter than
+ * theirs, and still parses to the same value.
+ */
+final class ShortestDecimal{
+
+    /**
+     * Maximal length of the text of a value (e.g. -2.2250738585072014E-308).
+     */
+    static final int MAX_LENGTH = 24;
+
+    // Table of the powers of 10: g(k) = floor(10^-k 2^-r) + 1, with r = flog2pow10(-k) - 125,
+    // on 126 bits split into its 63 high bits and its 63 low bits
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+    private static final long MASK_63 = (1L << 63) - 1;
+    private static final long MASK_32 = (1L << 32) - 1;
+    private static final long[] POW10 = new long[19];
+    // Doubles: precision, smallest exponent, smallest significand of a normal value,
+    // and smallest significand of a subnormal value that keeps all its digits
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << 52;
+    private static final long C_TINY = 3;
+    // Same for the floats
+    private static final int FLOAT_P = 24;
+    private static final int FLOAT_Q_MIN = -149;
+    private static final int FLOAT_C_MIN = 1 << 23;
+    private static final int FLOAT_C_TINY = 8;
+    private static final byte[] NAN = "NaN".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INFINITY = "Infinity".getBytes(StandardCharsets.US_ASCII);
+
+    static{
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) POW10[i] = 10 * POW10[i - 1];
+        for (int k = K_MIN; k <= K_MAX; k++){
+            int r = flog2pow10(-k) - 125;
+            BigInteger num = k <= 0 ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+            BigInteger den = k > 0 ? BigInteger.TEN.pow(k) : BigInteger.ONE;
+            if (r < 0) num = num.shiftLeft(-r);
+            else den = den.shiftLeft(r);
+            BigInteger g = num.divide(den).add(BigInteger.ONE);
+            G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+            G[2 * (k - K_MIN) + 1] = g.longValue() & MASK_63;
+        }
+    }
+
+    private ShortestDecimal(){
+    }
+
+    /**
+     * @return The text of the value, as Double.toString.
+     */
+    static String toString(double value){
+        ByteBuffer buf = ByteBuffer.allocate(MAX_LENGTH);
+        put(buf, value);
+        return new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return The text of the value, as Float.toString.
+     */
+    static String toString(float value){
+        ByteBuffer buf = ByteBuffer.allocate(MAX_LENGTH);
+        put(buf, value);
+        return new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes the text of the value, as Double.toString, at the position of the buffer.
+     */
+    static void put(ByteBuffer out, double value){
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & (C_MIN - 1);
+        int bq = (int) (bits >>> (P - 1)) & 0x7FF;
+        if (bq == 0x7FF){
+            if (t != 0) out.put(NAN);
+            else putInfinity(out, bits < 0);
+            return;
+        }
+        if (bits < 0) out.put((byte) '-');
+        if (bq != 0){
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            // An integer: its own digits
+            if (0 < mq && mq < P){
+                long f = c >> mq;
+                if (f << mq == c){
+                    putDecimal(out, f, 0);
+                    return;
+                }
+            }
+            toDecimal(out, -mq, c, 0);
+        } else if (t != 0){
+            if (t < C_TINY) toDecimal(out, Q_MIN, 10 * t, -1);
+            else toDecimal(out, Q_MIN, t, 0);
+        } else {
+            out.put((byte) '0').put((byte) '.').put((byte) '0');
+        }
+    }
+
+    /**
+     * Writes the text of the value, as Float.toString, at the position of the buffer.
+     */
+    static void put(ByteBuffer out, float value){
+        int bits = Float.floatToRawIntBits(value);
+        int t = bits & (FLOAT_C_MIN - 1);
+        int bq = (bits >>> (FLOAT_P - 1)) & 0xFF;
+        if (bq == 0xFF){
+            if (t != 0) out.put(NAN);
+            else putInfinity(out, bits < 0);
+            return;
+        }
+        if (bits < 0) out.put((byte) '-');
+        if (bq != 0){
+            int mq = -FLOAT_Q_MIN + 1 - bq;
+            int c = FLOAT_C_MIN | t;
+            if (0 < mq && mq < FLOAT_P){
+                int f = c >> mq;
+                if (f << mq == c){
+                    putDecimal(out, f, 0);
+                    return;
+                }
+            }
+            toFloatDecimal(out, -mq, c, 0);
+        } else if (t != 0){
+            if (t < FLOAT_C_TINY) toFloatDecimal(out, FLOAT_Q_MIN, 10 * t, -1);
+            else toFloatDecimal(out, FLOAT_Q_MIN, t, 0);
+        } else {
+            out.put((byte) '0').put((byte) '.').put((byte) '0');
+        }
+    }
+
+    /**
+     * Writes the shortest decimal of c 2^q: among the decimals rounding to it,
+     * the one with the fewest digits, and the closest one if several have as few.
+     * @param dk Power of 10 c was multiplied by.
+     */
+    private static void toDecimal(ByteBuffer out, int q, long c, int dk){
+        int odd = (int) c & 1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN){
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // The value below is closer than the value above
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+        long g1 = G[2 * (k - K_MIN)];
+        long g0 = G[2 * (k - K_MIN) + 1];
+        // The value and the bounds of its rounding interval, times 4 10^-k
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+        long s = vb >> 2;
+        if (s >= 100){
+            // One digit less, if a multiple of 10 is in the interval
+            long sp10 = s / 10 * 10;
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + odd <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + odd <= vbr;
+            if (upin != wpin){
+                putDecimal(out, upin ? sp10 : tp10, k + dk);
+                return;
+            }
+        }
+        long t = s + 1;
+        boolean uin = vbl + odd <= s << 2;
+        boolean win = (t << 2) + odd <= vbr;
+        if (uin != win){
+            putDecimal(out, uin ? s : t, k + dk);
+            return;
+        }
+        // Both are in the interval: the closest one, the even one on a tie
+        long cmp = vb - (s + t << 1);
+        putDecimal(out, cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk);
+    }
+
+    /**
+     * {@link #toDecimal(ByteBuffer, int, long, int)} for a float.
+     */
+    private static void toFloatDecimal(ByteBuffer out, int q, int c, int dk){
+        int odd = c & 1;
+        long cb = (long) c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != FLOAT_C_MIN || q == FLOAT_Q_MIN){
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 33;
+        long g = G[2 * (k - K_MIN)] + 1;
+        int vb = rop(g, cb << h);
+        int vbl = rop(g, cbl << h);
+        int vbr = rop(g, cbr << h);
+        int s = vb >> 2;
+        if (s >= 100){
+            int sp10 = s / 10 * 10;
+            int tp10 = sp10 + 10;
+            boolean upin = vbl + odd <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + odd <= vbr;
+            if (upin != wpin){
+                putDecimal(out, upin ? sp10 : tp10, k + dk);
+                return;
+            }
+        }
+        int t = s + 1;
+        boolean uin = vbl + odd <= s << 2;
+        boolean win = (t << 2) + odd <= vbr;
+        if (uin != win){
+            putDecimal(out, uin ? s : t, k + dk);
+            return;
+        }
+        int cmp = vb - (s + t << 1);
+        putDecimal(out, cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk);
+    }
+
+    /**
+     * @return g cp 2^-127, rounded to odd (g = g1 2^63 + g0).
+     */
+    private static long rop(long g1, long g0, long cp){
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /**
+     * @return g cp 2^-95, rounded to odd.
+     */
+    private static int rop(long g, long cp){
+        long x1 = multiplyHigh(g, cp);
+        long vbp = x1 >>> 31;
+        return (int) (vbp | (x1 & MASK_32) + MASK_32 >>> 32);
+    }
+
+    /**
+     * Writes f 10^e, f > 0, in the notation of Double.toString.
+     */
+    private static void putDecimal(ByteBuffer out, long f, int e){
+        while (f % 10 == 0){
+            f /= 10;
+            e++;
+        }
+        int len = 1;
+        while (len < POW10.length && f >= POW10[len]) len++;
+        // The value is 0.f 10^exp
+        int exp = e + len;
+        if (0 < exp && exp <= 7){
+            if (len <= exp){
+                putDigits(out, f, len);
+                for (int i = len; i < exp; i++) out.put((byte) '0');
+                out.put((byte) '.').put((byte) '0');
+            } else {
+                long p = POW10[len - exp];
+                putDigits(out, f / p, exp);
+                out.put((byte) '.');
+                putDigits(out, f % p, len - exp);
+            }
+        } else if (-3 < exp && exp <= 0){
+            out.put((byte) '0').put((byte) '.');
+            for (int i = exp; i < 0; i++) out.put((byte) '0');
+            putDigits(out, f, len);
+        } else {
+            long p = POW10[len - 1];
+            putDigits(out, f / p, 1);
+            out.put((byte) '.');
+            if (len > 1) putDigits(out, f % p, len - 1);
+            else out.put((byte) '0');
+            out.put((byte) 'E');
+            int x = exp - 1;
+            if (x < 0){
+                out.put((byte) '-');
+                x = -x;
+            }
+            putDigits(out, x, x >= 100 ? 3 : x >= 10 ? 2 : 1);
+        }
+    }
+
+    /**
+     * Writes the given number of the last decimal digits of a value, with leading zeros.
+     */
+    private static void putDigits(ByteBuffer out, long value, int digits){
+        int end = out.position() + digits;
+        for (int i = end - 1; i >= end - digits; i--){
+            out.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        ((Buffer) out).position(end);
+    }
+
+    private static void putInfinity(ByteBuffer out, boolean negative){
+        if (negative) out.put((byte) '-');
+        out.put(INFINITY);
+    }
+
+    // floor(log10(2^e)), floor(log10(3/4 2^e)) and floor(log2(10^e)), for |e| small enough
+    private static int flog10pow2(int e){
+        return (int) (e * 661971961083L >> 41);
+    }
+
+    private static int flog10threeQuartersPow2(int e){
+        return (int) (e * 661971961083L + -274743187321L >> 41);
+    }
+
+    private static int flog2pow10(int e){
+        return (int) (e * 913124641741L >> 38);
+    }
+
+    /**
+     * @return The high 64 bits of the 128-bit product of x and y (Math.multiplyHigh of Java 9).
+     */
+    private static long multiplyHigh(long x, long y){
+        long x1 = x >> 32;
+        long x2 = x & MASK_32;
+        long y1 = y >> 32;
+        long y2 = y & MASK_32;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = t & MASK_32;
+        long z0 = t >> 32;
+        z1 += x2 * y1;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+}
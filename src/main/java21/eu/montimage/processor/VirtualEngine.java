@@ -0,0 +1,178 @@
+package eu.montimage.processor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Java 21 implementation of the {@link FeedEngine}.
+ * Every feed and every shard is a virtual thread, forked in a structured task
+ * scope: the feeds in a scope of their own, which ends the shards once all of
+ * them are over. The first failure cancels every other task, and nothing
+ * outlives {@link #process(List, FlowTable[])}. A feed blocked on its queue,
+ * its broker or its file only parks its virtual thread, so hundreds of feeds
+ * cost a few carrier threads.
+ * <p>
+ * A feed splits its packets by shard into batches, sent when they are full,
+ * when 100 ms have passed since the last sending, and at the end of the feed.
+ * The flows of a shard are expired up to the oldest time up to which the
+ * feeds have handed all their packets to the shards, so a feed lagging
+ * behind, or holding packets in its batches, does not see its flows time out.
+ * A feed that has not handed any packet yet (e.g. still connecting to its
+ * broker) holds back the expiry of every flow until it does, or until it is over.
+ */
+public class VirtualEngine implements FeedEngine{
+
+    // Batches queued per shard before the feeds block, and packets per batch
+    private static final int SHARD_QUEUE = 16;
+    private static final int BATCH_SIZE = 1024;
+    // Nanoseconds a feed keeps its batches before sending them
+    private static final long BATCH_DELAY = 100_000_000L;
+    // Batch marking the end of the feeds
+    private static final PacketBatch END = new PacketBatch(1);
+    // Delivery time of a feed over, and of a feed with no packet delivered yet
+    private static final long SILENT = Long.MAX_VALUE;
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private final ConcurrentLinkedQueue<PacketBatch> batchPool = new ConcurrentLinkedQueue<>();
+
+    private ThreadFactory threadFactory(){
+        return Thread.ofVirtual().name("feed-engine-", 0).factory();
+    }
+
+    @Override
+    public void process(List<ReportFeed> feeds, FlowTable[] shards) throws IOException, InterruptedException{
+        List<BlockingQueue<PacketBatch>> queues = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) queues.add(new ArrayBlockingQueue<>(SHARD_QUEUE));
+        // Time up to which each feed has handed all its packets to the shards
+        AtomicLongArray delivered = new AtomicLongArray(feeds.size());
+        for (int i = 0; i < feeds.size(); i++) delivered.set(i, NOT_STARTED);
+        Metrics.get().setShardQueues(() -> queues.stream().mapToLong(BlockingQueue::size).sum());
+        try(StructuredTaskScope.ShutdownOnFailure scope = new StructuredTaskScope.ShutdownOnFailure("feed-engine", this.threadFactory())){
+            for (int i = 0; i < shards.length; i++){
+                FlowTable shard = shards[i];
+                BlockingQueue<PacketBatch> queue = queues.get(i);
+                scope.fork(() -> this.runShard(shard, queue));
+            }
+            scope.fork(() -> {
+                try(StructuredTaskScope.ShutdownOnFailure inputs = new StructuredTaskScope.ShutdownOnFailure("feeds", this.threadFactory())){
+                    for (int i = 0; i < feeds.size(); i++){
+                        int index = i;
+                        inputs.fork(() -> this.runFeed(index, feeds.get(index), queues, delivered));
+                    }
+                    inputs.join().throwIfFailed();
+                }
+                for (BlockingQueue<PacketBatch> queue : queues) queue.put(END);
+                return null;
+            });
+            scope.join().throwIfFailed();
+        } catch (ExecutionException e){
+            // The failure of the feeds comes wrapped by their own scope
+            Throwable failure = e.getCause() instanceof ExecutionException ? e.getCause().getCause() : e.getCause();
+            if (failure instanceof IOException io) throw io;
+            throw new IllegalStateException("Feed processing failed", failure);
+        } finally {
+            Metrics.get().setShardQueues(() -> 0);
+        }
+    }
+
+    /**
+     * Consumes a feed and sends its packets to the shards of their flows.
+     */
+    private Void runFeed(int index, ReportFeed feed, List<BlockingQueue<PacketBatch>> queues, AtomicLongArray delivered) throws IOException, InterruptedException{
+        PacketBatch[] batches = new PacketBatch[queues.size()];
+        // Packets and newest timestamp of the feed, and time of the last sending of all the batches
+        long[] packets = {0};
+        long[] newest = {SILENT};
+        long[] sent = {System.nanoTime()};
+        try{
+            feed.consume(pkt -> {
+                if (newest[0] == SILENT || pkt.tstamp > newest[0]) newest[0] = pkt.tstamp;
+                int shard = ParallelEngine.shardOf(pkt, batches.length);
+                if (batches[shard] == null) batches[shard] = this.takeBatch();
+                batches[shard].add(pkt);
+                if (batches[shard].size == BATCH_SIZE){
+                    this.send(shard, batches, queues, delivered);
+                    this.deliver(index, batches, newest[0], delivered);
+                } else if ((++packets[0] & 0xff) == 0 && System.nanoTime() - sent[0] > BATCH_DELAY){
+                    for (int i = 0; i < batches.length; i++) this.send(i, batches, queues, delivered);
+                    this.deliver(index, batches, newest[0], delivered);
+                    sent[0] = System.nanoTime();
+                }
+            });
+            for (int i = 0; i < batches.length; i++) this.send(i, batches, queues, delivered);
+        } finally {
+            delivered.set(index, SILENT);
+        }
+        if (feed.getMalformed() > 0) System.err.println("Number of malformed lines skipped by feed " + index + ": " + feed.getMalformed());
+        return null;
+    }
+
+    /**
+     * Sends the batch of a shard, if any, with the time up to which its flows can be expired.
+     */
+    private void send(int shard, PacketBatch[] batches, List<BlockingQueue<PacketBatch>> queues, AtomicLongArray delivered){
+        PacketBatch batch = batches[shard];
+        if (batch == null) return;
+        batches[shard] = null;
+        long watermark = SILENT;
+        for (int i = 0; i < delivered.length(); i++) watermark = Math.min(watermark, delivered.get(i));
+        // SILENT while a feed has not delivered its packets yet: the flows are not expired
+        batch.maxTstamp = watermark == NOT_STARTED ? SILENT : watermark;
+        try{
+            queues.get(shard).put(batch);
+        } catch (InterruptedException e){
+            // The scope is shutting down
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Feed interrupted");
+        }
+    }
+
+    /**
+     * Publishes the time up to which a feed has handed all its packets to the
+     * shards: just before the oldest packet still in its batches, if any. The
+     * packets of a feed are in time order.
+     */
+    private void deliver(int index, PacketBatch[] batches, long newest, AtomicLongArray delivered){
+        long time = newest;
+        for (PacketBatch batch : batches){
+            if (batch != null) time = Math.min(time, batch.tstamp(0) - 1);
+        }
+        delivered.set(index, time);
+    }
+
+    /**
+     * Logs the packets routed to a shard until the end of the feeds.
+     */
+    private Void runShard(FlowTable shard, BlockingQueue<PacketBatch> queue) throws InterruptedException{
+        PacketRecord pkt = new PacketRecord();
+        while (true){
+            PacketBatch batch = queue.take();
+            if (batch == END) break;
+            long start = System.nanoTime();
+            for (int i = 0; i < batch.size; i++){
+                batch.get(i, pkt);
+                shard.logPkg(pkt);
+            }
+            if (batch.maxTstamp != SILENT) shard.expire(batch.maxTstamp);
+            batch.clear();
+            this.batchPool.offer(batch);
+            Metrics.get().batchLatency.recordSince(start);
+        }
+        shard.flush();
+        return null;
+    }
+
+    private PacketBatch takeBatch(){
+        PacketBatch batch = this.batchPool.poll();
+        return batch != null ? batch : new PacketBatch(BATCH_SIZE);
+    }
+}
@@ -0,0 +1,90 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+class AmqpSourceTest{
+
+    private static final int MESSAGES = 6;
+
+    private Channel channel;
+    private final List<Long> tstamps = new ArrayList<>();
+
+    @BeforeEach
+    void broker() throws Exception{
+        this.channel = mock(Channel.class);
+        when(this.channel.isOpen()).thenReturn(true);
+    }
+
+    @Test
+    void acknowledgesTheProcessedMessagesInBatches() throws Exception{
+        AmqpSource source = this.deliverAll(8);
+        source.consume(pkt -> this.tstamps.add(pkt.tstamp));
+        assertEquals(MESSAGES, this.tstamps.size());
+        // Half the prefetch count at a time, then the rest once the buffer is empty
+        InOrder order = inOrder(this.channel);
+        order.verify(this.channel).basicQos(8);
+        order.verify(this.channel).basicAck(4, true);
+        order.verify(this.channel).basicAck(6, true);
+        order.verify(this.channel).basicCancel("consumer");
+        verify(this.channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void requeuesTheMessagesNotAcknowledgedOnAFailure() throws Exception{
+        AmqpSource source = this.deliverAll(8);
+        assertThrows(IllegalStateException.class, () -> source.consume(pkt -> {
+            if (this.tstamps.size() == 4) throw new IllegalStateException("Flow table failure");
+            this.tstamps.add(pkt.tstamp);
+        }));
+        // The failed message and the ones still in the buffer go back to the broker
+        InOrder order = inOrder(this.channel);
+        order.verify(this.channel).basicAck(4, true);
+        order.verify(this.channel).basicCancel("consumer");
+        order.verify(this.channel).basicNack(6, true, true);
+        verify(this.channel, never()).basicAck(6, true);
+    }
+
+    /**
+     * Stands for a broker holding the messages: they are all delivered as soon
+     * as the source starts consuming, followed by a stop of the source.
+     */
+    private AmqpSource deliverAll(int prefetch) throws Exception{
+        AmqpSource source = new AmqpSource(this.channel, "reports", prefetch, ",");
+        when(this.channel.basicConsume(eq("reports"), eq(false), any(Consumer.class))).thenAnswer(invocation -> {
+            Consumer consumer = invocation.getArgument(2);
+            for (int tag = 1; tag <= MESSAGES; tag++){
+                byte[] body = line(tag).getBytes(StandardCharsets.US_ASCII);
+                consumer.handleDelivery("consumer", new Envelope(tag, false, "", "reports"), null, body);
+            }
+            source.stop();
+            return "consumer";
+        });
+        return source;
+    }
+
+    private static String line(int second){
+        return "100,3,2," + (1530000000 + second) + ".000000,0,tcp,10.0.0.1,192.168.1.1,1024,80,100,1000,64,0,0,0,0,1,0,21\n";
+    }
+}
@@ -0,0 +1,123 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CheckpointTest{
+
+    private static final String SETTINGS = "t=0,m=0,d=0,L=0,s=,";
+    private static final long IDLE_TIMEOUT = 20000000;
+    // Packets between two checkpoints
+    private static final int INTERVAL = 100;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void refusesToResumeWithOtherSettingsOrAnotherInput() throws IOException{
+        Path report = this.directory.resolve("report.csv");
+        Files.write(report, "100,3,2\n".getBytes(StandardCharsets.US_ASCII));
+        List<Path> input = Collections.singletonList(report);
+        Path path = this.directory.resolve("checkpoint");
+        new Checkpoint(path, 0, Features.BASE, 0, 0, 1, input, SETTINGS).close();
+        // Same run
+        Checkpoint same = new Checkpoint(path, 0, Features.BASE, 0, 0, 1, input, SETTINGS);
+        assertFalse(same.isResumed());
+        same.close();
+        assertThrows(IOException.class, () -> new Checkpoint(path, 0, Features.BASE, 0, 0, 1, input, "t=1000000,m=0,d=0,L=0,s=,"));
+        assertThrows(IOException.class, () -> new Checkpoint(path, 0, Features.EXTENDED, 0, 0, 1, input, SETTINGS));
+        assertThrows(IOException.class, () -> new Checkpoint(path, 0, Features.BASE, 0, 0, 2, input, SETTINGS));
+        Path other = this.directory.resolve("other.csv");
+        Files.copy(report, other);
+        assertThrows(IOException.class, () -> new Checkpoint(path, 0, Features.BASE, 0, 0, 1, Collections.singletonList(other), SETTINGS));
+        // The report grew since the checkpoint
+        Files.write(report, "100,3,2\n".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+        assertThrows(IOException.class, () -> new Checkpoint(path, 0, Features.BASE, 0, 0, 1, input, SETTINGS));
+    }
+
+    @Test
+    void resumesAnInterruptedRunWithTheRowsOfAnUninterruptedOne() throws IOException{
+        List<PacketRecord> packets = FlowWriterTest.randomPackets(300, 30000);
+        List<Path> input = Collections.singletonList(Files.write(this.directory.resolve("report.csv"), new byte[1]));
+        Path reference = this.directory.resolve("reference.csv");
+        FlowWriter writer = new FlowWriter(reference, false, Features.EXTENDED, null, -1);
+        FlowTable table = new FlowTable(IDLE_TIMEOUT, 0, 0, 0, Features.EXTENDED, writer);
+        for (PacketRecord pkt : packets) table.logPkg(pkt);
+        table.flush();
+        writer.close();
+        // Killed twice between two checkpoints, after a checkpoint torn while it was written
+        Path output = this.directory.resolve("flows.csv");
+        Path path = this.directory.resolve("checkpoint");
+        assertTrue(this.run(packets, 11111, input, output, path), "the log is never compacted");
+        tear(path);
+        this.run(packets, 20333, input, output, path);
+        tear(path);
+        Checkpoint checkpoint = new Checkpoint(path, 0, Features.EXTENDED, 0, 0, 1, input, SETTINGS);
+        assertTrue(checkpoint.isResumed());
+        assertEquals(20300, checkpoint.getInputOffset());
+        checkpoint.close();
+        this.run(packets, packets.size(), input, output, path);
+        assertEquals(sorted(reference), sorted(output));
+    }
+
+    /**
+     * Processes the packets from the last checkpoint up to the given one,
+     * taking a checkpoint every {@link #INTERVAL} packets, then stops as if
+     * killed, unless it reached the end of the input.
+     * @return True if the log was rewritten smaller meanwhile.
+     */
+    private boolean run(List<PacketRecord> packets, int end, List<Path> input, Path output, Path path) throws IOException{
+        Checkpoint checkpoint = new Checkpoint(path, 0, Features.EXTENDED, 0, 0, 1, input, SETTINGS);
+        FlowWriter writer = new FlowWriter(output, false, Features.EXTENDED, null, checkpoint.getOutputSize());
+        checkpoint.setWriter(writer);
+        FlowTable table = new FlowTable(IDLE_TIMEOUT, 0, 0, 0, Features.EXTENDED, writer);
+        checkpoint.restore(new FlowTable[]{table});
+        boolean compacted = false;
+        long logSize = Files.size(path);
+        for (int i = (int) checkpoint.getInputOffset(); i < end; i++){
+            table.logPkg(packets.get(i));
+            if ((i + 1) % INTERVAL == 0 && checkpoint.due()){
+                checkpoint.collect(0, table);
+                checkpoint.commit(i + 1);
+                long size = Files.size(path);
+                compacted |= size < logSize;
+                logSize = size;
+            }
+        }
+        if (end == packets.size()) table.flush();
+        // The flows written since the last checkpoint stay in the output of a killed run
+        writer.close();
+        checkpoint.close();
+        return compacted;
+    }
+
+    /**
+     * Appends the beginning of an epoch to the log, as a run killed while writing it.
+     */
+    private static void tear(Path path) throws IOException{
+        ByteBuffer torn = ByteBuffer.allocate(20);
+        torn.putInt(1000).putLong(99999);
+        Files.write(path, torn.array(), StandardOpenOption.APPEND);
+    }
+
+    private static List<String> sorted(Path path) throws IOException{
+        List<String> lines = new ArrayList<>(Files.readAllLines(path, StandardCharsets.US_ASCII));
+        Collections.sort(lines);
+        return lines;
+    }
+}
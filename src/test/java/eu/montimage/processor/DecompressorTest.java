@@ -0,0 +1,191 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+class DecompressorTest{
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsTheMembersOfAGzipFileOneAfterTheOther() throws IOException{
+        byte[][] parts = {report(0, 30000), report(30000, 2), report(30002, 20000)};
+        Path path = this.dir.resolve("report.csv.gz");
+        try (OutputStream out = Files.newOutputStream(path)){
+            for (byte[] part : parts){
+                GZIPOutputStream member = new GZIPOutputStream(out);
+                member.write(part);
+                member.finish();
+            }
+        }
+        assertEquals(Decompressor.Format.GZIP, detect(path));
+        assertArrayEquals(concat(parts), read(path, Decompressor.Format.GZIP));
+    }
+
+    @Test
+    void readsTheFramesOfAZstdFileOneAfterTheOther() throws IOException{
+        byte[][] parts = {report(0, 40000), report(40000, 1), report(40001, 25000)};
+        Path path = this.dir.resolve("report.csv.zst");
+        try (OutputStream out = Files.newOutputStream(path)){
+            for (byte[] part : parts){
+                ZstdOutputStream frame = new ZstdOutputStream(new NotClosing(out));
+                frame.write(part);
+                frame.close();
+            }
+        }
+        assertEquals(Decompressor.Format.ZSTD, detect(path));
+        assertArrayEquals(concat(parts), read(path, Decompressor.Format.ZSTD));
+    }
+
+    @Test
+    void leavesThePlainFilesAlone() throws IOException{
+        Path path = this.dir.resolve("report.csv");
+        Files.write(path, report(0, 10));
+        assertNull(detect(path));
+        Files.write(path, new byte[]{0x1f});
+        assertNull(detect(path));
+        Files.write(path, new byte[0]);
+        assertNull(detect(path));
+    }
+
+    @Test
+    void failsOnACorruptedInput() throws IOException{
+        byte[] report = report(0, 30000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)){
+            out.write(report);
+        }
+        byte[] compressed = bytes.toByteArray();
+        // Truncated in the middle of the deflated data
+        Path path = this.dir.resolve("truncated.csv.gz");
+        Files.write(path, Arrays.copyOf(compressed, compressed.length / 2));
+        assertThrows(IOException.class, () -> read(path, Decompressor.Format.GZIP));
+        // Garbage in the deflated data
+        for (int i = compressed.length / 3; i < compressed.length / 3 + 64; i++) compressed[i] ^= 0x5a;
+        Files.write(path, compressed);
+        assertThrows(IOException.class, () -> read(path, Decompressor.Format.GZIP));
+    }
+
+    @Test
+    void stopsTheThreadBeforeClosingTheFile() throws IOException{
+        Path path = this.dir.resolve("report.csv.zst");
+        try (OutputStream out = new ZstdOutputStream(Files.newOutputStream(path))){
+            // More blocks than the queue holds: the thread waits for the reader
+            for (int i = 0; i < 5; i++) out.write(report(0, 30000));
+        }
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            FileChannel channel = FileChannel.open(path);
+            Decompressor in = new Decompressor(channel, Decompressor.Format.ZSTD);
+            ByteBuffer buf = ByteBuffer.allocate(1000);
+            assertEquals(1000, in.read(buf));
+            in.close();
+            assertEquals(0, decompressors());
+            assertFalse(in.isOpen());
+            assertFalse(channel.isOpen());
+            assertThrows(ClosedChannelException.class, () -> in.read(buf));
+            // Closed again, or by the thread interrupted
+            in.close();
+            Thread.currentThread().interrupt();
+            Decompressor other = new Decompressor(FileChannel.open(path), Decompressor.Format.ZSTD);
+            other.close();
+            assertTrue(Thread.interrupted());
+            assertEquals(0, decompressors());
+        });
+    }
+
+    /**
+     * @return The number of decompressor threads alive.
+     */
+    private static long decompressors(){
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().equals("decompressor") && t.isAlive()).count();
+    }
+
+    /**
+     * @return Lines of a report, from the given line on.
+     */
+    private static byte[] report(int from, int lines){
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < from + lines; i++){
+            sb.append("100,3,eth0,").append(1530000000 + i / 1000).append('.').append(i % 1000)
+              .append(",0,tcp,10.0.").append(i >>> 8 & 0xff).append('.').append(i & 0xff).append(",192.168.1.1,")
+              .append(1024 + i % 5000).append(",80,").append(40 + i % 1460).append(",65535,64,0,0,0,1,0,0,22\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[][] parts){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private static Decompressor.Format detect(Path path) throws IOException{
+        try (FileChannel channel = FileChannel.open(path)){
+            return Decompressor.detect(channel);
+        }
+    }
+
+    /**
+     * @return The decompressed file, read in reads of various sizes.
+     */
+    private static byte[] read(Path path, Decompressor.Format format) throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileChannel channel = FileChannel.open(path); Decompressor in = new Decompressor(channel, format)){
+            ByteBuffer buf = ByteBuffer.allocate(100000);
+            for (int size = 1; ; size = size * 7 % 99991 + 1){
+                ((Buffer) buf).clear().limit(size);
+                int n = in.read(buf);
+                if (n < 0) break;
+                out.write(buf.array(), 0, n);
+            }
+            assertEquals(-1, in.read(buf));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Stream whose close is left to the caller, to write several frames in a file.
+     */
+    private static final class NotClosing extends OutputStream{
+        private final OutputStream out;
+
+        NotClosing(OutputStream out){
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException{
+            this.out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            this.out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class DuplicateFilterTest{
+
+    private static final long START = 1530000000L * 1000000;
+    private static final long WINDOW = 1000;
+
+    @Test
+    void dropsThePacketSeenByAnotherCapturePointWithinTheWindow(){
+        DuplicateFilter filter = filter(2);
+        assertFalse(filter.isDuplicate(1, 0, packet(1, 1, START, 100)));
+        assertTrue(filter.isDuplicate(1, 0, packet(2, 1, START + WINDOW, 100)));
+        assertTrue(filter.isDuplicate(1, 0, packet(1, 2, START - WINDOW, 100)));
+        // Out of the window
+        assertFalse(filter.isDuplicate(1, 0, packet(2, 1, START + WINDOW + 1, 100)));
+        // Another slot, sense or signature
+        assertFalse(filter.isDuplicate(0, 0, packet(2, 1, START, 100)));
+        assertFalse(filter.isDuplicate(1, 1, packet(2, 1, START, 100)));
+        assertFalse(filter.isDuplicate(1, 0, packet(3, 1, START, 101)));
+        PacketRecord syn = packet(3, 1, START, 100);
+        syn.syn = 1;
+        assertFalse(filter.isDuplicate(1, 0, syn));
+    }
+
+    @Test
+    void keepsTheSamePacketsOfACapturePointUnlessTheLineIsRepeated(){
+        DuplicateFilter filter = filter(1);
+        assertFalse(filter.isDuplicate(0, 0, packet(1, 1, START, 100)));
+        // The same line twice
+        assertTrue(filter.isDuplicate(0, 0, packet(1, 1, START, 100)));
+        // Another packet looking the same (e.g. the ACKs of a bulk transfer)
+        assertFalse(filter.isDuplicate(0, 0, packet(1, 1, START + 1, 100)));
+    }
+
+    @Test
+    void remembersTheLastPacketsOfEveryFlow(){
+        DuplicateFilter filter = filter(2);
+        assertFalse(filter.isDuplicate(0, 0, packet(1, 1, START, 1)));
+        for (int size = 2; size <= DuplicateFilter.DEPTH; size++) assertFalse(filter.isDuplicate(0, 0, packet(1, 1, START, size)));
+        assertTrue(filter.isDuplicate(0, 0, packet(2, 1, START, 1)));
+        // The oldest packet makes room for a new one
+        assertFalse(filter.isDuplicate(0, 0, packet(1, 1, START, DuplicateFilter.DEPTH + 1)));
+        assertFalse(filter.isDuplicate(0, 0, packet(2, 1, START, 1)));
+        // A new flow in the slot forgets them
+        filter.clear(0);
+        assertFalse(filter.isDuplicate(0, 0, packet(2, 1, START, 5)));
+    }
+
+    @Test
+    void readsTheSlotsItWrote(){
+        DuplicateFilter filter = filter(2);
+        for (int size = 1; size <= 5; size++) filter.isDuplicate(1, 0, packet(1, 1, START + size, size));
+        ByteBuffer buf = ByteBuffer.allocate(filter.bytesPerSlot());
+        filter.write(1, buf);
+        assertEquals(0, buf.remaining());
+        ((Buffer) buf).flip();
+        DuplicateFilter restored = filter(1);
+        restored.grow(4);
+        restored.read(3, buf);
+        assertTrue(restored.isDuplicate(3, 0, packet(2, 1, START + 3, 3)));
+        assertFalse(restored.isDuplicate(3, 0, packet(2, 1, START + 3, 6)));
+    }
+
+    private static DuplicateFilter filter(int slots){
+        DuplicateFilter filter = new DuplicateFilter(WINDOW);
+        filter.grow(slots);
+        for (int slot = 0; slot < slots; slot++) filter.clear(slot);
+        return filter;
+    }
+
+    /**
+     * @return A packet of a flow captured by a probe and interface.
+     */
+    private static PacketRecord packet(int probe, int iface, long tstamp, long size){
+        PacketRecord pkt = Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, tstamp);
+        pkt.probe = probe;
+        pkt.iface = iface;
+        pkt.size = size;
+        return pkt;
+    }
+}
@@ -0,0 +1,144 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class FeaturesTest{
+
+    private static final long SECOND = 1000000;
+    private static final long START = 1530000000L * SECOND;
+
+    /**
+     * Number of packets of more than 1000 bytes, and largest gap between two sizes in a row.
+     */
+    private static final FlowAccumulator BIG_PACKETS = new FlowAccumulator(){
+        @Override
+        public int getColumns(){
+            return 3;
+        }
+
+        @Override
+        public void init(long[] state, int offset){
+            Arrays.fill(state, offset, offset + 3, 0);
+        }
+
+        @Override
+        public void add(long[] state, int offset, PacketRecord pkt, long packets){
+            if (pkt.getSize() > 1000) state[offset]++;
+            if (packets > 1) state[offset + 1] = Math.max(state[offset + 1], Math.abs(pkt.getSize() - state[offset + 2]));
+            state[offset + 2] = pkt.getSize();
+        }
+
+        @Override
+        public void merge(long[] state, int offset, long packets, long[] src, int srcOffset, long srcPackets){
+            state[offset] += src[srcOffset];
+            state[offset + 1] = Math.max(state[offset + 1], src[srcOffset + 1]);
+            state[offset + 2] = src[srcOffset + 2];
+        }
+    };
+
+    @BeforeAll
+    static void register(){
+        Features.register(feature("bigpkgup", 0, 0));
+        Features.register(feature("bigpkgdwn", 1, 0));
+        Features.register(feature("sizejumpup", 0, 1));
+    }
+
+    @Test
+    void computesTheFeaturesOfTheirOwn(){
+        Features features = Features.parse("portup,bigpkgup,bigpkgdwn,sizejumpup");
+        assertEquals(Collections.singleton(BIG_PACKETS), features.getOwnAccumulators());
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(0, 0, 0, 0, features, rows);
+        long[] sizes = {100, 1400, 1200, 60, 1500};
+        for (int i = 0; i < sizes.length; i++){
+            PacketRecord pkt = Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + i * SECOND);
+            pkt.size = sizes[i];
+            table.logPkg(pkt);
+        }
+        PacketRecord reply = Packets.tcp("192.168.1.1", 80, "10.0.0.1", 1024, START + 9 * SECOND);
+        reply.size = 1100;
+        table.logPkg(reply);
+        table.flush();
+        assertArrayEquals(new String[]{"1024", "0.6", "1.0", "1440"}, rows.rows.get(0));
+    }
+
+    @Test
+    void keepsTheirAccumulatorsWithTheOtherStatistics(){
+        Features features = Features.parse("bigpkgup,sizejumpup");
+        FlowStore store = new FlowStore(2, features);
+        FlowStore first = new FlowStore(1, features);
+        FlowStore second = new FlowStore(1, features);
+        store.init(1, START);
+        first.init(0, START);
+        second.init(0, START);
+        long[] sizes = {100, 1400, 1200, 60, 1500, 40};
+        for (int i = 0; i < sizes.length; i++){
+            PacketRecord pkt = Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + i);
+            pkt.size = sizes[i];
+            store.add(1, 0, pkt);
+            (i < 3 ? first : second).add(0, 0, pkt);
+        }
+        // A flow made of two parts
+        first.merge(0, second, 0);
+        for (int column = 0; column < 3; column++) assertEquals(store.get(BIG_PACKETS, 1, 0, column), first.get(BIG_PACKETS, 0, 0, column));
+        // Saved and restored (checkpoints, spills)
+        ByteBuffer buf = ByteBuffer.allocate(store.bytesPerSlot());
+        store.write(1, buf);
+        ((Buffer) buf).flip();
+        FlowStore restored = new FlowStore(1, features);
+        restored.read(0, buf);
+        assertEquals(3, restored.get(BIG_PACKETS, 0, 0, 0));
+        assertEquals(1460, restored.get(BIG_PACKETS, 0, 0, 1));
+        assertEquals(0, buf.remaining());
+    }
+
+    @Test
+    void refusesANameAlreadyInTheCatalogue(){
+        assertThrows(IllegalArgumentException.class, () -> Features.register(feature("duration", 0, 0)));
+        assertThrows(IllegalArgumentException.class, () -> Features.register(feature("bigpkgup", 0, 0)));
+        // The base and extended columns stay the same
+        assertEquals(Flow.COLUMNS, Features.BASE.size());
+        assertEquals(81, Features.EXTENDED.size());
+    }
+
+    /**
+     * @return A feature computed from a column of the big packets accumulator:
+     * the share of big packets (column 0), or the column itself.
+     */
+    private static FeatureExtractor feature(String name, int sense, int column){
+        return new FeatureExtractor(){
+            @Override
+            public String getName(){
+                return name;
+            }
+
+            @Override
+            public String getType(){
+                return "NUMERIC";
+            }
+
+            @Override
+            public Set<FlowAccumulator> getOwnAccumulators(){
+                return Collections.singleton(BIG_PACKETS);
+            }
+
+            @Override
+            public void extract(FlowID id, FlowStore store, int slot, RowEncoder out){
+                long value = store.get(BIG_PACKETS, slot, sense, column);
+                if (column == 0) out.ratio(value, store.getPackets(slot, sense));
+                else out.integer(value);
+            }
+        };
+    }
+}
@@ -0,0 +1,75 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class FlowIDTest{
+
+    @Test
+    void bothSensesAreTheSameFlow(){
+        FlowID forward = new FlowID("10.0.0.1", "2001:db8::1", 1024, 443);
+        FlowID backward = new FlowID("2001:db8::1", "10.0.0.1", 443, 1024);
+        assertEquals(forward, backward);
+        assertEquals(forward.hashCode(), backward.hashCode());
+        assertTrue(forward.flowSenseOf(new FlowID("10.0.0.1", "2001:db8::1", 1024, 443)));
+        assertFalse(forward.flowSenseOf(backward));
+        // Swapping the ports only, or the addresses only, is another flow
+        assertNotEquals(forward, new FlowID("10.0.0.1", "2001:db8::1", 443, 1024));
+        assertNotEquals(forward, new FlowID("2001:db8::1", "10.0.0.1", 1024, 443));
+        assertNotEquals(forward, "10.0.0.1");
+    }
+
+    @Test
+    void hashesBothSensesAlike(){
+        long[][] ips = {
+            IPAddress.parse("10.0.0.1"), IPAddress.parse("10.0.0.2"), IPAddress.parse("::"),
+            IPAddress.parse("2001:db8::1"), IPAddress.parse("ffff::1"), IPAddress.parse("8000::")
+        };
+        int[] ports = {0, 80, 443, 65535};
+        for (long[] a : ips){
+            for (long[] b : ips){
+                for (int aPort : ports){
+                    for (int bPort : ports){
+                        long h = FlowID.hash(a[0], a[1], aPort, b[0], b[1], bPort);
+                        assertEquals(h, FlowID.hash(b[0], b[1], bPort, a[0], a[1], aPort));
+                        assertEquals(-FlowID.compare(a[0], a[1], aPort, b[0], b[1], bPort),
+                            FlowID.compare(b[0], b[1], bPort, a[0], a[1], aPort));
+                    }
+                }
+            }
+        }
+        long[] a = ips[0];
+        long[] b = ips[1];
+        assertNotEquals(FlowID.hash(a[0], a[1], 80, b[0], b[1], 443), FlowID.hash(a[0], a[1], 443, b[0], b[1], 80));
+        assertNotEquals(FlowID.hash(a[0], a[1], 80, b[0], b[1], 443), FlowID.hash(a[0], a[1], 80, a[0], a[1], 443));
+    }
+
+    @Test
+    void ordersTheEndpointsByAddressThenPort(){
+        assertTrue(FlowID.compare(0, 1, 65535, 0, 2, 0) < 0);
+        assertTrue(FlowID.compare(1, 0, 0, 0, -1L, 65535) > 0);
+        assertTrue(FlowID.compare(0, 1, 80, 0, 1, 443) < 0);
+        assertEquals(0, FlowID.compare(5, 6, 7, 5, 6, 7));
+        // The order is a total order on the bits: the high addresses (top bit
+        // set) are simply sorted first
+        assertTrue(FlowID.compare(0x8000000000000000L, 0, 0, 0, 0, 0) < 0);
+    }
+
+    @Test
+    void keepsTheAddressesOfTheSenseItWasCreatedIn(){
+        FlowID id = new FlowID("2001:DB8:0:0:0:0:0:1", "192.168.1.1", 5353, 53);
+        assertEquals("2001:db8::1", id.getSrcIP());
+        assertEquals("192.168.1.1", id.getDstIP());
+        assertEquals(5353, id.getSrcPort());
+        assertEquals(53, id.getDstPort());
+        long[] src = IPAddress.parse("2001:db8::1");
+        assertEquals(src[0], id.getSrcHi());
+        assertEquals(src[1], id.getSrcLo());
+        assertEquals(0, id.getDstHi());
+        assertEquals(0x0000FFFFC0A80101L, id.getDstLo());
+    }
+}
@@ -0,0 +1,180 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class FlowStoreTest{
+
+    private static final long START = 1530000000L * 1000000;
+    private static final FlowID ID = new FlowID("10.0.0.1", "2001:db8::1", 1024, 443);
+
+    @Test
+    void mergesThePartsOfAFlowAsTheWholeFlow(){
+        List<PacketRecord> packets = packets(new Random(7), 300);
+        FlowStore whole = new FlowStore(1, Features.EXTENDED);
+        whole.init(0, START);
+        add(whole, 0, packets);
+        double[] expected = values(whole, 0);
+        // Cut anywhere, including before the first packet of a sense
+        for (int cut : new int[]{1, 2, 5, 150, 299}){
+            FlowStore first = new FlowStore(1, Features.EXTENDED);
+            FlowStore second = new FlowStore(3, Features.EXTENDED);
+            first.init(0, START);
+            second.init(2, packets.get(cut).tstamp);
+            add(first, 0, packets.subList(0, cut));
+            add(second, 2, packets.subList(cut, packets.size()));
+            first.merge(0, second, 2);
+            assertValues(expected, values(first, 0));
+        }
+        // A flow merged into an empty slot takes its start
+        FlowStore empty = new FlowStore(1, Features.EXTENDED);
+        empty.init(0, 0);
+        empty.merge(0, whole, 0);
+        assertArrayEquals(expected, values(empty, 0));
+    }
+
+    @Test
+    void readsTheSlotsItWrote(){
+        for (Features features : new Features[]{Features.BASE, Features.EXTENDED, Features.parse("ipup,pkgpersecup,bytespersecup")}){
+            FlowStore store = new FlowStore(4, features);
+            store.init(3, START);
+            add(store, 3, packets(new Random(11), 100));
+            store.firstSeq[3] = 12345;
+            store.period[3] = 5000000;
+            store.state[3] = 2;
+            ByteBuffer buf = ByteBuffer.allocate(store.bytesPerSlot() + 1);
+            store.write(3, buf);
+            assertEquals(store.bytesPerSlot(), buf.position());
+            ((Buffer) buf).flip();
+            FlowStore restored = new FlowStore(1, features);
+            restored.grow(2);
+            restored.read(1, buf);
+            assertEquals(0, buf.remaining());
+            assertArrayEquals(values(store, 3), values(restored, 1));
+            assertEquals(12345, restored.firstSeq[1]);
+            assertEquals(5000000, restored.period[1]);
+            assertEquals(2, restored.state[1]);
+            // A restored flow goes on as the original one
+            List<PacketRecord> more = packets(new Random(13), 20);
+            for (PacketRecord pkt : more) pkt.tstamp += 100000000;
+            add(store, 3, more);
+            add(restored, 1, more);
+            assertArrayEquals(values(store, 3), values(restored, 1));
+        }
+        // Only the accumulators of the features are kept
+        assertTrue(new FlowStore(1, Features.parse("ipup,pkgpersecup")).bytesPerSlot() < new FlowStore(1, Features.BASE).bytesPerSlot());
+        assertTrue(new FlowStore(1, Features.BASE).bytesPerSlot() < new FlowStore(1, Features.EXTENDED).bytesPerSlot());
+    }
+
+    @Test
+    void keepsTheSlotsWhenGrowing(){
+        FlowStore store = new FlowStore(2, Features.EXTENDED);
+        store.init(1, START);
+        add(store, 1, packets(new Random(17), 50));
+        double[] before = values(store, 1);
+        store.grow(1000);
+        assertEquals(1000, store.capacity);
+        assertArrayEquals(before, values(store, 1));
+        store.init(999, START);
+        add(store, 999, packets(new Random(17), 50));
+        assertArrayEquals(before, values(store, 999));
+    }
+
+    /**
+     * @return Packets of the flow in both senses, with various sizes, windows,
+     * TTLs, flags and content types, a few microseconds to a second apart.
+     */
+    private static List<PacketRecord> packets(Random random, int count){
+        List<PacketRecord> packets = new ArrayList<>();
+        long tstamp = START;
+        for (int i = 0; i < count; i++){
+            // The first packets all go up, so a part may have no packet down
+            boolean up = i < 3 || random.nextBoolean();
+            PacketRecord pkt = up ? Packets.tcp("10.0.0.1", 1024, "2001:db8::1", 443, tstamp)
+                : Packets.tcp("2001:db8::1", 443, "10.0.0.1", 1024, tstamp);
+            pkt.size = 40 + random.nextInt(1460);
+            pkt.tcpwin = random.nextInt(65536);
+            pkt.ttl = 1 + random.nextInt(255);
+            pkt.fin = random.nextInt(10) == 0 ? 1 : 0;
+            pkt.syn = random.nextInt(10) == 0 ? 1 : 0;
+            pkt.rst = random.nextInt(20) == 0 ? 1 : 0;
+            pkt.psh = random.nextInt(2);
+            pkt.urg = random.nextInt(50) == 0 ? 1 : 0;
+            pkt.contType = random.nextInt(4) == 0 ? -1 : 20 + random.nextInt(5);
+            packets.add(pkt);
+            tstamp += 1 + random.nextInt(random.nextBoolean() ? 100 : 1000000);
+        }
+        return packets;
+    }
+
+    /**
+     * Accumulates packets in a slot as the flow tables do.
+     */
+    private static void add(FlowStore store, int slot, List<PacketRecord> packets){
+        for (PacketRecord pkt : packets){
+            store.add(slot, ID.flowSenseOf(pkt) ? 0 : 1, pkt);
+            store.lastpkgtsamp[slot] = pkt.tstamp;
+        }
+    }
+
+    /**
+     * @return The values of the features of the flow of a slot, with the IPs
+     * as the two halves of their bits.
+     */
+    private static double[] values(FlowStore store, int slot){
+        List<Double> values = new ArrayList<>();
+        store.features.encode(ID, store, slot, new RowEncoder(){
+            @Override
+            public void ip(long hi, long lo){
+                values.add(Double.longBitsToDouble(hi));
+                values.add(Double.longBitsToDouble(lo));
+            }
+
+            @Override
+            public void integer(long value){
+                values.add((double) value);
+            }
+
+            @Override
+            public void rate(long count, double seconds){
+                values.add((double) ((float) count / (float) seconds));
+            }
+
+            @Override
+            public void ratio(long part, long total){
+                values.add((double) part / (double) total);
+            }
+
+            @Override
+            public void real(double value){
+                values.add(value);
+            }
+
+            @Override
+            public void end(){
+            }
+        });
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) array[i] = values.get(i);
+        return array;
+    }
+
+    /**
+     * Asserts the values are the same, but for the rounding of the merged averages and deviations.
+     */
+    private static void assertValues(double[] expected, double[] actual){
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++){
+            assertEquals(expected[i], actual[i], Math.abs(expected[i]) * 1e-9, "Column " + i);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class FlowTableCloseTest{
+
+    private static final Features FEATURES = Features.parse("ipup,portup,duration");
+    private static final long SECOND = 1000000;
+    private static final long START = 1530000000L * SECOND;
+
+    @Test
+    void dropsTheLatePacketsOfAClosedFlow(){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(0, 0, 0, 0, FEATURES, rows);
+        long late = Metrics.get().getPacketsAfterClose();
+        close(table, START);
+        // Written as soon as it is closed
+        assertEquals(1, rows.rows.size());
+        assertEquals(Long.toString(2 * SECOND), rows.rows.get(0)[2]);
+        table.logPkg(Packets.tcp("192.168.1.1", 80, "10.0.0.1", 1024, START + 3 * SECOND));
+        table.logPkg(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + 4 * SECOND));
+        assertNull(table.get(new FlowID(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, 0))));
+        table.flush();
+        assertEquals(1, rows.rows.size());
+        assertEquals(late + 2, Metrics.get().getPacketsAfterClose());
+    }
+
+    @Test
+    void opensANewFlowOnceTheClosedOneIsIdle(){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(5 * SECOND, 0, 0, 0, FEATURES, rows);
+        close(table, START);
+        table.logPkg(Packets.tcp("192.168.1.1", 80, "10.0.0.1", 1024, START + 3 * SECOND));
+        table.logPkg(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + 10 * SECOND));
+        table.logPkg(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + 11 * SECOND));
+        table.flush();
+        assertEquals(2, rows.rows.size());
+        assertEquals(Long.toString(SECOND), rows.rows.get(1)[2]);
+    }
+
+    @Test
+    void forgetsTheClosedFlowsWithoutIdleTimeout(){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(0, 0, 0, 0, FEATURES, rows);
+        close(table, START);
+        table.logPkg(Packets.tcp("192.168.1.1", 80, "10.0.0.1", 1024, START + 30 * SECOND));
+        assertEquals(1, rows.rows.size());
+        // Past the TIME-WAIT, the endpoints open a new flow
+        long later = START + 2 * SECOND + FlowTable.WRITTEN_TIME + SECOND;
+        table.logPkg(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, later));
+        table.flush();
+        assertEquals(2, rows.rows.size());
+    }
+
+    @Test
+    void opensANewFlowOnASyn(){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(0, 0, 0, 0, FEATURES, rows);
+        close(table, START);
+        PacketRecord syn = Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + 3 * SECOND);
+        syn.syn = 1;
+        syn.ack = 0;
+        table.logPkg(syn);
+        table.logPkg(Packets.tcp("192.168.1.1", 80, "10.0.0.1", 1024, START + 4 * SECOND));
+        table.flush();
+        assertEquals(2, rows.rows.size());
+        assertEquals(Long.toString(SECOND), rows.rows.get(1)[2]);
+    }
+
+    @Test
+    void keepsTheClosedFlowsOutOfTheLiveFlows(){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(0, 1, 0, 0, FEATURES, rows);
+        close(table, START);
+        assertEquals(0, table.size());
+        // The closed flow does not count in the cap
+        table.logPkg(Packets.tcp("10.0.0.2", 1024, "192.168.1.1", 80, START + 3 * SECOND));
+        table.logPkg(Packets.tcp("10.0.0.2", 1024, "192.168.1.1", 80, START + 4 * SECOND));
+        assertEquals(1, table.size());
+        assertEquals(1, rows.rows.size());
+    }
+
+    @Test
+    void checkpointsTheClosedFlows(){
+        FlowTable table = new FlowTable(0, 0, 0, 0, FEATURES, new Packets.Rows());
+        table.trackChanges();
+        table.logPkg(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START));
+        byte[] open = table.takeChanges(false);
+        table.logPkg(Packets.tcp("192.168.1.1", 80, "10.0.0.1", 1024, START + SECOND));
+        PacketRecord finAck = Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + 2 * SECOND);
+        finAck.fin = 1;
+        table.logPkg(finAck);
+        byte[] closed = table.takeChanges(false);
+        // The flow written before the checkpoint is not written again by the restored table
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable restored = new FlowTable(0, 0, 0, 0, FEATURES, rows);
+        restored.trackChanges();
+        restored.applyChanges(ByteBuffer.wrap(open));
+        restored.applyChanges(ByteBuffer.wrap(closed));
+        restored.logPkg(Packets.tcp("192.168.1.1", 80, "10.0.0.1", 1024, START + 3 * SECOND));
+        restored.flush();
+        assertEquals(0, rows.rows.size());
+    }
+
+    /**
+     * Logs a flow closed by a FIN-ACK of the client after 2 seconds.
+     */
+    private static void close(FlowTable table, long start){
+        table.logPkg(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, start));
+        table.logPkg(Packets.tcp("192.168.1.1", 80, "10.0.0.1", 1024, start + SECOND));
+        PacketRecord finAck = Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, start + 2 * SECOND);
+        finAck.fin = 1;
+        table.logPkg(finAck);
+    }
+}
@@ -0,0 +1,86 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FlowTableSpillTest{
+
+    private static final Features FEATURES = Features.parse("ipup,portup,duration,pkgpersecup,bytespersecup");
+    private static final long SECOND = 1000000;
+    private static final long START = 1530000000L * SECOND;
+    private static final int FLOWS = 2000;
+    private static final int HEAP_FLOWS = 100;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void checkpointsEveryChangedFlowOnceWhateverItsSpills(){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = this.spilling(rows);
+        table.trackChanges();
+        List<byte[]> checkpoints = new ArrayList<>();
+        // Every packet takes back a spilled flow and spills another one
+        for (int round = 0; round < 50; round++){
+            for (int flow = 0; flow < FLOWS; flow++) table.logPkg(Packets.client(flow, START + round * SECOND + flow));
+            if (round % 5 == 4){
+                long recordSize = table.checkpointSize() / table.size();
+                byte[] changes = table.takeChanges(false);
+                assertTrue(changes.length <= FLOWS * recordSize, "changes of " + changes.length + " bytes");
+                checkpoints.add(changes);
+            }
+        }
+        // The checkpoints rebuild the table
+        Packets.Rows restoredRows = new Packets.Rows();
+        FlowTable restored = this.spilling(restoredRows);
+        restored.trackChanges();
+        for (byte[] changes : checkpoints) restored.applyChanges(ByteBuffer.wrap(changes));
+        assertEquals(FLOWS, restored.size());
+        table.flush();
+        restored.flush();
+        assertEquals(FLOWS, rows.rows.size());
+        assertEquals(sorted(rows), sorted(restoredRows));
+    }
+
+    @Test
+    void forgetsTheSpilledFlowsThatLeftTheTable(){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = this.spilling(rows, 3 * SECOND);
+        // More spilled flows than the first index of the spill holds
+        int flows = 700;
+        for (int flow = 0; flow < flows; flow++) table.logPkg(Packets.client(flow, START + flow));
+        for (int flow = FLOWS; flow < FLOWS + 150; flow++) table.logPkg(Packets.client(flow, START + 2 * SECOND));
+        // The first flows expire, then come back as new flows, taking back and spilling the others
+        for (int flow = flows - 1; flow >= 0; flow--) table.logPkg(Packets.client(flow, START + 4 * SECOND));
+        table.flush();
+        assertEquals(2 * flows + 150, rows.rows.size());
+        for (String[] row : rows.rows) assertEquals("0", row[2], "duration of " + row[0]);
+    }
+
+    private FlowTable spilling(Packets.Rows rows){
+        return this.spilling(rows, 0);
+    }
+
+    private FlowTable spilling(Packets.Rows rows, long idleTimeout){
+        FlowTable table = new FlowTable(idleTimeout, 0, 0, 0, FEATURES, rows);
+        // A budget below a segment: the flows go to the file
+        table.setSpill(HEAP_FLOWS, 0, this.directory);
+        return table;
+    }
+
+    private static List<String> sorted(Packets.Rows rows){
+        List<String> lines = new ArrayList<>();
+        for (String[] row : rows.rows) lines.add(Arrays.toString(row));
+        lines.sort(null);
+        return lines;
+    }
+}
@@ -0,0 +1,139 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FlowWindowsTest{
+
+    private static final long SECOND = 1000000;
+    private static final long START = 1530000000L * SECOND;
+    private static final Features FEATURES = Features.parse("portup,duration,pkgpersecup,pkgpersecdwn");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void emitsATumblingWindowOncePassed(){
+        Packets.Rows rows = log(SECOND, SECOND);
+        assertRows(rows,
+            // [0 s, 1 s), then [1 s, 2 s) once the packet at 3.7 s comes: [2 s, 3 s) has no packet
+            new String[]{"1024", "400000", "2.0", "0.0"},
+            new String[]{"1024", "300000", "1.0", "1.0"},
+            // [3 s, 4 s), the last window, when the flow leaves the table
+            new String[]{"1024", "200000", "2.0", "0.0"});
+    }
+
+    @Test
+    void emitsASlidingWindowAtEverySlide(){
+        Packets.Rows rows = log(2 * SECOND, SECOND);
+        // The rates are over the whole window, whatever the packets it holds
+        assertRows(rows,
+            new String[]{"1024", "400000", "1.0", "0.0"},
+            new String[]{"1024", "1400000", "1.5", "0.5"},
+            new String[]{"1024", "300000", "0.5", "0.5"},
+            new String[]{"1024", "200000", "1.0", "0.0"});
+    }
+
+    @Test
+    void alignsTheWindowsOfAllTheFlows(){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(0, 0, SECOND, SECOND, FEATURES, rows);
+        // The second flow starts in the middle of a window: its first window ends with the one of the
+        // first flow, with the report clock, whatever the flow of the packet passing their end
+        table.logPkg(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + SECOND / 10));
+        table.logPkg(Packets.tcp("10.0.0.2", 2048, "192.168.1.1", 80, START + 9 * SECOND / 10));
+        table.logPkg(Packets.tcp("10.0.0.2", 2048, "192.168.1.1", 80, START + 11 * SECOND / 10));
+        table.logPkg(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + 12 * SECOND / 10));
+        assertRows(rows,
+            new String[]{"1024", "0", "1.0", "0.0"},
+            new String[]{"2048", "0", "1.0", "0.0"});
+    }
+
+    @Test
+    void emitsTheWindowsOfTheFlowsGettingNoMorePackets(){
+        Packets.Rows rows = new Packets.Rows();
+        // Without idle timeout, the flows only leave the table at the end of the input
+        FlowTable table = new FlowTable(0, 0, 2 * SECOND, SECOND, FEATURES, rows);
+        table.logPkg(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + SECOND / 10));
+        table.logPkg(Packets.tcp("10.0.0.2", 2048, "192.168.1.1", 80, START + 2 * SECOND / 10));
+        table.logPkg(Packets.tcp("10.0.0.2", 2048, "192.168.1.1", 80, START + 15 * SECOND / 10));
+        assertEquals(2, rows.rows.size());
+        table.expire(START + 2 * SECOND);
+        table.expire(START + 3 * SECOND);
+        assertEquals(5, rows.rows.size());
+        // Every window holding packets is written once
+        table.flush();
+        assertRows(rows,
+            new String[]{"1024", "0", "0.5", "0.0"},
+            new String[]{"2048", "0", "0.5", "0.0"},
+            new String[]{"1024", "0", "0.5", "0.0"},
+            new String[]{"2048", "1300000", "1.0", "0.0"},
+            new String[]{"2048", "0", "0.5", "0.0"});
+    }
+
+    @Test
+    void checkpointsTheWindowsEndedByTheClock(){
+        for (boolean spilled : new boolean[]{false, true}){
+            Packets.Rows rows = new Packets.Rows();
+            FlowTable table = new FlowTable(0, 0, SECOND, SECOND, FEATURES, rows);
+            table.trackChanges();
+            table.logPkg(Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, START + SECOND / 10));
+            table.logPkg(Packets.tcp("10.0.0.2", 2048, "192.168.1.1", 80, START + 2 * SECOND / 10));
+            byte[] first = table.takeChanges(false);
+            // The first flow gets no packet: its window is ended by the packet of the other one
+            table.logPkg(Packets.tcp("10.0.0.2", 2048, "192.168.1.1", 80, START + 15 * SECOND / 10));
+            byte[] second = table.takeChanges(false);
+            assertEquals(2, rows.rows.size());
+            Packets.Rows restoredRows = new Packets.Rows();
+            FlowTable restored = new FlowTable(0, 0, SECOND, SECOND, FEATURES, restoredRows);
+            // The least recently seen flow goes off-heap
+            if (spilled) restored.setSpill(1, 0, this.dir);
+            restored.trackChanges();
+            restored.applyChanges(ByteBuffer.wrap(first));
+            restored.applyChanges(ByteBuffer.wrap(second));
+            // The windows written before the checkpoint are not written again
+            for (FlowTable t : new FlowTable[]{table, restored}){
+                t.logPkg(Packets.tcp("10.0.0.2", 2048, "192.168.1.1", 80, START + 25 * SECOND / 10));
+                t.flush();
+            }
+            assertEquals(4, rows.rows.size());
+            assertRows(restoredRows, rows.rows.subList(2, 4).toArray(new String[0][]));
+        }
+    }
+
+    @Test
+    void refusesASlideNotDividingTheWindow(){
+        assertThrows(IllegalArgumentException.class, () -> new FlowWindows(3 * SECOND, 2 * SECOND));
+        assertThrows(IllegalArgumentException.class, () -> new FlowWindows(SECOND, 2 * SECOND));
+        assertThrows(IllegalArgumentException.class, () -> new FlowWindows(SECOND, 0));
+        assertThrows(IllegalArgumentException.class, () -> new FlowWindows(2048, 1));
+    }
+
+    /**
+     * Logs the packets of a flow: up at 0.1, 0.5, 1.2, 3.7 and 3.9 s, and down at 1.5 s.
+     * @return The rows of its windows.
+     */
+    private static Packets.Rows log(long window, long slide){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(0, 0, window, slide, FEATURES, rows);
+        for (long tenths : new long[]{1, 5, 12, 15, 37, 39}){
+            long tstamp = START + tenths * SECOND / 10;
+            table.logPkg(tenths == 15 ? Packets.tcp("192.168.1.1", 80, "10.0.0.1", 1024, tstamp)
+                : Packets.tcp("10.0.0.1", 1024, "192.168.1.1", 80, tstamp));
+        }
+        table.flush();
+        return rows;
+    }
+
+    private static void assertRows(Packets.Rows rows, String[]... expected){
+        assertEquals(expected.length, rows.rows.size());
+        for (int i = 0; i < expected.length; i++) assertArrayEquals(expected[i], rows.rows.get(i), "Window " + i);
+    }
+}
@@ -0,0 +1,209 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FlowWriterTest{
+
+    private static final long SECOND = 1000000;
+    private static final long START = 1530000000L * SECOND;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesTheTextOfTheConversations() throws IOException{
+        Path path = this.directory.resolve("flows.csv");
+        List<String> expected = new ArrayList<>();
+        FlowWriter writer = new FlowWriter(path, false, Features.EXTENDED, null, -1);
+        FlowTable table = new FlowTable(0, 0, 0, 0, Features.EXTENDED, flow -> {
+            expected.add(String.join(",", flow.getConversation()));
+            writer.accept(flow);
+        });
+        for (PacketRecord pkt : randomPackets(200, 20000)) table.logPkg(pkt);
+        table.flush();
+        writer.close();
+        assertEquals(expected, Files.readAllLines(path, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void keepsTakingTheFlowsOnceTheWriterThreadFailed() throws IOException{
+        FlowWriter writer = new FlowWriter(this.directory.resolve("flows.csv"), false, Features.BASE, null, -1);
+        writer.mark(size -> {
+            throw new IllegalStateException("Checkpoint failed");
+        });
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(0, 0, rows);
+        for (int flow = 0; flow < 100; flow++) table.logPkg(Packets.client(flow, START + flow));
+        // Far more flows than the queue holds: the producer never blocks, and sees the failure
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            assertThrows(UncheckedIOException.class, () -> {
+                for (int i = 0; i < 100000; i++) writer.accept(table.get(new FlowID(Packets.client(i % 100, 0))));
+            });
+            assertThrows(IOException.class, writer::close);
+        });
+    }
+
+    @Test
+    void writesFixedWidthRowsAfterAPaddedHeader() throws IOException{
+        Path path = this.directory.resolve("flows.bin");
+        // A schema of 22 bytes: the header is padded from 46 to 48 bytes
+        String[] headers = {"@RELATION flows", "@DATA"};
+        List<double[]> expected = new ArrayList<>();
+        FlowWriter writer = new FlowWriter(path, true, Features.EXTENDED, headers, -1);
+        FlowTable table = new FlowTable(0, 0, 0, 0, Features.EXTENDED, flow -> {
+            expected.add(values(flow));
+            writer.accept(flow);
+        });
+        for (PacketRecord pkt : randomPackets(50, 2000)) table.logPkg(pkt);
+        table.flush();
+        writer.close();
+        ByteBuffer file = map(path);
+        byte[] magic = new byte[FlowWriter.MAGIC.length];
+        file.get(magic);
+        assertArrayEquals(FlowWriter.MAGIC, magic);
+        assertEquals(FlowWriter.VERSION, file.getInt());
+        assertEquals(Features.EXTENDED.size(), file.getInt());
+        int rowSize = file.getInt();
+        assertEquals(Features.EXTENDED.binaryRowSize(), rowSize);
+        byte[] schema = new byte[file.getInt()];
+        file.get(schema);
+        assertEquals("@RELATION flows\n@DATA\n", new String(schema, StandardCharsets.UTF_8));
+        while (file.position() < 48) assertEquals(0, file.get());
+        assertEquals(expected.size() * rowSize, file.remaining());
+        assertRows(expected, file);
+    }
+
+    @Test
+    void dropsWhatFollowsTheCheckpointOnResume() throws IOException{
+        Path path = this.directory.resolve("flows.bin");
+        List<PacketRecord> packets = randomPackets(60, 3000);
+        List<double[]> expected = new ArrayList<>();
+        AtomicLong checkpoint = new AtomicLong();
+        FlowWriter writer = new FlowWriter(path, true, Features.EXTENDED, new String[]{"@RELATION flows"}, -1);
+        FlowTable table = new FlowTable(0, 0, 0, 0, Features.EXTENDED, flow -> {
+            expected.add(values(flow));
+            writer.accept(flow);
+        });
+        for (PacketRecord pkt : packets.subList(0, 1000)) table.logPkg(pkt);
+        // Checkpointed after the flows closed so far, then killed after a few more
+        writer.mark(checkpoint::set);
+        int checkpointed = expected.size();
+        for (PacketRecord pkt : packets.subList(1000, 2000)) table.logPkg(pkt);
+        writer.close();
+        assertThrows(IOException.class, () -> new FlowWriter(path, true, Features.EXTENDED, null, Files.size(path) + 1));
+        // The resumed run writes the flows closed after the checkpoint
+        List<double[]> resumed = new ArrayList<>(expected.subList(0, checkpointed));
+        FlowWriter resuming = new FlowWriter(path, true, Features.EXTENDED, new String[]{"@RELATION flows"}, checkpoint.get());
+        FlowTable rest = new FlowTable(0, 0, 0, 0, Features.EXTENDED, flow -> {
+            resumed.add(values(flow));
+            resuming.accept(flow);
+        });
+        for (PacketRecord pkt : packets.subList(2000, 3000)) rest.logPkg(pkt);
+        rest.flush();
+        resuming.close();
+        ByteBuffer file = map(path);
+        int rowSize = Features.EXTENDED.binaryRowSize();
+        ((Buffer) file).position(file.limit() - resumed.size() * rowSize);
+        // The header is not written again
+        assertEquals(checkpoint.get() - checkpointed * rowSize, file.position());
+        assertRows(resumed, file);
+    }
+
+    /**
+     * @return The values of the columns of a flow in the binary format: the two halves of each IP, and a double per other column.
+     */
+    private static double[] values(Flow flow){
+        List<Double> values = new ArrayList<>();
+        flow.encode(new RowEncoder(){
+            @Override
+            public void ip(long hi, long lo){
+                values.add(Double.longBitsToDouble(hi));
+                values.add(Double.longBitsToDouble(lo));
+            }
+
+            @Override
+            public void integer(long value){
+                values.add((double) value);
+            }
+
+            @Override
+            public void rate(long count, double seconds){
+                values.add((double) ((float) count / (float) seconds));
+            }
+
+            @Override
+            public void ratio(long part, long total){
+                values.add(((double) part) / ((double) total));
+            }
+
+            @Override
+            public void real(double value){
+                values.add(value);
+            }
+
+            @Override
+            public void end(){
+            }
+        });
+        return values.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    private static void assertRows(List<double[]> expected, ByteBuffer file){
+        for (double[] row : expected){
+            double[] read = new double[row.length];
+            for (int i = 0; i < row.length; i++) read[i] = file.getDouble();
+            assertArrayEquals(row, read);
+        }
+        assertEquals(0, file.remaining());
+    }
+
+    private static ByteBuffer map(Path path) throws IOException{
+        try (FileChannel channel = FileChannel.open(path)){
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * @return Packets of random sizes, windows and times, both ways, of a number of flows.
+     */
+    static List<PacketRecord> randomPackets(int flows, int packets){
+        Random random = new Random(11);
+        List<PacketRecord> list = new ArrayList<>();
+        long tstamp = START;
+        for (int i = 0; i < packets; i++){
+            int flow = random.nextInt(flows);
+            tstamp += random.nextInt(random.nextBoolean() ? 100 : 100000);
+            PacketRecord pkt = Packets.client(flow, tstamp);
+            if (random.nextBoolean()){
+                pkt = Packets.tcp("192.168.1.1", 80, IPAddress.format(pkt.srcHi, pkt.srcLo), pkt.srcPort, tstamp);
+            }
+            pkt.size = 40 + random.nextInt(1460);
+            pkt.tcpwin = random.nextInt(65536);
+            pkt.ttl = 32 + random.nextInt(96);
+            pkt.psh = random.nextInt(2);
+            list.add(pkt);
+        }
+        return list;
+    }
+}
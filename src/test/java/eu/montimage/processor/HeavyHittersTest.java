@@ -0,0 +1,65 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class HeavyHittersTest{
+
+    @Test
+    void findsTheLargestFlowsAmongManySmallOnes(){
+        HeavyHitters heavy = new HeavyHitters(12, 64);
+        Random random = new Random(1);
+        Map<Long, Integer> counts = new HashMap<>();
+        // 10 flows of 500 packets hidden in 95k flows of a single packet
+        for (int i = 0; i < 100000; i++){
+            long hash = (i % 20 == 0) ? 1000 + (i / 20) % 10 : random.nextLong();
+            counts.merge(hash, 1, Integer::sum);
+            heavy.add(hash);
+        }
+        for (long flow = 1000; flow < 1010; flow++){
+            assertTrue(heavy.isHeavy(flow, 32), "flow " + flow);
+            assertTrue(heavy.estimate(flow) >= counts.get(flow));
+        }
+        assertEquals(64, heavy.size());
+    }
+
+    @Test
+    void neverEstimatesLessThanTheCount(){
+        HeavyHitters heavy = new HeavyHitters(8, 16);
+        Random random = new Random(2);
+        Map<Long, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 50000; i++){
+            long hash = random.nextInt(5000);
+            int count = counts.merge(hash, 1, Integer::sum);
+            assertTrue(heavy.add(hash) >= count);
+        }
+        for (Map.Entry<Long, Integer> flow : counts.entrySet()) assertTrue(heavy.estimate(flow.getKey()) >= flow.getValue());
+    }
+
+    @Test
+    void smallFlowsAreNotHeavyWhileTheHeapFills(){
+        HeavyHitters heavy = new HeavyHitters(12, 64);
+        for (long flow = 0; flow < 10; flow++) heavy.add(flow);
+        assertEquals(10, heavy.size());
+        assertFalse(heavy.isHeavy(3, 2));
+        assertTrue(heavy.isHeavy(3, 1));
+    }
+
+    @Test
+    void forgetsTheFlowsThatWereLargeLongAgo(){
+        HeavyHitters heavy = new HeavyHitters(16, 8);
+        for (int i = 0; i < 100; i++) heavy.add(42);
+        assertTrue(heavy.isHeavy(42, 100));
+        // Halved once every decay period
+        for (int i = 100; i < HeavyHitters.DECAY_PACKETS; i++) heavy.add(7);
+        assertEquals(50, heavy.estimate(42));
+        assertFalse(heavy.isHeavy(42, 100));
+    }
+}
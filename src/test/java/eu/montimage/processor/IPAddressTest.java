@@ -0,0 +1,88 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class IPAddressTest{
+
+    @Test
+    void mapsTheIPv4Addresses(){
+        assertArrayEquals(new long[]{0, 0x0000FFFF0A000001L}, IPAddress.parse("10.0.0.1"));
+        assertArrayEquals(new long[]{0, 0x0000FFFFFFFFFFFFL}, IPAddress.parse("255.255.255.255"));
+        assertArrayEquals(new long[]{0, 0x0000FFFF00000000L}, IPAddress.parse("0.0.0.0"));
+        // The mapped IPv6 form is the same address
+        assertArrayEquals(IPAddress.parse("10.0.0.1"), IPAddress.parse("::ffff:10.0.0.1"));
+        assertArrayEquals(IPAddress.parse("10.0.0.1"), IPAddress.parse("::ffff:a00:1"));
+        assertEquals("10.0.0.1", IPAddress.format(0, 0x0000FFFF0A000001L));
+        assertEquals("255.255.255.255", IPAddress.format(0, 0x0000FFFFFFFFFFFFL));
+    }
+
+    @Test
+    void packsTheIPv6Groups(){
+        assertArrayEquals(new long[]{0x20010DB800000000L, 1}, IPAddress.parse("2001:db8::1"));
+        assertArrayEquals(new long[]{0x20010DB800000000L, 1}, IPAddress.parse("2001:0DB8:0000:0000:0000:0000:0000:0001"));
+        assertArrayEquals(new long[]{0, 0}, IPAddress.parse("::"));
+        assertArrayEquals(new long[]{0, 1}, IPAddress.parse("::1"));
+        assertArrayEquals(new long[]{0xFE80000000000000L, 0}, IPAddress.parse("fe80::"));
+        assertArrayEquals(new long[]{0x0001000200030004L, 0x000500060708090AL}, IPAddress.parse("1:2:3:4:5:6:7.8.9.10"));
+        assertArrayEquals(new long[]{-1L, -1L}, IPAddress.parse("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+    }
+
+    @Test
+    void rejectsMalformedAddresses(){
+        String[] bad = {
+            "", "10.0.0", "10.0.0.1.", "10.0.0.256", "10.0.0.0001", "10..0.1", "a.b.c.d",
+            ":", ":::", "1::2::3", ":1:2:3:4:5:6:7", "1:2:3:4:5:6:7:", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+            "1::2:3:4:5:6:7:8", "12345::", "g::", "::10.0.0.1:1", "1:2:3:4:5:6:7:10.0.0.1", "2001:db8::1 "
+        };
+        long[] ip = new long[2];
+        for (String text : bad){
+            byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+            assertFalse(IPAddress.parse(ByteBuffer.wrap(bytes), 0, bytes.length, ip), text);
+            assertThrows(IllegalArgumentException.class, () -> IPAddress.parse(text), text);
+        }
+    }
+
+    @Test
+    void parsesAnAddressInTheMiddleOfABuffer(){
+        byte[] bytes = "x,2001:db8::1,y".getBytes(StandardCharsets.US_ASCII);
+        long[] ip = new long[2];
+        assertTrue(IPAddress.parse(ByteBuffer.wrap(bytes), 2, 13, ip));
+        assertArrayEquals(new long[]{0x20010DB800000000L, 1}, ip);
+        // The bounds are honoured: a prefix of the address is not an address
+        assertFalse(IPAddress.parse(ByteBuffer.wrap(bytes), 2, 7, ip));
+        assertFalse(IPAddress.parse(ByteBuffer.wrap(bytes), 2, 14, ip));
+    }
+
+    @Test
+    void formatsTheCanonicalIPv6Text(){
+        assertCanonical("2001:db8::1", "2001:0DB8:0:0:0:0:0:1");
+        assertCanonical("::", "0:0:0:0:0:0:0:0");
+        assertCanonical("::1", "0:0:0:0:0:0:0:1");
+        assertCanonical("fe80::", "fe80:0:0:0:0:0:0:0");
+        // A single zero group is not compressed
+        assertCanonical("2001:db8:0:1:1:1:1:1", "2001:db8::1:1:1:1:1");
+        // The longest run of zeros is compressed, the first one on a tie
+        assertCanonical("2001:0:0:1::1", "2001:0:0:1:0:0:0:1");
+        assertCanonical("2001:db8::1:0:0:1", "2001:db8:0:0:1:0:0:1");
+        // The leading zeros of the groups are dropped
+        assertCanonical("1:20:300:4000::", "0001:0020:0300:4000::");
+        // Other addresses with zeros in the IPv4 part are not IPv4
+        assertCanonical("::a00:1", "::10.0.0.1");
+        assertCanonical("::fffe:a00:1", "::fffe:10.0.0.1");
+    }
+
+    private static void assertCanonical(String expected, String text){
+        long[] ip = IPAddress.parse(text);
+        assertEquals(expected, IPAddress.format(ip[0], ip[1]));
+        assertArrayEquals(ip, IPAddress.parse(expected));
+    }
+}
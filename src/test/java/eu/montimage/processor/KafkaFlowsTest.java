@@ -0,0 +1,143 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.utils.Bytes;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.test.ConsumerRecordFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class KafkaFlowsTest{
+
+    private static final long START = 1530000000L;
+
+    @TempDir
+    Path stateDirectory;
+    private TopologyTestDriver driver;
+    private final ConsumerRecordFactory<byte[], byte[]> records = new ConsumerRecordFactory<>("reports", new ByteArraySerializer(), new ByteArraySerializer());
+
+    @AfterEach
+    void close(){
+        if (this.driver != null) this.driver.close();
+    }
+
+    @Test
+    void sendsAClosedFlowOnceAndDropsItsLastAck(){
+        this.start(0);
+        // Several lines per record
+        this.send(line(0, "10.0.0.1", "192.168.1.1", 1024, 80, 0) + line(1, "192.168.1.1", "10.0.0.1", 80, 1024, 0));
+        this.send(line(2, "10.0.0.1", "192.168.1.1", 1024, 80, 1));
+        this.send(line(3, "192.168.1.1", "10.0.0.1", 80, 1024, 0));
+        List<ProducerRecord<String, String>> rows = this.rows();
+        assertEquals(1, rows.size());
+        assertEquals("10.0.0.1,192.168.1.1,1024,80", rows.get(0).key());
+        assertEquals("2000000", rows.get(0).value().split(",")[4]);
+    }
+
+    @Test
+    void keysTheLinesByFlowBeforeTheFlowStore(){
+        this.start(0);
+        this.send(line(0, "10.0.0.1", "192.168.1.1", 1024, 80, 0) + line(1, "192.168.1.1", "10.0.0.1", 80, 1024, 0));
+        String topic = KafkaFlows.repartitionTopic("reports");
+        ProducerRecord<byte[], byte[]> up = this.driver.readOutput(topic, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+        ProducerRecord<byte[], byte[]> down = this.driver.readOutput(topic, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+        assertArrayEquals(up.key(), down.key());
+        assertEquals(line(1, "192.168.1.1", "10.0.0.1", 80, 1024, 0).trim(), new String(down.value(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void sendsTheIdleFlowsFoundInTheTimeIndex(){
+        this.start(1000000);
+        this.send(line(0, "10.0.0.1", "192.168.1.1", 1024, 80, 1));
+        this.send(line(0, "10.0.0.2", "192.168.1.1", 1024, 80, 0));
+        this.send(line(1, "10.0.0.3", "192.168.1.1", 1024, 80, 0));
+        this.send(line(2, "10.0.0.3", "192.168.1.1", 1024, 80, 0));
+        assertEquals(1, this.rows().size());
+        assertEquals(3, count(this.store(KafkaFlows.TIMES_STORE_NAME)));
+        // Flow 2 and the closed flow 1 are idle at the last timestamp, flow 3 is not
+        this.driver.advanceWallClockTime(KafkaFlows.SCAN_INTERVAL);
+        List<ProducerRecord<String, String>> rows = this.rows();
+        assertEquals(1, rows.size());
+        assertEquals("10.0.0.2,192.168.1.1,1024,80", rows.get(0).key());
+        assertEquals(1, count(this.store(KafkaFlows.STORE_NAME)));
+        assertEquals(1, count(this.store(KafkaFlows.TIMES_STORE_NAME)));
+        // A new flow with the key of the closed one
+        this.send(line(3, "10.0.0.1", "192.168.1.1", 1024, 80, 0));
+        this.send(line(5, "10.0.0.3", "192.168.1.1", 1024, 80, 0));
+        this.driver.advanceWallClockTime(KafkaFlows.SCAN_INTERVAL);
+        rows = this.rows();
+        assertEquals(1, rows.size());
+        assertEquals("10.0.0.1,192.168.1.1,1024,80", rows.get(0).key());
+    }
+
+    @Test
+    void forgetsTheClosedFlowsWithoutIdleTimeout(){
+        this.start(0);
+        this.send(line(0, "10.0.0.1", "192.168.1.1", 1024, 80, 1));
+        this.send(line(10, "10.0.0.1", "192.168.1.1", 1024, 80, 0));
+        assertEquals(1, this.rows().size());
+        // Past the TIME-WAIT of the closed flow
+        int later = (int) (FlowTable.WRITTEN_TIME / 1000000) + 1;
+        this.send(line(later, "10.0.0.2", "192.168.1.1", 1024, 80, 0));
+        this.driver.advanceWallClockTime(KafkaFlows.SCAN_INTERVAL);
+        assertEquals(1, count(this.store(KafkaFlows.STORE_NAME)));
+        assertEquals(0, count(this.store(KafkaFlows.TIMES_STORE_NAME)));
+        // The endpoints open a new flow, closed at once
+        this.send(line(later + 1, "10.0.0.1", "192.168.1.1", 1024, 80, 1));
+        assertEquals(1, this.rows().size());
+    }
+
+    private void start(long idleTimeout){
+        Properties props = new Properties();
+        props.put(StreamsConfig.APPLICATION_ID_CONFIG, KafkaFlows.APPLICATION_ID);
+        props.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+        props.put(StreamsConfig.STATE_DIR_CONFIG, this.stateDirectory.toString());
+        this.driver = new TopologyTestDriver(KafkaFlows.topology("reports", "flows", ",", idleTimeout), props);
+    }
+
+    private void send(String lines){
+        this.driver.pipeInput(this.records.create(lines.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private List<ProducerRecord<String, String>> rows(){
+        List<ProducerRecord<String, String>> rows = new ArrayList<>();
+        ProducerRecord<String, String> row;
+        while ((row = this.driver.readOutput("flows", new StringDeserializer(), new StringDeserializer())) != null) rows.add(row);
+        return rows;
+    }
+
+    private KeyValueStore<Bytes, byte[]> store(String name){
+        return this.driver.getKeyValueStore(name);
+    }
+
+    private static int count(KeyValueStore<Bytes, byte[]> store){
+        int count = 0;
+        try(KeyValueIterator<Bytes, byte[]> it = store.all()){
+            for (; it.hasNext(); it.next()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return A report line of a TCP packet with an ACK, and a FIN if asked for.
+     */
+    private static String line(int second, String src, String dst, int srcPort, int dstPort, int fin){
+        return "100,3,2," + (START + second) + ".000000,0,tcp," + src + "," + dst + "," + srcPort + "," + dstPort + ",100,1000,64," + fin + ",0,0,0,1,0,21\n";
+    }
+}
@@ -0,0 +1,111 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class OverloadGuardTest{
+
+    private static final Features FEATURES = Features.parse("ipup,portup,duration").withSamplingRate();
+    private static final long SECOND = 1000000;
+    private static final long START = 1530000000L * SECOND;
+    private static final int SMALL_FLOWS = 4000;
+
+    @Test
+    void keepsEveryFlowBelowTheThreshold(){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(0, 0, 0, 0, FEATURES, rows);
+        table.setOverload(() -> 0, 1, 16);
+        logSmallFlows(table, START);
+        table.flush();
+        assertEquals(SMALL_FLOWS, rows.rows.size());
+        for (String[] row : rows.rows) assertEquals("1.0", row[3]);
+    }
+
+    @Test
+    void samplesWholeFlowsByHashAndKeepsTheLargest(){
+        Packets.Rows rows = new Packets.Rows();
+        FlowTable table = new FlowTable(0, 0, 0, 0, FEATURES, rows);
+        table.setOverload(() -> 10, 1, 16);
+        // A large flow, which also makes the table look at the queues
+        for (int i = 0; i < OverloadGuard.CHECK_PACKETS; i++) table.logPkg(Packets.tcp("10.9.9.9", 5000, "192.168.1.2", 443, START + i));
+        logSmallFlows(table, START + SECOND);
+        table.logPkg(Packets.tcp("192.168.1.2", 443, "10.9.9.9", 5000, START + 10 * SECOND));
+        table.flush();
+        Map<String, String[]> byClient = new HashMap<>();
+        for (String[] row : rows.rows) byClient.put(row[0] + ":" + row[1], row);
+        assertEquals(rows.rows.size(), byClient.size());
+        // The large flow was in the table before the overload
+        assertEquals(Long.toString(10 * SECOND), byClient.remove("10.9.9.9:5000")[2]);
+        int sampled = 0;
+        for (int flow = 0; flow < SMALL_FLOWS; flow++){
+            PacketRecord pkt = Packets.client(flow, 0);
+            String[] row = byClient.get(pkt.getSrcIP() + ":" + pkt.getSrcPort());
+            if (!OverloadGuard.isSampled(Packets.hash(pkt), 16)){
+                assertEquals(null, row);
+                continue;
+            }
+            sampled++;
+            // Every packet of a sampled flow is kept
+            assertEquals(Long.toString(2 * SECOND), row[2]);
+            assertEquals("0.0625", row[3]);
+        }
+        assertEquals(sampled, byClient.size());
+        assertTrue(sampled > SMALL_FLOWS / 32 && sampled < SMALL_FLOWS / 8, "sampled " + sampled);
+    }
+
+    @Test
+    void keepsTheFlowsStartedBeforeTheOverload(){
+        Packets.Rows rows = new Packets.Rows();
+        AtomicLong depth = new AtomicLong(0);
+        FlowTable table = new FlowTable(0, 0, 0, 0, FEATURES, rows);
+        table.setOverload(depth::get, 4, 16);
+        for (int flow = 0; flow < 100; flow++) table.logPkg(Packets.client(flow, START));
+        depth.set(4);
+        for (int i = 0; i < OverloadGuard.CHECK_PACKETS; i++) table.logPkg(Packets.tcp("10.9.9.9", 5000, "192.168.1.2", 443, START + SECOND));
+        for (int flow = 0; flow < 100; flow++) table.logPkg(Packets.client(flow, START + 3 * SECOND));
+        table.flush();
+        assertEquals(101, rows.rows.size());
+        for (String[] row : rows.rows){
+            if (!row[0].equals("10.9.9.9")) assertEquals(Long.toString(3 * SECOND), row[2]);
+            assertEquals("1.0", row[3]);
+        }
+    }
+
+    @Test
+    void leavesTheOverloadAtHalfTheThreshold(){
+        AtomicLong depth = new AtomicLong(10);
+        OverloadGuard guard = new OverloadGuard(depth::get, 10, 4);
+        long overloaded = Metrics.get().getOverloadedTables();
+        checkQueues(guard);
+        assertTrue(guard.isOverloaded());
+        assertEquals(overloaded + 1, Metrics.get().getOverloadedTables());
+        depth.set(5);
+        checkQueues(guard);
+        assertTrue(guard.isOverloaded());
+        depth.set(4);
+        checkQueues(guard);
+        assertFalse(guard.isOverloaded());
+        assertEquals(overloaded, Metrics.get().getOverloadedTables());
+        assertEquals(1, guard.admit(12345));
+    }
+
+    /**
+     * Logs 3 packets of every small flow, a second apart: the first packet of every flow, then the second ones...
+     */
+    private static void logSmallFlows(FlowTable table, long start){
+        for (int i = 0; i < 3; i++){
+            for (int flow = 0; flow < SMALL_FLOWS; flow++) table.logPkg(Packets.client(flow, start + i * SECOND));
+        }
+    }
+
+    private static void checkQueues(OverloadGuard guard){
+        for (int i = 0; i < OverloadGuard.CHECK_PACKETS; i++) guard.count(1);
+    }
+}
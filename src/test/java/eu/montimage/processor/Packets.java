@@ -0,0 +1,63 @@
+package eu.montimage.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Packets and flows for the tests.
+ */
+final class Packets{
+
+    private Packets(){
+    }
+
+    /**
+     * @return A TCP packet with an ACK, of 100 bytes.
+     * @param tstamp Timestamp in microseconds.
+     */
+    static PacketRecord tcp(String src, int srcPort, String dst, int dstPort, long tstamp){
+        PacketRecord pkt = new PacketRecord();
+        long[] ip = IPAddress.parse(src);
+        pkt.srcHi = ip[0];
+        pkt.srcLo = ip[1];
+        ip = IPAddress.parse(dst);
+        pkt.dstHi = ip[0];
+        pkt.dstLo = ip[1];
+        pkt.srcPort = srcPort;
+        pkt.dstPort = dstPort;
+        pkt.tstamp = tstamp;
+        pkt.size = 100;
+        pkt.tcpwin = 1000;
+        pkt.ttl = 64;
+        pkt.ack = 1;
+        pkt.contType = -1;
+        return pkt;
+    }
+
+    /**
+     * @return The packet of the i-th of many client flows to a server, sent by the client.
+     */
+    static PacketRecord client(int flow, long tstamp){
+        return tcp("10." + (flow >>> 16 & 0xff) + "." + (flow >>> 8 & 0xff) + "." + (flow & 0xff), 1024 + (flow >>> 24), "192.168.1.1", 80, tstamp);
+    }
+
+    /**
+     * @return The hash of the flow of a packet, as computed by the tables.
+     */
+    static long hash(PacketRecord pkt){
+        return FlowID.hash(pkt.srcHi, pkt.srcLo, pkt.srcPort, pkt.dstHi, pkt.dstLo, pkt.dstPort);
+    }
+
+    /**
+     * Sink keeping the rows of the flows, as text.
+     */
+    static final class Rows implements Consumer<Flow>{
+        final List<String[]> rows = new ArrayList<>();
+
+        @Override
+        public void accept(Flow flow){
+            this.rows.add(flow.getConversation());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ParallelEngineTest{
+
+    private static final Features FEATURES = Features.parse("ipup,ipdwn,portup,portdwn,duration,pkgpersecup,pkgpersecdwn");
+    private static final long SECOND = 1000000;
+    private static final String REPORT = report(2000, 40000);
+
+    @Test
+    void shardsGiveTheRowsOfASingleTable() throws Exception{
+        assertEquals(single(REPORT, SECOND, 0), parallel(REPORT, 4, SECOND, 0));
+        assertEquals(single(REPORT, 0, 0), parallel(REPORT, 3, 0, 0));
+    }
+
+    @Test
+    void capsTheLiveFlowsAsASingleTable() throws Exception{
+        List<String> capped = single(REPORT, 0, 300);
+        assertNotEquals(single(REPORT, 0, 0), capped);
+        assertEquals(capped, parallel(REPORT, 1, 0, 300));
+    }
+
+    @Test
+    void rejectsACapSplitBetweenShards(){
+        assertThrows(IllegalArgumentException.class, () -> new ParallelEngine(4, ",", 0, 300, 0, 0, FEATURES, flow -> { }));
+    }
+
+    /**
+     * @return The sorted rows of a report processed by a single table.
+     */
+    private static List<String> single(String report, long idleTimeout, int maxFlows){
+        List<String> rows = new ArrayList<>();
+        FlowTable table = new FlowTable(idleTimeout, maxFlows, 0, 0, FEATURES, flow -> rows.add(Arrays.toString(flow.getConversation())));
+        PacketRecord pkt = new PacketRecord();
+        for (String line : report.split("\n")){
+            ReportParser.parse(line.split(","), pkt);
+            table.logPkg(pkt);
+        }
+        table.flush();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * @return The sorted rows of a report processed by the shards of an engine, in small chunks.
+     */
+    private static List<String> parallel(String report, int threads, long idleTimeout, int maxFlows) throws Exception{
+        List<String> rows = Collections.synchronizedList(new ArrayList<>());
+        ParallelEngine engine = new ParallelEngine(threads, ",", idleTimeout, maxFlows, 0, 0, FEATURES, flow -> rows.add(Arrays.toString(flow.getConversation())));
+        byte[] bytes = report.getBytes(StandardCharsets.US_ASCII);
+        engine.process(ReportChunker.read(Channels.newChannel(new ByteArrayInputStream(bytes)), 16 << 10));
+        List<String> sorted = new ArrayList<>(rows);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return A report of TCP packets of many client flows, a few of them closed by a FIN-ACK.
+     */
+    private static String report(int flows, int packets){
+        Random random = new Random(5);
+        StringBuilder report = new StringBuilder();
+        long tstamp = 1530000000L * SECOND;
+        for (int i = 0; i < packets; i++){
+            // Some flows are much busier than others
+            int flow = random.nextInt(random.nextBoolean() ? flows : flows / 20);
+            boolean up = random.nextInt(3) != 0;
+            String client = "10.0." + (flow >>> 8) + "." + (flow & 0xff);
+            int port = 1024 + flow;
+            int fin = random.nextInt(200) == 0 ? 1 : 0;
+            tstamp += random.nextInt(2000);
+            report.append("100,3,2,").append(tstamp / SECOND).append('.').append(String.format("%06d", tstamp % SECOND)).append(",0,tcp,")
+                  .append(up ? client : "192.168.1.1").append(',').append(up ? "192.168.1.1" : client).append(',')
+                  .append(up ? port : 80).append(',').append(up ? 80 : port).append(',')
+                  .append(60 + random.nextInt(1400)).append(",1000,64,").append(fin).append(",0,0,0,1,0,21\n");
+        }
+        return report.toString();
+    }
+}
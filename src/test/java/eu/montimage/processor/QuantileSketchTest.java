@@ -0,0 +1,128 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class QuantileSketchTest{
+
+    // Relative error of the estimates, the rounding of the bucket bounds included
+    private static final double ERROR = QuantileSketch.ACCURACY + 1e-9;
+    private static final double[] QUANTILES = {0, 0.01, 0.25, 0.5, 0.75, 0.9, 0.99, 1};
+
+    @Test
+    void estimatesTheQuantilesWithinTheAccuracy(){
+        Random random = new Random(3);
+        long[] values = new long[10000];
+        QuantileSketch sketch = new QuantileSketch(2);
+        for (int i = 0; i < values.length; i++){
+            // Packet sizes and inter-arrival times span a few orders of magnitude
+            values[i] = (long) Math.exp(random.nextDouble() * 12);
+            sketch.add(1, values[i]);
+        }
+        assertQuantiles(values, sketch, 1);
+        assertEquals(Double.NaN, sketch.quantile(0, 0.5));
+    }
+
+    @Test
+    void countsTheZerosApart(){
+        QuantileSketch sketch = new QuantileSketch(1);
+        long[] values = {0, -5, 0, 100, 200, 300};
+        for (long value : values) sketch.add(0, value);
+        assertEquals(0, sketch.quantile(0, 0));
+        assertEquals(0, sketch.quantile(0, 0.4));
+        assertEquals(200, sketch.quantile(0, 0.8), 200 * ERROR);
+        assertEquals(300, sketch.quantile(0, 1), 300 * ERROR);
+    }
+
+    @Test
+    void movesTheWindowUpAndCollapsesTheLowestBuckets(){
+        QuantileSketch sketch = new QuantileSketch(1);
+        sketch.add(0, 1);
+        sketch.add(0, 2);
+        for (int i = 0; i < 10; i++) sketch.add(0, 1000000000000L + i);
+        // The low values are collapsed in the first bucket, but still counted
+        double low = sketch.quantile(0, 0);
+        assertTrue(low > 2, "" + low);
+        assertEquals(low, sketch.quantile(0, 1.0 / 11));
+        // The high quantiles keep their accuracy
+        assertEquals(1e12, sketch.quantile(0, 0.2), 1e12 * ERROR);
+        assertEquals(1e12, sketch.quantile(0, 1), 1e12 * ERROR);
+        // A value far above the whole window collapses all of it
+        sketch.add(0, Long.MAX_VALUE);
+        assertEquals(sketch.quantile(0, 0), sketch.quantile(0, 0.9));
+        assertEquals(Long.MAX_VALUE, sketch.quantile(0, 1), Long.MAX_VALUE * ERROR);
+    }
+
+    @Test
+    void movesTheWindowDownWhileTheHighestBucketsAreEmpty(){
+        QuantileSketch sketch = new QuantileSketch(1);
+        sketch.add(0, 10000);
+        sketch.add(0, 10);
+        assertEquals(10, sketch.quantile(0, 0), 10 * ERROR);
+        assertEquals(10000, sketch.quantile(0, 1), 10000 * ERROR);
+        // Once the window is full to the top, a lower value goes to the lowest bucket
+        QuantileSketch full = new QuantileSketch(1);
+        full.add(0, 1000000);
+        full.add(0, 100000000000L);
+        full.add(0, 10);
+        assertTrue(full.quantile(0, 0) > 10);
+        assertEquals(1e6, full.quantile(0, 0.5), 1e6 * ERROR);
+        assertEquals(1e11, full.quantile(0, 1), 1e11 * ERROR);
+    }
+
+    @Test
+    void mergesAsIfTheValuesHadBeenAddedToOneSketch(){
+        Random random = new Random(5);
+        QuantileSketch parts = new QuantileSketch(3);
+        QuantileSketch whole = new QuantileSketch(1);
+        long[] values = new long[5000];
+        for (int i = 0; i < values.length; i++){
+            // The second part is higher: its window starts above the one of the first part
+            values[i] = i < 1000 ? random.nextInt(100) : (long) Math.exp(5 + random.nextDouble() * 7);
+            parts.add(i < 1000 ? 0 : 2, values[i]);
+            whole.add(0, values[i]);
+        }
+        parts.merge(0, parts, 1);
+        parts.merge(0, parts, 2);
+        for (double q : QUANTILES) assertEquals(whole.quantile(0, q), parts.quantile(0, q));
+        assertQuantiles(values, parts, 0);
+        // Into an empty sketch
+        QuantileSketch copy = new QuantileSketch(1);
+        copy.merge(0, whole, 0);
+        for (double q : QUANTILES) assertEquals(whole.quantile(0, q), copy.quantile(0, q));
+    }
+
+    @Test
+    void readsTheSketchItWrote(){
+        QuantileSketch sketch = new QuantileSketch(2);
+        for (long value = 0; value < 100000; value += 7) sketch.add(1, value * value);
+        ByteBuffer buf = ByteBuffer.allocate(QuantileSketch.bytesPerSketch());
+        sketch.write(1, buf);
+        assertEquals(0, buf.remaining());
+        ((Buffer) buf).flip();
+        QuantileSketch restored = new QuantileSketch(1);
+        restored.read(0, buf);
+        for (double q : QUANTILES) assertEquals(sketch.quantile(1, q), restored.quantile(0, q));
+        restored.clear(0);
+        assertEquals(Double.NaN, restored.quantile(0, 0.5));
+    }
+
+    /**
+     * Asserts the quantiles of the sketch are within its accuracy of the exact ones.
+     */
+    private static void assertQuantiles(long[] values, QuantileSketch sketch, int i){
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double q : QUANTILES){
+            long exact = Math.max(0, sorted[(int) (q * (sorted.length - 1))]);
+            assertEquals(exact, sketch.quantile(i, q), exact * ERROR, "Quantile " + q);
+        }
+    }
+}
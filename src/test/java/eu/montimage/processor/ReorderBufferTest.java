@@ -0,0 +1,84 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ReorderBufferTest{
+
+    private static final long START = 1530000000L * 1000000;
+    private static final long DELAY = 1000;
+
+    @Test
+    void releasesThePacketsInTimeThenInputOrder(){
+        Random random = new Random(21);
+        List<PacketRecord> packets = new ArrayList<>();
+        // More packets held at once than the initial capacity of the buffer
+        for (int i = 0; i < 20000; i++){
+            PacketRecord pkt = Packets.client(i % 100, START + i / 4 + random.nextInt((int) DELAY));
+            pkt.seq = i;
+            packets.add(pkt);
+        }
+        List<long[]> released = new ArrayList<>();
+        long[] newest = {Long.MIN_VALUE};
+        ReorderBuffer buffer = new ReorderBuffer(DELAY, pkt -> {
+            // Only released once a packet newer by more than the delay came
+            assertTrue(pkt.tstamp < newest[0] - DELAY);
+            released.add(new long[]{pkt.tstamp, pkt.seq, pkt.srcLo});
+        });
+        for (PacketRecord pkt : packets){
+            newest[0] = Math.max(newest[0], pkt.tstamp);
+            buffer.add(pkt);
+        }
+        assertEquals(newest[0] - DELAY, buffer.watermark());
+        newest[0] = Long.MAX_VALUE;
+        buffer.flush();
+        List<long[]> expected = new ArrayList<>();
+        for (PacketRecord pkt : packets) expected.add(new long[]{pkt.tstamp, pkt.seq, pkt.srcLo});
+        expected.sort(Comparator.<long[]>comparingLong(p -> p[0]).thenComparingLong(p -> p[1]));
+        assertEquals(expected.size(), released.size());
+        for (int i = 0; i < expected.size(); i++) assertArrayEquals(expected.get(i), released.get(i));
+    }
+
+    @Test
+    void releasesALatePacketAtOnce(){
+        List<Long> released = new ArrayList<>();
+        ReorderBuffer buffer = new ReorderBuffer(DELAY, pkt -> released.add(pkt.seq));
+        buffer.add(packet(1, START));
+        buffer.add(packet(2, START + 500));
+        buffer.add(packet(3, START + 3000));
+        assertEquals(listOf(1, 2), released);
+        // Older than the packets released
+        buffer.add(packet(4, START + 100));
+        assertEquals(listOf(1, 2, 4), released);
+        // Within the delay of the newest packet: held
+        buffer.add(packet(5, START + 2500));
+        assertEquals(listOf(1, 2, 4), released);
+        // The report clock moves without packets
+        buffer.advance(START + 3501);
+        assertEquals(listOf(1, 2, 4, 5), released);
+        buffer.advance(START);
+        assertEquals(START + 3501 - DELAY, buffer.watermark());
+        buffer.flush();
+        assertEquals(listOf(1, 2, 4, 5, 3), released);
+    }
+
+    private static PacketRecord packet(long seq, long tstamp){
+        PacketRecord pkt = Packets.client(0, tstamp);
+        pkt.seq = seq;
+        return pkt;
+    }
+
+    private static List<Long> listOf(long... values){
+        List<Long> list = new ArrayList<>();
+        for (long value : values) list.add(value);
+        return list;
+    }
+}
@@ -0,0 +1,117 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class ReportParserTest{
+
+    private static final String LINE = "100,3,eth0,1530000000.123456,0,tcp,10.0.0.1,2001:db8::1,1024,443,1500,65535,64,0,1,0,1,1,0,22";
+
+    @Test
+    void decodesEveryColumnOfALine(){
+        PacketRecord rec = new PacketRecord();
+        assertTrue(parse(new ReportParser(","), LINE, rec));
+        assertEquals(ReportParser.hash("3"), rec.probe);
+        assertEquals(ReportParser.hash("eth0"), rec.iface);
+        assertEquals(1530000000123456L, rec.tstamp);
+        assertEquals("10.0.0.1", rec.getSrcIP());
+        assertEquals("2001:db8::1", rec.getDstIP());
+        assertEquals(1024, rec.srcPort);
+        assertEquals(443, rec.dstPort);
+        assertEquals(1500, rec.size);
+        assertEquals(65535, rec.tcpwin);
+        assertEquals(64, rec.ttl);
+        assertEquals(2 | 8 | 16, rec.getFlags());
+        assertEquals(22, rec.contType);
+    }
+
+    @Test
+    void acceptsALineWithoutContentType(){
+        PacketRecord rec = new PacketRecord();
+        ReportParser parser = new ReportParser(",");
+        assertTrue(parse(parser, LINE.substring(0, LINE.lastIndexOf(',')), rec));
+        assertEquals(-1, rec.contType);
+        assertTrue(parse(parser, LINE.substring(0, LINE.lastIndexOf(',') + 1), rec));
+        assertEquals(-1, rec.contType);
+    }
+
+    @Test
+    void takesTheTcpFlagsAsSetOrNot(){
+        String line = column(13, "2").replace(",1,1,0,22", ",3,1,0,22");
+        PacketRecord rec = new PacketRecord();
+        assertTrue(parse(new ReportParser(","), line, rec));
+        assertEquals(1, rec.fin);
+        assertEquals(1, rec.psh);
+        assertEquals(1 | 2 | 8 | 16, rec.getFlags());
+        PacketRecord split = new PacketRecord();
+        ReportParser.parse(line.split(","), split);
+        assertEquals(1, split.fin);
+        assertEquals(1, split.psh);
+        assertEquals(0, split.rst);
+    }
+
+    @Test
+    void tellsWhyALineCannotBeDecoded(){
+        ReportParser parser = new ReportParser(",");
+        assertFailure(parser, ReportParser.Failure.COLUMNS, "100,3,eth0,1530000000.123456,0,tcp,10.0.0.1,2001:db8::1,1024,443");
+        assertFailure(parser, ReportParser.Failure.COLUMNS, "");
+        assertFailure(parser, ReportParser.Failure.TIMESTAMP, column(3, "1530000000.12x"));
+        assertFailure(parser, ReportParser.Failure.TIMESTAMP, column(3, ""));
+        assertFailure(parser, ReportParser.Failure.ADDRESS, column(6, "10.0.0.256"));
+        assertFailure(parser, ReportParser.Failure.ADDRESS, column(7, "2001:db8:::1"));
+        assertFailure(parser, ReportParser.Failure.PORT, column(8, "-1"));
+        assertFailure(parser, ReportParser.Failure.PORT, column(9, ""));
+        assertFailure(parser, ReportParser.Failure.NUMBER, column(10, "1e3"));
+        assertFailure(parser, ReportParser.Failure.NUMBER, column(12, "1234567890123456789"));
+        assertFailure(parser, ReportParser.Failure.NUMBER, column(18, "x"));
+        // The failure of a line is not kept by the next ones
+        assertTrue(parse(parser, LINE, new PacketRecord()));
+        assertFailure(parser, ReportParser.Failure.ADDRESS, column(6, "host"));
+    }
+
+    @Test
+    void splitsOnAMultiByteSeparator(){
+        ReportParser parser = new ReportParser("<>");
+        PacketRecord rec = new PacketRecord();
+        // A byte of the separator alone is part of the column
+        String line = LINE.replace(",tcp,", ",tc<p>,").replace(",", "<>").replace("<>tc<p><>", "<>tc<p<>");
+        assertTrue(parse(parser, line, rec));
+        assertEquals(ReportParser.hash("eth0"), rec.iface);
+        assertEquals("2001:db8::1", rec.getDstIP());
+        assertEquals(22, rec.contType);
+        assertFailure(parser, ReportParser.Failure.COLUMNS, LINE);
+        // A separator at the end of the line: an empty last column
+        assertTrue(parse(parser, line.substring(0, line.lastIndexOf("<>") + 2), rec));
+        assertEquals(-1, rec.contType);
+        // Half a separator is part of the column
+        assertFailure(parser, ReportParser.Failure.NUMBER, line.substring(0, line.lastIndexOf("<>") + 1));
+    }
+
+    /**
+     * @return The line with one of its columns replaced.
+     */
+    private static String column(int index, String value){
+        String[] cols = LINE.split(",");
+        cols[index] = value;
+        return String.join(",", cols);
+    }
+
+    private static void assertFailure(ReportParser parser, ReportParser.Failure failure, String line){
+        assertFalse(parse(parser, line, new PacketRecord()), line);
+        assertEquals(failure, parser.getFailure(), line);
+    }
+
+    /**
+     * Parses a line in the middle of a buffer.
+     */
+    private static boolean parse(ReportParser parser, String line, PacketRecord rec){
+        byte[] bytes = ("#\n" + line + "\n#").getBytes(StandardCharsets.US_ASCII);
+        return parser.parse(ByteBuffer.wrap(bytes), 2, 2 + line.length(), rec);
+    }
+}
@@ -0,0 +1,60 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class RunningStatsTest{
+
+    @Test
+    void keepsTheMeanAndVarianceOfTheValues(){
+        Random random = new Random(9);
+        double[] values = new double[1000];
+        double[] mean = new double[2];
+        double[] m2 = new double[2];
+        for (int i = 0; i < values.length; i++){
+            // Large values close to each other lose the precision of naive sums
+            values[i] = 1e9 + random.nextInt(1000);
+            RunningStats.add(mean, m2, 1, i + 1, values[i]);
+        }
+        assertEquals(mean(values, 0, values.length), mean[1], 1e-6);
+        assertEquals(std(values, 0, values.length), RunningStats.std(m2[1], values.length), 1e-6);
+        assertEquals(0, mean[0]);
+        assertEquals(Double.NaN, RunningStats.std(0, 0));
+        assertEquals(0, RunningStats.std(0, 1));
+    }
+
+    @Test
+    void mergesAsIfTheValuesHadBeenAddedInOne(){
+        Random random = new Random(10);
+        double[] values = new double[500];
+        for (int i = 0; i < values.length; i++) values[i] = random.nextGaussian() * 100 + (i < 100 ? 0 : 5000);
+        for (int cut : new int[]{0, 1, 100, 499, 500}){
+            double[] mean = new double[2];
+            double[] m2 = new double[2];
+            for (int i = 0; i < cut; i++) RunningStats.add(mean, m2, 0, i + 1, values[i]);
+            for (int i = cut; i < values.length; i++) RunningStats.add(mean, m2, 1, i - cut + 1, values[i]);
+            RunningStats.merge(mean, m2, 0, cut, mean[1], m2[1], values.length - cut);
+            assertEquals(mean(values, 0, values.length), mean[0], 1e-9, "Cut at " + cut);
+            assertEquals(std(values, 0, values.length), RunningStats.std(m2[0], values.length), 1e-9, "Cut at " + cut);
+        }
+    }
+
+    private static double mean(double[] values, int from, int to){
+        double sum = 0;
+        for (int i = from; i < to; i++) sum += values[i];
+        return sum / (to - from);
+    }
+
+    /**
+     * @return The population standard deviation, in two passes.
+     */
+    private static double std(double[] values, int from, int to){
+        double mean = mean(values, from, to);
+        double sum = 0;
+        for (int i = from; i < to; i++) sum += (values[i] - mean) * (values[i] - mean);
+        return Math.sqrt(sum / (to - from));
+    }
+}
@@ -0,0 +1,73 @@
+package eu.montimage.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ShortestDecimalTest{
+
+    // Double.toString and Float.toString give the shortest decimal since Java 19
+    private static final boolean SHORTEST_TO_STRING = !System.getProperty("java.specification.version").startsWith("1.")
+            && Integer.parseInt(System.getProperty("java.specification.version")) >= 19;
+
+    @Test
+    void formatsTheSpecialValues(){
+        assertEquals("NaN", ShortestDecimal.toString(Double.NaN));
+        assertEquals("-Infinity", ShortestDecimal.toString(Double.NEGATIVE_INFINITY));
+        assertEquals("Infinity", ShortestDecimal.toString(Float.POSITIVE_INFINITY));
+        assertEquals("0.0", ShortestDecimal.toString(0.0));
+        assertEquals("-0.0", ShortestDecimal.toString(-0.0f));
+        assertEquals("4.9E-324", ShortestDecimal.toString(Double.MIN_VALUE));
+        assertEquals("1.4E-45", ShortestDecimal.toString(Float.MIN_VALUE));
+        assertEquals("1.7976931348623157E308", ShortestDecimal.toString(Double.MAX_VALUE));
+        assertEquals("3.4028235E38", ShortestDecimal.toString(Float.MAX_VALUE));
+    }
+
+    @Test
+    void switchesToTheScientificNotationOutsideOfTheThousandthToTenMillions(){
+        assertEquals("0.001", ShortestDecimal.toString(0.001));
+        assertEquals("9.99E-4", ShortestDecimal.toString(0.000999));
+        assertEquals("9999999.0", ShortestDecimal.toString(9999999.0));
+        assertEquals("1.0E7", ShortestDecimal.toString(1e7));
+        assertEquals("1.2345678E7", ShortestDecimal.toString(12345678.0));
+        assertEquals("123.456", ShortestDecimal.toString(123.456));
+        assertEquals("0.3333333333333333", ShortestDecimal.toString(1.0 / 3));
+        assertEquals("0.33333334", ShortestDecimal.toString(1.0f / 3));
+    }
+
+    @Test
+    void givesTheShortestDecimalOfTheValue(){
+        // Double.toString of Java 8 to 18 gives 2.0E-3 for 0.002, and 1.0E23 for 9.999999999999999E22
+        assertEquals("0.002", ShortestDecimal.toString(0.002));
+        assertEquals("1.0E23", ShortestDecimal.toString(1e23));
+        assertEquals("2.0E23", ShortestDecimal.toString(2e23));
+        assertEquals("2.0290844E9", ShortestDecimal.toString(2.0290844E9f));
+    }
+
+    @Test
+    void agreesWithToString(){
+        Random random = new Random(7);
+        for (int i = 0; i < 1000000; i++){
+            double d = i % 2 == 0 ? Double.longBitsToDouble(random.nextLong()) : random.nextInt(100000) / (double) (1 + random.nextInt(100000));
+            float f = i % 2 == 0 ? Float.intBitsToFloat(random.nextInt()) : random.nextInt(1000000) / (float) (1 + random.nextInt(100000));
+            check(Double.toString(d), ShortestDecimal.toString(d), Double.isNaN(d) || Double.parseDouble(ShortestDecimal.toString(d)) == d);
+            check(Float.toString(f), ShortestDecimal.toString(f), Float.isNaN(f) || Float.parseFloat(ShortestDecimal.toString(f)) == f);
+        }
+    }
+
+    /**
+     * Checks the text of a value against the one of toString: the same since
+     * Java 19, and before as short or shorter, for the same value.
+     */
+    private static void check(String expected, String text, boolean sameValue){
+        if (SHORTEST_TO_STRING){
+            assertEquals(expected, text);
+        } else {
+            assertTrue(sameValue, text + " for " + expected);
+            assertTrue(text.length() <= expected.length(), text + " for " + expected);
+        }
+    }
+}